@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.serotonin.m2m2.db.BenchmarkDatabase;
+import com.serotonin.m2m2.rt.RuntimeManager;
+import com.serotonin.m2m2.rt.maint.BackgroundProcessing;
+import com.serotonin.m2m2.rt.maint.MangoThreadFactory;
+import com.serotonin.m2m2.util.timeout.RejectedRunnableEventGenerator;
+import com.serotonin.timer.OrderedThreadPoolExecutor;
+import com.serotonin.util.properties.ReloadingProperties;
+
+/**
+ * Brings up as much of Mango as the benchmarks need, without modules or the web server.
+ *
+ * Benchmarks run in their own forked VM so each fork starts at most one database, its tables are
+ * created from the scripts in ${ma.home}/db, ma.home defaults to ../Core
+ */
+public class BenchmarkEnvironment {
+
+	/**
+	 * Load benchmark-env.properties and start the timer
+	 */
+	public static synchronized void initialize(){
+		if(Common.envProps != null)
+			return;
+		Common.MA_HOME = System.getProperty("ma.home", "../Core");
+		Common.envProps = new ReloadingProperties("benchmark-env");
+
+		ThreadPoolExecutor executor = new OrderedThreadPoolExecutor(
+				0,
+				100,
+				30L,
+				TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(),
+				new MangoThreadFactory("high", Thread.MAX_PRIORITY),
+				new RejectedRunnableEventGenerator(),
+				Common.envProps.getInt("runtime.realTimeTimer.defaultTaskQueueSize", 1),
+				Common.envProps.getBoolean("runtime.realTimeTimer.flushTaskQueueOnReject", false));
+		Common.timer.init(executor);
+	}
+
+	/**
+	 * Also start an in memory database of the type, background processing and an empty runtime manager
+	 * @param databaseType H2 or DERBY
+	 */
+	public static synchronized void start(String databaseType){
+		initialize();
+		if(Common.databaseProxy != null)
+			return;
+		Common.databaseProxy = BenchmarkDatabase.create(databaseType);
+		Common.backgroundProcessing = new BackgroundProcessing();
+		Common.backgroundProcessing.initialize();
+		Common.runtimeManager = new RuntimeManager();
+	}
+
+	/**
+	 * Let the background work finish and stop the threads so the fork can exit
+	 */
+	public static synchronized void terminate(){
+		if(Common.backgroundProcessing != null){
+			Common.backgroundProcessing.terminate();
+			Common.backgroundProcessing.joinTermination();
+		}
+		if(Common.databaseProxy != null)
+			Common.databaseProxy.terminate();
+		if(Common.timer.isInitialized())
+			Common.timer.cancel();
+	}
+}
@@ -0,0 +1,25 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db;
+
+import java.io.ByteArrayOutputStream;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.DatabaseProxy.DatabaseType;
+
+/**
+ * An in memory database with the core tables but none of the data of a new installation. The
+ * connection settings are read from benchmark-env.properties prefixed with the database type,
+ * i.e. h2.db.url
+ */
+public class BenchmarkDatabase {
+
+	public static DatabaseProxy create(String databaseType){
+		DatabaseType type = DatabaseType.valueOf(databaseType.toUpperCase());
+		DatabaseProxy proxy = type.getImpl();
+		proxy.initializeImpl(type.name().toLowerCase() + ".");
+		proxy.runScriptFile(Common.MA_HOME + "/db/createTables-" + type.name() + ".sql", new ByteArrayOutputStream());
+		return proxy;
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.serotonin.m2m2.BenchmarkEnvironment;
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.view.chart.TableChartRenderer;
+import com.serotonin.m2m2.view.text.AnalogRenderer;
+import com.serotonin.m2m2.vo.DataPointVO;
+import com.serotonin.m2m2.vo.dataPoint.MockPointLocatorVO;
+import com.serotonin.util.SerializationHelper;
+
+/**
+ * Decoding the data column of every point, as a startup or a point list does. The baseline is the Java
+ * deserialization every row went through before the DataPointCodec and the decode cache.
+ *
+ * startup decodes the codec's data into an empty cache, startupJavaSerialized does the same for points
+ * that haven't been saved since the upgrade. lookup reads from a full cache, where the data column isn't
+ * even read from the database.
+ *
+ * Run the main method or from the benchmarks jar:
+ * 	java -jar maven-target/benchmarks.jar DataPointDecodeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataPointDecodeBenchmark {
+
+	@Param({"1000"})
+	int pointCount;
+
+	byte[][] javaSerialized;
+	byte[][] encoded;
+	DataPointDecodeCache cache;
+
+	@Setup
+	public void setup(){
+		//Points read the system language for their units
+		BenchmarkEnvironment.start("H2");
+		javaSerialized = new byte[pointCount][];
+		encoded = new byte[pointCount][];
+		cache = new DataPointDecodeCache(pointCount);
+		for(int i=0; i<pointCount; i++){
+			DataPointVO vo = point(i);
+			javaSerialized[i] = SerializationHelper.writeObjectToArray(vo);
+			encoded[i] = DataPointCodec.encode(vo);
+			cache.put(i, 0, new ByteArrayInputStream(encoded[i]));
+		}
+	}
+
+	@TearDown
+	public void tearDown(){
+		BenchmarkEnvironment.terminate();
+	}
+
+	@Benchmark
+	public void baseline(Blackhole bh){
+		for(int i=0; i<pointCount; i++)
+			bh.consume(SerializationHelper.readObjectInContextFromArray(javaSerialized[i]));
+	}
+
+	@Benchmark
+	public void startup(Blackhole bh){
+		DataPointDecodeCache empty = new DataPointDecodeCache(pointCount);
+		for(int i=0; i<pointCount; i++)
+			bh.consume(empty.put(i, 0, new ByteArrayInputStream(encoded[i])));
+	}
+
+	@Benchmark
+	public void startupJavaSerialized(Blackhole bh){
+		DataPointDecodeCache empty = new DataPointDecodeCache(pointCount);
+		for(int i=0; i<pointCount; i++)
+			bh.consume(empty.put(i, 0, new ByteArrayInputStream(javaSerialized[i])));
+	}
+
+	@Benchmark
+	public void lookup(Blackhole bh){
+		for(int i=0; i<pointCount; i++)
+			bh.consume(cache.getCopy(i, 0));
+	}
+
+	/**
+	 * Numeric points with units and renderers, the settings differ from point to point
+	 */
+	static DataPointVO point(int i){
+		DataPointVO vo = new DataPointVO();
+		vo.setId(i + 1);
+		vo.setXid("DP_" + i);
+		vo.setName("Point " + i);
+		vo.setPointLocator(new MockPointLocatorVO(DataTypes.NUMERIC, true));
+		vo.setTextRenderer(new AnalogRenderer("0." + "000".substring(i % 3), "", true));
+		vo.setChartRenderer(new TableChartRenderer(i % 50));
+		vo.setUnit(i % 2 == 0 ? SI.CELSIUS : SI.KILO(SI.WATT));
+		if(i % 4 == 0){
+			vo.setRenderedUnit(NonSI.FAHRENHEIT);
+			vo.setUseRenderedUnit(true);
+		}
+		vo.setChartColour(i % 5 == 0 ? null : "blue");
+		return vo;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(DataPointDecodeBenchmark.class.getSimpleName())
+				.build();
+		new Runner(opt).run();
+	}
+}
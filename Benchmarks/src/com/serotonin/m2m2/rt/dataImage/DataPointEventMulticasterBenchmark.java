@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+
+/**
+ * Fan out of one point update to the listeners of the point, i.e. event detectors, scripts and
+ * websockets, through the DataPointEventMulticaster chain.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataPointEventMulticasterBenchmark {
+
+	@Param({"1", "10", "100"})
+	int listenerCount;
+
+	DataPointListener listener;
+	PointValueTime oldValue;
+	PointValueTime newValue;
+
+	@Setup
+	public void setup(Blackhole bh){
+		for(int i=0; i<listenerCount; i++)
+			listener = DataPointEventMulticaster.add(listener, new ConsumingListener(bh));
+		oldValue = new PointValueTime(new NumericValue(1), 1000);
+		newValue = new PointValueTime(new NumericValue(2), 2000);
+	}
+
+	@Benchmark
+	public void pointUpdated(){
+		listener.pointUpdated(newValue);
+	}
+
+	/**
+	 * What DataPointRT fires for a changed value
+	 */
+	@Benchmark
+	public void pointChanged(){
+		listener.pointChanged(oldValue, newValue);
+		listener.pointUpdated(newValue);
+	}
+
+	/**
+	 * Does the least a listener could, so the score is the cost of the fan out
+	 */
+	static class ConsumingListener implements DataPointListener {
+		private final Blackhole bh;
+
+		ConsumingListener(Blackhole bh){
+			this.bh = bh;
+		}
+
+		@Override
+		public void pointInitialized() {
+		}
+
+		@Override
+		public void pointUpdated(PointValueTime newValue) {
+			bh.consume(newValue);
+		}
+
+		@Override
+		public void pointChanged(PointValueTime oldValue, PointValueTime newValue) {
+			bh.consume(oldValue);
+			bh.consume(newValue);
+		}
+
+		@Override
+		public void pointSet(PointValueTime oldValue, PointValueTime newValue) {
+		}
+
+		@Override
+		public void pointBackdated(PointValueTime value) {
+		}
+
+		@Override
+		public void pointTerminated() {
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(DataPointEventMulticasterBenchmark.class.getSimpleName())
+				.build();
+		new Runner(opt).run();
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.serotonin.m2m2.BenchmarkEnvironment;
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+import com.serotonin.m2m2.vo.DataPointVO;
+import com.serotonin.m2m2.vo.dataPoint.MockPointLocatorVO;
+
+/**
+ * Point updates from a data source through DataPointRT.updatePointValue, the PointValueCache and the
+ * asynchronous write behind into an in memory database.
+ *
+ * The write behind is not waited for, so a score that is higher than the database can take
+ * shows up as growing queues and eventually producers backing off.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class DataPointIngestBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Database {
+		@Param({"H2", "DERBY"})
+		String databaseType;
+
+		final AtomicInteger nextPointId = new AtomicInteger();
+
+		@Setup
+		public void setup(){
+			BenchmarkEnvironment.start(databaseType);
+		}
+
+		@TearDown
+		public void tearDown(){
+			BenchmarkEnvironment.terminate();
+		}
+	}
+
+	/**
+	 * Points are only updated by one thread at a time, as by their data source, so each thread has its own
+	 */
+	@State(Scope.Thread)
+	public static class Points {
+		@Param({"100"})
+		int pointCount;
+
+		DataPointRT[] points;
+		long time;
+
+		@Setup
+		public void setup(Database database){
+			time = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+			points = new DataPointRT[pointCount];
+			for(int i=0; i<pointCount; i++){
+				int id = database.nextPointId.incrementAndGet();
+				DataPointVO vo = new DataPointVO();
+				vo.setId(id);
+				vo.setXid("DP_" + id);
+				vo.setName("Point " + id);
+				vo.setPointLocator(new MockPointLocatorVO(DataTypes.NUMERIC, true));
+				vo.setLoggingType(DataPointVO.LoggingTypes.ALL);
+				vo.defaultTextRenderer();
+				points[i] = new DataPointRT(vo, vo.getPointLocator().createRuntime());
+			}
+		}
+	}
+
+	/**
+	 * Each update goes to the thread's next point, with timestamps increasing by one ms
+	 */
+	@Benchmark
+	public void updatePointValue(Points points){
+		long t = ++points.time;
+		DataPointRT point = points.points[(int)(t % points.points.length)];
+		point.updatePointValue(new PointValueTime(new NumericValue(t % 1000), t));
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(DataPointIngestBenchmark.class.getSimpleName())
+				.build();
+		new Runner(opt).run();
+	}
+}
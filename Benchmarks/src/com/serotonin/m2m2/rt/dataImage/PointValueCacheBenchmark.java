@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+
+/**
+ * Compares the ring buffer used by the PointValueCache with the copy on write list it replaced. Readers of both
+ * get the latest value and a copy of the cached values, as getLatestPointValues returns.
+ *
+ * Run the main method or from the benchmarks jar:
+ * 	java -jar maven-target/benchmarks.jar PointValueCacheBenchmark
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointValueCacheBenchmark {
+
+	@Param({"1", "100", "500"})
+	int cacheSize;
+
+	PointValueRingBuffer ring;
+	CopyOnWriteCache copyOnWrite;
+	long time;
+
+	@Setup
+	public void setup(){
+		ring = new PointValueRingBuffer(cacheSize);
+		copyOnWrite = new CopyOnWriteCache(cacheSize);
+		for(int i=0; i<cacheSize; i++){
+			PointValueTime pvt = new PointValueTime(new NumericValue(i), time++);
+			ring.add(pvt);
+			copyOnWrite.add(pvt);
+		}
+	}
+
+	@Benchmark
+	@Group("ring")
+	@GroupThreads(1)
+	public void ringWrite(){
+		ring.add(new PointValueTime(new NumericValue(time), time++));
+	}
+
+	@Benchmark
+	@Group("ring")
+	@GroupThreads(1)
+	public void ringRead(Blackhole bh){
+		bh.consume(ring.latest());
+		bh.consume(ring.copy(cacheSize));
+	}
+
+	@Benchmark
+	@Group("copyOnWrite")
+	@GroupThreads(1)
+	public void copyOnWriteWrite(){
+		copyOnWrite.add(new PointValueTime(new NumericValue(time), time++));
+	}
+
+	@Benchmark
+	@Group("copyOnWrite")
+	@GroupThreads(1)
+	public void copyOnWriteRead(Blackhole bh){
+		List<PointValueTime> c = copyOnWrite.cache;
+		bh.consume(c.isEmpty() ? null : c.get(0));
+		//What getLatestPointValues handed out before the ring buffer
+		bh.consume(new ArrayList<PointValueTime>(c.subList(0, Math.min(cacheSize, c.size()))));
+	}
+
+	/**
+	 * The insert logic PointValueCache used before the ring buffer
+	 */
+	static class CopyOnWriteCache {
+		final int maxSize;
+		volatile List<PointValueTime> cache = new ArrayList<PointValueTime>();
+
+		CopyOnWriteCache(int maxSize){
+			this.maxSize = maxSize;
+		}
+
+		synchronized void add(PointValueTime pvt){
+			List<PointValueTime> c = cache;
+			List<PointValueTime> newCache = new ArrayList<PointValueTime>(c.size() + 1);
+			newCache.addAll(c);
+
+			int pos = 0;
+			if (newCache.size() == 0)
+				newCache.add(pvt);
+			else {
+				while (pos < newCache.size() && newCache.get(pos).getTime() > pvt.getTime())
+					pos++;
+				if (pos < maxSize)
+					newCache.add(pos, pvt);
+			}
+
+			while (newCache.size() > maxSize)
+				newCache.remove(newCache.size() - 1);
+
+			cache = newCache;
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(PointValueCacheBenchmark.class.getSimpleName())
+				.build();
+		new Runner(opt).run();
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.event.compound;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * One child detector of a compound detector changing state, with the compiled condition updated
+ * incrementally or evaluated in full. The condition is an or of ands of pairs of detectors.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompiledConditionBenchmark {
+
+	@Param({"4", "64", "1024"})
+	int detectorCount;
+
+	CompiledCondition condition;
+	int child;
+	boolean state;
+
+	@Setup
+	public void setup() throws ConditionParseException{
+		StringBuilder statement = new StringBuilder();
+		for(int i=0; i<detectorCount; i+=2){
+			if(i > 0)
+				statement.append(" || ");
+			statement.append("(S").append(i).append(" && S").append(i + 1).append(")");
+		}
+		condition = new CompiledCondition(CompoundEventDetectorRT.parseConditionStatement(statement.toString()));
+	}
+
+	@Benchmark
+	public boolean incremental(){
+		return condition.setState(next(), state);
+	}
+
+	/**
+	 * Every node of the compiled condition evaluated on each change. The operator tree isn't
+	 * measured, its detector wrappers need running detectors.
+	 */
+	@Benchmark
+	public boolean compiledFullEvaluation(){
+		condition.setState(next(), state);
+		return condition.evaluate();
+	}
+
+	private int next(){
+		child++;
+		if(child == detectorCount){
+			child = 0;
+			state = !state;
+		}
+		return child;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(CompiledConditionBenchmark.class.getSimpleName())
+				.build();
+		new Runner(opt).run();
+	}
+}
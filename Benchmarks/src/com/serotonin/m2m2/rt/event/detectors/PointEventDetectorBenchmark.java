@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.event.detectors;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.serotonin.m2m2.BenchmarkEnvironment;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.EventManager;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+import com.serotonin.m2m2.rt.event.AlarmLevels;
+import com.serotonin.m2m2.rt.event.type.EventType;
+import com.serotonin.m2m2.vo.DataPointVO;
+import com.serotonin.m2m2.vo.dataPoint.MockPointLocatorVO;
+import com.serotonin.m2m2.vo.event.PointEventDetectorVO;
+
+/**
+ * Evaluation of numeric point event detectors for each new value of their point. The event manager
+ * only counts the events, so the score is that of the detectors.
+ *
+ * quiet values never cross the high and range limits, alternating values cross them every time and
+ * raise an event or return it to normal. The smoothness detector works over the last 10 values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointEventDetectorBenchmark {
+
+	@Param({"" + PointEventDetectorVO.TYPE_ANALOG_HIGH_LIMIT, "" + PointEventDetectorVO.TYPE_ANALOG_RANGE,
+		"" + PointEventDetectorVO.TYPE_SMOOTHNESS})
+	int detectorType;
+
+	PointEventDetectorRT detector;
+	CountingEventManager eventManager;
+	PointValueTime value;
+	long time;
+
+	@Setup
+	public void setup(){
+		BenchmarkEnvironment.start("H2");
+		eventManager = new CountingEventManager();
+		Common.eventManager = eventManager;
+
+		DataPointVO dp = new DataPointVO();
+		dp.setId(1);
+		dp.setXid("DP_1");
+		dp.setName("Point 1");
+		dp.setPointLocator(new MockPointLocatorVO(DataTypes.NUMERIC, true));
+		dp.defaultTextRenderer();
+
+		PointEventDetectorVO vo = new PointEventDetectorVO();
+		vo.setId(1);
+		vo.setXid("PED_1");
+		vo.njbSetDataPoint(dp);
+		vo.setDetectorType(detectorType);
+		vo.setAlarmLevel(AlarmLevels.URGENT);
+		vo.setDuration(0);
+		vo.setDurationType(Common.TimePeriods.SECONDS);
+		//Active above 100 or outside 0 to 100
+		vo.setLimit(100);
+		vo.setWeight(0);
+		if(detectorType == PointEventDetectorVO.TYPE_SMOOTHNESS){
+			vo.setLimit(0.5);
+			vo.setChangeCount(10);
+		}
+		detector = vo.createRuntime();
+		value = new PointValueTime(new NumericValue(50), time);
+	}
+
+	@TearDown
+	public void tearDown(){
+		BenchmarkEnvironment.terminate();
+	}
+
+	@Benchmark
+	public void quiet(){
+		PointValueTime newValue = new PointValueTime(new NumericValue(time % 100), ++time);
+		detector.pointChanged(value, newValue);
+		value = newValue;
+	}
+
+	@Benchmark
+	public void alternating(){
+		PointValueTime newValue = new PointValueTime(new NumericValue((time & 1) == 0 ? 50 : 150), ++time);
+		detector.pointChanged(value, newValue);
+		value = newValue;
+	}
+
+	/**
+	 * Counts the events instead of raising them
+	 */
+	static class CountingEventManager extends EventManager {
+		long raised;
+		long returned;
+
+		@Override
+		public void raiseEvent(EventType type, long time, boolean rtnApplicable, int alarmLevel,
+				TranslatableMessage message, Map<String, Object> context) {
+			raised++;
+		}
+
+		@Override
+		public void returnToNormal(EventType type, long time, int cause) {
+			returned++;
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(PointEventDetectorBenchmark.class.getSimpleName())
+				.build();
+		new Runner(opt).run();
+	}
+}
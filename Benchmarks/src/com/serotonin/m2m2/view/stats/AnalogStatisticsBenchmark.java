@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.view.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueBatch;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+
+/**
+ * Statistics of one period from point value objects and from a primitive batch of the same values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalogStatisticsBenchmark {
+
+	@Param({"1000", "100000"})
+	int valueCount;
+
+	List<PointValueTime> values;
+	NumericPointValueBatch batch;
+	long end;
+
+	@Setup
+	public void setup(){
+		Random random = new Random(0);
+		values = new ArrayList<PointValueTime>(valueCount);
+		batch = new NumericPointValueBatch(valueCount);
+		long time = 0;
+		for(int i=0; i<valueCount; i++){
+			double value = random.nextDouble() * 100;
+			time += 1 + random.nextInt(2000);
+			values.add(new PointValueTime(value, time));
+			batch.add(time, value);
+		}
+		end = time + 1000;
+	}
+
+	@Benchmark
+	public AnalogStatistics pointValues(){
+		return new AnalogStatistics(0, end, 50D, values, 50D);
+	}
+
+	@Benchmark
+	public AnalogStatistics batch(){
+		return new AnalogStatistics(0, end, 50D, batch, 50D);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(AnalogStatisticsBenchmark.class.getSimpleName())
+				.build();
+		new Runner(opt).run();
+	}
+}
@@ -51,6 +51,7 @@ create table userComments (
   commentText varchar(1024) not null
 );
 alter table userComments add constraint userCommentsFk1 foreign key (userId) references users(id);
+create index userCommentsIdx1 on userComments (commentType, typeKey);
 
 
 --
@@ -123,6 +124,7 @@ create table dataPoints (
   discardExtremeValues char(1),
   engineeringUnits int,
   data blob not null,
+  dataVersion int default 0 not null,
   readPermission varchar(255),
   setPermission varchar(255),
   templateId int
@@ -156,6 +158,24 @@ create table pointValues (
 alter table pointValues add constraint pointValuesPk primary key (id);
 create index pointValuesIdx1 on pointValues (dataPointId, ts);
 
+create table pointValueRollups (
+  dataPointId int not null,
+  rollupPeriod int not null,
+  ts bigint not null,
+  valueCount int not null,
+  total double not null,
+  integral double not null,
+  firstValue double not null,
+  firstTime bigint not null,
+  lastValue double not null,
+  lastTime bigint not null,
+  minimumValue double not null,
+  minimumTime bigint not null,
+  maximumValue double not null,
+  maximumTime bigint not null
+);
+alter table pointValueRollups add constraint pointValueRollupsPk primary key (dataPointId, rollupPeriod, ts);
+
 create table pointValueAnnotations (
   pointValueId bigint not null,
   textPointValueShort varchar(128),
@@ -213,6 +233,7 @@ create table events (
 );
 alter table events add constraint eventsPk primary key (id);
 alter table events add constraint eventsFk1 foreign key (ackUserId) references users(id);
+create index events_performance1 on events (activeTs);
 
 create table userEvents (
   eventId int not null,
@@ -53,6 +53,7 @@ CREATE TABLE userComments (
   commentText varchar(1024) NOT NULL
 );
 ALTER TABLE userComments ADD CONSTRAINT userCommentsFk1 FOREIGN KEY (userId) REFERENCES users(id);
+CREATE INDEX userCommentsIdx1 ON userComments (`commentType` ASC, `typeKey` ASC);
 
 
 --
@@ -119,6 +120,7 @@ CREATE TABLE dataPoints (
   discardExtremeValues char(1),
   engineeringUnits int,
   data longblob NOT NULL,
+  dataVersion int DEFAULT 0 NOT NULL,
   readPermission varchar(255),
   setPermission varchar(255),
   templateId int,
@@ -151,6 +153,24 @@ CREATE TABLE pointValues (
 );
 CREATE index pointValuesIdx1 on pointValues (dataPointId, ts);
 
+CREATE TABLE pointValueRollups (
+  dataPointId int NOT NULL,
+  rollupPeriod int NOT NULL,
+  ts bigint NOT NULL,
+  valueCount int NOT NULL,
+  total double NOT NULL,
+  integral double NOT NULL,
+  firstValue double NOT NULL,
+  firstTime bigint NOT NULL,
+  lastValue double NOT NULL,
+  lastTime bigint NOT NULL,
+  minimumValue double NOT NULL,
+  minimumTime bigint NOT NULL,
+  maximumValue double NOT NULL,
+  maximumTime bigint NOT NULL,
+  PRIMARY KEY (dataPointId, rollupPeriod, ts)
+);
+
 CREATE TABLE pointValueAnnotations (
   pointValueId bigint NOT NULL,
   textPointValueShort varchar(128),
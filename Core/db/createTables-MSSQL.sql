@@ -51,6 +51,7 @@ create table userComments (
   commentText nvarchar(1024) not null
 );
 alter table userComments add constraint userCommentsFk1 foreign key (userId) references users(id);
+create index userCommentsIdx1 on userComments (commentType, typeKey);
 
 
 --
@@ -121,6 +122,7 @@ create table dataPoints (
   discardExtremeValues char(1),
   engineeringUnits int,
   data image not null,
+  dataVersion int default 0 not null,
   readPermission nvarchar(255),
   setPermission nvarchar(255),
   templateId int,
@@ -154,6 +156,24 @@ create table pointValues (
 );
 create index pointValuesIdx1 on pointValues (dataPointId, ts);
 
+create table pointValueRollups (
+  dataPointId int not null,
+  rollupPeriod int not null,
+  ts bigint not null,
+  valueCount int not null,
+  total float not null,
+  integral float not null,
+  firstValue float not null,
+  firstTime bigint not null,
+  lastValue float not null,
+  lastTime bigint not null,
+  minimumValue float not null,
+  minimumTime bigint not null,
+  maximumValue float not null,
+  maximumTime bigint not null,
+  primary key (dataPointId, rollupPeriod, ts)
+);
+
 create table pointValueAnnotations (
   pointValueId bigint not null,
   textPointValueShort nvarchar(128),
@@ -212,6 +232,7 @@ create table events (
   primary key (id)
 );
 alter table events add constraint eventsFk1 foreign key (ackUserId) references users(id);
+create index events_performance1 on events (activeTs);
 
 create table userEvents (
   eventId int not null,
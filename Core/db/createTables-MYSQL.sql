@@ -55,6 +55,7 @@ create table userComments (
   commentText varchar(1024) not null
 ) engine=InnoDB;
 alter table userComments add constraint userCommentsFk1 foreign key (userId) references users(id);
+alter table userComments add index userCommentsIdx1 (commentType, typeKey);
 
 
 --
@@ -127,6 +128,7 @@ create table dataPoints (
   discardExtremeValues char(1),
   engineeringUnits int,
   data longblob not null,
+  dataVersion int default 0 not null,
   readPermission varchar(255),
   setPermission varchar(255),
   templateId int,
@@ -160,6 +162,24 @@ create table pointValues (
 ) engine=InnoDB;
 create index pointValuesIdx1 on pointValues (dataPointId, ts);
 
+create table pointValueRollups (
+  dataPointId int not null,
+  rollupPeriod int not null,
+  ts bigint not null,
+  valueCount int not null,
+  total double not null,
+  integral double not null,
+  firstValue double not null,
+  firstTime bigint not null,
+  lastValue double not null,
+  lastTime bigint not null,
+  minimumValue double not null,
+  minimumTime bigint not null,
+  maximumValue double not null,
+  maximumTime bigint not null,
+  primary key (dataPointId, rollupPeriod, ts)
+) engine=InnoDB;
+
 create table pointValueAnnotations (
   pointValueId bigint not null,
   textPointValueShort varchar(128),
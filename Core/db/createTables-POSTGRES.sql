@@ -52,6 +52,7 @@ CREATE TABLE userComments (
   commentText varchar(1024) NOT NULL
 );
 ALTER TABLE userComments ADD CONSTRAINT userCommentsFk1 FOREIGN KEY (userId) REFERENCES users(id);
+CREATE INDEX userCommentsIdx1 ON userComments (commentType, typeKey);
 
 
 --
@@ -124,6 +125,7 @@ CREATE TABLE dataPoints (
   discardExtremeValues character(1),
   engineeringUnits integer,
   data bytea NOT NULL,
+  dataVersion integer DEFAULT 0 NOT NULL,
   readPermission varchar(255),
   setPermission varchar(255),
   templateId int,
@@ -157,6 +159,24 @@ CREATE TABLE pointValues (
 );
 CREATE INDEX pointValuesIdx1 ON pointValues (dataPointId, ts);
 
+CREATE TABLE pointValueRollups (
+  dataPointId integer NOT NULL,
+  rollupPeriod integer NOT NULL,
+  ts bigint NOT NULL,
+  valueCount integer NOT NULL,
+  total double precision NOT NULL,
+  integral double precision NOT NULL,
+  firstValue double precision NOT NULL,
+  firstTime bigint NOT NULL,
+  lastValue double precision NOT NULL,
+  lastTime bigint NOT NULL,
+  minimumValue double precision NOT NULL,
+  minimumTime bigint NOT NULL,
+  maximumValue double precision NOT NULL,
+  maximumTime bigint NOT NULL,
+  PRIMARY KEY (dataPointId, rollupPeriod, ts)
+);
+
 CREATE TABLE pointValueAnnotations (
   pointValueId bigint NOT NULL,
   textPointValueShort varchar(128),
@@ -214,6 +234,7 @@ CREATE TABLE events (
   PRIMARY KEY (id)
 );
 ALTER TABLE events ADD CONSTRAINT eventsFk1 FOREIGN KEY (ackUserId) REFERENCES users(id);
+CREATE INDEX events_performance1 ON events (activeTs);
 
 CREATE TABLE userEvents (
   eventId integer NOT NULL,
@@ -0,0 +1,27 @@
+<#--
+    Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+-->
+<#include "include/eventHeader.ftl">
+    <table width="500" cellPadding="0" cellSpacing="0" border="0">
+      <tr><td>
+        <table cellPadding="0" cellSpacing="1" border="0" width="100%" style="background-color:#F07800;">
+          <tr>
+           <td style="background-color:#FFFFFF;padding:5px;">
+			<table>
+			  <tr><td colspan="3" class="smallTitle">${instanceDescription} - <@fmt message=digestMessage/></td></tr>
+			  <#list sources as source>
+			  <tr> <td colspan="3"><hr></td></tr>
+			    <#list source as evt>
+			  <tr>
+			    <td><#include "include/alarmLevel.ftl"></td>
+			    <td colspan="2">${evt.prettyActiveTimestamp} - <b><@fmt message=evt.message/></b></td>
+			  </tr>
+			    </#list>
+			  </#list>
+			</table>
+		  </td>
+		  </tr>
+        </table>
+      </td></tr>
+    </table>
+<#include "include/eventFooter.ftl">
\ No newline at end of file
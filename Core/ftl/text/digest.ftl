@@ -0,0 +1,15 @@
+<#ftl strip_whitespace=false><#--
+    Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+-->
+${instanceDescription} - <@fmt message=digestMessage/>
+<#list sources as source>
+
+*******************************************************
+<#list source as evt>
+<#include "include/alarmLevel.ftl">${evt.prettyActiveTimestamp} - <@fmt message=evt.message/>
+</#list>
+</#list>
+
+*******************************************************
+
+<#include "include/footer.ftl">
\ No newline at end of file
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.db.MappedRowCallback;
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueBatch;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.AlphanumericValue;
+import com.serotonin.m2m2.rt.dataImage.types.BinaryValue;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+
+/**
+ * The fallbacks used for the daos of modules that only implement PointValueDao
+ */
+public class BulkPointValuesTest {
+
+    private PointValueDao dao;
+
+    @Before
+    public void setup(){
+        dao = (PointValueDao)Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{PointValueDao.class}, new InvocationHandler(){
+            @SuppressWarnings("unchecked")
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if(method.getName().equals("getPointValuesBetween") && args.length == 4){
+                    MappedRowCallback<PointValueTime> callback = (MappedRowCallback<PointValueTime>)args[3];
+                    callback.row(new PointValueTime(new NumericValue(1.5), 1), 0);
+                    callback.row(new PointValueTime(new AlphanumericValue("text"), 2), 1);
+                    callback.row(new PointValueTime(new BinaryValue(true), 3), 2);
+                    return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    @Test
+    public void testNumericValuesFallback(){
+        NumericPointValueBatch batch = BulkPointValues.getNumericPointValuesBetween(dao, 1, 0, 10);
+        assertEquals(2, batch.size());
+        assertEquals(1, batch.getTime(0));
+        assertEquals(1.5, batch.getValue(0), 0);
+        assertEquals(3, batch.getTime(1));
+        assertEquals(1, batch.getValue(1), 0);
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.db.spring.ExtendedJdbcTemplate;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.db.DatabaseProxy;
+import com.serotonin.m2m2.db.H2Proxy;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.EventManager;
+import com.serotonin.m2m2.rt.event.UserEventCache;
+import com.serotonin.m2m2.rt.event.type.AuditEventType;
+import com.serotonin.m2m2.rt.event.type.EventType;
+import com.serotonin.m2m2.rt.event.type.SystemEventType;
+import com.serotonin.m2m2.view.text.AnalogRenderer;
+import com.serotonin.m2m2.vo.DataPointVO;
+import com.serotonin.m2m2.vo.User;
+import com.serotonin.m2m2.vo.dataPoint.MockPointLocatorVO;
+import com.serotonin.m2m2.vo.event.EventHandlerVO;
+import com.serotonin.timer.SimulationTimer;
+import com.serotonin.util.properties.ReloadingProperties;
+
+/**
+ * Saves and deletes on an in memory H2 database and checks the next cached read sees them
+ */
+public class CachedDaoTest {
+
+    private DatabaseProxy databaseProxy;
+    private ReloadingProperties envProps;
+    private EventManager eventManager;
+    private MemoryProxy proxy;
+
+    @Before
+    public void setup() throws IOException {
+        databaseProxy = Common.databaseProxy;
+        envProps = Common.envProps;
+        eventManager = Common.eventManager;
+        proxy = new MemoryProxy();
+        Common.databaseProxy = proxy;
+        //The defaults of the daos, whichever test ran before
+        Common.envProps = new ReloadingProperties("test-env");
+        //Audit events of the handler changes aren't raised
+        Common.eventManager = new EventManager(new UserEventCache(60000, 60000, new EventDao(), new SimulationTimer())) {
+            @Override
+            public void raiseEvent(EventType type, long time, boolean rtnApplicable, int alarmLevel,
+                    TranslatableMessage message, Map<String, Object> context) {
+            }
+        };
+        try (InputStream in = new FileInputStream("db/createTables-H2.sql")) {
+            proxy.runScript(in, new ByteArrayOutputStream());
+        }
+        if (AuditEventType.EVENT_TYPES.isEmpty())
+            AuditEventType.initialize();
+        EventDao.clearEventHandlerCache();
+        UserDao.clearActiveUsersCache();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        EventDao.clearEventHandlerCache();
+        UserDao.clearActiveUsersCache();
+        proxy.dispose();
+        Common.databaseProxy = databaseProxy;
+        Common.envProps = envProps;
+        Common.eventManager = eventManager;
+    }
+
+    @Test
+    public void testEventHandlerSaveAndDelete() {
+        EventDao dao = new EventDao();
+        EventType type = new SystemEventType(SystemEventType.TYPE_SYSTEM_STARTUP);
+        assertTrue(dao.getCachedEventHandlers(type).isEmpty());
+
+        EventHandlerVO handler = handler("EH_1", "first");
+        dao.saveEventHandler(type, handler);
+        List<EventHandlerVO> handlers = dao.getCachedEventHandlers(type);
+        assertEquals(1, handlers.size());
+        assertEquals("first", handlers.get(0).getAlias());
+
+        handler.setAlias("renamed");
+        dao.saveEventHandler(type, handler);
+        assertEquals("renamed", dao.getCachedEventHandlers(type).get(0).getAlias());
+
+        //Other types don't see it
+        assertTrue(dao.getCachedEventHandlers(new SystemEventType(SystemEventType.TYPE_USER_LOGIN)).isEmpty());
+
+        dao.deleteEventHandler(handler.getId());
+        assertTrue(dao.getCachedEventHandlers(type).isEmpty());
+    }
+
+    @Test
+    public void testUserSaveAndDelete() {
+        UserDao dao = new UserDao();
+        assertTrue(dao.getCachedActiveUsers().isEmpty());
+
+        User user = user("first");
+        dao.saveUser(user);
+        assertEquals(1, dao.getCachedActiveUsers().size());
+
+        user.setEmail("changed@example.com");
+        dao.saveUser(user);
+        assertEquals("changed@example.com", dao.getCachedActiveUsers().get(0).getEmail());
+
+        dao.saveMuted(user.getId(), true);
+        assertTrue(dao.getCachedActiveUsers().get(0).isMuted());
+
+        //Disabled users aren't active
+        User second = user("second");
+        dao.saveUser(second);
+        assertEquals(2, dao.getCachedActiveUsers().size());
+        second.setDisabled(true);
+        dao.saveUser(second);
+        assertEquals(1, dao.getCachedActiveUsers().size());
+
+        dao.deleteUser(user.getId());
+        assertTrue(dao.getCachedActiveUsers().isEmpty());
+    }
+
+    @Test
+    public void testDataPointSave() {
+        ExtendedJdbcTemplate ejt = new ExtendedJdbcTemplate();
+        ejt.setDataSource(proxy.getDataSource());
+        ejt.update("insert into dataSources (xid, name, dataSourceType, data) values ('DS_1', 'source', 'MOCK', X'00')");
+        DataPointDao dao = new DataPointDao();
+        DataPointVO vo = new DataPointVO();
+        vo.setXid("DP_1");
+        vo.setName("point");
+        vo.setDataSourceId(1);
+        vo.setPointLocator(new MockPointLocatorVO(DataTypes.NUMERIC, true));
+        vo.setTextRenderer(new AnalogRenderer("0.00", "", false));
+        dao.saveDataPoint(vo);
+
+        //The second read is a copy of the first
+        long hits = DataPointDao.getDecodeCache().getHits();
+        assertEquals("0.00", format(dao.getDataPoint(vo.getId())));
+        assertEquals("0.00", format(dao.get(vo.getId())));
+        assertEquals(hits + 1, DataPointDao.getDecodeCache().getHits());
+
+        ((AnalogRenderer)vo.getTextRenderer()).setFormat("0.0");
+        dao.saveDataPoint(vo);
+        assertEquals(1, ejt.queryForInt("select dataVersion from dataPoints where id=?",
+                new Object[] { vo.getId() }, -1));
+        assertEquals("0.0", format(dao.getDataPoint(vo.getId())));
+        assertEquals("0.0", format(dao.get(vo.getId())));
+
+        dao.deleteDataPoint(vo.getId());
+        assertNull(dao.getDataPoint(vo.getId()));
+    }
+
+    private static String format(DataPointVO vo) {
+        return ((AnalogRenderer) vo.getTextRenderer()).getFormat();
+    }
+
+    private static EventHandlerVO handler(String xid, String alias) {
+        EventHandlerVO handler = new EventHandlerVO();
+        handler.setXid(xid);
+        handler.setAlias(alias);
+        handler.setHandlerType(EventHandlerVO.TYPE_PROCESS);
+        return handler;
+    }
+
+    private static User user(String username) {
+        User user = new User();
+        user.setId(Common.NEW_ID);
+        user.setUsername(username);
+        user.setPassword("password");
+        user.setEmail(username + "@example.com");
+        user.setPhone("");
+        user.setPermissions("user");
+        return user;
+    }
+
+    /**
+     * H2 proxy on a private in memory database
+     */
+    static class MemoryProxy extends H2Proxy {
+        private final JdbcConnectionPool dataSource = JdbcConnectionPool.create("jdbc:h2:mem:cachedDaoTest;"
+                + "DB_CLOSE_DELAY=-1", "", "");
+
+        @Override
+        public DataSource getDataSource() {
+            return dataSource;
+        }
+
+        void dispose() throws SQLException {
+            try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+                stmt.execute("SHUTDOWN");
+            }
+            dataSource.dispose();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.db.DatabaseProxy;
+import com.serotonin.m2m2.db.dao.CachedDaoTest.MemoryProxy;
+import com.serotonin.m2m2.view.chart.TableChartRenderer;
+import com.serotonin.m2m2.view.text.AnalogRenderer;
+import com.serotonin.m2m2.vo.DataPointVO;
+import com.serotonin.m2m2.vo.dataPoint.MockPointLocatorVO;
+import com.serotonin.util.SerializationHelper;
+
+public class DataPointCodecTest {
+
+    private DatabaseProxy databaseProxy;
+    private MemoryProxy proxy;
+
+    @Before
+    public void setup() throws IOException {
+        //Points read the system language for their units
+        databaseProxy = Common.databaseProxy;
+        proxy = new MemoryProxy();
+        Common.databaseProxy = proxy;
+        try (InputStream in = new FileInputStream("db/createTables-H2.sql")) {
+            proxy.runScript(in, new ByteArrayOutputStream());
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        proxy.dispose();
+        Common.databaseProxy = databaseProxy;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        DataPointVO vo = point();
+        byte[] data = DataPointCodec.encode(vo);
+        assertFalse(data[0] == (byte)0xAC);
+        assertPoint(DataPointCodec.decode(new ByteArrayInputStream(data)));
+
+        //A new point has neither
+        vo = new DataPointVO();
+        DataPointVO decoded = DataPointCodec.decode(new ByteArrayInputStream(DataPointCodec.encode(vo)));
+        assertNull(decoded.getChartColour());
+        assertNull(decoded.getPointLocator());
+    }
+
+    @Test
+    public void testJavaSerialized() {
+        assertPoint(DataPointCodec.decode(new ByteArrayInputStream(SerializationHelper.writeObjectToArray(point()))));
+    }
+
+    private static DataPointVO point() {
+        DataPointVO vo = new DataPointVO();
+        vo.setPointLocator(new MockPointLocatorVO(DataTypes.NUMERIC, true));
+        vo.setTextRenderer(new AnalogRenderer("0.00", "", false));
+        vo.setChartRenderer(new TableChartRenderer(7));
+        vo.setDiscardLowLimit(-5);
+        vo.setDiscardHighLimit(50);
+        vo.setChartColour("red");
+        vo.setPlotType(DataPointVO.PlotTypes.LINE);
+        vo.setUnit(SI.CELSIUS);
+        vo.setRenderedUnit(NonSI.FAHRENHEIT);
+        vo.setUseRenderedUnit(true);
+        vo.setOverrideIntervalLoggingSamples(true);
+        vo.setIntervalLoggingSampleWindowSize(3);
+        return vo;
+    }
+
+    private static void assertPoint(DataPointVO vo) {
+        assertEquals(DataTypes.NUMERIC, vo.getPointLocator().getDataTypeId());
+        AnalogRenderer renderer = (AnalogRenderer)vo.getTextRenderer();
+        assertEquals("0.00", renderer.getFormat());
+        assertFalse(renderer.isUseUnitAsSuffix());
+        assertEquals(NonSI.FAHRENHEIT, renderer.getRenderedUnit());
+        assertEquals(7, ((TableChartRenderer)vo.getChartRenderer()).getLimit());
+        assertEquals(-5, vo.getDiscardLowLimit(), 0);
+        assertEquals(50, vo.getDiscardHighLimit(), 0);
+        assertEquals("red", vo.getChartColour());
+        assertEquals(DataPointVO.PlotTypes.LINE, vo.getPlotType());
+        assertEquals(SI.CELSIUS, vo.getUnit());
+        assertEquals(SI.CELSIUS.times(SI.SECOND), vo.getIntegralUnit());
+        assertEquals(NonSI.FAHRENHEIT, vo.getRenderedUnit());
+        assertTrue(vo.isUseRenderedUnit());
+        assertFalse(vo.isUseIntegralUnit());
+        assertTrue(vo.isOverrideIntervalLoggingSamples());
+        assertEquals(3, vo.getIntervalLoggingSampleWindowSize());
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.serotonin.io.StreamUtils;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.db.DatabaseProxy;
+import com.serotonin.m2m2.db.dao.CachedDaoTest.MemoryProxy;
+import com.serotonin.m2m2.view.text.AnalogRenderer;
+import com.serotonin.m2m2.vo.AbstractVO;
+import com.serotonin.m2m2.vo.DataPointVO;
+import com.serotonin.m2m2.vo.dataPoint.MockPointLocatorVO;
+import com.serotonin.util.SerializationHelper;
+
+public class DecodedVOCacheTest {
+
+    @Test
+    public void testDecodeOnChangeOnly(){
+        TestCache cache = new TestCache(2);
+
+        assertNull(cache.getCopy(1, 0));
+        TestVO first = cache.put(1, 0, stream("a"));
+        first.setName("changed");
+        TestVO second = cache.getCopy(1, 0);
+        assertNotSame(first, second);
+        assertEquals("a", second.getName());
+        assertEquals(1, cache.decodes);
+        assertEquals(1, cache.getHits());
+
+        //Saved with new data
+        assertNull(cache.getCopy(1, 1));
+        assertEquals("b", cache.put(1, 1, stream("b")).getName());
+        assertEquals("b", cache.getCopy(1, 1).getName());
+        assertEquals(2, cache.decodes);
+
+        //Least recently read is dropped
+        cache.put(2, 0, stream("c"));
+        cache.getCopy(1, 1);
+        cache.put(3, 0, stream("d"));
+        assertEquals(2, cache.size());
+        assertNull(cache.getCopy(2, 0));
+        assertEquals("b", cache.getCopy(1, 1).getName());
+
+        assertNull(cache.put(4, 0, null));
+    }
+
+    @Test
+    public void testDisabled(){
+        TestCache cache = new TestCache(0);
+        cache.put(1, 0, stream("a"));
+        assertNull(cache.getCopy(1, 0));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPointCopiesAreIndependent() throws IOException, SQLException {
+        //Points read the system language for their units
+        DatabaseProxy databaseProxy = Common.databaseProxy;
+        MemoryProxy proxy = new MemoryProxy();
+        Common.databaseProxy = proxy;
+        try (InputStream in = new FileInputStream("db/createTables-H2.sql")) {
+            proxy.runScript(in, new ByteArrayOutputStream());
+            assertPointCopiesAreIndependent();
+        }finally{
+            proxy.dispose();
+            Common.databaseProxy = databaseProxy;
+        }
+    }
+
+    private void assertPointCopiesAreIndependent(){
+        DataPointVO vo = new DataPointVO();
+        vo.setPointLocator(new TestLocator());
+        vo.setTextRenderer(new AnalogRenderer("0.00", "", false));
+        byte[] data = SerializationHelper.writeObjectToArray(vo);
+        DataPointDecodeCache cache = new DataPointDecodeCache(2);
+
+        DataPointVO first = cache.put(1, 0, new ByteArrayInputStream(data));
+        ((TestLocator)first.getPointLocator()).register = 5;
+        ((TestLocator)first.getPointLocator()).names.add("changed");
+        ((TestLocator)first.getPointLocator()).offsets[0] = 5;
+        ((AnalogRenderer)first.getTextRenderer()).setFormat("0");
+
+        DataPointVO second = cache.getCopy(1, 0);
+        assertEquals(1, cache.getHits());
+        TestLocator locator = (TestLocator)second.getPointLocator();
+        assertEquals(0, locator.register);
+        assertEquals(Arrays.asList("a", "b"), locator.names);
+        assertEquals(1, locator.offsets[0]);
+        assertSame(locator.names, locator.alias);
+        assertEquals("0.00", ((AnalogRenderer)second.getTextRenderer()).getFormat());
+        //Units are shared
+        assertSame(first.getUnit(), second.getUnit());
+        assertSame(first.getTextRenderer().getClass(), second.getTextRenderer().getClass());
+    }
+
+    private static ByteArrayInputStream stream(String name){
+        return new ByteArrayInputStream(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static class TestCache extends DecodedVOCache<TestVO> {
+        int decodes;
+
+        TestCache(int maxSize){
+            super(maxSize);
+        }
+
+        @Override
+        protected TestVO decode(InputStream in){
+            decodes++;
+            TestVO vo = new TestVO();
+            try{
+                vo.setName(new String(StreamUtils.read(in), StandardCharsets.UTF_8));
+            }catch(IOException e){
+                throw new RuntimeException(e);
+            }
+            return vo;
+        }
+
+        @Override
+        protected TestVO copy(TestVO vo){
+            //Nothing in a TestVO can be changed in place
+            return vo.copy();
+        }
+    }
+
+    static class TestLocator extends MockPointLocatorVO {
+        private static final long serialVersionUID = 1L;
+        int register;
+        List<String> names = new ArrayList<>(Arrays.asList("a", "b"));
+        //Stays the same list in the copies
+        List<String> alias = names;
+        int[] offsets = { 1, 2 };
+
+        TestLocator(){
+            super(DataTypes.NUMERIC, true);
+        }
+    }
+
+    static class TestVO extends AbstractVO<TestVO> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String getTypeKey(){
+            return "test";
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.RowMapper;
+
+import com.serotonin.db.DaoUtils;
+import com.serotonin.db.spring.ExtendedJdbcTemplate;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.DatabaseProxy;
+import com.serotonin.m2m2.db.DerbyProxy;
+import com.serotonin.m2m2.db.MSSQLProxy;
+import com.serotonin.m2m2.db.dao.CachedDaoTest.MemoryProxy;
+import com.serotonin.m2m2.rt.event.AlarmLevels;
+import com.serotonin.m2m2.vo.UserComment;
+import com.serotonin.util.properties.ReloadingProperties;
+
+/**
+ * Purges events on an in memory H2 database in chunks of 10, with the limit query of each database type that
+ * has its own
+ */
+public class EventPurgeTest {
+
+    private static final int CHUNK_SIZE = 10;
+
+    private DatabaseProxy databaseProxy;
+    private ReloadingProperties envProps;
+    private LimitProxy proxy;
+    private ExtendedJdbcTemplate ejt;
+
+    @Before
+    public void setup() throws IOException {
+        databaseProxy = Common.databaseProxy;
+        envProps = Common.envProps;
+        Common.envProps = new TestProperties();
+        proxy = new LimitProxy();
+        Common.databaseProxy = proxy;
+        try (InputStream in = new FileInputStream("db/createTables-H2.sql")) {
+            proxy.runScript(in, new ByteArrayOutputStream());
+        }
+        ejt = new ExtendedJdbcTemplate();
+        ejt.setDataSource(proxy.getDataSource());
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        proxy.dispose();
+        Common.databaseProxy = databaseProxy;
+        Common.envProps = envProps;
+    }
+
+    @Test
+    public void testChunks() {
+        purge(null);
+    }
+
+    @Test
+    public void testDerbyLimit() {
+        purge(new DerbyProxy());
+    }
+
+    @Test
+    public void testMssqlLimit() {
+        purge(new MSSQLProxy());
+    }
+
+    private void purge(DatabaseProxy limits) {
+        proxy.limits = limits;
+        //Two more than two chunks, every third one is urgent and has a comment
+        for (int i = 1; i <= 2 * CHUNK_SIZE + 2; i++)
+            insertEvent(i, i % 3 == 0 ? AlarmLevels.URGENT : AlarmLevels.INFORMATION);
+        EventDao dao = new EventDao();
+
+        //Less than a chunk
+        assertEquals(3, dao.purgeEventsBefore(10, AlarmLevels.URGENT));
+        assertEquals(19, dao.getEventCount());
+
+        //Exactly a chunk, the next query finds none
+        assertEquals(CHUNK_SIZE, dao.purgeEventsBefore(14));
+        assertEquals(9, dao.getEventCount());
+        assertEquals(14, ejt.queryForInt("select min(id) from events", null, 0));
+
+        //Comments go with their events
+        assertEquals(3, ejt.queryForInt("select count(*) from userComments", null, 0));
+
+        //Back to back chunks
+        for (int i = 2 * CHUNK_SIZE + 3; i <= 3 * CHUNK_SIZE + 5; i++)
+            insertEvent(i, AlarmLevels.INFORMATION);
+        assertEquals(2 * CHUNK_SIZE + 2, dao.purgeAllEvents());
+        assertEquals(0, dao.getEventCount());
+        assertEquals(0, ejt.queryForInt("select count(*) from userComments", null, 0));
+    }
+
+    private void insertEvent(int id, int alarmLevel) {
+        ejt.update("insert into events (id, typeName, typeRef1, typeRef2, activeTs, rtnApplicable, alarmLevel) "
+                + "values (?,'SYSTEM',0,0,?,'N',?)", new Object[] { id, id, alarmLevel });
+        if (alarmLevel == AlarmLevels.URGENT)
+            ejt.update("insert into userComments (commentType, typeKey, ts, commentText) values (?,?,?,'comment')",
+                    new Object[] { UserComment.TYPE_EVENT, id, id });
+    }
+
+    /**
+     * Uses the limit query of another database type, they all run on H2
+     */
+    static class LimitProxy extends MemoryProxy {
+        DatabaseProxy limits;
+
+        @Override
+        public <T> List<T> doLimitQuery(DaoUtils dao, String sql, Object[] args, RowMapper<T> rowMapper, int limit) {
+            if (limits == null)
+                return super.doLimitQuery(dao, sql, args, rowMapper, limit);
+            return limits.doLimitQuery(dao, sql, args, rowMapper, limit);
+        }
+    }
+
+    static class TestProperties extends ReloadingProperties {
+        private final Map<String, String> values = new HashMap<>();
+
+        TestProperties() {
+            super("test-env");
+            values.put("db.purge.chunkSize", Integer.toString(CHUNK_SIZE));
+            values.put("db.purge.chunkWait", "0");
+            values.put("db.eventWriteBehind.enabled", "false");
+        }
+
+        @Override
+        protected String getStringImpl(String key) {
+            if (values.containsKey(key))
+                return values.get(key);
+            return super.getStringImpl(key);
+        }
+    }
+}
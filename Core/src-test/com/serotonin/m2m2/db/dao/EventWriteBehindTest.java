@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EventWriteBehindTest {
+
+    @Test
+    public void testBatchOrder(){
+        RecordingWriteBehind writeBehind = new RecordingWriteBehind(100, 10);
+        writeBehind.insertEvent(new Object[]{1});
+        writeBehind.update("rtn 1", null, null);
+        writeBehind.insertUserEvents(1, Arrays.asList(1, 2), false);
+        writeBehind.insertEvent(new Object[]{2});
+        writeBehind.update("ack 2", null, null);
+
+        //Scheduled once for the first write
+        assertEquals(1, writeBehind.scheduled);
+        assertEquals(5, writeBehind.size());
+        writeBehind.writeQueued();
+        assertEquals(0, writeBehind.size());
+
+        //Inserts first, updates in the order they were queued
+        assertEquals(Arrays.asList("event 1", "event 2", "userEvents 1", "rtn 1", "ack 2"), writeBehind.written);
+        assertEquals(1, writeBehind.batches);
+
+        //Released, the next write schedules it again
+        writeBehind.update("rtn 2", null, null);
+        assertEquals(2, writeBehind.scheduled);
+    }
+
+    @Test
+    public void testBatchSizeAndFailure(){
+        RecordingWriteBehind writeBehind = new RecordingWriteBehind(100, 2);
+        for(int i=1; i<=5; i++)
+            writeBehind.insertEvent(new Object[]{i});
+        writeBehind.fail = 4;
+        writeBehind.flush();
+
+        //The failed batch is saved one write at a time so only the bad write is lost
+        assertEquals(Arrays.asList("event 1", "event 2", "event 3", "event 5"), writeBehind.written);
+        assertEquals(3, writeBehind.batches);
+        assertEquals(0, writeBehind.size());
+    }
+
+    static class RecordingWriteBehind extends EventWriteBehind {
+        int scheduled;
+        int batches;
+        //Id of an event that can't be saved
+        int fail = -1;
+        final List<String> written = new ArrayList<String>();
+
+        RecordingWriteBehind(int capacity, int batchSize){
+            super(capacity, batchSize, 100);
+        }
+
+        @Override
+        protected void schedule(long delay) {
+            scheduled++;
+        }
+
+        @Override
+        protected void write(List<EventInsert> events, List<UserEventsInsert> userEvents, List<Update> updates) {
+            for(EventInsert insert : events)
+                if(insert.args[0].equals(fail))
+                    throw new RuntimeException("Failed");
+            batches++;
+            for(EventInsert insert : events)
+                written.add("event " + insert.args[0]);
+            for(UserEventsInsert insert : userEvents)
+                written.add("userEvents " + insert.eventId);
+            for(Update update : updates)
+                written.add(update.sql);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.db.MappedRowCallback;
+import com.serotonin.m2m2.MangoTestBase;
+import com.serotonin.m2m2.rt.dataImage.IdPointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+
+public class MultiPointValueQueryTest extends MangoTestBase {
+
+    private final Map<Integer, List<IdPointValueTime>> data = new HashMap<Integer, List<IdPointValueTime>>();
+
+    @Before
+    public void setup(){
+        initEnvProperties("test-env");
+        //Point 1 has a run of values at one time longer than a page
+        add(1, 0, 5, 5, 5, 5, 5, 9, 12);
+        //Point 2 has values at the same times as point 1 across page boundaries
+        add(2, 1, 2, 3, 5, 9, 9, 10, 11, 12, 20);
+        add(3);
+    }
+
+    @Test
+    public void testMerge(){
+        assertEquals(Arrays.asList("2@1", "2@2", "2@3", "1@5", "1@5", "1@5", "1@5", "1@5", "2@5", "1@9", "2@9",
+                "2@9", "2@10", "2@11", "1@12", "2@12"), merge(1, 2, 3));
+    }
+
+    @Test
+    public void testDuplicateIds(){
+        assertEquals(Arrays.asList("2@1", "2@2", "2@3", "1@5", "1@5", "1@5", "1@5", "1@5", "2@5", "1@9", "2@9",
+                "2@9", "2@10", "2@11", "1@12", "2@12"), merge(1, 2, 1, 3, 2));
+        assertEquals(Arrays.asList("1@5", "1@5", "1@5", "1@5", "1@5", "1@9", "1@12"), merge(1, 1));
+    }
+
+    private List<String> merge(Integer... pointIds){
+        final List<String> result = new ArrayList<String>();
+        MultiPointValueQuery query = new MultiPointValueQuery(null, 15, 3){
+            @Override
+            protected List<IdPointValueTime> query(int pointId, long from, long to, int limit){
+                List<IdPointValueTime> values = new ArrayList<IdPointValueTime>();
+                for(IdPointValueTime value : data.get(pointId)){
+                    if((value.getTime() >= from)&&(value.getTime() < to)&&((limit == 0)||(values.size() < limit)))
+                        values.add(value);
+                }
+                return values;
+            }
+        };
+        query.execute(Arrays.asList(pointIds), 1, new MappedRowCallback<IdPointValueTime>(){
+            @Override
+            public void row(IdPointValueTime value, int rowNum) {
+                assertEquals(result.size(), rowNum);
+                result.add(value.getDataPointId() + "@" + value.getTime());
+            }
+        });
+        return result;
+    }
+
+    private void add(int pointId, long... times){
+        List<IdPointValueTime> values = new ArrayList<IdPointValueTime>();
+        for(long time : times)
+            values.add(new IdPointValueTime(pointId, new NumericValue(time), time));
+        data.put(pointId, values);
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+
+public class PointValueDaoCacheTest {
+
+    private PointValueQueryCache queryCache;
+    private PointValueDaoCache cache;
+    //Calls that reached the database
+    private int queries;
+    //Change to apply while the next query runs
+    private Integer changeDuringQuery;
+
+    @Before
+    public void setup(){
+        PointValueDao dao = (PointValueDao)Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{PointValueDao.class}, new InvocationHandler(){
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                queries++;
+                if(changeDuringQuery != null){
+                    queryCache.pointValueChanged((Integer)args[0], changeDuringQuery);
+                    changeDuringQuery = null;
+                }
+                if(method.getName().equals("getPointValuesBetween"))
+                    return values((int)(((Long)args[2] - (Long)args[1]) / 500));
+                return new PointValueTime(1D, (Long)args[1]);
+            }
+        });
+        queryCache = new PointValueQueryCache(10);
+        cache = new PointValueDaoCache(dao, queryCache);
+    }
+
+    @Test
+    public void testHitAndInvalidate(){
+        assertEquals(2, cache.getPointValuesBetween(1, 0, 1000).size());
+        assertEquals(2, cache.getPointValuesBetween(1, 0, 1000).size());
+        assertEquals(1, queries);
+
+        //Outside of the window, other point
+        queryCache.pointValueChanged(1, 1000);
+        queryCache.pointValueChanged(2, 500);
+        cache.getPointValuesBetween(1, 0, 1000);
+        assertEquals(1, queries);
+
+        queryCache.pointValueChanged(1, 999);
+        cache.getPointValuesBetween(1, 0, 1000);
+        assertEquals(2, queries);
+    }
+
+    @Test
+    public void testWriteDuringQueryNotCached(){
+        changeDuringQuery = 100;
+        cache.getPointValueBefore(1, 500);
+        cache.getPointValueBefore(1, 500);
+        assertEquals(2, queries);
+        cache.getPointValueBefore(1, 500);
+        assertEquals(2, queries);
+    }
+
+    @Test
+    public void testSizeBound(){
+        cache.getPointValuesBetween(1, 0, 1000);
+        cache.getPointValuesBetween(1, 1000, 2000);
+        cache.getPointValuesBetween(1, 2000, 3000);
+        cache.getPointValueAt(1, 5);
+        assertEquals(7, queryCache.getValueCount());
+
+        //Over the limit of 10 values, the least recently used window goes
+        cache.getPointValuesBetween(2, 0, 1000);
+        cache.getPointValuesBetween(2, 1000, 2000);
+        assertEquals(9, queryCache.getValueCount());
+        cache.getPointValuesBetween(1, 0, 1000);
+        assertEquals(7, queries);
+
+        //Results too big for the cache are not kept
+        cache.getPointValuesBetween(3, 0, 5000);
+        cache.getPointValuesBetween(3, 0, 5000);
+        assertEquals(9, queries);
+    }
+
+    private static List<PointValueTime> values(int count){
+        List<PointValueTime> values = new ArrayList<PointValueTime>();
+        for(int i=0; i<count; i++)
+            values.add(new PointValueTime((double)i, i));
+        return values;
+    }
+}
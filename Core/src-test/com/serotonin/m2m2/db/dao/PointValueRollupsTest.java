@@ -0,0 +1,374 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.db.MappedRowCallback;
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueRollup;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+import com.serotonin.m2m2.view.quantize2.AnalogStatisticsQuantizer;
+import com.serotonin.m2m2.view.quantize2.BucketCalculator;
+import com.serotonin.m2m2.view.quantize2.StatisticsGeneratorQuantizerCallback;
+import com.serotonin.m2m2.view.stats.AnalogStatistics;
+import com.serotonin.m2m2.view.stats.IValueTime;
+
+public class PointValueRollupsTest {
+
+    private static final int POINT_ID = 1;
+    private static final long START = 1451606400000L; //2016-01-01 UTC
+
+    //Raw values and stored rollups of the one point
+    private final TreeMap<Long, Double> values = new TreeMap<Long, Double>();
+    private final Map<Long, TreeMap<Long, NumericPointValueRollup>> stored = new HashMap<Long, TreeMap<Long, NumericPointValueRollup>>();
+    private int rollupsRead;
+    //The system setting recording values changed while the rollups were disabled
+    private boolean current = true;
+    private PointValueRollups rollups;
+
+    @Before
+    public void setup(){
+        for(long period : PointValueRollups.PERIODS)
+            stored.put(period, new TreeMap<Long, NumericPointValueRollup>());
+
+        Random random = new Random(7);
+        long time = START + 12345;
+        while(time < START + 3 * PointValueRollups.DAY){
+            values.put(time, (double)random.nextInt(1000));
+            time += 1 + random.nextInt(120000);
+        }
+        rollups = new MemoryRollups(true);
+        rollups.pointValueChanged(POINT_ID, values.firstKey());
+        //The first run checks the stored rollups before they are read
+        rollups.process(START);
+    }
+
+    @Test
+    public void testStatisticsMatchRawValues(){
+        //At most a day of values is rolled up per run
+        assertTrue(!rollups.process(POINT_ID, START + 3 * PointValueRollups.DAY));
+        assertTrue(!rollups.process(POINT_ID, START + 3 * PointValueRollups.DAY));
+        assertTrue(rollups.process(POINT_ID, START + 3 * PointValueRollups.DAY));
+        assertEquals(3, stored.get(PointValueRollups.DAY).size());
+
+        //Whole days and hours, then buckets that don't line up with the rollups
+        compare(START, START + 3 * PointValueRollups.DAY, PointValueRollups.DAY);
+        compare(START, START + 3 * PointValueRollups.DAY, PointValueRollups.HOUR);
+        compare(START + 1003, START + 2 * PointValueRollups.DAY + 77777, 5 * PointValueRollups.HOUR + 17 * 1000);
+        assertTrue(rollupsRead > 0);
+    }
+
+    @Test
+    public void testRebuildAfterWriteBehind(){
+        //Roll up the first day, then write into it
+        rollups.process(POINT_ID, START + PointValueRollups.DAY);
+        int count = stored.get(PointValueRollups.DAY).get(START).getCount();
+        int minutes = stored.get(PointValueRollups.MINUTE).size();
+        long time = START + 5 * PointValueRollups.HOUR + 30001;
+        values.put(time, 5000D);
+        rollups.pointValueChanged(POINT_ID, time);
+
+        //The stored rollups are kept, the minute, hour and day of the value are read raw until they are rebuilt
+        assertEquals(minutes, stored.get(PointValueRollups.MINUTE).size());
+        compare(START, START + PointValueRollups.DAY, PointValueRollups.HOUR);
+        compare(START, START + PointValueRollups.DAY, PointValueRollups.DAY);
+
+        rollups.process(POINT_ID, START + PointValueRollups.DAY);
+        assertEquals(count + 1, stored.get(PointValueRollups.DAY).get(START).getCount());
+        assertEquals(5000D, stored.get(PointValueRollups.HOUR).get(START + 5 * PointValueRollups.HOUR)
+                .getMaximumValue(), 0);
+        compare(START, START + PointValueRollups.DAY, PointValueRollups.HOUR);
+
+        while(!rollups.process(POINT_ID, START + 3 * PointValueRollups.DAY))
+            ;
+        compare(START, START + 3 * PointValueRollups.DAY, PointValueRollups.HOUR);
+    }
+
+    @Test
+    public void testOnlyNumericPointsRolledUp(){
+        //Deleting a value of a point that was never rolled up doesn't start rolling it up
+        PointValueRollups other = new MemoryRollups(true);
+        other.pointValueDeleted(POINT_ID, values.firstKey());
+        assertTrue(other.process(POINT_ID, START + 3 * PointValueRollups.DAY));
+        assertTrue(stored.get(PointValueRollups.MINUTE).isEmpty());
+    }
+
+    @Test
+    public void testDisabledLeavesRollups(){
+        while(!rollups.process(POINT_ID, START + 3 * PointValueRollups.DAY))
+            ;
+        int minutes = stored.get(PointValueRollups.MINUTE).size();
+
+        PointValueRollups disabled = new MemoryRollups(false);
+        disabled.pointValueChanged(POINT_ID, START + 1000);
+        disabled.pointValuesChanged(POINT_ID);
+        assertEquals(minutes, stored.get(PointValueRollups.MINUTE).size());
+        assertTrue(!current);
+
+        //Enabled again, the rollups that missed the changes are dropped before they are read
+        PointValueRollups enabled = new MemoryRollups(true);
+        enabled.process(START + 3 * PointValueRollups.DAY);
+        assertTrue(stored.get(PointValueRollups.MINUTE).isEmpty());
+        assertTrue(current);
+    }
+
+    @Test
+    public void testHistoryNotRolledUp(){
+        //Values already written when the rollups start are read raw
+        long started = START + PointValueRollups.DAY + 30 * PointValueRollups.MINUTE + 5003;
+        rollups = new MemoryRollups(true);
+        rollups.pointValueChanged(POINT_ID, started);
+        rollups.process(started);
+        assertTrue(stored.get(PointValueRollups.MINUTE).isEmpty());
+        while(!rollups.process(POINT_ID, START + 3 * PointValueRollups.DAY))
+            ;
+        assertTrue(stored.get(PointValueRollups.MINUTE).firstKey() >= NumericPointValueRollup.floor(started,
+                PointValueRollups.MINUTE));
+        assertEquals(1, stored.get(PointValueRollups.DAY).size());
+        compare(START, START + 3 * PointValueRollups.DAY, PointValueRollups.HOUR);
+        compare(START + 1003, START + 3 * PointValueRollups.DAY, 7 * PointValueRollups.HOUR);
+
+        //After a restart the range is recovered from the stored rollups
+        rollupsRead = 0;
+        rollups = new MemoryRollups(true);
+        rollups.process(START + 3 * PointValueRollups.DAY);
+        compare(START, START + 3 * PointValueRollups.DAY, PointValueRollups.HOUR);
+        assertTrue(rollupsRead > 0);
+    }
+
+    @Test
+    public void testAddRange(){
+        TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+        PointValueRollups.addRange(ranges, 10L, 20L);
+        PointValueRollups.addRange(ranges, 30L, 40L);
+        PointValueRollups.addRange(ranges, 12L, 15L);
+        assertEquals(2, ranges.size());
+        PointValueRollups.addRange(ranges, 20L, 30L);
+        assertEquals(1, ranges.size());
+        assertEquals(Long.valueOf(40L), ranges.get(10L));
+
+        //Too many are merged into one
+        for(long i=0; i<PointValueRollups.MAX_RANGES; i++)
+            PointValueRollups.addRange(ranges, 100L + 2 * i, 101L + 2 * i);
+        assertEquals(1, ranges.size());
+        assertEquals(Long.valueOf(99L + 2 * PointValueRollups.MAX_RANGES), ranges.get(10L));
+    }
+
+    @Test
+    public void testDeleteBefore(){
+        while(!rollups.process(POINT_ID, START + 3 * PointValueRollups.DAY))
+            ;
+        long time = START + PointValueRollups.DAY + 3 * PointValueRollups.HOUR + 61003;
+        Iterator<Long> it = values.keySet().iterator();
+        while(it.hasNext()){
+            if(it.next() < time)
+                it.remove();
+        }
+        rollups.pointValuesDeletedBefore(POINT_ID, time);
+
+        //Read from the raw values until the job has dropped the rollups
+        compare(START, START + 3 * PointValueRollups.DAY, PointValueRollups.HOUR);
+        compare(START, START + 3 * PointValueRollups.DAY, PointValueRollups.DAY);
+
+        rollups.process(START + 3 * PointValueRollups.DAY);
+        assertTrue(stored.get(PointValueRollups.MINUTE).firstKey() >= NumericPointValueRollup.floor(time,
+                PointValueRollups.MINUTE));
+        assertEquals(START + PointValueRollups.DAY, (long)stored.get(PointValueRollups.DAY).firstKey());
+        compare(START, START + 3 * PointValueRollups.DAY, PointValueRollups.HOUR);
+        compare(START, START + 3 * PointValueRollups.DAY, PointValueRollups.DAY);
+    }
+
+    /**
+     * Quantize with the rollups and from the raw values and check they agree
+     */
+    private void compare(long from, long to, long bucket){
+        final List<AnalogStatistics> expected = new ArrayList<AnalogStatistics>();
+        final List<AnalogStatistics> actual = new ArrayList<AnalogStatistics>();
+
+        List<IValueTime> data = new ArrayList<IValueTime>();
+        for(Map.Entry<Long, Double> entry : values.subMap(from, to).entrySet())
+            data.add(new PointValueTime(entry.getValue(), entry.getKey()));
+        AnalogStatisticsQuantizer.quantize(new Buckets(from, to, bucket), value(values.lowerEntry(from)), data,
+                value(values.ceilingEntry(to)), new Collector(expected));
+
+        List<Long> boundaries = new ArrayList<Long>();
+        Buckets buckets = new Buckets(from, to, bucket);
+        boundaries.add(from);
+        long periodTo;
+        do{
+            periodTo = buckets.getNextPeriodTo().getMillis();
+            boundaries.add(Math.min(periodTo, to));
+        }while(periodTo < to);
+        long[] bounds = new long[boundaries.size()];
+        for(int i=0; i<bounds.length; i++)
+            bounds[i] = boundaries.get(i);
+
+        final AnalogStatisticsQuantizer qt = new AnalogStatisticsQuantizer(new Buckets(from, to, bucket),
+                value(values.lowerEntry(from)), new Collector(actual));
+        rollups.query(POINT_ID, bounds, new NumericPointValueRollupCallback(){
+            @Override
+            public void row(long time, double value, int rowNum) {
+                qt.data(new NumericValue(value), time);
+            }
+
+            @Override
+            public void rollup(NumericPointValueRollup rollup) {
+                rollupsRead++;
+                qt.data(rollup);
+            }
+        });
+        qt.done(value(values.ceilingEntry(to)));
+
+        assertEquals(expected.size(), actual.size());
+        for(int i=0; i<expected.size(); i++){
+            AnalogStatistics e = expected.get(i);
+            AnalogStatistics a = actual.get(i);
+            assertEquals(e.getCount(), a.getCount());
+            assertEquals(e.getMinimumValue(), a.getMinimumValue());
+            assertEquals(e.getMinimumTime(), a.getMinimumTime());
+            assertEquals(e.getMaximumValue(), a.getMaximumValue());
+            assertEquals(e.getMaximumTime(), a.getMaximumTime());
+            assertEquals(e.getFirstValue(), a.getFirstValue());
+            assertEquals(e.getFirstTime(), a.getFirstTime());
+            assertEquals(e.getLastValue(), a.getLastValue());
+            assertEquals(e.getLastTime(), a.getLastTime());
+            assertEquals(e.getSum(), a.getSum(), 1e-6);
+            assertEquals(e.getDelta(), a.getDelta(), 1e-6);
+            if(e.getAverage() == null)
+                assertEquals(null, a.getAverage());
+            else
+                assertEquals(e.getAverage(), a.getAverage(), 1e-6);
+            assertEquals(e.getIntegral(), a.getIntegral(), 1e-3);
+        }
+    }
+
+    private static NumericValue value(Map.Entry<Long, Double> entry){
+        return entry == null ? null : new NumericValue(entry.getValue());
+    }
+
+    class MemoryRollups extends PointValueRollups {
+
+        MemoryRollups(boolean enabled){
+            super(enabled, 60000, PointValueRollups.DAY);
+        }
+
+        @Override
+        protected void queryValues(int pointId, long from, long to, NumericPointValueCallback callback) {
+            int rowNum = 0;
+            for(Map.Entry<Long, Double> entry : values.subMap(from, to).entrySet())
+                callback.row(entry.getKey(), entry.getValue(), rowNum++);
+        }
+
+        @Override
+        protected void queryRollups(int pointId, long period, long from, long to,
+                MappedRowCallback<NumericPointValueRollup> callback) {
+            int rowNum = 0;
+            for(NumericPointValueRollup rollup : stored.get(period).subMap(from, to).values())
+                callback.row(rollup, rowNum++);
+        }
+
+        @Override
+        protected long getEarliestRollupTime(int pointId, long period) {
+            TreeMap<Long, NumericPointValueRollup> map = stored.get(period);
+            return map.isEmpty() ? Long.MIN_VALUE : map.firstKey();
+        }
+
+        @Override
+        protected long getLatestRollupTime(int pointId, long period) {
+            TreeMap<Long, NumericPointValueRollup> map = stored.get(period);
+            return map.isEmpty() ? Long.MIN_VALUE : map.lastKey();
+        }
+
+        @Override
+        protected void replaceRollups(int pointId, long period, long from, long to,
+                List<NumericPointValueRollup> list) {
+            stored.get(period).subMap(from, to).clear();
+            for(NumericPointValueRollup rollup : list)
+                stored.get(period).put(rollup.getStartTime(), rollup);
+        }
+
+        @Override
+        protected void deleteRollups(int pointId) {
+            deleteAllRollups();
+        }
+
+        @Override
+        protected void deleteRollupsBefore(int pointId, long period, long time) {
+            stored.get(period).headMap(time).clear();
+        }
+
+        @Override
+        protected void deleteAllRollups() {
+            for(TreeMap<Long, NumericPointValueRollup> map : stored.values())
+                map.clear();
+        }
+
+        @Override
+        protected boolean isRollupsCurrent() {
+            return current;
+        }
+
+        @Override
+        protected void setRollupsCurrent(boolean current) {
+            PointValueRollupsTest.this.current = current;
+        }
+    }
+
+    static class Collector implements StatisticsGeneratorQuantizerCallback<AnalogStatistics> {
+        private final List<AnalogStatistics> list;
+
+        Collector(List<AnalogStatistics> list){
+            this.list = list;
+        }
+
+        @Override
+        public void quantizedStatistics(AnalogStatistics statisticsGenerator, boolean done) {
+            list.add(statisticsGenerator);
+        }
+    }
+
+    static class Buckets implements BucketCalculator {
+        private final long start;
+        private final long end;
+        private final long width;
+        private long lastTo;
+
+        Buckets(long start, long end, long width){
+            this.start = start;
+            this.end = end;
+            this.width = width;
+            this.lastTo = start;
+        }
+
+        @Override
+        public DateTime getStartTime() {
+            return new DateTime(start);
+        }
+
+        @Override
+        public DateTime getNextPeriodTo() {
+            lastTo += width;
+            return new DateTime(lastTo);
+        }
+
+        @Override
+        public DateTime getEndTime() {
+            return new DateTime(end);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.m2m2.db.dao.PointValueSpillJournal.SpilledPointValue;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.AlphanumericValue;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+
+public class PointValueSpillJournalTest {
+
+    private File directory;
+
+    @Before
+    public void setup() throws IOException{
+        directory = File.createTempFile("spill", "");
+        directory.delete();
+    }
+
+    @After
+    public void cleanup() throws IOException{
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testReplayAfterRestart(){
+        //Small segments to force rolling over
+        PointValueSpillJournal journal = new PointValueSpillJournal(directory, 256, 1024 * 1024);
+        for(int i=0; i<20; i++)
+            assertTrue(journal.append(PointValueSpillJournal.INSERT, i, new PointValueTime(new NumericValue(i * 1.5d), 1000 + i), null));
+        assertTrue(journal.append(PointValueSpillJournal.UPDATE, 99, new PointValueTime(new AlphanumericValue("text"), 5000), null));
+        long backlog = journal.getBacklogBytes();
+        assertTrue(backlog > 0);
+
+        //Read a batch but don't acknowledge it
+        assertFalse(journal.read(5).isEmpty());
+
+        //Reopen, simulating a restart
+        journal = new PointValueSpillJournal(directory, 256, 1024 * 1024);
+        assertEquals(backlog, journal.getBacklogBytes());
+
+        int count = 0;
+        while(true){
+            List<SpilledPointValue> values = journal.read(3);
+            if(values.isEmpty())
+                break;
+            for(SpilledPointValue value : values){
+                if(count < 20){
+                    assertEquals(PointValueSpillJournal.INSERT, value.getOperation());
+                    assertEquals(count, value.getPointId());
+                    assertEquals(count * 1.5d, value.getPointValue().getDoubleValue(), 0);
+                    assertEquals(1000 + count, value.getPointValue().getTime());
+                }else{
+                    assertEquals(PointValueSpillJournal.UPDATE, value.getOperation());
+                    assertEquals("text", value.getPointValue().getStringValue());
+                }
+                assertNull(value.getSource());
+                count++;
+            }
+            journal.acknowledge();
+        }
+        assertEquals(21, count);
+        assertTrue(journal.isEmpty());
+    }
+
+    @Test
+    public void testPartialAcknowledge(){
+        PointValueSpillJournal journal = new PointValueSpillJournal(directory, 256, 1024 * 1024);
+        for(int i=0; i<10; i++)
+            assertTrue(journal.append(PointValueSpillJournal.INSERT, i, new PointValueTime(new NumericValue(i), i), null));
+
+        //Only the first 3 of a batch were written
+        assertEquals(5, journal.read(5).size());
+        journal.acknowledge(3);
+        journal.force();
+
+        //The rest are still at the head of the journal, in order, after a restart
+        journal = new PointValueSpillJournal(directory, 256, 1024 * 1024);
+        List<SpilledPointValue> values = journal.read(100);
+        assertEquals(7, values.size());
+        for(int i=0; i<values.size(); i++)
+            assertEquals(i + 3, values.get(i).getPointId());
+    }
+
+    @Test
+    public void testFull(){
+        PointValueSpillJournal journal = new PointValueSpillJournal(directory, 1024, 60);
+        assertTrue(journal.append(PointValueSpillJournal.INSERT, 1, new PointValueTime(new NumericValue(1), 1), null));
+        assertFalse(journal.append(PointValueSpillJournal.INSERT, 1, new PointValueTime(new NumericValue(1), 2), null));
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.db.spring.ExtendedJdbcTemplate;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.DatabaseProxy;
+import com.serotonin.m2m2.db.dao.CachedDaoTest.MemoryProxy;
+import com.serotonin.m2m2.db.dao.EventPurgeTest.TestProperties;
+import com.serotonin.m2m2.db.dao.PointValueDaoSQL.BatchWriteBehind;
+import com.serotonin.m2m2.db.dao.PointValueDaoSQL.SpillReplay;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.AlphanumericValue;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+import com.serotonin.util.properties.ReloadingProperties;
+
+/**
+ * Replays a spill journal into an in memory H2 database, counting the point value insert statements
+ */
+public class SpillReplayTest {
+
+    private DatabaseProxy databaseProxy;
+    private ReloadingProperties envProps;
+    private CountingProxy proxy;
+    private File directory;
+
+    @Before
+    public void setup() throws IOException {
+        databaseProxy = Common.databaseProxy;
+        envProps = Common.envProps;
+        Common.envProps = new TestProperties();
+        proxy = new CountingProxy();
+        Common.databaseProxy = proxy;
+        try (InputStream in = new FileInputStream("db/createTables-H2.sql")) {
+            proxy.runScript(in, new ByteArrayOutputStream());
+        }
+        directory = File.createTempFile("spill", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() throws SQLException, IOException {
+        proxy.dispose();
+        Common.databaseProxy = databaseProxy;
+        Common.envProps = envProps;
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testReplayInBatches() {
+        int count = BatchWriteBehind.BATCH_SIZE + 10;
+        PointValueSpillJournal journal = new PointValueSpillJournal(directory, 64 * 1024, 16 * 1024 * 1024);
+        for (int i = 0; i < count; i++)
+            assertTrue(journal.append(PointValueSpillJournal.INSERT, i % 3 + 1,
+                    new PointValueTime(new NumericValue(i), 1000 + i), null));
+        //Text is written on its own and splits the run
+        assertTrue(journal.append(PointValueSpillJournal.INSERT, 4, new PointValueTime(new AlphanumericValue("text"),
+                5000), null));
+        for (int i = 0; i < 5; i++)
+            assertTrue(journal.append(PointValueSpillJournal.INSERT, 1, new PointValueTime(new NumericValue(-i),
+                    6000 + i), null));
+
+        proxy.inserts.set(0);
+        new SpillReplay(journal).execute();
+
+        //Two batches for the first run, the text value and one batch for the last run
+        assertEquals(4, proxy.inserts.get());
+        assertTrue(journal.isEmpty());
+
+        ExtendedJdbcTemplate ejt = new ExtendedJdbcTemplate();
+        ejt.setDataSource(proxy.getDataSource());
+        assertEquals(count + 6, ejt.queryForInt("select count(*) from pointValues", new Object[0], 0));
+        List<Map<String, Object>> rows = ejt.queryForList("select dataPointId, pointValue from pointValues "
+                + "where ts=?", new Object[] { 1000 + count - 1 });
+        assertEquals(1, rows.size());
+        assertEquals((count - 1) % 3 + 1, ((Number) rows.get(0).get("DATAPOINTID")).intValue());
+        assertEquals(count - 1, ((Number) rows.get(0).get("POINTVALUE")).doubleValue(), 0);
+        assertEquals("text", ejt.queryForObject("select a.textPointValueShort from pointValues v "
+                + "join pointValueAnnotations a on a.pointValueId=v.id where v.dataPointId=4", new Object[0],
+                String.class));
+    }
+
+    /**
+     * Counts the statements that insert point values
+     */
+    static class CountingProxy extends MemoryProxy {
+        final AtomicInteger inserts = new AtomicInteger();
+        private DataSource counting;
+
+        @Override
+        public DataSource getDataSource() {
+            if (counting == null)
+                counting = (DataSource) java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[] { DataSource.class }, new Counting(super.getDataSource()));
+            return counting;
+        }
+
+        class Counting implements InvocationHandler {
+            private final Object target;
+
+            Counting(Object target) {
+                this.target = target;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().startsWith("prepare") && args != null && args[0] instanceof String
+                        && ((String) args[0]).startsWith("insert into pointValues "))
+                    inserts.incrementAndGet();
+                Object result;
+                try {
+                    result = method.invoke(target, args);
+                }
+                catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                if (result instanceof Connection)
+                    return java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+                            new Class<?>[] { Connection.class }, new Counting(result));
+                return result;
+            }
+        }
+    }
+}
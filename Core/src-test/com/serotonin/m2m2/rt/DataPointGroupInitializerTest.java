@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.DatabaseProxy;
+import com.serotonin.m2m2.db.H2Proxy;
+import com.serotonin.m2m2.rt.DataPointGroupInitializer.PointStarter;
+import com.serotonin.m2m2.rt.dataImage.DataPointRT;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.vo.DataPointVO;
+
+/**
+ * Starts groups of points inline and on a pool, with a starter that only records the points
+ */
+public class DataPointGroupInitializerTest {
+
+	private DatabaseProxy databaseProxy;
+	private JdbcConnectionPool dataSource;
+	private ForkJoinPool pool;
+
+	@Before
+	public void setup() throws SQLException {
+		//Points read the system language for their units, the settings table is empty
+		databaseProxy = Common.databaseProxy;
+		dataSource = JdbcConnectionPool.create("jdbc:h2:mem:pointGroup", "", "");
+		try(Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()){
+			stmt.execute("create table systemSettings (settingName varchar(64), settingValue varchar(255))");
+			Common.databaseProxy = new H2Proxy(){
+				@Override
+				public DataSource getDataSource(){
+					return dataSource;
+				}
+			};
+		}
+		pool = new ForkJoinPool(2);
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+		dataSource.dispose();
+		Common.databaseProxy = databaseProxy;
+	}
+
+	@Test
+	public void testOrder() {
+		List<DataPointVO> group = points(25);
+		RecordingStarter starter = new RecordingStarter();
+		List<DataPointRT> started = new DataPointGroupInitializer(group, starter, 3).initialize(pool);
+
+		assertEquals(group.size(), started.size());
+		for(int i=0; i<group.size(); i++)
+			assertSame(group.get(i), started.get(i).getVO());
+		assertEquals(group.size(), starter.count());
+	}
+
+	@Test
+	public void testSmallGroupInline() {
+		List<DataPointVO> group = points(3);
+		RecordingStarter starter = new RecordingStarter();
+		new DataPointGroupInitializer(group, starter, 3).initialize(pool);
+		assertEquals(Collections.nCopies(3, Thread.currentThread()), starter.threads);
+
+		starter = new RecordingStarter();
+		new DataPointGroupInitializer(points(10), starter, 3).initialize(null);
+		assertEquals(Collections.nCopies(10, Thread.currentThread()), starter.threads);
+	}
+
+	@Test
+	public void testBatchesSplit() {
+		//The first point of each half waits for the other, they only meet if the halves run at once
+		final List<DataPointVO> group = points(4);
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		RecordingStarter starter = new RecordingStarter(){
+			@Override
+			public DataPointRT start(DataPointVO vo) {
+				if(vo == group.get(0) || vo == group.get(2)){
+					try{
+						barrier.await(10, TimeUnit.SECONDS);
+					}catch(Exception e){
+						throw new IllegalStateException("The batches didn't run in parallel", e);
+					}
+				}
+				return super.start(vo);
+			}
+		};
+		new DataPointGroupInitializer(group, starter, 2).initialize(pool);
+		assertEquals(4, starter.count());
+		assertTrue(!starter.threads.contains(Thread.currentThread()));
+	}
+
+	@Test
+	public void testSkippedPoint() {
+		final List<DataPointVO> group = points(6);
+		RecordingStarter starter = new RecordingStarter(){
+			@Override
+			public DataPointRT start(DataPointVO vo) {
+				DataPointRT rt = super.start(vo);
+				return vo == group.get(4) ? null : rt;
+			}
+		};
+		List<DataPointRT> started = new DataPointGroupInitializer(group, starter, 2).initialize(pool);
+		assertNull(started.get(4));
+		assertSame(group.get(5), started.get(5).getVO());
+	}
+
+	@Test
+	public void testExceptionThrown() {
+		assertThrown(null);
+		assertThrown(pool);
+	}
+
+	private void assertThrown(ForkJoinPool pool) {
+		final List<DataPointVO> group = points(8);
+		final IllegalStateException failure = new IllegalStateException("broken point");
+		RecordingStarter starter = new RecordingStarter(){
+			@Override
+			public DataPointRT start(DataPointVO vo) {
+				if(vo == group.get(5))
+					throw failure;
+				return super.start(vo);
+			}
+		};
+		try{
+			new DataPointGroupInitializer(group, starter, 2).initialize(pool);
+			fail("The exception of the point wasn't thrown");
+		}catch(IllegalStateException e){
+			//The pool throws copies that have the exception of the other thread as their cause
+			Throwable cause = e;
+			while(cause != null && cause != failure)
+				cause = cause.getCause();
+			assertSame(failure, cause);
+		}
+	}
+
+	private static List<DataPointVO> points(int count) {
+		List<DataPointVO> points = new ArrayList<DataPointVO>(count);
+		for(int i=0; i<count; i++){
+			DataPointVO vo = new DataPointVO();
+			vo.setId(i + 1);
+			points.add(vo);
+		}
+		return points;
+	}
+
+	static class RecordingStarter implements PointStarter {
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+		@Override
+		public DataPointRT start(DataPointVO vo) {
+			threads.add(Thread.currentThread());
+			return new DataPointRT(vo, null, Collections.<PointValueTime>emptyList());
+		}
+
+		int count() {
+			return threads.size();
+		}
+	}
+}
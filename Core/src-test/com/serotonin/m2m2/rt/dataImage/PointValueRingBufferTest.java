@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+
+public class PointValueRingBufferTest {
+
+	@Test
+	public void testOrderAndCapacity(){
+		PointValueRingBuffer buffer = new PointValueRingBuffer(3);
+		assertNull(buffer.latest());
+
+		buffer.add(pvt(10));
+		buffer.add(pvt(20));
+		buffer.add(pvt(30));
+		buffer.add(pvt(40));
+		assertTimes(buffer.snapshot(10), 40, 30, 20);
+
+		//Backdated values go in order, the oldest falls off
+		buffer.add(pvt(35));
+		assertTimes(buffer.snapshot(10), 40, 35, 30);
+
+		//Older than everything in a full buffer
+		buffer.add(pvt(5));
+		assertTimes(buffer.snapshot(10), 40, 35, 30);
+		assertEquals(40, buffer.latest().getTime());
+		assertTimes(buffer.snapshot(2), 40, 35);
+	}
+
+	@Test
+	public void testReplaceAndTrim(){
+		PointValueRingBuffer buffer = new PointValueRingBuffer(5);
+		for(int i=1; i<=5; i++)
+			buffer.add(pvt(i));
+
+		assertTrue(buffer.replace(new PointValueTime(new NumericValue(99), 3)));
+		assertEquals(99d, buffer.snapshot(5).get(2).getDoubleValue(), 0);
+
+		buffer.trim(2);
+		assertEquals(2, buffer.getCapacity());
+		assertTimes(buffer.snapshot(10), 5, 4);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testSnapshotImmutable(){
+		PointValueRingBuffer buffer = new PointValueRingBuffer(2);
+		buffer.add(pvt(1));
+		buffer.snapshot(2).add(pvt(2));
+	}
+
+	@Test
+	public void testCopyMutable(){
+		PointValueRingBuffer buffer = new PointValueRingBuffer(3);
+		for(int i=1; i<=3; i++)
+			buffer.add(pvt(i));
+		List<PointValueTime> copy = buffer.copy(2);
+		assertTimes(copy, 3, 2);
+		Collections.reverse(copy);
+		copy.add(pvt(4));
+		assertTimes(copy, 2, 3, 4);
+		assertTimes(buffer.snapshot(3), 3, 2, 1);
+	}
+
+	private static PointValueTime pvt(long time){
+		return new PointValueTime(new NumericValue(time), time);
+	}
+
+	private static void assertTimes(List<PointValueTime> values, long... times){
+		assertEquals(times.length, values.size());
+		for(int i=0; i<times.length; i++)
+			assertEquals(times[i], values.get(i).getTime());
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.rt.event.type.DataPointEventType;
+import com.serotonin.m2m2.rt.event.type.DataSourceEventType;
+import com.serotonin.m2m2.rt.event.type.EventType;
+import com.serotonin.m2m2.rt.event.type.PublisherEventType;
+import com.serotonin.m2m2.rt.event.type.SystemEventType;
+
+public class ActiveEventStoreTest {
+
+	@Test
+	public void testByType(){
+		ActiveEventStore store = new ActiveEventStore();
+		EventInstance first = event(new SystemEventType(SystemEventType.TYPE_USER_LOGIN, 1), 1);
+		EventInstance second = event(new SystemEventType(SystemEventType.TYPE_USER_LOGIN, 1), 2);
+		EventInstance other = event(new SystemEventType(SystemEventType.TYPE_USER_LOGIN, 2), 3);
+		store.add(first);
+		store.add(second);
+		store.add(other);
+
+		//Equal types that are different instances
+		assertSame(first, store.get(new SystemEventType(SystemEventType.TYPE_USER_LOGIN, 1)));
+		assertEquals(2, store.getAll(new SystemEventType(SystemEventType.TYPE_USER_LOGIN, 1)).size());
+		assertEquals(3, store.size());
+
+		assertSame(first, store.remove(new SystemEventType(SystemEventType.TYPE_USER_LOGIN, 1)));
+		assertSame(second, store.remove(new SystemEventType(SystemEventType.TYPE_USER_LOGIN, 1)));
+		assertNull(store.remove(new SystemEventType(SystemEventType.TYPE_USER_LOGIN, 1)));
+		assertSame(other, store.get(new SystemEventType(SystemEventType.TYPE_USER_LOGIN, 2)));
+	}
+
+	@Test
+	public void testBySource(){
+		ActiveEventStore store = new ActiveEventStore();
+		EventInstance point = event(new DataPointEventType(5, 1, 10), 1);
+		EventInstance otherPoint = event(new DataPointEventType(6, 2, 20), 1);
+		EventInstance dataSource = event(new DataSourceEventType(5, 1), 1);
+		EventInstance publisher = event(new PublisherEventType(7, 1), 1);
+		store.add(point);
+		store.add(otherPoint);
+		store.add(dataSource);
+		store.add(publisher);
+
+		List<EventInstance> removed = store.removeForPublisher(7);
+		assertEquals(1, removed.size());
+		assertSame(publisher, removed.get(0));
+
+		//Removed with the point's events
+		removed = store.removeForDataPoint(2);
+		assertEquals(1, removed.size());
+		assertSame(otherPoint, removed.get(0));
+		assertTrue(store.removeForDataPoint(2).isEmpty());
+
+		//Its own events and those of its points
+		removed = store.removeForDataSource(5);
+		assertEquals(2, removed.size());
+		assertTrue(removed.contains(point));
+		assertTrue(removed.contains(dataSource));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void testSnapshot(){
+		ActiveEventStore store = new ActiveEventStore();
+		EventInstance evt = event(new SystemEventType(SystemEventType.TYPE_USER_LOGIN, 1), 1);
+		store.add(evt);
+
+		List<EventInstance> snapshot = store.getAll();
+		assertEquals(1, snapshot.size());
+		//Shared until something changes
+		assertSame(snapshot, store.getAll());
+
+		assertTrue(store.remove(evt));
+		assertFalse(store.remove(evt));
+		assertEquals(1, snapshot.size());
+		assertEquals(0, store.getAll().size());
+	}
+
+	@Test
+	public void testActiveTimeOrder(){
+		ActiveEventStore store = new ActiveEventStore();
+		for(int i=0; i<20; i++)
+			store.add(event(new SystemEventType(SystemEventType.TYPE_USER_LOGIN, i), (i * 7) % 20));
+
+		List<EventInstance> all = store.getAll();
+		assertEquals(20, all.size());
+		for(int i=0; i<all.size(); i++)
+			assertEquals(i, all.get(i).getActiveTimestamp());
+	}
+
+	private EventInstance event(EventType type, long time){
+		return new EventInstance(type, time, true, AlarmLevels.URGENT, null, null);
+	}
+}
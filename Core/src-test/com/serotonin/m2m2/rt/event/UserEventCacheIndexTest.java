@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.DatabaseProxy;
+import com.serotonin.m2m2.db.H2Proxy;
+import com.serotonin.m2m2.db.dao.EventDao;
+import com.serotonin.m2m2.rt.event.type.DataSourceEventType;
+import com.serotonin.timer.SimulationTimer;
+
+/**
+ * The shared index of the UserEventCache, with the events of the database given by a stub
+ */
+public class UserEventCacheIndexTest {
+
+    private DatabaseProxy databaseProxy;
+    private StubEventDao dao;
+
+    @Before
+    public void setup() {
+        //The stub doesn't read the database but the dao needs a data source
+        databaseProxy = Common.databaseProxy;
+        Common.databaseProxy = new H2Proxy() {
+            private final JdbcConnectionPool dataSource = JdbcConnectionPool.create("jdbc:h2:mem:userEventCache", "", "");
+
+            @Override
+            public DataSource getDataSource() {
+                return dataSource;
+            }
+        };
+        dao = new StubEventDao();
+    }
+
+    @After
+    public void tearDown() {
+        Common.databaseProxy = databaseProxy;
+    }
+
+    @Test
+    public void testAddUpdateRemove() {
+        UserEventCache cache = cache(60000);
+        EventInstance saved = event(1);
+        dao.unsilenced.put(1, Arrays.asList(saved));
+        assertEquals(Arrays.asList(saved), cache.getAllEvents(1));
+
+        EventInstance added = event(2);
+        cache.addEvent(added, Arrays.asList(1));
+        assertEquals(Arrays.asList(saved, added), cache.getAllEvents(1));
+
+        //Replaced by id
+        EventInstance updated = event(2);
+        cache.updateEvent(updated);
+        assertSame(updated, cache.getAllEvents(1).get(1));
+        assertEquals(2, cache.size());
+
+        cache.removeEvent(saved);
+        assertEquals(Arrays.asList(updated), cache.getAllEvents(1));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testPerUserVisibility() {
+        UserEventCache cache = cache(60000);
+        EventInstance shared = event(1);
+        EventInstance second = event(2);
+        dao.unsilenced.put(1, Arrays.asList(shared));
+        dao.unsilenced.put(2, Arrays.asList(shared, second));
+        cache.getAllEvents(1);
+        cache.getAllEvents(2);
+        assertEquals(2, cache.size());
+
+        //Only cached users are kept
+        EventInstance third = event(3);
+        cache.addEvent(third, Arrays.asList(2, 3));
+        assertEquals(Arrays.asList(shared), cache.getAllEvents(1));
+        assertEquals(Arrays.asList(shared, second, third), cache.getAllEvents(2));
+
+        //Removed for one user only
+        cache.removeEvent(1, shared);
+        assertTrue(cache.getAllEvents(1).isEmpty());
+        assertEquals(Arrays.asList(shared, second, third), cache.getAllEvents(2));
+        assertEquals(3, cache.size());
+
+        //Gone once no user sees it
+        cache.removeEvent(2, shared);
+        assertEquals(Arrays.asList(second, third), cache.getAllEvents(2));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testUnsavedEvents() {
+        UserEventCache cache = cache(60000);
+        cache.getAllEvents(1);
+
+        //Events that are not logged keep the new id
+        EventInstance first = event(Common.NEW_ID);
+        EventInstance second = event(Common.NEW_ID);
+        cache.addEvent(first, Arrays.asList(1));
+        cache.addEvent(second, Arrays.asList(1));
+        assertEquals(Arrays.asList(first, second), cache.getAllEvents(1));
+        assertEquals(2, cache.size());
+
+        cache.removeEvent(first);
+        assertEquals(Arrays.asList(second), cache.getAllEvents(1));
+
+        //Another unsaved event doesn't replace it
+        cache.updateEvent(event(Common.NEW_ID));
+        assertEquals(Arrays.asList(second), cache.getAllEvents(1));
+
+        cache.removeEvent(1, second);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCleanup() {
+        //Every user is expired by the cleanup
+        UserEventCache cache = cache(-1);
+        EventInstance shared = event(1);
+        dao.unsilenced.put(1, Arrays.asList(shared));
+        dao.unsilenced.put(2, Arrays.asList(shared));
+        cache.getAllEvents(1);
+        cache.getAllEvents(2);
+        cache.cleanup();
+        assertEquals(0, cache.size());
+
+        //Loaded again from the database
+        dao.unsilenced.put(2, new ArrayList<EventInstance>());
+        assertTrue(cache.getAllEvents(2).isEmpty());
+        assertEquals(Arrays.asList(shared), cache.getAllEvents(1));
+    }
+
+    private UserEventCache cache(long timeToLive) {
+        //Cleaned up only when the test calls it
+        return new UserEventCache(timeToLive, 60000, dao, new SimulationTimer());
+    }
+
+    private static EventInstance event(int id) {
+        EventInstance evt = new EventInstance(new DataSourceEventType(1, id), id, true, AlarmLevels.URGENT, null, null);
+        evt.setId(id);
+        return evt;
+    }
+
+    static class StubEventDao extends EventDao {
+        final Map<Integer, List<EventInstance>> unsilenced = new HashMap<Integer, List<EventInstance>>();
+
+        @Override
+        public List<EventInstance> getAllUnsilencedEvents(int userId) {
+            List<EventInstance> events = unsilenced.get(userId);
+            return events == null ? new ArrayList<EventInstance>() : events;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.event.compound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompiledConditionTest {
+
+	@Test
+	public void testSetState() throws ConditionParseException{
+		CompiledCondition condition = new CompiledCondition(
+				CompoundEventDetectorRT.parseConditionStatement("(S1 && !P2) || (S1 && S3)"));
+		assertEquals(3, condition.getKeys().length);
+		int s1 = condition.indexOf("S1");
+		int p2 = condition.indexOf("P2");
+		int s3 = condition.indexOf("S3");
+
+		assertFalse(condition.getValue());
+		assertTrue(condition.setState(s1, true));
+		assertFalse(condition.setState(p2, true));
+		assertFalse(condition.setState(s1, false));
+		assertFalse(condition.setState(s3, true));
+		assertTrue(condition.setState(s1, true));
+		assertFalse(condition.setState(s3, false));
+	}
+
+	@Test
+	public void testSameAsFullEvaluation() throws ConditionParseException{
+		CompiledCondition condition = new CompiledCondition(CompoundEventDetectorRT.parseConditionStatement(
+				"!(S1 || S2) && (P3 || !(S4 && S1)) || (S2 && S5 && !P3) || S5 && S4"));
+		int children = condition.getKeys().length;
+		Random random = new Random(1);
+		for(int i=0; i<1000; i++){
+			boolean value = condition.setState(random.nextInt(children), random.nextBoolean());
+			assertEquals(condition.evaluate(), value);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.event.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.rt.event.AlarmLevels;
+import com.serotonin.m2m2.rt.event.EventInstance;
+import com.serotonin.m2m2.rt.event.handlers.EventHandlerThrottle.DigestClient;
+import com.serotonin.m2m2.rt.event.type.DataSourceEventType;
+import com.serotonin.m2m2.rt.event.type.EventType;
+import com.serotonin.m2m2.rt.event.type.PublisherEventType;
+
+public class EventHandlerThrottleTest {
+
+	@Test
+	public void testBurstAndDigest(){
+		TestThrottle throttle = new TestThrottle(3, 6);
+		RecordingDigest digest = new RecordingDigest();
+
+		//The burst runs right away
+		for(int i=0; i<3; i++)
+			assertTrue(throttle.tryAcquire("handler", event(new DataSourceEventType(1, 1)), digest));
+
+		//The rest go into one digest
+		EventInstance first = event(new DataSourceEventType(1, 1));
+		EventInstance publisher = event(new PublisherEventType(5, 1));
+		EventInstance second = event(new DataSourceEventType(1, 2));
+		assertFalse(throttle.tryAcquire("handler", first, digest));
+		assertFalse(throttle.tryAcquire("handler", publisher, digest));
+		assertEquals(1, throttle.scheduled.size());
+
+		//A token is back after 10s but the digest is still open
+		throttle.time += 10000;
+		assertFalse(throttle.tryAcquire("handler", second, digest));
+		assertEquals(1, throttle.scheduled.size());
+
+		//Other actions have their own bucket
+		assertTrue(throttle.tryAcquire("other", first, digest));
+
+		throttle.scheduled.get(0).sendDigest();
+		assertEquals(1, digest.digests.size());
+		List<List<EventInstance>> sources = digest.digests.get(0);
+		assertEquals(2, sources.size());
+		assertEquals(2, sources.get(0).size());
+		assertSame(first, sources.get(0).get(0));
+		assertSame(second, sources.get(0).get(1));
+		assertSame(publisher, sources.get(1).get(0));
+
+		//Closed, the tokens that came back while it was open can be used
+		throttle.time += 10000;
+		assertTrue(throttle.tryAcquire("handler", first, digest));
+		assertTrue(throttle.tryAcquire("handler", first, digest));
+		assertFalse(throttle.tryAcquire("handler", first, digest));
+		assertEquals(2, throttle.scheduled.size());
+	}
+
+	@Test
+	public void testIdleBucketsDropped(){
+		TestThrottle throttle = new TestThrottle(3, 6);
+		RecordingDigest digest = new RecordingDigest();
+		for(int i=0; i<3; i++)
+			assertTrue(throttle.tryAcquire("idle", event(new DataSourceEventType(1, 1)), digest));
+		for(int i=0; i<4; i++)
+			throttle.tryAcquire("digest", event(new DataSourceEventType(1, 1)), digest);
+		assertEquals(2, throttle.getBucketCount());
+
+		//Full again after 30s but not looked at until a minute has passed
+		throttle.time += 30000;
+		throttle.tryAcquire("other", event(new DataSourceEventType(1, 1)), digest);
+		assertEquals(3, throttle.getBucketCount());
+
+		//The bucket with an open digest is kept
+		throttle.time += 30000;
+		throttle.tryAcquire("other", event(new DataSourceEventType(1, 1)), digest);
+		assertEquals(2, throttle.getBucketCount());
+
+		//A dropped bucket starts over full
+		for(int i=0; i<3; i++)
+			assertTrue(throttle.tryAcquire("idle", event(new DataSourceEventType(1, 1)), digest));
+		assertFalse(throttle.tryAcquire("idle", event(new DataSourceEventType(1, 1)), digest));
+	}
+
+	@Test
+	public void testNoLimit(){
+		TestThrottle throttle = new TestThrottle(0, 0);
+		for(int i=0; i<100; i++)
+			assertTrue(throttle.tryAcquire("handler", event(new DataSourceEventType(1, 1)), new RecordingDigest()));
+		assertEquals(0, throttle.scheduled.size());
+	}
+
+	private EventInstance event(EventType type){
+		return new EventInstance(type, 1, true, AlarmLevels.URGENT, null, null);
+	}
+
+	static class TestThrottle extends EventHandlerThrottle {
+		long time = 1000;
+		final List<Bucket> scheduled = new ArrayList<Bucket>();
+
+		TestThrottle(int burst, int perMinute){
+			super(burst, perMinute, 60000);
+		}
+
+		@Override
+		protected void schedule(long delay, Bucket bucket) {
+			scheduled.add(bucket);
+		}
+
+		@Override
+		protected long now() {
+			return time;
+		}
+	}
+
+	static class RecordingDigest implements DigestClient {
+		final List<List<List<EventInstance>>> digests = new ArrayList<List<List<EventInstance>>>();
+
+		@Override
+		public void sendDigest(List<List<EventInstance>> sources) {
+			digests.add(sources);
+		}
+	}
+}
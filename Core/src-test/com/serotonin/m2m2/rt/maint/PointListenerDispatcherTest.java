@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.maint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.rt.dataImage.DataPointListener;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+import com.serotonin.m2m2.rt.maint.work.WorkItem;
+
+public class PointListenerDispatcherTest {
+
+	@Test
+	public void testOrderPerPoint() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		final AtomicInteger scheduled = new AtomicInteger();
+		BackgroundProcessing bp = new BackgroundProcessing(){
+			@Override
+			public void addWorkItem(final WorkItem item) {
+				scheduled.incrementAndGet();
+				executor.execute(new Runnable(){
+					@Override
+					public void run() {
+						item.execute();
+					}
+				});
+			}
+		};
+		PointListenerDispatcher dispatcher = new PointListenerDispatcher(bp, 3);
+
+		//Hold the stripes until everything is queued
+		final CountDownLatch release = new CountDownLatch(1);
+		for(int i=0; i<4; i++)
+			executor.execute(new Runnable(){
+				@Override
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) { }
+				}
+			});
+
+		int pointCount = 10;
+		int valueCount = 5000;
+		List<RecordingListener> listeners = new ArrayList<RecordingListener>();
+		for(int i=0; i<pointCount; i++)
+			listeners.add(new RecordingListener());
+
+		PointValueTime[] last = new PointValueTime[pointCount];
+		for(int t=1; t<=valueCount; t++){
+			for(int id=0; id<pointCount; id++){
+				PointValueTime value = new PointValueTime(new NumericValue(t), t);
+				dispatcher.dispatch(id, "DP_" + id, listeners.get(id), last[id], value, false, false);
+				last[id] = value;
+			}
+		}
+
+		assertEquals(pointCount * valueCount, dispatcher.getQueueSize());
+		release.countDown();
+		long end = System.currentTimeMillis() + 10000;
+		while(dispatcher.getQueueSize() > 0 && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(0, dispatcher.getQueueSize());
+		for(RecordingListener l : listeners){
+			assertEquals(valueCount, l.updates);
+			assertEquals(valueCount, l.changes);
+			assertTrue(l.inOrder);
+		}
+		long delivered = 0;
+		for(long count : dispatcher.getDeliveredCounts())
+			delivered += count;
+		assertEquals(pointCount * valueCount, delivered);
+		//Stripes of 4, 3 and 3 points deliver their values in batches of MAX_BATCH
+		assertEquals(50, scheduled.get());
+	}
+
+	static class RecordingListener implements DataPointListener {
+		int updates;
+		int changes;
+		long lastTime;
+		boolean inOrder = true;
+
+		@Override
+		public void pointInitialized() {
+		}
+
+		@Override
+		public void pointUpdated(PointValueTime newValue) {
+			updates++;
+			if(newValue.getTime() != lastTime + 1)
+				inOrder = false;
+			lastTime = newValue.getTime();
+		}
+
+		@Override
+		public void pointChanged(PointValueTime oldValue, PointValueTime newValue) {
+			changes++;
+		}
+
+		@Override
+		public void pointSet(PointValueTime oldValue, PointValueTime newValue) {
+		}
+
+		@Override
+		public void pointBackdated(PointValueTime value) {
+		}
+
+		@Override
+		public void pointTerminated() {
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.publish;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.dataImage.AnnotatedPointValueTime;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.AlphanumericValue;
+import com.serotonin.m2m2.rt.dataImage.types.BinaryValue;
+import com.serotonin.m2m2.rt.dataImage.types.ImageValue;
+import com.serotonin.m2m2.rt.dataImage.types.MultistateValue;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+import com.serotonin.m2m2.util.ExportCodes;
+import com.serotonin.m2m2.vo.event.EventTypeVO;
+import com.serotonin.m2m2.vo.publish.PublishedPointVO;
+import com.serotonin.m2m2.vo.publish.PublisherVO;
+
+public class PersistentPublishQueueTest {
+
+    private File directory;
+    private TestPublisherRT publisher;
+
+    @Before
+    public void setup() throws IOException {
+        directory = File.createTempFile("publishQueue", "");
+        directory.delete();
+
+        TestPublisherVO vo = new TestPublisherVO();
+        vo.setName("test");
+        List<TestPointVO> points = new ArrayList<TestPointVO>();
+        for (int i = 1; i <= 3; i++) {
+            TestPointVO point = new TestPointVO();
+            point.setDataPointId(i);
+            points.add(point);
+        }
+        vo.setPoints(points);
+        publisher = new TestPublisherRT(vo);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testEncodeEachDataType() {
+        assertEquals(true, roundTrip(new PointValueTime(new BinaryValue(true), 1)).getBooleanValue());
+        assertEquals(7, roundTrip(new PointValueTime(new MultistateValue(7), 2)).getIntegerValue());
+        assertEquals(1.25d, roundTrip(new PointValueTime(new NumericValue(1.25d), 3)).getDoubleValue(), 0);
+        assertEquals("text", roundTrip(new PointValueTime(new AlphanumericValue("text"), 4)).getStringValue());
+        assertEquals("", roundTrip(new PointValueTime(new AlphanumericValue(""), 5)).getStringValue());
+        assertNull(roundTrip(new PointValueTime(new AlphanumericValue(null), 6)).getStringValue());
+
+        ImageValue saved = (ImageValue) roundTrip(new PointValueTime(new ImageValue(42, 1), 7)).getValue();
+        assertEquals(42, saved.getId());
+        assertEquals(1, saved.getType());
+
+        byte[] data = new byte[] { 1, 2, 3 };
+        ImageValue unsaved = (ImageValue) roundTrip(new PointValueTime(new ImageValue(data, 2), 8)).getValue();
+        assertFalse(unsaved.isSaved());
+        assertEquals(2, unsaved.getType());
+        assertArrayEquals(data, unsaved.getData());
+
+        PointValueTime annotated = roundTrip(new AnnotatedPointValueTime(new NumericValue(1), 9,
+                new TranslatableMessage("common.default", "note")));
+        assertTrue(annotated.isAnnotated());
+        assertEquals(new TranslatableMessage("common.default", "note").serialize(),
+                ((AnnotatedPointValueTime) annotated).getSourceMessage().serialize());
+        assertEquals(9, annotated.getTime());
+    }
+
+    @Test
+    public void testResumeAfterRestart() {
+        PersistentPublishQueue<TestPointVO> queue = createQueue();
+        List<TestPointVO> points = publisher.getVo().getPoints();
+        for (int i = 0; i < 10; i++)
+            queue.add(points.get(i % 3), new PointValueTime(new NumericValue(i), i));
+        assertEquals(10, queue.getSize());
+
+        // Send the first 4, read but don't send the next 2
+        queue.removeAll(queue.get(4));
+        assertEquals(2, queue.get(2).size());
+        queue.close();
+
+        queue = createQueue();
+        assertEquals(6, queue.getSize());
+        List<PublishQueueEntry<TestPointVO>> entries = queue.get(100);
+        assertEquals(6, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(i + 4, entries.get(i).getPvt().getTime());
+            assertEquals((i + 4) % 3 + 1, entries.get(i).getVo().getDataPointId());
+        }
+        queue.removeAll(entries);
+        assertNull(queue.next());
+        queue.close();
+    }
+
+    @Test
+    public void testClosedQueueRefusesValues() {
+        PersistentPublishQueue<TestPointVO> queue = createQueue();
+        queue.close();
+        queue.add(publisher.getVo().getPoints().get(0), new PointValueTime(new NumericValue(1), 1));
+        assertEquals(0, queue.getSize());
+    }
+
+    private PersistentPublishQueue<TestPointVO> createQueue() {
+        return new PersistentPublishQueue<TestPointVO>(publisher, 1000, 2000, directory, 256, 1024 * 1024);
+    }
+
+    private static PointValueTime roundTrip(PointValueTime pvt) {
+        ByteBuffer buffer = ByteBuffer.wrap(PersistentPublishQueue.encode(5, pvt));
+        assertEquals(5, buffer.getInt());
+        PointValueTime result = PersistentPublishQueue.decode(buffer);
+        assertEquals(pvt.getTime(), result.getTime());
+        assertFalse(buffer.hasRemaining());
+        return result;
+    }
+
+    static class TestPointVO extends PublishedPointVO {
+        private static final long serialVersionUID = 1L;
+    }
+
+    static class TestPublisherVO extends PublisherVO<TestPointVO> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public TranslatableMessage getConfigDescription() {
+            return null;
+        }
+
+        @Override
+        protected TestPointVO createPublishedPointInstance() {
+            return new TestPointVO();
+        }
+
+        @Override
+        public PublisherRT<TestPointVO> createPublisherRT() {
+            return new TestPublisherRT(this);
+        }
+
+        @Override
+        protected void getEventTypesImpl(List<EventTypeVO> eventTypes) {
+        }
+
+        @Override
+        public ExportCodes getEventCodes() {
+            return null;
+        }
+    }
+
+    static class TestPublisherRT extends PublisherRT<TestPointVO> {
+        TestPublisherRT(PublisherVO<TestPointVO> vo) {
+            super(vo);
+        }
+
+        @Override
+        public void initialize() {
+        }
+    }
+}
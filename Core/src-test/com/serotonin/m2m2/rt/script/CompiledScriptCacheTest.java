@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.junit.Test;
+
+public class CompiledScriptCacheTest {
+
+	@Test
+	public void testSharedByTextAndVersion() throws ScriptException{
+		TestCache cache = new TestCache(2);
+
+		CompiledScript a = cache.get("return 1;", 0);
+		assertSame(a, cache.get("return 1;", 0));
+		assertEquals(1, cache.getCompiles());
+		assertEquals(1, cache.getHits());
+
+		//New global functions
+		assertNotSame(a, cache.get("return 1;", 1));
+
+		//Least recently used is dropped
+		cache.get("return 2;", 1);
+		cache.get("return 3;", 1);
+		assertEquals(2, cache.size());
+		cache.get("return 1;", 1);
+		assertEquals(5, cache.getCompiles());
+	}
+
+	@Test
+	public void testDisabled() throws ScriptException{
+		TestCache cache = new TestCache(0);
+		assertNotSame(cache.get("return 1;", 0), cache.get("return 1;", 0));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testCopyPerRun() throws ScriptException{
+		TestCache cache = new TestCache(2);
+		SharedCompiledScript shared = cache.get("return 1;", 0);
+
+		//Runs at the same time each have a copy
+		CompiledScript first = shared.borrow();
+		CompiledScript second = shared.borrow();
+		assertNotSame(first, second);
+		assertEquals(2, cache.getCompiles());
+		CompiledScript evaluated = (CompiledScript)shared.eval((ScriptContext)null);
+		assertNotSame(first, evaluated);
+		assertNotSame(second, evaluated);
+		assertEquals(3, cache.getCompiles());
+
+		//Idle copies are used again, at most two are kept
+		shared.release(first);
+		shared.release(second);
+		assertEquals(2, shared.getIdleCount());
+		assertSame(evaluated, shared.borrow());
+		assertSame(first, shared.borrow());
+		shared.borrow();
+		assertEquals(4, cache.getCompiles());
+	}
+
+	static class TestCache extends CompiledScriptCache {
+		TestCache(int maxSize){
+			super(maxSize, 2);
+		}
+
+		@Override
+		protected CompiledScript compile(String script){
+			return new CompiledScript(){
+				@Override
+				public Object eval(ScriptContext context){
+					return this;
+				}
+
+				@Override
+				public ScriptEngine getEngine(){
+					return null;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class MpscRingBufferTest {
+
+    @Test
+    public void testFullAndWrap(){
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(3);
+        assertEquals(4, buffer.getCapacity());
+        for(int i=0; i<4; i++)
+            assertTrue(buffer.offer(i));
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(4));
+
+        Integer[] drained = new Integer[10];
+        assertEquals(4, buffer.drainTo(drained, 10));
+        for(int i=0; i<4; i++)
+            assertEquals(Integer.valueOf(i + 1), drained[i]);
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException{
+        final int producers = 4;
+        final int perProducer = 50000;
+        final MpscRingBuffer<Long> buffer = new MpscRingBuffer<Long>(1024);
+        final CountDownLatch done = new CountDownLatch(producers);
+
+        for(int p=0; p<producers; p++){
+            final long base = (long)p * perProducer;
+            new Thread(){
+                @Override
+                public void run(){
+                    for(int i=0; i<perProducer; i++){
+                        while(!buffer.offer(base + i))
+                            Thread.yield();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        //Ensure per producer order is kept and nothing is lost
+        long[] lastSeen = new long[producers];
+        for(int p=0; p<producers; p++)
+            lastSeen[p] = -1;
+        long received = 0;
+        long sum = 0;
+        while(received < (long)producers * perProducer){
+            Long value = buffer.poll();
+            if(value == null){
+                Thread.yield();
+                continue;
+            }
+            int producer = (int)(value / perProducer);
+            long sequence = value % perProducer;
+            assertTrue(sequence > lastSeen[producer]);
+            lastSeen[producer] = sequence;
+            sum += value;
+            received++;
+        }
+        done.await();
+
+        long n = (long)producers * perProducer;
+        assertEquals(n * (n - 1) / 2, sum);
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TimeValueWindowTest {
+
+    @Test
+    public void testGrowAndExpire(){
+        TimeValueWindow window = new TimeValueWindow();
+        //Wrap the ring before it grows
+        window.add(0, 0);
+        window.add(1, 1);
+        window.removeFirst();
+        window.removeFirst();
+        for(int i=2; i<20; i++)
+            window.add(i * 10, i);
+        assertEquals(18, window.size());
+        for(int i=0; i<18; i++){
+            assertEquals((i + 2) * 10, window.getTime(i));
+            assertEquals(i + 2, window.getValue(i), 0);
+        }
+
+        assertEquals(3, window.expireBefore(50));
+        assertEquals(50, window.getTime(0));
+        assertEquals(0, window.expireBefore(50));
+
+        window.trimTo(2);
+        assertEquals(2, window.size());
+        assertEquals(180, window.getTime(0));
+        assertEquals(19, window.getValue(1), 0);
+
+        window.expireBefore(Long.MAX_VALUE);
+        assertTrue(window.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTimesOnly(){
+        TimeValueWindow window = new TimeValueWindow(false);
+        window.add(5);
+        assertEquals(5, window.getTime(0));
+        window.getValue(0);
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.util.timeout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+    @Test
+    public void testFireOnTimeAcrossWheels(){
+        RecordingWheel wheel = new RecordingWheel();
+        RecordingClient client = new RecordingClient();
+        //First wheel, next wheels and past the last one
+        long[] times = { 25, 2560, 2570, 700000, 170000000L, 50000000000L };
+        for(long time : times)
+            wheel.schedule(time, client);
+        assertEquals(times.length, wheel.size());
+
+        for(long time : times){
+            //Not early
+            wheel.advanceTo(time - 1);
+            assertEquals(0, client.fired.size());
+            //At most one tick late
+            wheel.advanceTo(time + 9);
+            assertEquals(1, client.fired.size());
+            assertEquals(Long.valueOf(time), client.fired.remove(0));
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCancel(){
+        RecordingWheel wheel = new RecordingWheel();
+        RecordingClient client = new RecordingClient();
+        TimerWheel.Timeout first = wheel.schedule(100, client);
+        TimerWheel.Timeout second = wheel.schedule(100, client);
+        TimerWheel.Timeout third = wheel.schedule(100000, client);
+        assertTrue(second.cancel());
+        assertFalse(second.cancel());
+        assertTrue(third.cancel());
+        assertEquals(1, wheel.size());
+
+        wheel.advanceTo(200000);
+        assertEquals(1, client.fired.size());
+        assertFalse(first.cancel());
+
+        //Already due
+        wheel.schedule(150000, client);
+        assertEquals(2, client.fired.size());
+    }
+
+    @Test
+    public void testDispatchOutsideLock(){
+        RecordingWheel wheel = new RecordingWheel();
+        RecordingClient client = new RecordingClient();
+        wheel.schedule(100, client);
+        wheel.advanceTo(200);
+        //Already due
+        wheel.schedule(150, client);
+        assertEquals(2, client.fired.size());
+        assertEquals(0, wheel.lockedDispatches);
+    }
+
+    static class RecordingWheel extends TimerWheel {
+        int lockedDispatches;
+
+        RecordingWheel(){
+            super(10, 0);
+        }
+
+        @Override
+        protected void dispatch(Timeout timeout) {
+            if(Thread.holdsLock(this))
+                lockedDispatches++;
+            timeout.fire();
+        }
+    }
+
+    static class RecordingClient implements TimeoutClient {
+        final List<Long> fired = new ArrayList<Long>();
+
+        @Override
+        public void scheduleTimeout(long fireTime) {
+            fired.add(fireTime);
+        }
+    }
+}
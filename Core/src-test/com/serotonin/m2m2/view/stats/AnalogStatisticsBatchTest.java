@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.view.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueBatch;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+
+/**
+ * Statistics from a primitive batch must match those from point value objects
+ */
+public class AnalogStatisticsBatchTest {
+
+	@Test
+	public void testBatchMatchesObjects(){
+		List<PointValueTime> values = new ArrayList<PointValueTime>();
+		NumericPointValueBatch batch = new NumericPointValueBatch(2);
+		for(int i=1; i<10; i++){
+			double value = (i % 3) * 10.5D;
+			values.add(new PointValueTime(value, i * 100));
+			batch.add(i * 100, value);
+		}
+		assertEquals(9, batch.size());
+
+		assertSame(new AnalogStatistics(0, 1000, 5D, values, 7D), new AnalogStatistics(0, 1000, 5D, batch, 7D));
+		assertSame(new AnalogStatistics(0, 1000, (Double)null, values, (Double)null), new AnalogStatistics(0, 1000, null, batch, null));
+	}
+
+	@Test
+	public void testEmptyBatch(){
+		AnalogStatistics stats = new AnalogStatistics(0, 1000, null, new NumericPointValueBatch(), null);
+		assertEquals(0, stats.getCount());
+		assertNull(stats.getAverage());
+		assertNull(stats.getMinimumValue());
+		assertNull(stats.getFirstValue());
+	}
+
+	private void assertSame(AnalogStatistics expected, AnalogStatistics actual){
+		assertEquals(expected.toString(), actual.toString());
+	}
+}
@@ -71,6 +71,7 @@ public class DBConvert {
         tableNames.add("dataPoints");
         tableNames.add("pointValues");
         tableNames.add("pointValueAnnotations");
+        tableNames.add("pointValueRollups");
         tableNames.add("pointEventDetectors");
         tableNames.add("events");
         tableNames.add("userEvents");
@@ -31,8 +31,10 @@ import com.serotonin.db.spring.ExtendedJdbcTemplate;
 import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.ILifecycle;
 import com.serotonin.m2m2.db.dao.PointValueDao;
+import com.serotonin.m2m2.db.dao.PointValueDaoCache;
 import com.serotonin.m2m2.db.dao.PointValueDaoMetrics;
 import com.serotonin.m2m2.db.dao.PointValueDaoSQL;
+import com.serotonin.m2m2.db.dao.PointValueSpillJournal;
 import com.serotonin.m2m2.db.dao.SystemSettingsDao;
 import com.serotonin.m2m2.db.dao.UserDao;
 import com.serotonin.m2m2.db.upgrade.DBUpgrade;
@@ -92,12 +94,14 @@ abstract public class DatabaseProxy {
 
     private final Log log = LogFactory.getLog(DatabaseProxy.class);
     private NoSQLProxy noSQLProxy;
-    private Boolean useMetrics;
+    private boolean useMetrics;
+    private boolean useQueryCache;
 
     public void initialize(ClassLoader classLoader) {
         initializeImpl("");
 
         useMetrics = Common.envProps.getBoolean("db.useMetrics", false);
+        useQueryCache = Common.envProps.getBoolean("db.pointValueQueryCache.enabled", true);
 
         ExtendedJdbcTemplate ejt = new ExtendedJdbcTemplate();
         ejt.setDataSource(getDataSource());
@@ -223,6 +227,7 @@ abstract public class DatabaseProxy {
     abstract public DatabaseType getType();
 
     public void terminate() {
+        PointValueSpillJournal.close();
         terminateImpl();
         // Check if we are using NoSQL
         if (NoSQLProxyFactory.instance.getProxy() != null) {
@@ -346,9 +351,12 @@ abstract public class DatabaseProxy {
 
     public PointValueDao newPointValueDao() {
         if (noSQLProxy == null) {
+            PointValueDao dao = new PointValueDaoSQL();
             if (useMetrics)
-                return new PointValueDaoMetrics(new PointValueDaoSQL());
-            return new PointValueDaoSQL();
+                dao = new PointValueDaoMetrics(dao);
+            if (useQueryCache)
+                dao = new PointValueDaoCache(dao);
+            return dao;
         }
 
         if (useMetrics)
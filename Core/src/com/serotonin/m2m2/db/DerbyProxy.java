@@ -207,6 +207,7 @@ public class DerbyProxy extends DatabaseProxy {
     public void executeCompress(ExtendedJdbcTemplate ejt) {
         compressTable(ejt, "pointValues");
         compressTable(ejt, "pointValueAnnotations");
+        compressTable(ejt, "pointValueRollups");
         compressTable(ejt, "events");
     }
 
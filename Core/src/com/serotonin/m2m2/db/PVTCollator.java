@@ -1,19 +1,26 @@
 package com.serotonin.m2m2.db;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.serotonin.db.MappedRowCallback;
 import com.serotonin.m2m2.rt.dataImage.IdPointValueTime;
 import com.serotonin.m2m2.rt.dataImage.MultiValueTime;
 
 public class PVTCollator implements MappedRowCallback<IdPointValueTime> {
-    private final List<Integer> pointIds;
+    private final int pointCount;
+    private final Map<Integer, Integer> pointIndexes;
     private final MappedRowCallback<MultiValueTime> callback;
     private MultiValueTime mvt = null;
     private int nextIndex = 0;
 
     public PVTCollator(List<Integer> pointIds, MappedRowCallback<MultiValueTime> callback) {
-        this.pointIds = pointIds;
+        this.pointCount = pointIds.size();
+        this.pointIndexes = new HashMap<Integer, Integer>(pointIds.size() * 2);
+        // The first position of an id, as indexOf would find
+        for (int i = pointIds.size() - 1; i >= 0; i--)
+            pointIndexes.put(pointIds.get(i), i);
         this.callback = callback;
     }
 
@@ -21,9 +28,9 @@ public class PVTCollator implements MappedRowCallback<IdPointValueTime> {
     public void row(IdPointValueTime pvt, int index) {
         if (mvt == null || mvt.getTime() < pvt.getTime()) {
             done();
-            mvt = new MultiValueTime(new Object[pointIds.size()], pvt.getTime());
+            mvt = new MultiValueTime(new Object[pointCount], pvt.getTime());
         }
-        mvt.getValues()[pointIds.indexOf(pvt.getDataPointId())] = pvt.getValue();
+        mvt.getValues()[pointIndexes.get(pvt.getDataPointId())] = pvt.getValue();
     }
 
     public void done() {
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.util.List;
+import java.util.Map;
+
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueBatch;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+
+/**
+ * Optional point value dao operations that work on primitives or on sets of points. They are kept out of
+ * PointValueDao so the daos of modules don't have to implement them, call them through BulkPointValues
+ * which falls back to the PointValueDao methods when the dao doesn't implement this interface.
+ */
+public interface BulkPointValueDao extends PointValueDao {
+
+    /**
+     * Stream the values of a numeric, binary or multistate point as primitives, without creating
+     * an object per row. Annotations are not read.
+     * 
+     * @param pointId
+     * @param from
+     * @param to
+     * @param callback
+     */
+    public void getNumericPointValuesBetween(int pointId, long from, long to, NumericPointValueCallback callback);
+
+    /**
+     * Read the values of a numeric, binary or multistate point into a columnar batch
+     * 
+     * @param pointId
+     * @param from
+     * @param to
+     * @return
+     */
+    public NumericPointValueBatch getNumericPointValuesBetween(int pointId, long from, long to);
+
+    /**
+     * Delete the values of several points before the same time, in chunks so the purge of a large
+     * table doesn't hold its locks for long
+     * 
+     * @param pointIds
+     * @param time
+     * @return number of values deleted
+     */
+    public long deletePointValuesBefore(List<Integer> pointIds, long time);
+
+    /**
+     * Get the latest value of several points in a few set based queries, used to fill the point
+     * caches at startup without a query per point
+     * 
+     * @param pointIds
+     * @return the latest value of each point that has one, by point id
+     */
+    public Map<Integer, PointValueTime> getLatestPointValues(List<Integer> pointIds);
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.serotonin.db.MappedRowCallback;
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueBatch;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+
+/**
+ * Calls the BulkPointValueDao operations on any PointValueDao, using the dao's implementation if it has one and
+ * otherwise doing the same with the plain PointValueDao methods.
+ */
+public class BulkPointValues {
+
+    private BulkPointValues() {
+    }
+
+    /**
+     * @see BulkPointValueDao#getNumericPointValuesBetween(int, long, long, NumericPointValueCallback)
+     */
+    public static void getNumericPointValuesBetween(PointValueDao dao, int pointId, long from, long to,
+            final NumericPointValueCallback callback) {
+        if (dao instanceof BulkPointValueDao) {
+            ((BulkPointValueDao) dao).getNumericPointValuesBetween(pointId, from, to, callback);
+            return;
+        }
+
+        dao.getPointValuesBetween(pointId, from, to, new MappedRowCallback<PointValueTime>() {
+            private int rowNum;
+
+            @Override
+            public void row(PointValueTime pvt, int index) {
+                // Alphanumeric and image values have no numeric value
+                int dataType = DataTypes.getDataType(pvt.getValue());
+                if (dataType == DataTypes.ALPHANUMERIC || dataType == DataTypes.IMAGE)
+                    return;
+                callback.row(pvt.getTime(), pvt.getDoubleValue(), rowNum++);
+            }
+        });
+    }
+
+    /**
+     * @see BulkPointValueDao#getNumericPointValuesBetween(int, long, long)
+     */
+    public static NumericPointValueBatch getNumericPointValuesBetween(PointValueDao dao, int pointId, long from,
+            long to) {
+        if (dao instanceof BulkPointValueDao)
+            return ((BulkPointValueDao) dao).getNumericPointValuesBetween(pointId, from, to);
+
+        final NumericPointValueBatch batch = new NumericPointValueBatch();
+        getNumericPointValuesBetween(dao, pointId, from, to, new NumericPointValueCallback() {
+            @Override
+            public void row(long time, double value, int rowNum) {
+                batch.add(time, value);
+            }
+        });
+        return batch;
+    }
+
+    /**
+     * @see BulkPointValueDao#deletePointValuesBefore(List, long)
+     */
+    public static long deletePointValuesBefore(PointValueDao dao, List<Integer> pointIds, long time) {
+        if (dao instanceof BulkPointValueDao)
+            return ((BulkPointValueDao) dao).deletePointValuesBefore(pointIds, time);
+
+        long count = 0;
+        for (Integer pointId : pointIds)
+            count += dao.deletePointValuesBefore(pointId, time);
+        return count;
+    }
+
+    /**
+     * @see BulkPointValueDao#getLatestPointValues(List)
+     */
+    public static Map<Integer, PointValueTime> getLatestPointValues(PointValueDao dao, List<Integer> pointIds) {
+        if (dao instanceof BulkPointValueDao)
+            return ((BulkPointValueDao) dao).getLatestPointValues(pointIds);
+
+        Map<Integer, PointValueTime> values = new HashMap<>(pointIds.size() * 2);
+        for (Integer pointId : pointIds) {
+            PointValueTime pvt = dao.getLatestPointValue(pointId);
+            if (pvt != null)
+                values.put(pointId, pvt);
+        }
+        return values;
+    }
+}
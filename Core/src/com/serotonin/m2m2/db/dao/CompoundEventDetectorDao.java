@@ -119,6 +119,7 @@ public class CompoundEventDetectorDao extends BaseDao {
                             new Object[] { compoundEventDetectorId });
                 }
             });
+            EventDao.clearEventHandlerCache();
 
             AuditEventType.raiseDeletedEvent(AuditEventType.TYPE_COMPOUND_EVENT_DETECTOR, ced);
         }
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.PushbackInputStream;
+
+import javax.measure.unit.Unit;
+
+import com.serotonin.ShouldNeverHappenException;
+import com.serotonin.m2m2.util.UnitUtil;
+import com.serotonin.m2m2.view.chart.ChartRenderer;
+import com.serotonin.m2m2.view.text.TextRenderer;
+import com.serotonin.m2m2.vo.DataPointVO;
+import com.serotonin.m2m2.vo.dataSource.PointLocatorVO;
+import com.serotonin.util.SerializationHelper;
+
+/**
+ * The data column of the data points. The fields of DataPointVO that aren't columns of their own are
+ * written as plain values, only the renderers and locator, which are module classes, still go through
+ * Java serialization. Reading the class description of DataPointVO is about half the cost of
+ * deserializing a point.
+ *
+ * Data written by Java serialization is still read, points are moved to this codec as they are saved.
+ */
+class DataPointCodec {
+
+    //Java serialization starts with 0xACED
+    private static final int MAGIC = 0x4D50;
+    private static final int VERSION = 1;
+
+    static byte[] encode(DataPointVO vo){
+        vo.ensureUnitsCorrect();
+        try{
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(MAGIC);
+            out.writeByte(VERSION);
+            out.writeDouble(vo.getDiscardLowLimit());
+            out.writeDouble(vo.getDiscardHighLimit());
+            writeString(out, vo.getChartColour());
+            out.writeInt(vo.getPlotType());
+            out.writeUTF(UnitUtil.formatUcum(vo.getUnit()));
+            out.writeUTF(UnitUtil.formatUcum(vo.getIntegralUnit()));
+            out.writeUTF(UnitUtil.formatUcum(vo.getRenderedUnit()));
+            out.writeBoolean(vo.isUseIntegralUnit());
+            out.writeBoolean(vo.isUseRenderedUnit());
+            out.writeBoolean(vo.isOverrideIntervalLoggingSamples());
+            out.writeInt(vo.getIntervalLoggingSampleWindowSize());
+            out.flush();
+
+            ObjectOutputStream parts = new ObjectOutputStream(bytes);
+            parts.writeObject(new Object[] { vo.getTextRenderer(), vo.getChartRenderer(), vo.getPointLocator() });
+            parts.flush();
+            return bytes.toByteArray();
+        }catch(IOException e){
+            throw new ShouldNeverHappenException(e);
+        }
+    }
+
+    static DataPointVO decode(InputStream in){
+        try{
+            PushbackInputStream pushback = new PushbackInputStream(in, 2);
+            byte[] head = new byte[2];
+            int read = 0;
+            while(read < 2){
+                int n = pushback.read(head, read, 2 - read);
+                if(n < 0)
+                    break;
+                read += n;
+            }
+            if(read > 0)
+                pushback.unread(head, 0, read);
+            if(read < 2 || ((head[0] & 0xff) << 8 | (head[1] & 0xff)) != MAGIC)
+                return (DataPointVO)SerializationHelper.readObjectInContext(pushback);
+
+            DataInputStream data = new DataInputStream(pushback);
+            data.readShort();
+            int version = data.readUnsignedByte();
+            if(version != VERSION)
+                throw new ShouldNeverHappenException("Unknown data point data version " + version);
+
+            DataPointVO vo = new DataPointVO();
+            vo.setDiscardLowLimit(data.readDouble());
+            vo.setDiscardHighLimit(data.readDouble());
+            vo.setChartColour(readString(data));
+            vo.setPlotType(data.readInt());
+            //Unparsable units fall back to the defaults as in DataPointVO.readObject
+            Unit<?> unit = parseUnit(data.readUTF());
+            vo.setUnit(unit);
+            vo.setUnitString(UnitUtil.formatLocal(unit));
+            Unit<?> integralUnit = parseUnit(data.readUTF());
+            vo.setIntegralUnit(integralUnit);
+            vo.setIntegralUnitString(UnitUtil.formatLocal(integralUnit));
+            Unit<?> renderedUnit = parseUnit(data.readUTF());
+            vo.setRenderedUnit(renderedUnit);
+            vo.setRenderedUnitString(UnitUtil.formatLocal(renderedUnit));
+            vo.setUseIntegralUnit(data.readBoolean());
+            vo.setUseRenderedUnit(data.readBoolean());
+            vo.setOverrideIntervalLoggingSamples(data.readBoolean());
+            vo.setIntervalLoggingSampleWindowSize(data.readInt());
+
+            Object[] parts = (Object[])SerializationHelper.readObjectInContext(pushback);
+            //The locator first, setting it changes a text renderer that is already set
+            if(parts[2] != null)
+                vo.setPointLocator((PointLocatorVO)parts[2]);
+            vo.setTextRenderer((TextRenderer)parts[0]);
+            vo.setChartRenderer((ChartRenderer)parts[1]);
+            return vo;
+        }catch(IOException e){
+            throw new ShouldNeverHappenException(e);
+        }
+    }
+
+    private static Unit<?> parseUnit(String unit){
+        try{
+            return UnitUtil.parseUcum(unit);
+        }catch(Exception e){
+            return Unit.ONE;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if(s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
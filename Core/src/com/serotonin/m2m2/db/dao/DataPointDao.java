@@ -4,6 +4,7 @@
  */
 package com.serotonin.m2m2.db.dao;
 
+import java.io.ByteArrayInputStream;
 import java.io.ObjectStreamException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -58,7 +59,6 @@ import com.serotonin.m2m2.vo.hierarchy.PointFolder;
 import com.serotonin.m2m2.vo.hierarchy.PointHierarchy;
 import com.serotonin.m2m2.vo.hierarchy.PointHierarchyEventDispatcher;
 import com.serotonin.m2m2.vo.template.BaseTemplateVO;
-import com.serotonin.util.SerializationHelper;
 
 /**
  * This class is a Half-Breed between the legacy Dao and the new type that extends AbstractDao.
@@ -74,6 +74,17 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
     static final Log LOG = LogFactory.getLog(DataPointDao.class);
     public static final DataPointDao instance = new DataPointDao();
 
+    private static DecodedVOCache<DataPointVO> decodeCache;
+
+    /**
+     * @return the decoded points shared by all the instances
+     */
+    static synchronized DecodedVOCache<DataPointVO> getDecodeCache() {
+        if (decodeCache == null)
+            decodeCache = new DataPointDecodeCache(Common.envProps.getInt("db.decodeCache.dataPoints", 10000));
+        return decodeCache;
+    }
+
     /**
      * TODO make protected, remove access to constructor
      * 
@@ -81,7 +92,7 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
      */
     public DataPointDao() {
         super(AuditEventType.TYPE_DATA_POINT, "dp", 
-        		new String[] { "ds.name", "ds.xid", "ds.dataSourceType", "template.name" }, //Extra Properties not in table
+        		new String[] { "ds.name", "ds.xid", "ds.dataSourceType", "template.name", "dp.dataVersion" }, //Extra Properties not in table
                 "join dataSources ds on ds.id = dp.dataSourceId left outer join templates template on template.id = dp.templateId"); //Extra Joins to get the data we need
 
     }
@@ -108,7 +119,7 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
     }
 
     private static final String DATA_POINT_SELECT = //
-    "select dp.data, dp.id, dp.xid, dp.dataSourceId, dp.name, dp.deviceName, dp.enabled, dp.pointFolderId, " //
+    "select dp.id, dp.dataVersion, dp.data, dp.xid, dp.dataSourceId, dp.name, dp.deviceName, dp.enabled, dp.pointFolderId, " //
             + "  dp.loggingType, dp.intervalLoggingPeriodType, dp.intervalLoggingPeriod, dp.intervalLoggingType, " //
             + "  dp.tolerance, dp.purgeOverride, dp.purgeType, dp.purgePeriod, dp.defaultCacheSize, " //
             + "  dp.discardExtremeValues, dp.engineeringUnits, dp.readPermission, dp.setPermission, dp.templateId, ds.name, " //
@@ -174,8 +185,11 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
         public DataPointVO mapRow(ResultSet rs, int rowNum) throws SQLException {
             int i = 0;
 
-            DataPointVO dp = (DataPointVO) SerializationHelper.readObjectInContext(rs.getBinaryStream(++i));
-            dp.setId(rs.getInt(++i));
+            int id = rs.getInt(++i);
+            int version = rs.getInt(++i);
+            //The data is only read if the point changed since it was cached
+            DataPointVO dp = getDecodeCache().get(id, version, rs, ++i);
+            dp.setId(id);
             dp.setXid(rs.getString(++i));
             dp.setDataSourceId(rs.getInt(++i));
             dp.setName(rs.getString(++i));
@@ -212,8 +226,8 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
     }
 
     private void setRelationalData(List<DataPointVO> dps) {
-        for (DataPointVO dp : dps)
-            setRelationalData(dp);
+        setEventDetectors(dps);
+        setPointComments(dps);
     }
 
     private void setRelationalData(DataPointVO dp) {
@@ -224,20 +238,26 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
     }
 
     public void saveDataPoint(final DataPointVO dp) {
-        getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
-            @Override
-            protected void doInTransactionWithoutResult(TransactionStatus status) {
-                // Decide whether to insert or update.
-                if (dp.getId() == Common.NEW_ID)
-                    insertDataPoint(dp);
-                else
-                    updateDataPoint(dp);
-
-                // Reset the point hierarchy so that the new or changed point
-                // gets reflected.
-                clearPointHierarchyCache();
-            }
-        });
+        try {
+            getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    // Decide whether to insert or update.
+                    if (dp.getId() == Common.NEW_ID)
+                        insertDataPoint(dp);
+                    else
+                        updateDataPoint(dp);
+
+                    // Reset the point hierarchy so that the new or changed point
+                    // gets reflected.
+                    clearPointHierarchyCache();
+                }
+            });
+        }
+        finally {
+            // A rolled back save may have cached the version it would have written
+            getDecodeCache().remove(dp.getId());
+        }
     }
 
     void insertDataPoint(final DataPointVO dp) {
@@ -259,7 +279,7 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
                         dp.getIntervalLoggingPeriodType(), dp.getIntervalLoggingPeriod(), dp.getIntervalLoggingType(),
                         dp.getTolerance(), boolToChar(dp.isPurgeOverride()), dp.getPurgeType(), dp.getPurgePeriod(),
                         dp.getDefaultCacheSize(), boolToChar(dp.isDiscardExtremeValues()), dp.getEngineeringUnits(),
-                        dp.getReadPermission(), dp.getSetPermission(), dp.getTemplateId(), SerializationHelper.writeObject(dp) }, //
+                        dp.getReadPermission(), dp.getSetPermission(), dp.getTemplateId(), new ByteArrayInputStream(DataPointCodec.encode(dp)) }, //
                 new int[] { Types.VARCHAR, Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.CHAR, Types.INTEGER,
                         Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.DOUBLE, Types.CHAR,
                         Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.CHAR, Types.INTEGER, Types.VARCHAR,
@@ -306,14 +326,14 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
                 "update dataPoints set xid=?, name=?, deviceName=?, enabled=?, pointFolderId=?, loggingType=?, " //
                         + "intervalLoggingPeriodType=?, intervalLoggingPeriod=?, intervalLoggingType=?, " //
                         + "tolerance=?, purgeOverride=?, purgeType=?, purgePeriod=?, defaultCacheSize=?, " //
-                        + "discardExtremeValues=?, engineeringUnits=?, readPermission=?, setPermission=?, templateId=?, data=? " //
-                        + "where id=?", //
+                        + "discardExtremeValues=?, engineeringUnits=?, readPermission=?, setPermission=?, templateId=?, data=?, " //
+                        + "dataVersion=dataVersion+1 where id=?", //
                 new Object[] { dp.getXid(), dp.getName(), dp.getDeviceName(), boolToChar(dp.isEnabled()),
                         dp.getPointFolderId(), dp.getLoggingType(), dp.getIntervalLoggingPeriodType(),
                         dp.getIntervalLoggingPeriod(), dp.getIntervalLoggingType(), dp.getTolerance(),
                         boolToChar(dp.isPurgeOverride()), dp.getPurgeType(), dp.getPurgePeriod(),
                         dp.getDefaultCacheSize(), boolToChar(dp.isDiscardExtremeValues()), dp.getEngineeringUnits(),
-                        dp.getReadPermission(), dp.getSetPermission(), dp.getTemplateId(), SerializationHelper.writeObject(dp), dp.getId() }, //
+                        dp.getReadPermission(), dp.getSetPermission(), dp.getTemplateId(), new ByteArrayInputStream(DataPointCodec.encode(dp)), dp.getId() }, //
                 new int[] { Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.CHAR, Types.INTEGER, Types.INTEGER,
                         Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.DOUBLE, Types.CHAR, Types.INTEGER,
                         Types.INTEGER, Types.INTEGER, Types.CHAR, Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.INTEGER,
@@ -340,6 +360,7 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
         });
 
         for (DataPointVO dp : old) {
+            getDecodeCache().remove(dp.getId());
             for (DataPointChangeDefinition def : ModuleRegistry.getDefinitions(DataPointChangeDefinition.class))
                 def.afterDelete(dp.getId());
             AuditEventType.raiseDeletedEvent(AuditEventType.TYPE_DATA_POINT, dp);
@@ -366,6 +387,7 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
                     deleteDataPointImpl(Integer.toString(dataPointId));
                 }
             });
+            getDecodeCache().remove(dataPointId);
 
             for (DataPointChangeDefinition def : ModuleRegistry.getDefinitions(DataPointChangeDefinition.class))
                 def.afterDelete(dataPointId);
@@ -378,6 +400,7 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
         dataPointIdList = "(" + dataPointIdList + ")";
         ejt.update("delete from eventHandlers where eventTypeName=? and eventTypeRef1 in " + dataPointIdList,
                 new Object[] { EventType.EventTypeNames.DATA_POINT });
+        EventDao.clearEventHandlerCache();
         ejt.update("delete from userComments where commentType=2 and typeKey in " + dataPointIdList);
         ejt.update("delete from pointEventDetectors where dataPointId in " + dataPointIdList);
         ejt.update("delete from dataPoints where id in " + dataPointIdList);
@@ -420,36 +443,72 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
                 new Object[] { dataPointId, xid, excludeId }, 0) == 0;
     }
 
+    private static final String EVENT_DETECTOR_COLUMNS = "id, xid, alias, detectorType, alarmLevel, stateLimit, "
+            + "  duration, durationType, binaryState, multistateState, changeCount, alphanumericState, weight ";
+    private static final String EVENT_DETECTOR_SELECT = "select " + EVENT_DETECTOR_COLUMNS + "from pointEventDetectors ";
+
+    // Points per relational data query
+    private static final int RELATIONAL_DATA_CHUNK_SIZE = 1000;
+
     public void setEventDetectors(DataPointVO dp) {
         dp.setEventDetectors(getEventDetectors(dp));
     }
 
     private List<PointEventDetectorVO> getEventDetectors(DataPointVO dp) {
-        return query(
-                "select id, xid, alias, detectorType, alarmLevel, stateLimit, duration, durationType, binaryState, "
-                        + "  multistateState, changeCount, alphanumericState, weight " + "from pointEventDetectors "
-                        + "where dataPointId=? " + "order by id", new Object[] { dp.getId() },
+        return query(EVENT_DETECTOR_SELECT + "where dataPointId=? " + "order by id", new Object[] { dp.getId() },
                 new EventDetectorRowMapper(dp));
     }
 
+    /**
+     * Set the detectors of all the points with one query per chunk of points instead of one per point
+     * 
+     * @param dps
+     */
+    public void setEventDetectors(List<DataPointVO> dps) {
+        final Map<Integer, DataPointVO> byId = new HashMap<>(dps.size() * 2);
+        for (DataPointVO dp : dps) {
+            dp.setEventDetectors(new ArrayList<PointEventDetectorVO>());
+            byId.put(dp.getId(), dp);
+        }
+
+        for (List<Integer> ids : chunk(new ArrayList<>(byId.keySet()))) {
+            ejt.query("select dataPointId, " + EVENT_DETECTOR_COLUMNS + "from pointEventDetectors "
+                    + "where dataPointId in (" + createDelimitedList(ids, ",", null) + ") order by id", new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    DataPointVO dp = byId.get(rs.getInt(1));
+                    dp.getEventDetectors().add(new EventDetectorRowMapper(dp, 1).mapRow(rs, 0));
+                }
+            });
+        }
+    }
+
     public PointEventDetectorVO getEventDetector(int id) {
-        return ejt.queryForObject(
-                "select id, xid, alias, detectorType, alarmLevel, stateLimit, duration, durationType, binaryState, "
-                        + "  multistateState, changeCount, alphanumericState, weight " + "from pointEventDetectors "
-                        + "where id=? ", new Object[] { id }, new EventDetectorRowMapper(null));
+        return ejt.queryForObject(EVENT_DETECTOR_SELECT + "where id=? ", new Object[] { id },
+                new EventDetectorRowMapper(null));
     }
 
     class EventDetectorRowMapper implements RowMapper<PointEventDetectorVO> {
         private final DataPointVO dp;
+        private final int offset;
 
         public EventDetectorRowMapper(DataPointVO dp) {
+            this(dp, 0);
+        }
+
+        /**
+         * @param dp
+         * @param offset - columns before the detector columns
+         */
+        public EventDetectorRowMapper(DataPointVO dp, int offset) {
             this.dp = dp;
+            this.offset = offset;
         }
 
         @Override
         public PointEventDetectorVO mapRow(ResultSet rs, int rowNum) throws SQLException {
             PointEventDetectorVO detector = new PointEventDetectorVO();
-            int i = 0;
+            int i = offset;
             detector.setId(rs.getInt(++i));
             detector.setXid(rs.getString(++i));
             detector.setAlias(rs.getString(++i));
@@ -513,6 +572,7 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
         for (PointEventDetectorVO ped : existingDetectors) {
             ejt.update("delete from eventHandlers where eventTypeName=? and eventTypeRef1=? and eventTypeRef2=?",
                     new Object[] { EventType.EventTypeNames.DATA_POINT, dp.getId(), ped.getId() });
+            EventDao.clearEventHandlerCache();
             ejt.update("delete from pointEventDetectors where id=?", new Object[] { ped.getId() });
 
             AuditEventType.raiseDeletedEvent(AuditEventType.TYPE_POINT_EVENT_DETECTOR, ped);
@@ -535,10 +595,47 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
     //
     private static final String POINT_COMMENT_SELECT = UserCommentRowMapper.USER_COMMENT_SELECT
             + "where uc.commentType= " + UserComment.TYPE_POINT + " and uc.typeKey=? " + "order by uc.ts";
+    // The type key goes after the columns of the UserCommentRowMapper
+    private static final String POINT_COMMENTS_SELECT = "select uc.userId, u.username, uc.ts, uc.commentText, uc.typeKey "
+            + "from userComments uc left join users u on uc.userId = u.id ";
 
     private void setPointComments(DataPointVO dp) {
         dp.setComments(query(POINT_COMMENT_SELECT, new Object[] { dp.getId() }, new UserCommentRowMapper()));
     }
+
+    /**
+     * Set the comments of all the points with one query per chunk of points instead of one per point
+     * 
+     * @param dps
+     */
+    private void setPointComments(List<DataPointVO> dps) {
+        final Map<Integer, DataPointVO> byId = new HashMap<>(dps.size() * 2);
+        for (DataPointVO dp : dps) {
+            dp.setComments(new ArrayList<UserComment>());
+            byId.put(dp.getId(), dp);
+        }
+
+        final UserCommentRowMapper mapper = new UserCommentRowMapper();
+        for (List<Integer> ids : chunk(new ArrayList<>(byId.keySet()))) {
+            ejt.query(POINT_COMMENTS_SELECT + "where uc.commentType= " + UserComment.TYPE_POINT + " and uc.typeKey in ("
+                    + createDelimitedList(ids, ",", null) + ") order by uc.ts", new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    byId.get(rs.getInt(5)).getComments().add(mapper.mapRow(rs, 0));
+                }
+            });
+        }
+    }
+
+    /**
+     * Split ids for in lists that stay well below the database limits
+     */
+    private static List<List<Integer>> chunk(List<Integer> ids) {
+        List<List<Integer>> chunks = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += RELATIONAL_DATA_CHUNK_SIZE)
+            chunks.add(ids.subList(i, Math.min(i + RELATIONAL_DATA_CHUNK_SIZE, ids.size())));
+        return chunks;
+    }
     
     
     /**
@@ -822,7 +919,7 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
      */
     @Override
     protected Object[] voToObjectArray(DataPointVO vo) {
-        return new Object[] { SerializationHelper.writeObject(vo), vo.getXid(), vo.getDataSourceId(), vo.getName(),
+        return new Object[] { new ByteArrayInputStream(DataPointCodec.encode(vo)), vo.getXid(), vo.getDataSourceId(), vo.getName(),
                 vo.getDeviceName(), boolToChar(vo.isEnabled()), vo.getPointFolderId(), vo.getLoggingType(),
                 vo.getIntervalLoggingPeriodType(), vo.getIntervalLoggingPeriod(), vo.getIntervalLoggingType(),
                 vo.getTolerance(), boolToChar(vo.isPurgeOverride()), vo.getPurgeType(), vo.getPurgePeriod(),
@@ -986,7 +1083,7 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
             int id = (rs.getInt(++i));
 
             //TODO Should catch Stream exceptions when a module is missing for an existing Datasource.
-            DataPointVO dp = (DataPointVO) SerializationHelper.readObjectInContext(rs.getBinaryStream(++i));
+            DataPointVO dp = getDecodeCache().get(id, rs.getInt("dataVersion"), rs, ++i);
 
             dp.setId(id);
             dp.setXid(rs.getString(++i));
@@ -1090,12 +1187,20 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
     @Override
     public List<DataPointVO> getAllFull() {
         List<DataPointVO> list = this.getAll();
+        // Points share data sources, load each once
+        Map<Integer, DataSourceVO<?>> dataSources = new HashMap<>();
         for (DataPointVO vo : list) {
-            this.loadDataSource(vo);
-            this.setEventDetectors(vo);
-            this.setPointComments(vo);
+            DataSourceVO<?> dsVo = dataSources.get(vo.getDataSourceId());
+            if (dsVo == null) {
+                dsVo = DataSourceDao.instance.get(vo.getDataSourceId());
+                dataSources.put(vo.getDataSourceId(), dsVo);
+            }
+            vo.setDataSourceName(dsVo.getName());
+            vo.setDataSourceTypeName(dsVo.getDefinition().getDataSourceTypeName());
+            vo.setDataSourceXid(dsVo.getXid());
             this.setTemplateName(vo);
         }
+        this.setRelationalData(list);
         return list;
     }
 
@@ -1122,6 +1227,15 @@ public class DataPointDao extends AbstractDao<DataPointVO> {
         }
     }
 
+    /**
+     * Update the vo and the version of its data, which the generic update doesn't know of
+     */
+    @Override
+    protected void update(DataPointVO vo) {
+        super.update(vo);
+        ejt.update("update dataPoints set dataVersion=dataVersion+1 where id=?", new Object[] { vo.getId() });
+    }
+
     @Override
     public void saveFull(DataPointVO vo) {
         //TODO Eventually Fix this up by using the new AbstractDao for the query
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.io.InputStream;
+
+import com.serotonin.m2m2.vo.DataPointVO;
+
+/**
+ * Points decoded by the DataPointCodec, copied without decoding or serializing anything. Units
+ * can't be changed, so the copies share them. The locator and renderers are module classes with
+ * setters, they are copied field by field.
+ */
+class DataPointDecodeCache extends DecodedVOCache<DataPointVO> {
+
+    private final FieldCopier copier = new FieldCopier();
+
+    DataPointDecodeCache(int maxSize){
+        super(maxSize);
+    }
+
+    @Override
+    protected DataPointVO decode(InputStream in){
+        return DataPointCodec.decode(in);
+    }
+
+    @Override
+    protected DataPointVO copy(DataPointVO vo){
+        //copy() sets the units on the cached text renderer again, one copy of a point at a time
+        synchronized(vo){
+            DataPointVO copy = vo.copy();
+            copy.setTextRenderer(copier.copy(vo.getTextRenderer()));
+            copy.setChartRenderer(copier.copy(vo.getChartRenderer()));
+            if(vo.getPointLocator() != null)
+                copy.setPointLocator(copier.copy(vo.getPointLocator()));
+            return copy;
+        }
+    }
+}
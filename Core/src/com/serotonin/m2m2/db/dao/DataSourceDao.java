@@ -180,6 +180,7 @@ public class DataSourceDao extends AbstractDao<DataSourceVO<?>> {
                     ejt2.update("DELETE FROM dataSources WHERE id=?", new Object[] { dataSourceId });
                 }
             });
+            EventDao.clearEventHandlerCache();
 
             AuditEventType.raiseDeletedEvent(AuditEventType.TYPE_DATA_SOURCE, vo);
         }
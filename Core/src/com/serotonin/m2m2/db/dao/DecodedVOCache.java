@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.io.InputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.serotonin.m2m2.vo.AbstractVO;
+import com.serotonin.util.SerializationHelper;
+
+/**
+ * Cache of the VOs decoded from the serialized data column of a table, by id. A row whose data
+ * version is the one that was decoded last time is copied from the cached VO, without reading the
+ * data or going through Java deserialization again, which is most of the cost of loading points.
+ *
+ * Every write of the data column must increase the version, the cache is only told of deletes.
+ *
+ * The cached VO is never handed out, callers get a deep copy they are free to change.
+ */
+public abstract class DecodedVOCache<T extends AbstractVO<?>> {
+
+    private final int maxSize;
+    //Access ordered so the least recently read are dropped first
+    private final Map<Integer, Entry<T>> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxSize - VOs to keep, 0 to always decode
+     */
+    public DecodedVOCache(final int maxSize){
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Integer, Entry<T>>(16, 0.75f, true){
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry<T>> eldest){
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Copy the cached VO of a row, or read its data column and decode it if the version has changed
+     * @param id
+     * @param version - the data version of the row
+     * @param rs - positioned on the row
+     * @param dataColumn - index of the data column, only read on a miss
+     * @return the VO, null if there is no data
+     * @throws SQLException
+     */
+    public T get(int id, int version, ResultSet rs, int dataColumn) throws SQLException {
+        T vo = getCopy(id, version);
+        if(vo != null)
+            return vo;
+        return put(id, version, rs.getBinaryStream(dataColumn));
+    }
+
+    /**
+     * @param id
+     * @param version - the data version of the row
+     * @return a copy of the cached VO, null if there is none of the version
+     */
+    public T getCopy(int id, int version){
+        Entry<T> entry;
+        synchronized(this){
+            entry = entries.get(id);
+            if(entry != null && entry.version == version)
+                hits++;
+            else{
+                entry = null;
+                misses++;
+            }
+        }
+        return entry == null ? null : copy(entry.vo);
+    }
+
+    /**
+     * Decode the data of a row and cache it
+     * @param id
+     * @param version - the data version of the row
+     * @param in - the data column
+     * @return a copy of the VO, null if there is no data
+     */
+    public T put(int id, int version, InputStream in){
+        if(in == null)
+            return null;
+        if(maxSize <= 0)
+            return decode(in);
+
+        //Decode outside of the lock, the cached one is never handed out
+        T vo = decode(in);
+        synchronized(this){
+            entries.put(id, new Entry<T>(version, vo));
+        }
+        return copy(vo);
+    }
+
+    public synchronized void remove(int id){
+        entries.remove(id);
+    }
+
+    public synchronized void clear(){
+        entries.clear();
+    }
+
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected T decode(InputStream in){
+        return (T)SerializationHelper.readObjectInContext(in);
+    }
+
+    /**
+     * Copy a cached VO, the copy must not share anything that can be changed with it
+     * @param vo - the cached VO
+     * @return
+     */
+    protected abstract T copy(T vo);
+
+    private static class Entry<T> {
+        final int version;
+        final T vo;
+
+        Entry(int version, T vo){
+            this.version = version;
+            this.vo = vo;
+        }
+    }
+}
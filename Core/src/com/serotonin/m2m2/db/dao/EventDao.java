@@ -9,12 +9,20 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.ResultSetExtractor;
@@ -26,6 +34,7 @@ import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import com.serotonin.ShouldNeverHappenException;
 import com.serotonin.db.spring.ExtendedJdbcTemplate;
 import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.DatabaseProxy.DatabaseType;
 import com.serotonin.m2m2.i18n.TranslatableMessage;
 import com.serotonin.m2m2.i18n.Translations;
 import com.serotonin.m2m2.module.EventTypeDefinition;
@@ -37,6 +46,8 @@ import com.serotonin.m2m2.rt.event.type.DataSourceEventType;
 import com.serotonin.m2m2.rt.event.type.EventType;
 import com.serotonin.m2m2.rt.event.type.PublisherEventType;
 import com.serotonin.m2m2.rt.event.type.SystemEventType;
+import com.serotonin.m2m2.rt.maint.MangoThreadFactory;
+import com.serotonin.m2m2.rt.maint.work.WorkItem;
 import com.serotonin.m2m2.vo.UserComment;
 import com.serotonin.m2m2.vo.event.EventHandlerVO;
 import com.serotonin.m2m2.vo.event.EventTypeVO;
@@ -44,6 +55,7 @@ import com.serotonin.m2m2.web.dwr.EventsDwr;
 import com.serotonin.util.SerializationHelper;
 
 public class EventDao extends BaseDao {
+    private static final Log LOG = LogFactory.getLog(EventDao.class);
     private static final int MAX_PENDING_EVENTS = 100;
 
     public void saveEvent(EventInstance event) {
@@ -59,35 +71,58 @@ public class EventDao extends BaseDao {
             + "values (?,?,?,?,?,?,?,?,?,?,?)";
     private static final int[] EVENT_INSERT_TYPES = { Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.INTEGER,
             Types.BIGINT, Types.CHAR, Types.BIGINT, Types.INTEGER, Types.INTEGER, Types.VARCHAR, Types.BIGINT };
+    private static final String EVENT_INSERT_WITH_ID_START = //
+    "insert into events (id, typeName, subtypeName, typeRef1, typeRef2, activeTs, rtnApplicable, rtnTs, rtnCause, " //
+            + "  alarmLevel, message, ackTs) values ";
+    private static final String EVENT_INSERT_WITH_ID_VALUES = "(?,?,?,?,?,?,?,?,?,?,?,?)";
+    private static final int[] EVENT_INSERT_WITH_ID_TYPES = { Types.INTEGER, Types.VARCHAR, Types.VARCHAR,
+            Types.INTEGER, Types.INTEGER, Types.BIGINT, Types.CHAR, Types.BIGINT, Types.INTEGER, Types.INTEGER,
+            Types.VARCHAR, Types.BIGINT };
 
     private void insertEvent(EventInstance event) {
         EventType type = event.getEventType();
 
-        Object[] args = new Object[11];
-        args[0] = type.getEventType();
-        args[1] = type.getEventSubtype();
-        args[2] = type.getReferenceId1();
-        args[3] = type.getReferenceId2();
-        args[4] = event.getActiveTimestamp();
-        args[5] = boolToChar(event.isRtnApplicable());
+        if (!event.isAlarm())
+            event.setAcknowledgedTimestamp(event.getActiveTimestamp());
+
+        Object[] args = new Object[12];
+        args[1] = type.getEventType();
+        args[2] = type.getEventSubtype();
+        args[3] = type.getReferenceId1();
+        args[4] = type.getReferenceId2();
+        args[5] = event.getActiveTimestamp();
+        args[6] = boolToChar(event.isRtnApplicable());
         if (!event.isActive()) {
-            args[6] = event.getRtnTimestamp();
-            args[7] = event.getRtnCause();
+            args[7] = event.getRtnTimestamp();
+            args[8] = event.getRtnCause();
         }
-        args[8] = event.getAlarmLevel();
-        args[9] = writeTranslatableMessage(event.getMessage());
-        if (!event.isAlarm()) {
-            event.setAcknowledgedTimestamp(event.getActiveTimestamp());
-            args[10] = event.getAcknowledgedTimestamp();
+        args[9] = event.getAlarmLevel();
+        args[10] = writeTranslatableMessage(event.getMessage());
+        if (!event.isAlarm())
+            args[11] = event.getAcknowledgedTimestamp();
+
+        if (assignsEventIds()) {
+            args[0] = nextEventId();
+            EventWriteBehind writeBehind = getWriteBehind();
+            if (writeBehind != null)
+                writeBehind.insertEvent(args);
+            else
+                ejt.update(EVENT_INSERT_WITH_ID_START + EVENT_INSERT_WITH_ID_VALUES, args,
+                        EVENT_INSERT_WITH_ID_TYPES);
+            event.setId((Integer) args[0]);
+        }
+        else {
+            Object[] identityArgs = new Object[11];
+            System.arraycopy(args, 1, identityArgs, 0, 11);
+            event.setId(doInsert(EVENT_INSERT, identityArgs, EVENT_INSERT_TYPES));
         }
-        event.setId(doInsert(EVENT_INSERT, args, EVENT_INSERT_TYPES));
         event.setEventComments(new LinkedList<UserComment>());
     }
 
     private static final String EVENT_UPDATE = "update events set rtnTs=?, rtnCause=? where id=?";
 
     private void updateEvent(EventInstance event) {
-        ejt.update(EVENT_UPDATE, new Object[] { event.getRtnTimestamp(), event.getRtnCause(), event.getId() });
+        update(EVENT_UPDATE, new Object[] { event.getRtnTimestamp(), event.getRtnCause(), event.getId() }, null);
     }
 
     private static final String EVENT_BULK_RTN = "update events set rtnTs=?, rtnCause=? where id in ";
@@ -104,7 +139,7 @@ public class EventDao extends BaseDao {
     			inClause.append(comma);
     	}
     	inClause.append(")");
-    	ejt.update( EVENT_BULK_RTN + inClause.toString(), new Object[]{timestamp, cause});
+    	update(EVENT_BULK_RTN + inClause.toString(), new Object[]{timestamp, cause}, null);
     }
     
     private static final String EVENT_ACK = "update events set ackTs=?, ackUserId=?, alternateAckSource=? where id=? and ackTs is null";
@@ -112,17 +147,25 @@ public class EventDao extends BaseDao {
 
     public void ackEvent(int eventId, long time, int userId, TranslatableMessage alternateAckSource) {
         // Ack the event
-        ejt.update(EVENT_ACK, new Object[] { time, userId == 0 ? null : userId,
+        update(EVENT_ACK, new Object[] { time, userId == 0 ? null : userId,
                 writeTranslatableMessage(alternateAckSource), eventId }, new int[] { Types.BIGINT, Types.INTEGER,
                 Types.CLOB, Types.INTEGER });
         // Silence the user events
-        ejt.update(USER_EVENT_ACK, new Object[] { boolToChar(true), eventId });
+        update(USER_EVENT_ACK, new Object[] { boolToChar(true), eventId }, null);
 
     }
 
     private static final String USER_EVENTS_INSERT = "insert into userEvents (eventId, userId, silenced) values (?,?,?)";
+    private static final String USER_EVENTS_INSERT_START = "insert into userEvents (eventId, userId, silenced) values ";
+    private static final String USER_EVENTS_INSERT_VALUES = "(?,?,?)";
 
     public void insertUserEvents(final int eventId, final List<Integer> userIds, final boolean alarm) {
+        EventWriteBehind writeBehind = getWriteBehind();
+        if (writeBehind != null) {
+            writeBehind.insertUserEvents(eventId, userIds, !alarm);
+            return;
+        }
+
         ejt.batchUpdate(USER_EVENTS_INSERT, new BatchPreparedStatementSetter() {
             @Override
             public int getBatchSize() {
@@ -140,6 +183,295 @@ public class EventDao extends BaseDao {
 
     }
 
+    /**
+     * Queue the update behind the event inserts if events are written behind, otherwise run it now
+     */
+    private void update(String sql, Object[] args, int[] types) {
+        EventWriteBehind writeBehind = getWriteBehind();
+        if (writeBehind != null)
+            writeBehind.update(sql, args, types);
+        else if (types == null)
+            ejt.update(sql, args);
+        else
+            ejt.update(sql, args, types);
+    }
+
+    //
+    //
+    // Event write behind
+    //
+    private static final Object EVENT_ID_LOCK = new Object();
+    //Ids reserved at once, the end of a block is saved before any id of it is used
+    private static final int EVENT_ID_BLOCK = 1000;
+    private static boolean eventIdsLoaded;
+    private static int lastEventId;
+    private static int reservedEventId;
+    //The next block is being reserved in the background
+    private static boolean reservingEventIds;
+    private static volatile EventWriteBehind writeBehind;
+    private static volatile boolean writeBehindLoaded;
+    //Max rows in one multi row insert
+    private static final int MAX_INSERT_ROWS = 500;
+
+    /**
+     * MSSQL only takes explicit values for identity columns with identity_insert on, so there the database
+     * assigns the ids and events are saved on the calling thread.
+     */
+    private static boolean assignsEventIds() {
+        return Common.databaseProxy.getType() != DatabaseType.MSSQL;
+    }
+
+    /**
+     * Ids are used whether or not events are written behind so the database identity is never used once they
+     * are. They are handed out in blocks from a high water mark kept in the system settings, so an id is never
+     * given out twice even when the events that had the highest ids are purged before a restart.
+     *
+     * Once half of a block is used the next one is reserved in the background, the raising thread only waits
+     * for it if the block runs out first.
+     */
+    private int nextEventId() {
+        synchronized (EVENT_ID_LOCK) {
+            if (!eventIdsLoaded) {
+                // Events saved before there was a high water mark
+                int max = ejt.queryForInt("select max(id) from events", null, 0);
+                lastEventId = Math.max(max, SystemSettingsDao.getIntValue(SystemSettingsDao.EVENT_ID_HIGH_WATER, 0));
+                reserveEventIds(lastEventId + EVENT_ID_BLOCK);
+                eventIdsLoaded = true;
+            }
+
+            boolean interrupted = false;
+            while (lastEventId >= reservedEventId) {
+                if (!reservingEventIds) {
+                    // The background reservation failed
+                    reserveEventIds(reservedEventId + EVENT_ID_BLOCK);
+                    break;
+                }
+                try {
+                    EVENT_ID_LOCK.wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            int id = ++lastEventId;
+            if (!reservingEventIds && reservedEventId - lastEventId <= EVENT_ID_BLOCK / 2)
+                reserveNextEventIds();
+            return id;
+        }
+    }
+
+    /**
+     * Reserve the ids up to this one, hold the id lock
+     */
+    private void reserveEventIds(int reserved) {
+        new SystemSettingsDao().setIntValue(SystemSettingsDao.EVENT_ID_HIGH_WATER, reserved);
+        advanceEventIdentity(reserved + 1);
+        reservedEventId = reserved;
+    }
+
+    /**
+     * Reserve the block after the current one in the background, hold the id lock
+     */
+    private void reserveNextEventIds() {
+        final int reserved = reservedEventId + EVENT_ID_BLOCK;
+        reservingEventIds = true;
+        WorkItem item = new WorkItem() {
+            @Override
+            public void execute() {
+                try {
+                    new SystemSettingsDao().setIntValue(SystemSettingsDao.EVENT_ID_HIGH_WATER, reserved);
+                    advanceEventIdentity(reserved + 1);
+                    synchronized (EVENT_ID_LOCK) {
+                        reservedEventId = reserved;
+                    }
+                }
+                catch (RuntimeException e) {
+                    LOG.warn("Unable to reserve event ids, they are reserved when raising an event instead", e);
+                }
+                finally {
+                    synchronized (EVENT_ID_LOCK) {
+                        reservingEventIds = false;
+                        EVENT_ID_LOCK.notifyAll();
+                    }
+                }
+            }
+
+            @Override
+            public int getPriority() {
+                return WorkItem.PRIORITY_HIGH;
+            }
+
+            @Override
+            public String getDescription() {
+                return "Reserving event ids";
+            }
+        };
+        if (Common.backgroundProcessing == null) {
+            item.execute();
+            return;
+        }
+        try {
+            Common.backgroundProcessing.addWorkItem(item);
+        }
+        catch (RuntimeException e) {
+            reservingEventIds = false;
+            LOG.warn("Unable to queue the reservation of event ids", e);
+        }
+    }
+
+    /**
+     * Move the identity of the events table past the reserved ids, so an insert that leaves the id to the
+     * database doesn't take one of them. MySQL moves its auto increment past explicit ids by itself.
+     */
+    private void advanceEventIdentity(int next) {
+        try {
+            switch (Common.databaseProxy.getType()) {
+            case DERBY:
+            case H2:
+                ejt.execute("alter table events alter column id restart with " + next);
+                break;
+            case POSTGRES:
+                ejt.queryForInt("select setval(pg_get_serial_sequence('events', 'id'), " + (next - 1) + ")", null, 0);
+                break;
+            default:
+                break;
+            }
+        }
+        catch (RuntimeException e) {
+            LOG.warn("Unable to move the events identity to " + next, e);
+        }
+    }
+
+    /**
+     * @return the event write behind or null if events are saved on the calling thread
+     */
+    private static EventWriteBehind getWriteBehind() {
+        if (!writeBehindLoaded) {
+            synchronized (EVENT_ID_LOCK) {
+                if (!writeBehindLoaded) {
+                    if (assignsEventIds() && Common.envProps.getBoolean("db.eventWriteBehind.enabled", true)) {
+                        int capacity = Common.envProps.getInt("db.eventWriteBehind.maxQueue", 10000);
+                        int batchSize = Common.envProps.getInt("db.eventWriteBehind.batchSize", 1000);
+                        long flushInterval = Common.envProps.getLong("db.eventWriteBehind.flushInterval", 100);
+                        if (batchSize < 1)
+                            batchSize = 1;
+                        if (capacity < batchSize)
+                            capacity = batchSize;
+                        writeBehind = new EventDaoWriteBehind(capacity, batchSize, flushInterval);
+                    }
+                    writeBehindLoaded = true;
+                }
+            }
+        }
+        return writeBehind;
+    }
+
+    /**
+     * Save all queued event writes, so the database reflects every event raised so far. The reads of the events
+     * tables in this dao call it first, anything else reading them directly should too.
+     */
+    public static void flushEventWrites() {
+        EventWriteBehind writeBehind = getWriteBehind();
+        if (writeBehind != null)
+            writeBehind.flush();
+    }
+
+    /**
+     * @return the number of event writes waiting to be saved
+     */
+    public static int getQueuedEventWrites() {
+        EventWriteBehind writeBehind = EventDao.writeBehind;
+        return writeBehind == null ? 0 : writeBehind.size();
+    }
+
+    void writeEvents(final List<EventWriteBehind.EventInsert> events,
+            final List<EventWriteBehind.UserEventsInsert> userEvents, final List<EventWriteBehind.Update> updates) {
+        final ExtendedJdbcTemplate ejt2 = ejt;
+        getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                for (int start = 0; start < events.size(); start += MAX_INSERT_ROWS) {
+                    int end = Math.min(events.size(), start + MAX_INSERT_ROWS);
+                    int columns = EVENT_INSERT_WITH_ID_TYPES.length;
+                    Object[] params = new Object[(end - start) * columns];
+                    int[] types = new int[params.length];
+                    StringBuilder sb = new StringBuilder(EVENT_INSERT_WITH_ID_START);
+                    for (int i = start; i < end; i++) {
+                        if (i > start)
+                            sb.append(',');
+                        sb.append(EVENT_INSERT_WITH_ID_VALUES);
+                        System.arraycopy(events.get(i).args, 0, params, (i - start) * columns, columns);
+                        System.arraycopy(EVENT_INSERT_WITH_ID_TYPES, 0, types, (i - start) * columns, columns);
+                    }
+                    ejt2.update(sb.toString(), params, types);
+                }
+
+                List<Object[]> rows = new ArrayList<Object[]>();
+                for (EventWriteBehind.UserEventsInsert insert : userEvents)
+                    for (Integer userId : insert.userIds)
+                        rows.add(new Object[] { insert.eventId, userId, boolToChar(insert.silenced) });
+                for (int start = 0; start < rows.size(); start += MAX_INSERT_ROWS) {
+                    int end = Math.min(rows.size(), start + MAX_INSERT_ROWS);
+                    Object[] params = new Object[(end - start) * 3];
+                    StringBuilder sb = new StringBuilder(USER_EVENTS_INSERT_START);
+                    for (int i = start; i < end; i++) {
+                        if (i > start)
+                            sb.append(',');
+                        sb.append(USER_EVENTS_INSERT_VALUES);
+                        System.arraycopy(rows.get(i), 0, params, (i - start) * 3, 3);
+                    }
+                    ejt2.update(sb.toString(), params);
+                }
+
+                for (EventWriteBehind.Update update : updates) {
+                    if (update.types == null)
+                        ejt2.update(update.sql, update.args);
+                    else
+                        ejt2.update(update.sql, update.args, update.types);
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves the queue on its own thread so the SQL doesn't hold up the timer threads. The thread ends when it
+     * has been idle for a minute.
+     */
+    static class EventDaoWriteBehind extends EventWriteBehind implements Runnable {
+        private final EventDao dao = new EventDao();
+        private final ScheduledThreadPoolExecutor writer;
+
+        EventDaoWriteBehind(int capacity, int batchSize, long flushInterval) {
+            super(capacity, batchSize, flushInterval);
+            writer = new ScheduledThreadPoolExecutor(1, new MangoThreadFactory("event-writer", Thread.NORM_PRIORITY));
+            writer.setKeepAliveTime(60, TimeUnit.SECONDS);
+            writer.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        protected void schedule(long delay) {
+            writer.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            try {
+                writeQueued();
+            }
+            catch (RuntimeException e) {
+                LOG.error("Error saving queued event writes", e);
+            }
+        }
+
+        @Override
+        protected void write(List<EventInsert> events, List<UserEventsInsert> userEvents, List<Update> updates) {
+            dao.writeEvents(events, userEvents, updates);
+        }
+    }
+
     private static final String BASIC_EVENT_SELECT = //
     "select e.id, e.typeName, e.subtypeName, e.typeRef1, e.typeRef2, e.activeTs, e.rtnApplicable, e.rtnTs, " //
             + "  e.rtnCause, e.alarmLevel, e.message, e.ackTs, e.ackUserId, u.username, e.alternateAckSource, " //
@@ -149,6 +481,7 @@ public class EventDao extends BaseDao {
             + "  left join users u on e.ackUserId=u.id ";
 
     public List<EventInstance> getActiveEvents() {
+        flushEventWrites();
         List<EventInstance> results = query(BASIC_EVENT_SELECT + "where e.rtnApplicable=? and e.rtnTs is null",
                 new Object[] { boolToChar(true) }, new EventInstanceRowMapper());
         attachRelationalInfo(results);
@@ -156,6 +489,7 @@ public class EventDao extends BaseDao {
     }
 
     public EventInstance get(int eventId){
+    	flushEventWrites();
     	return queryForObject(BASIC_EVENT_SELECT + " where e.id = ?", new Object[]{ eventId }, new EventInstanceRowMapper());
     }
     
@@ -170,6 +504,7 @@ public class EventDao extends BaseDao {
             + "  left join userEvents ue on e.id=ue.eventId ";
 
     public List<EventInstance> getEventsForDataPoint(int dataPointId, int userId) {
+        flushEventWrites();
         List<EventInstance> results = query(EVENT_SELECT_WITH_USER_DATA //
                 + "where e.typeName=? " //
                 + "  and e.typeRef1=? " //
@@ -192,6 +527,7 @@ public class EventDao extends BaseDao {
     }
 
     List<EventInstance> getPendingEvents(String typeName, int typeRef1, int userId) {
+        flushEventWrites();
         Object[] params;
         StringBuilder sb = new StringBuilder();
         sb.append(EVENT_SELECT_WITH_USER_DATA);
@@ -214,6 +550,7 @@ public class EventDao extends BaseDao {
     }
 
     public List<EventInstance> getAllUnsilencedEvents(int userId) {
+        flushEventWrites();
 
         StringBuilder sb = new StringBuilder();
         sb.append(EVENT_SELECT_WITH_USER_DATA);
@@ -228,6 +565,7 @@ public class EventDao extends BaseDao {
     }
     
     public List<EventInstance> getPendingEvents(int userId) {
+        flushEventWrites();
         List<EventInstance> results = Common.databaseProxy.doLimitQuery(this, EVENT_SELECT_WITH_USER_DATA
                 + "where ue.userId=? and e.ackTs is null order by e.activeTs desc", new Object[] { userId },
                 new UserEventInstanceRowMapper(), MAX_PENDING_EVENTS);
@@ -236,6 +574,7 @@ public class EventDao extends BaseDao {
     }
 
     private EventInstance getEventInstance(int eventId) {
+        flushEventWrites();
         return queryForObject(BASIC_EVENT_SELECT + "where e.id=?", new Object[] { eventId },
                 new EventInstanceRowMapper());
     }
@@ -322,24 +661,15 @@ public class EventDao extends BaseDao {
     }
 
     /**
-     * Purge all events by truncating the table
+     * Purge all events
      * @return
      */
     public int purgeAllEvents(){
-    	final ExtendedJdbcTemplate ejt2 = ejt;
-    	int count = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
-            @Override
-            public Integer doInTransaction(TransactionStatus status) {
-            	int count = ejt2.queryForInt("select count(*) from events", new Object[0], 0);
-                ejt2.update("delete from userEvents");
-                ejt2.update("delete from events");
-                ejt2.update("delete from userComments where commentType=" + UserComment.TYPE_EVENT
-                        + "  and typeKey not in (select id from events)");
-                return count;
-            }
-        });
-    	return count;
+        int count = purgeEvents(null, new Object[0]);
+        deleteOrphanedEventComments();
+        return count;
     }
+
     /**
      * Purge Events Before a given time with a given alarmLevel
      * @param time
@@ -347,24 +677,7 @@ public class EventDao extends BaseDao {
      * @return
      */
     public int purgeEventsBefore(final long time, final int alarmLevel) {
-        // Find a list of event ids with no remaining acknowledgments pending.
-        final ExtendedJdbcTemplate ejt2 = ejt;
-        int count = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
-            @Override
-            public Integer doInTransaction(TransactionStatus status) {
-            	
-                int count = ejt2.update("delete from events where activeTs<? and alarmLevel=?", new Object[] { time, alarmLevel});
-
-                // Delete orphaned user comments.
-                ejt2.update("delete from userComments where commentType=" + UserComment.TYPE_EVENT
-                        + "  and typeKey not in (select id from events)");
-
-                return count;
-            }
-        });
-
-
-        return count;
+        return purgeEvents("activeTs<? and alarmLevel=?", new Object[] { time, alarmLevel });
     }
     
     /**
@@ -374,54 +687,104 @@ public class EventDao extends BaseDao {
      * @return
      */
     public int purgeEventsBefore(final long time, final String typeName) {
-        // Find a list of event ids with no remaining acknowledgments pending.
-        final ExtendedJdbcTemplate ejt2 = ejt;
-        int count = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
-            @Override
-            public Integer doInTransaction(TransactionStatus status) {
-            	
-                int count = ejt2.update("delete from events where activeTs<? and typeName=?", new Object[] { time, typeName});
+        return purgeEvents("activeTs<? and typeName=?", new Object[] { time, typeName });
+    }
+    
+    
+    public int purgeEventsBefore(final long time) {
+        return purgeEvents("activeTs<?", new Object[] { time });
+    }
 
-                // Delete orphaned user comments.
-                ejt2.update("delete from userComments where commentType=" + UserComment.TYPE_EVENT
-                        + "  and typeKey not in (select id from events)");
+    /**
+     * Delete the comments of events that no longer exist
+     * @return the number of comments deleted
+     */
+    public int deleteOrphanedEventComments() {
+        flushEventWrites();
+        return ejt.update("delete from userComments where commentType=" + UserComment.TYPE_EVENT
+                + " and not exists (select 1 from events e where e.id=userComments.typeKey)");
+    }
 
-                return count;
+    /**
+     * Delete the matching events in id order, db.purge.chunkSize at a time with db.purge.chunkWait ms between
+     * chunks. Each chunk is deleted in its own short transaction so the tables are never locked for long, and a
+     * purge that is stopped part way is carried on by the next one.
+     * 
+     * @param condition - on the events table, null for all events
+     * @param args
+     * @return the number of events deleted
+     */
+    private int purgeEvents(String condition, Object[] args) {
+        // Queued events must be in the table to be purged
+        flushEventWrites();
+
+        int chunkSize = Math.max(1, Common.envProps.getInt("db.purge.chunkSize", 1000));
+        int chunkWait = Common.envProps.getInt("db.purge.chunkWait", 0);
+        String select = "select id from events where " + (condition == null ? "" : condition + " and ")
+                + "id>? order by id";
+        Object[] selectArgs = new Object[args.length + 1];
+        System.arraycopy(args, 0, selectArgs, 0, args.length);
+
+        long start = System.currentTimeMillis();
+        int count = 0;
+        int lastId = Integer.MIN_VALUE;
+        while (true) {
+            selectArgs[args.length] = lastId;
+            List<Integer> ids = Common.databaseProxy.doLimitQuery(this, select, selectArgs, new RowMapper<Integer>() {
+                @Override
+                public Integer mapRow(ResultSet rs, int rowNum) throws SQLException {
+                    return rs.getInt(1);
+                }
+            }, chunkSize);
+            if (ids.isEmpty())
+                break;
+            lastId = ids.get(ids.size() - 1);
+            count += deleteEvents(ids);
+
+            if (ids.size() < chunkSize)
+                break;
+            if (chunkWait > 0) {
+                try {
+                    Thread.sleep(chunkWait);
+                }
+                catch (InterruptedException e) {
+                    // no op
+                }
             }
-        });
-
+        }
 
+        if (count > 0) {
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            LOG.info("Purged " + count + " events in " + elapsed + "ms (" + (count * 1000L / elapsed) + "/s)");
+        }
         return count;
     }
-    
-    
-    public int purgeEventsBefore(final long time) {
-        // Find a list of event ids with no remaining acknowledgments pending.
+
+    /**
+     * Delete the events and their comments, their user events are deleted by the foreign key cascade
+     */
+    private int deleteEvents(List<Integer> ids) {
+        final String in = " in (" + createDelimitedList(ids, ",", null) + ")";
         final ExtendedJdbcTemplate ejt2 = ejt;
-        int count = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
+        return getTransactionTemplate().execute(new TransactionCallback<Integer>() {
             @Override
             public Integer doInTransaction(TransactionStatus status) {
-                int count = ejt2.update("delete from events where activeTs<?", new Object[] { time });
-
-                // Delete orphaned user comments.
-                ejt2.update("delete from userComments where commentType=" + UserComment.TYPE_EVENT
-                        + "  and typeKey not in (select id from events)");
-
-                return count;
+                ejt2.update("delete from userComments where commentType=" + UserComment.TYPE_EVENT + " and typeKey"
+                        + in);
+                return ejt2.update("delete from events where id" + in);
             }
         });
-
-
-        return count;
     }
 
     public int getEventCount() {
+        flushEventWrites();
         return ejt.queryForInt("select count(*) from events", null, 0);
     }
 
     public List<EventInstance> search(int eventId, String eventType, String status, int alarmLevel,
             final String[] keywords, long dateFrom, long dateTo, int userId, final Translations translations,
             final int from, final int to, final Date date) {
+        flushEventWrites();
         List<String> where = new ArrayList<String>();
         List<Object> params = new ArrayList<Object>();
 
@@ -620,6 +983,88 @@ public class EventDao extends BaseDao {
                 new EventHandlerRowMapper());
     }
 
+    //
+    // Event handlers of the raise path, all handlers indexed by type name and subtype. Loaded when first used
+    // and dropped whenever a handler is changed.
+    //
+    private static volatile Map<String, List<IndexedEventHandler>> eventHandlerIndex;
+    //Incremented when the index is dropped, so a load that overlaps a change isn't kept
+    private static final AtomicInteger eventHandlerIndexVersion = new AtomicInteger();
+
+    private static final String EVENT_HANDLER_INDEX_SELECT = "select id, xid, alias, data, "
+            + "eventTypeName, eventSubtypeName, eventTypeRef1, eventTypeRef2 from eventHandlers order by id";
+
+    /**
+     * The event handlers of a type from memory, the same as getEventHandlers(EventType). The handlers
+     * are shared by all callers and must not be modified.
+     * 
+     * @param type
+     * @return
+     */
+    public List<EventHandlerVO> getCachedEventHandlers(EventType type) {
+        Map<String, List<IndexedEventHandler>> index = eventHandlerIndex;
+        if (index == null) {
+            int version = eventHandlerIndexVersion.get();
+            index = loadEventHandlerIndex();
+            if (eventHandlerIndexVersion.get() == version)
+                eventHandlerIndex = index;
+        }
+
+        List<IndexedEventHandler> candidates = index.get(eventHandlerKey(type.getEventType(), type.getEventSubtype()));
+        if (candidates == null)
+            return Collections.emptyList();
+        List<EventHandlerVO> result = new ArrayList<EventHandlerVO>(candidates.size());
+        for (IndexedEventHandler h : candidates) {
+            // A ref of 0 matches all, as in the queries
+            if ((h.ref1 == 0 || h.ref1 == type.getReferenceId1()) && (h.ref2 == 0 || h.ref2 == type.getReferenceId2()))
+                result.add(h.handler);
+        }
+        return result;
+    }
+
+    /**
+     * Drop the event handlers held in memory, must be called after any change to the eventHandlers table
+     */
+    public static void clearEventHandlerCache() {
+        eventHandlerIndexVersion.incrementAndGet();
+        eventHandlerIndex = null;
+    }
+
+    private Map<String, List<IndexedEventHandler>> loadEventHandlerIndex() {
+        final Map<String, List<IndexedEventHandler>> index = new HashMap<String, List<IndexedEventHandler>>();
+        final EventHandlerRowMapper mapper = new EventHandlerRowMapper();
+        ejt.query(EVENT_HANDLER_INDEX_SELECT, new RowMapper<Object>() {
+            @Override
+            public Object mapRow(ResultSet rs, int rowNum) throws SQLException {
+                String key = eventHandlerKey(rs.getString(5), rs.getString(6));
+                List<IndexedEventHandler> handlers = index.get(key);
+                if (handlers == null) {
+                    handlers = new ArrayList<IndexedEventHandler>();
+                    index.put(key, handlers);
+                }
+                handlers.add(new IndexedEventHandler(mapper.mapRow(rs, rowNum), rs.getInt(7), rs.getInt(8)));
+                return null;
+            }
+        });
+        return index;
+    }
+
+    private static String eventHandlerKey(String typeName, String subtypeName) {
+        return subtypeName == null ? typeName : typeName + "." + subtypeName;
+    }
+
+    static class IndexedEventHandler {
+        final EventHandlerVO handler;
+        final int ref1;
+        final int ref2;
+
+        IndexedEventHandler(EventHandlerVO handler, int ref1, int ref2) {
+            this.handler = handler;
+            this.ref1 = ref1;
+            this.ref2 = ref2;
+        }
+    }
+
     public EventHandlerVO getEventHandler(int eventHandlerId) {
         return queryForObject(EVENT_HANDLER_SELECT + "where id=?", new Object[] { eventHandlerId },
                 new EventHandlerRowMapper());
@@ -665,6 +1110,7 @@ public class EventDao extends BaseDao {
                     updateEventHandler(handler);
             }
         });
+        clearEventHandlerCache();
         return getEventHandler(handler.getId());
     }
 
@@ -688,6 +1134,7 @@ public class EventDao extends BaseDao {
     public void deleteEventHandler(final int handlerId) {
         EventHandlerVO handler = getEventHandler(handlerId);
         ejt.update("delete from eventHandlers where id=?", new Object[] { handlerId });
+        clearEventHandlerCache();
         AuditEventType.raiseDeletedEvent(AuditEventType.TYPE_EVENT_HANDLER, handler);
     }
 
@@ -703,6 +1150,7 @@ public class EventDao extends BaseDao {
             + "  and e.ackTs is null";
 
     public boolean toggleSilence(int eventId, int userId) {
+        flushEventWrites();
         String result = ejt.queryForObject(SILENCED_SELECT, new Object[] { eventId, userId }, String.class, null);
         if (result == null)
             return true;
@@ -714,6 +1162,7 @@ public class EventDao extends BaseDao {
     }
 
     public int getHighestUnsilencedAlarmLevel(int userId) {
+        flushEventWrites();
         return ejt.queryForInt("select max(e.alarmLevel) from userEvents u " + "  join events e on u.eventId=e.id "
                 + "where u.silenced=? and u.userId=?", new Object[] { boolToChar(false), userId }, 0);
     }
@@ -14,10 +14,17 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import net.jazdw.rql.parser.ASTNode;
+
 import org.apache.commons.logging.LogFactory;
 import org.springframework.jdbc.core.RowMapper;
 
+import com.infiniteautomation.mango.db.query.BaseSqlQuery;
+import com.infiniteautomation.mango.db.query.SortOption;
+import com.infiniteautomation.mango.db.query.StreamableSqlQuery;
+import com.infiniteautomation.mango.db.query.appender.SQLColumnQueryAppender;
 import com.serotonin.ShouldNeverHappenException;
+import com.serotonin.db.MappedRowCallback;
 import com.serotonin.db.pair.IntStringPair;
 import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.DeltamationCommon;
@@ -89,6 +96,64 @@ public class EventInstanceDao extends AbstractDao<EventInstanceVO> {
 		return new EventInstanceVO();
 	}
 
+	//
+	// Events and user events can be queued by the event write behind, every read saves them first
+	//
+	@Override
+	public EventInstanceVO get(int id) {
+		EventDao.flushEventWrites();
+		return super.get(id);
+	}
+
+	@Override
+	public List<EventInstanceVO> getAll() {
+		EventDao.flushEventWrites();
+		return super.getAll();
+	}
+
+	@Override
+	public int count() {
+		EventDao.flushEventWrites();
+		return super.count();
+	}
+
+	@Override
+	public List<EventInstanceVO> getRange(int offset, int limit) {
+		EventDao.flushEventWrites();
+		return super.getRange(offset, limit);
+	}
+
+	@Override
+	public List<EventInstanceVO> getAllSorted(String column, boolean ascending) {
+		EventDao.flushEventWrites();
+		return super.getAllSorted(column, ascending);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.serotonin.m2m2.db.dao.AbstractDao#dojoQuery(java.lang.String, java.lang.String, java.util.Map, java.util.List, java.lang.Integer, java.lang.Integer, boolean, com.serotonin.m2m2.db.dao.DojoQueryCallback, com.serotonin.m2m2.db.dao.DojoQueryCallback)
+	 */
+	@Override
+	protected ResultsWithTotal dojoQuery(String selectSql, String countSql, Map<String, String> query,
+			List<SortOption> sort, Integer offset, Integer limit, boolean or,
+			DojoQueryCallback<EventInstanceVO> onKeepCallback, DojoQueryCallback<EventInstanceVO> onFilterCallback) {
+		EventDao.flushEventWrites();
+		return super.dojoQuery(selectSql, countSql, query, sort, offset, limit, or, onKeepCallback, onFilterCallback);
+	}
+
+	@Override
+	public StreamableSqlQuery<EventInstanceVO> createQuery(ASTNode root,
+			MappedRowCallback<EventInstanceVO> selectCallback, MappedRowCallback<Long> countCallback,
+			Map<String, String> modelMap, Map<String, SQLColumnQueryAppender> modifiers) {
+		EventDao.flushEventWrites();
+		return super.createQuery(root, selectCallback, countCallback, modelMap, modifiers);
+	}
+
+	@Override
+	public BaseSqlQuery<EventInstanceVO> createQuery(ASTNode root) {
+		EventDao.flushEventWrites();
+		return super.createQuery(root);
+	}
+
 
 	/* (non-Javadoc)
 	 * @see com.serotonin.m2m2.db.dao.AbstractBasicDao#getPropertyTypeMap()
@@ -375,6 +440,7 @@ public class EventInstanceDao extends AbstractDao<EventInstanceVO> {
 	 * @return
 	 */
 	public EventInstanceVO getHighestUnsilencedEvent(int userId, int level) {
+		EventDao.flushEventWrites();
         return ejt.queryForObject(SELECT_ALL
                 + "where ue.silenced=? and ue.userId=? and evt.alarmLevel=? ORDER BY evt.activeTs DESC LIMIT 1", new Object[] { boolToChar(false), userId, level },getRowMapper(), null);
 	}
@@ -384,6 +450,7 @@ public class EventInstanceDao extends AbstractDao<EventInstanceVO> {
 	 * @return
 	 */
 	public List<EventInstanceVO> getUnsilencedEvents(int userId) {
+		EventDao.flushEventWrites();
         return ejt.query(SELECT_ALL
                 + "where ue.silenced=? and ue.userId=?", new Object[] { boolToChar(false), userId },getRowMapper());
 
@@ -421,6 +488,7 @@ public class EventInstanceDao extends AbstractDao<EventInstanceVO> {
 	 * @return
 	 */
 	public int countUnsilencedEvents(int userId, int level) {
+		EventDao.flushEventWrites();
 		//return ejt.queryForInt("SELECT COUNT(*) FROM events AS evt left join userEvents ue on evt.id=ue.eventId where ue.silenced=? and evt.ackUserId=? and evt.alarmLevel=?", new Object[] { boolToChar(false), userId, level }, 0);
 		return ejt.queryForInt(COUNT + " where ue.silenced=? and ue.userId=? and evt.alarmLevel=?", new Object[] { boolToChar(false), userId, level }, 0);
 	}    
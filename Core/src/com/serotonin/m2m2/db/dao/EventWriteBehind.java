@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Queue of event writes that are saved to the database in batches, so raising an event doesn't wait on
+ * SQL inserts. Events get their ids before they are queued so they can be used right away.
+ *
+ * The writes of a batch are saved events first, then user events, then updates in the order they were
+ * queued. A write is only ever queued after the writes it depends on so this keeps every update after
+ * the insert of its event. Batches are written one at a time.
+ *
+ * The queue is bounded, when it is full the callers wait for the writer to catch up.
+ */
+abstract class EventWriteBehind {
+
+    private static final Log LOG = LogFactory.getLog(EventWriteBehind.class);
+
+    private final LinkedBlockingQueue<Object> queue;
+    private final int batchSize;
+    private final long flushInterval;
+    //True from when the writer is scheduled until it finds the queue empty
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    //Held while a batch is taken from the queue and written
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * @param capacity - max writes queued before callers wait
+     * @param batchSize - max writes saved at once
+     * @param flushInterval - ms to wait for more writes before saving the first one
+     */
+    EventWriteBehind(int capacity, int batchSize, long flushInterval){
+        this.queue = new LinkedBlockingQueue<Object>(capacity);
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Queue the insert of an event
+     * @param args - the insert parameters, starting with the id
+     */
+    void insertEvent(Object[] args){
+        add(new EventInsert(args));
+    }
+
+    void insertUserEvents(int eventId, List<Integer> userIds, boolean silenced){
+        add(new UserEventsInsert(eventId, userIds, silenced));
+    }
+
+    void update(String sql, Object[] args, int[] types){
+        add(new Update(sql, args, types));
+    }
+
+    /**
+     * @return the number of writes waiting
+     */
+    int size(){
+        return queue.size();
+    }
+
+    /**
+     * Save everything queued so far, on the calling thread
+     */
+    void flush(){
+        while(drain() > 0)
+            ;
+    }
+
+    /**
+     * Save until the queue is empty, called by the scheduled writer
+     */
+    void writeQueued(){
+        while(true){
+            if(drain() == 0){
+                //Release the writer, then re-check for a write that raced with the release
+                scheduled.set(false);
+                if(queue.isEmpty() || !scheduled.compareAndSet(false, true))
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Run writeQueued after the delay
+     * @param delay - ms
+     */
+    protected abstract void schedule(long delay);
+
+    /**
+     * Save a batch, all or nothing
+     */
+    protected abstract void write(List<EventInsert> events, List<UserEventsInsert> userEvents, List<Update> updates);
+
+    private void add(Object write){
+        try{
+            queue.put(write);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            //Save it now, after what is already queued
+            writeLock.lock();
+            try{
+                flush();
+                write(Collections.singletonList(write));
+            }finally{
+                writeLock.unlock();
+            }
+            return;
+        }
+
+        if(!scheduled.get() && scheduled.compareAndSet(false, true)){
+            try{
+                schedule(flushInterval);
+            }catch(RuntimeException e){
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private int drain(){
+        writeLock.lock();
+        try{
+            List<Object> batch = new ArrayList<Object>(batchSize);
+            queue.drainTo(batch, batchSize);
+            if(!batch.isEmpty())
+                write(batch);
+            return batch.size();
+        }finally{
+            writeLock.unlock();
+        }
+    }
+
+    private void write(List<Object> batch){
+        List<EventInsert> events = new ArrayList<EventInsert>();
+        List<UserEventsInsert> userEvents = new ArrayList<UserEventsInsert>();
+        List<Update> updates = new ArrayList<Update>();
+        for(Object write : batch){
+            if(write instanceof EventInsert)
+                events.add((EventInsert)write);
+            else if(write instanceof UserEventsInsert)
+                userEvents.add((UserEventsInsert)write);
+            else
+                updates.add((Update)write);
+        }
+
+        try{
+            write(events, userEvents, updates);
+        }catch(RuntimeException e){
+            if(batch.size() == 1){
+                LOG.error("Error saving event write, it is lost.", e);
+                return;
+            }
+            //Don't let one bad write lose the others
+            LOG.warn("Error saving " + batch.size() + " event writes, saving them one at a time.", e);
+            List<Object> ordered = new ArrayList<Object>(batch.size());
+            ordered.addAll(events);
+            ordered.addAll(userEvents);
+            ordered.addAll(updates);
+            for(Object write : ordered)
+                write(Collections.singletonList(write));
+        }
+    }
+
+    static class EventInsert {
+        final Object[] args;
+
+        EventInsert(Object[] args){
+            this.args = args;
+        }
+    }
+
+    static class UserEventsInsert {
+        final int eventId;
+        final List<Integer> userIds;
+        final boolean silenced;
+
+        UserEventsInsert(int eventId, List<Integer> userIds, boolean silenced){
+            this.eventId = eventId;
+            this.userIds = userIds;
+            this.silenced = silenced;
+        }
+    }
+
+    static class Update {
+        final String sql;
+        final Object[] args;
+        final int[] types;
+
+        Update(String sql, Object[] args, int[] types){
+            this.sql = sql;
+            this.args = args;
+            this.types = types;
+        }
+    }
+}
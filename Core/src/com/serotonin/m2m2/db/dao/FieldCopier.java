@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.measure.unit.Unit;
+
+import com.serotonin.ShouldNeverHappenException;
+import com.serotonin.util.SerializationHelper;
+
+/**
+ * Deep copies of the decoded parts of a VO, e.g. the point locators and renderers of modules, made
+ * field by field instead of through serialization. The fields of a class are looked up once.
+ *
+ * Strings, boxed primitives, enums and units can't be changed and are shared. Arrays and the plain
+ * java.util collections are copied element by element. Other objects are created with their no
+ * argument constructor and have every field copied, those without one and the other JDK classes
+ * fall back to serialization.
+ */
+class FieldCopier {
+
+    //Marks the classes that are copied through serialization
+    private static final ClassCopier SERIALIZE = new ClassCopier(null, null);
+
+    private final Map<Class<?>, ClassCopier> copiers = new ConcurrentHashMap<>();
+
+    /**
+     * @param o - the object to copy, may be null
+     * @return a copy that shares nothing that can be changed with the object
+     */
+    @SuppressWarnings("unchecked")
+    <T> T copy(T o){
+        return (T)copy(o, new IdentityHashMap<Object, Object>());
+    }
+
+    private Object copy(Object o, IdentityHashMap<Object, Object> copies){
+        if(o == null || isImmutable(o.getClass()))
+            return o;
+        //Keep objects that are referenced twice, or by themselves, shared in the copy
+        Object copy = copies.get(o);
+        if(copy != null)
+            return copy;
+
+        Class<?> clazz = o.getClass();
+        if(clazz.isArray())
+            return copyArray(o, copies);
+        if(o instanceof Collection && !(o instanceof SortedSet))
+            return copyCollection((Collection<?>)o, copies);
+        if(o instanceof Map && !(o instanceof SortedMap))
+            return copyMap((Map<?, ?>)o, copies);
+
+        ClassCopier copier = getCopier(clazz);
+        if(copier != SERIALIZE)
+            copy = copier.newInstance();
+        if(copy == null)
+            return serialize(o, copies);
+
+        copies.put(o, copy);
+        try{
+            for(Field field : copier.fields)
+                field.set(copy, copy(field.get(o), copies));
+        }catch(IllegalAccessException e){
+            throw new ShouldNeverHappenException(e);
+        }
+        return copy;
+    }
+
+    private Object copyArray(Object array, IdentityHashMap<Object, Object> copies){
+        int length = Array.getLength(array);
+        Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+        copies.put(array, copy);
+        if(array.getClass().getComponentType().isPrimitive())
+            System.arraycopy(array, 0, copy, 0, length);
+        else{
+            for(int i=0; i<length; i++)
+                Array.set(copy, i, copy(Array.get(array, i), copies));
+        }
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object copyCollection(Collection<?> collection, IdentityHashMap<Object, Object> copies){
+        Collection<Object> copy = (Collection<Object>)newCollection(collection);
+        if(copy == null)
+            return serialize(collection, copies);
+        copies.put(collection, copy);
+        for(Object element : collection)
+            copy.add(copy(element, copies));
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object copyMap(Map<?, ?> map, IdentityHashMap<Object, Object> copies){
+        Map<Object, Object> copy = (Map<Object, Object>)newCollection(map);
+        if(copy == null)
+            return serialize(map, copies);
+        copies.put(map, copy);
+        for(Map.Entry<?, ?> entry : map.entrySet())
+            copy.put(copy(entry.getKey(), copies), copy(entry.getValue(), copies));
+        return copy;
+    }
+
+    /**
+     * @return an empty instance of the same class, null if it has no public no argument constructor,
+     *         like the unmodifiable views and Arrays.asList
+     */
+    private Object newCollection(Object collection){
+        try{
+            return collection.getClass().getConstructor().newInstance();
+        }catch(ReflectiveOperationException | SecurityException e){
+            return null;
+        }
+    }
+
+    private Object serialize(Object o, IdentityHashMap<Object, Object> copies){
+        Object copy = o;
+        //Not part of the serialized form either, nothing to copy it with
+        if(o instanceof Serializable)
+            copy = SerializationHelper.readObjectInContextFromArray(SerializationHelper.writeObjectToArray(o));
+        copies.put(o, copy);
+        return copy;
+    }
+
+    private ClassCopier getCopier(Class<?> clazz){
+        ClassCopier copier = copiers.get(clazz);
+        if(copier == null){
+            copier = createCopier(clazz);
+            copiers.put(clazz, copier);
+        }
+        return copier;
+    }
+
+    private static ClassCopier createCopier(Class<?> clazz){
+        //The fields of the JDK classes aren't ours to set
+        String name = clazz.getName();
+        if(name.startsWith("java.") || name.startsWith("javax."))
+            return SERIALIZE;
+        //Nor those without a no argument constructor, or with fields that can't be made accessible
+        try{
+            Constructor<?> constructor = clazz.getDeclaredConstructor();
+            constructor.setAccessible(true);
+
+            List<Field> fields = new ArrayList<>();
+            for(Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()){
+                for(Field field : c.getDeclaredFields()){
+                    if(Modifier.isStatic(field.getModifiers()))
+                        continue;
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+            return new ClassCopier(constructor, fields.toArray(new Field[fields.size()]));
+        }catch(NoSuchMethodException | RuntimeException e){
+            return SERIALIZE;
+        }
+    }
+
+    private static boolean isImmutable(Class<?> clazz){
+        return clazz == String.class || clazz == Integer.class || clazz == Long.class || clazz == Double.class
+                || clazz == Float.class || clazz == Boolean.class || clazz == Short.class || clazz == Byte.class
+                || clazz == Character.class || clazz == BigDecimal.class || clazz == BigInteger.class
+                || clazz == Class.class || Enum.class.isAssignableFrom(clazz) || Unit.class.isAssignableFrom(clazz);
+    }
+
+    private static class ClassCopier {
+        final Constructor<?> constructor;
+        final Field[] fields;
+
+        ClassCopier(Constructor<?> constructor, Field[] fields){
+            this.constructor = constructor;
+            this.fields = fields;
+        }
+
+        /**
+         * @return the new instance, null if the constructor failed
+         */
+        Object newInstance(){
+            try{
+                return constructor.newInstance();
+            }catch(ReflectiveOperationException | RuntimeException e){
+                return null;
+            }
+        }
+    }
+}
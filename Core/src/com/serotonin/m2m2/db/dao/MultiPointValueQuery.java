@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.serotonin.db.MappedRowCallback;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.rt.dataImage.IdPointValueTime;
+import com.serotonin.m2m2.rt.maint.MangoThreadFactory;
+
+/**
+ * Time ordered query over the values of many points, run as a k-way merge of one ordered cursor per point.
+ *
+ * Each cursor reads its point in pages using the (dataPointId, ts) index so the database never has to
+ * sort the combined result. The next page of every cursor is fetched in the background while the current
+ * one is merged, with at most db.multiPointQuery.threads queries running at once. Values with the same
+ * time are returned in the order of the point ids.
+ */
+class MultiPointValueQuery {
+
+    private static volatile ThreadPoolExecutor executor;
+
+    private final PointValueDaoSQL dao;
+    private final long to;
+    private final int pageSize;
+
+    MultiPointValueQuery(PointValueDaoSQL dao, long to){
+        this(dao, to, Math.max(2, Common.envProps.getInt("db.multiPointQuery.pageSize", 1000)));
+    }
+
+    MultiPointValueQuery(PointValueDaoSQL dao, long to, int pageSize){
+        this.dao = dao;
+        this.to = to;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Stream the values of the points from the start time in time order
+     * @param pointIds - a point listed more than once is only read once
+     * @param from
+     * @param callback
+     */
+    void execute(List<Integer> pointIds, long from, MappedRowCallback<IdPointValueTime> callback){
+        pointIds = new ArrayList<Integer>(new LinkedHashSet<Integer>(pointIds));
+        List<Cursor> cursors = new ArrayList<Cursor>(pointIds.size());
+        try{
+            for(int i=0; i<pointIds.size(); i++)
+                cursors.add(new Cursor(pointIds.get(i), i, from));
+
+            PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(Math.max(1, cursors.size()));
+            for(Cursor cursor : cursors){
+                if(cursor.advance())
+                    heap.add(cursor);
+            }
+
+            int rowNum = 0;
+            while(!heap.isEmpty()){
+                Cursor cursor = heap.poll();
+                callback.row(cursor.current(), rowNum++);
+                if(cursor.advance())
+                    heap.add(cursor);
+            }
+        }finally{
+            for(Cursor cursor : cursors)
+                cursor.cancel();
+        }
+    }
+
+    /**
+     * Read one page of a point starting at a time
+     */
+    Page fetch(int pointId, long from){
+        List<IdPointValueTime> values = query(pointId, from, to, pageSize);
+        if(values.size() < pageSize)
+            return new Page(values);
+
+        //The page may have ended part way through the values at its last time, leave those for the next page
+        long lastTime = values.get(values.size() - 1).getTime();
+        int end = values.size();
+        while((end > 0)&&(values.get(end - 1).getTime() == lastTime))
+            end--;
+        if(end > 0)
+            return new Page(values.subList(0, end), lastTime);
+
+        //The whole page has one time, read every value at that time and carry on after it
+        return new Page(query(pointId, lastTime, lastTime + 1, 0), lastTime + 1);
+    }
+
+    /**
+     * Values of a point in time order
+     * @param limit 0 for no limit
+     */
+    protected List<IdPointValueTime> query(int pointId, long from, long to, int limit){
+        return dao.getIdPointValues(pointId, from, to, limit);
+    }
+
+    private Future<Page> submit(final int pointId, final long from){
+        return getExecutor().submit(new Callable<Page>(){
+            @Override
+            public Page call() throws Exception {
+                return fetch(pointId, from);
+            }
+        });
+    }
+
+    private static ThreadPoolExecutor getExecutor(){
+        if(executor == null){
+            synchronized(MultiPointValueQuery.class){
+                if(executor == null){
+                    int threads = Math.max(1, Common.envProps.getInt("db.multiPointQuery.threads", 4));
+                    ThreadPoolExecutor e = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new MangoThreadFactory("pointValueQuery", Thread.NORM_PRIORITY));
+                    e.allowCoreThreadTimeOut(true);
+                    executor = e;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Values of a page and where the page after it starts
+     */
+    static class Page {
+        final List<IdPointValueTime> values;
+        final boolean last;
+        final long nextFrom;
+
+        Page(List<IdPointValueTime> values){
+            this.values = values;
+            this.last = true;
+            this.nextFrom = 0;
+        }
+
+        Page(List<IdPointValueTime> values, long nextFrom){
+            this.values = values;
+            this.last = false;
+            this.nextFrom = nextFrom;
+        }
+    }
+
+    /**
+     * Ordered cursor over the values of one point
+     */
+    class Cursor implements Comparable<Cursor> {
+        final int pointId;
+        final int order;
+        List<IdPointValueTime> values;
+        int position = -1;
+        Future<Page> next;
+
+        Cursor(int pointId, int order, long from){
+            this.pointId = pointId;
+            this.order = order;
+            this.next = submit(pointId, from);
+        }
+
+        /**
+         * Move to the next value
+         * @return false when there are no more
+         */
+        boolean advance(){
+            position++;
+            while((values == null)||(position >= values.size())){
+                if(next == null)
+                    return false;
+                Page page = get(next);
+                values = page.values;
+                position = 0;
+                //Start on the page after while this one is merged
+                next = page.last ? null : submit(pointId, page.nextFrom);
+            }
+            return true;
+        }
+
+        IdPointValueTime current(){
+            return values.get(position);
+        }
+
+        void cancel(){
+            if(next != null)
+                next.cancel(false);
+        }
+
+        @Override
+        public int compareTo(Cursor that) {
+            long thisTime = current().getTime();
+            long thatTime = that.current().getTime();
+            if(thisTime != thatTime)
+                return thisTime < thatTime ? -1 : 1;
+            return order - that.order;
+        }
+    }
+
+    private static Page get(Future<Page> future){
+        try{
+            return future.get();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for point values", e);
+        }catch(ExecutionException e){
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
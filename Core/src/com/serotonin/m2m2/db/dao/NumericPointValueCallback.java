@@ -0,0 +1,14 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+/**
+ * Primitive row callback for numeric point value queries, the values are
+ * handed over without creating a PointValueTime for each row.
+ */
+public interface NumericPointValueCallback {
+
+    public void row(long time, double value, int rowNum);
+
+}
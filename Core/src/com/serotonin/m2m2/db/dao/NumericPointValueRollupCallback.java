@@ -0,0 +1,16 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueRollup;
+
+/**
+ * Callback for queries that mix raw numeric values with pre-aggregated rollups, both are
+ * handed over in time order.
+ */
+public interface NumericPointValueRollupCallback extends NumericPointValueCallback {
+
+    public void rollup(NumericPointValueRollup rollup);
+
+}
@@ -0,0 +1,348 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.serotonin.db.MappedRowCallback;
+import com.serotonin.m2m2.db.dao.PointValueQueryCache.Key;
+import com.serotonin.m2m2.db.dao.PointValueQueryCache.Ticket;
+import com.serotonin.m2m2.db.dao.PointValueQueryCache.Window;
+import com.serotonin.m2m2.rt.dataImage.IdPointValueTime;
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueBatch;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.SetPointSource;
+import com.serotonin.m2m2.vo.pair.LongPair;
+
+/**
+ *
+ * Point Value Dao that answers repeated time window queries from the shared PointValueQueryCache,
+ * the cached queries are getPointValuesBetween, getPointValueBefore, getPointValueAt and getPointValueAfter.
+ * Everything else goes straight to the wrapped dao.
+ *
+ * The cache is kept coherent by the writes and deletes of the PointValueDaoSQL so only wrap that dao.
+ */
+public class PointValueDaoCache implements BulkPointValueDao{
+
+    private final PointValueDao dao;
+    private final PointValueQueryCache cache;
+
+    public PointValueDaoCache(PointValueDao dao){
+        this(dao, PointValueQueryCache.instance());
+    }
+
+    PointValueDaoCache(PointValueDao dao, PointValueQueryCache cache){
+        this.dao = dao;
+        this.cache = cache;
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#savePointValueSync(int, com.serotonin.m2m2.rt.dataImage.PointValueTime, com.serotonin.m2m2.rt.dataImage.SetPointSource)
+     */
+    @Override
+    public PointValueTime savePointValueSync(int pointId, PointValueTime pointValue, SetPointSource source) {
+        return dao.savePointValueSync(pointId, pointValue, source);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#savePointValueAsync(int, com.serotonin.m2m2.rt.dataImage.PointValueTime, com.serotonin.m2m2.rt.dataImage.SetPointSource)
+     */
+    @Override
+    public void savePointValueAsync(int pointId, PointValueTime pointValue, SetPointSource source) {
+        dao.savePointValueAsync(pointId, pointValue, source);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getPointValues(int, long)
+     */
+    @Override
+    public List<PointValueTime> getPointValues(int pointId, long since) {
+        //Open ended, any new value changes the result
+        return dao.getPointValues(pointId, since);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getPointValuesBetween(int, long, long)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<PointValueTime> getPointValuesBetween(int pointId, long from, long to) {
+        Key key = new Key(PointValueQueryCache.BETWEEN, pointId, from, to);
+        Window window = cache.get(key);
+        if(window != null)
+            return new ArrayList<PointValueTime>((List<PointValueTime>)window.result);
+
+        Ticket ticket = cache.begin(key);
+        List<PointValueTime> values;
+        try{
+            values = dao.getPointValuesBetween(pointId, from, to);
+        }catch(RuntimeException e){
+            cache.done(ticket);
+            throw e;
+        }
+        cache.put(ticket, PointValueQueryCache.copy(values), values.size());
+        return values;
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getLatestPointValues(int, int)
+     */
+    @Override
+    public List<PointValueTime> getLatestPointValues(int pointId, int limit) {
+        return dao.getLatestPointValues(pointId, limit);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getLatestPointValues(int, int, long)
+     */
+    @Override
+    public List<PointValueTime> getLatestPointValues(int pointId, int limit, long before) {
+        return dao.getLatestPointValues(pointId, limit, before);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getLatestPointValue(int)
+     */
+    @Override
+    public PointValueTime getLatestPointValue(int pointId) {
+        return dao.getLatestPointValue(pointId);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.BulkPointValueDao#getLatestPointValues(java.util.List)
+     */
+    @Override
+    public Map<Integer, PointValueTime> getLatestPointValues(List<Integer> pointIds) {
+        return BulkPointValues.getLatestPointValues(dao, pointIds);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getPointValueBefore(int, long)
+     */
+    @Override
+    public PointValueTime getPointValueBefore(int pointId, long time) {
+        Key key = new Key(PointValueQueryCache.BEFORE, pointId, time, time);
+        Window window = cache.get(key);
+        if(window != null)
+            return (PointValueTime)window.result;
+
+        Ticket ticket = cache.begin(key);
+        PointValueTime value;
+        try{
+            value = dao.getPointValueBefore(pointId, time);
+        }catch(RuntimeException e){
+            cache.done(ticket);
+            throw e;
+        }
+        cache.put(ticket, value, 1);
+        return value;
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getPointValueAfter(int, long)
+     */
+    @Override
+    public PointValueTime getPointValueAfter(int pointId, long time) {
+        Key key = new Key(PointValueQueryCache.AFTER, pointId, time, time);
+        Window window = cache.get(key);
+        if(window != null)
+            return (PointValueTime)window.result;
+
+        Ticket ticket = cache.begin(key);
+        PointValueTime value;
+        try{
+            value = dao.getPointValueAfter(pointId, time);
+        }catch(RuntimeException e){
+            cache.done(ticket);
+            throw e;
+        }
+        cache.put(ticket, value, 1);
+        return value;
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getPointValueAt(int, long)
+     */
+    @Override
+    public PointValueTime getPointValueAt(int pointId, long time) {
+        Key key = new Key(PointValueQueryCache.AT, pointId, time, time);
+        Window window = cache.get(key);
+        if(window != null)
+            return (PointValueTime)window.result;
+
+        Ticket ticket = cache.begin(key);
+        PointValueTime value;
+        try{
+            value = dao.getPointValueAt(pointId, time);
+        }catch(RuntimeException e){
+            cache.done(ticket);
+            throw e;
+        }
+        cache.put(ticket, value, 1);
+        return value;
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getPointValuesBetween(int, long, long, com.serotonin.db.MappedRowCallback)
+     */
+    @Override
+    public void getPointValuesBetween(int pointId, long from, long to, MappedRowCallback<PointValueTime> callback) {
+        dao.getPointValuesBetween(pointId, from, to, callback);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getPointValuesBetween(java.util.List, long, long, com.serotonin.db.MappedRowCallback)
+     */
+    @Override
+    public void getPointValuesBetween(List<Integer> pointIds, long from, long to,
+            MappedRowCallback<IdPointValueTime> callback) {
+        dao.getPointValuesBetween(pointIds, from, to, callback);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.BulkPointValueDao#getNumericPointValuesBetween(int, long, long, com.serotonin.m2m2.db.dao.NumericPointValueCallback)
+     */
+    @Override
+    public void getNumericPointValuesBetween(int pointId, long from, long to, NumericPointValueCallback callback) {
+        BulkPointValues.getNumericPointValuesBetween(dao, pointId, from, to, callback);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.BulkPointValueDao#getNumericPointValuesBetween(int, long, long)
+     */
+    @Override
+    public NumericPointValueBatch getNumericPointValuesBetween(int pointId, long from, long to) {
+        return BulkPointValues.getNumericPointValuesBetween(dao, pointId, from, to);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#deletePointValuesBefore(int, long)
+     */
+    @Override
+    public long deletePointValuesBefore(int pointId, long time) {
+        return dao.deletePointValuesBefore(pointId, time);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.BulkPointValueDao#deletePointValuesBefore(java.util.List, long)
+     */
+    @Override
+    public long deletePointValuesBefore(List<Integer> pointIds, long time) {
+        return BulkPointValues.deletePointValuesBefore(dao, pointIds, time);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#deletePointValues(int)
+     */
+    @Override
+    public long deletePointValues(int pointId) {
+        return dao.deletePointValues(pointId);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#deleteAllPointData()
+     */
+    @Override
+    public long deleteAllPointData() {
+        return dao.deleteAllPointData();
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#deleteOrphanedPointValues()
+     */
+    @Override
+    public long deleteOrphanedPointValues() {
+        return dao.deleteOrphanedPointValues();
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#deleteOrphanedPointValueAnnotations()
+     */
+    @Override
+    public void deleteOrphanedPointValueAnnotations() {
+        dao.deleteOrphanedPointValueAnnotations();
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#dateRangeCount(int, long, long)
+     */
+    @Override
+    public long dateRangeCount(int pointId, long from, long to) {
+        return dao.dateRangeCount(pointId, from, to);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getInceptionDate(int)
+     */
+    @Override
+    public long getInceptionDate(int pointId) {
+        return dao.getInceptionDate(pointId);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getStartTime(java.util.List)
+     */
+    @Override
+    public long getStartTime(List<Integer> pointIds) {
+        return dao.getStartTime(pointIds);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getEndTime(java.util.List)
+     */
+    @Override
+    public long getEndTime(List<Integer> pointIds) {
+        return dao.getEndTime(pointIds);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getStartAndEndTime(java.util.List)
+     */
+    @Override
+    public LongPair getStartAndEndTime(List<Integer> pointIds) {
+        return dao.getStartAndEndTime(pointIds);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#getFiledataIds(int)
+     */
+    @Override
+    public List<Long> getFiledataIds(int pointId) {
+        return dao.getFiledataIds(pointId);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#deletePointValuesWithMismatchedType(int, int)
+     */
+    @Override
+    public long deletePointValuesWithMismatchedType(int id, int dataTypeId) {
+        return dao.deletePointValuesWithMismatchedType(id, dataTypeId);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#updatePointValueAsync(int, com.serotonin.m2m2.rt.dataImage.PointValueTime, com.serotonin.m2m2.rt.dataImage.SetPointSource)
+     */
+    @Override
+    public void updatePointValueAsync(int dataPointId, PointValueTime pvt, SetPointSource source) {
+        dao.updatePointValueAsync(dataPointId, pvt, source);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#updatePointValueSync(int, com.serotonin.m2m2.rt.dataImage.PointValueTime, com.serotonin.m2m2.rt.dataImage.SetPointSource)
+     */
+    @Override
+    public PointValueTime updatePointValueSync(int dataPointId, PointValueTime pvt, SetPointSource source) {
+        return dao.updatePointValueSync(dataPointId, pvt, source);
+    }
+
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.db.dao.PointValueDao#deletePointValue(int, long)
+     */
+    @Override
+    public long deletePointValue(int dataPointId, long ts) {
+        return dao.deletePointValue(dataPointId, ts);
+    }
+}
@@ -5,12 +5,14 @@
 package com.serotonin.m2m2.db.dao;
 
 import java.util.List;
+import java.util.Map;
 
 import org.perf4j.StopWatch;
 import org.perf4j.log4j.Log4JStopWatch;
 
 import com.serotonin.db.MappedRowCallback;
 import com.serotonin.m2m2.rt.dataImage.IdPointValueTime;
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueBatch;
 import com.serotonin.m2m2.rt.dataImage.PointValueTime;
 import com.serotonin.m2m2.rt.dataImage.SetPointSource;
 import com.serotonin.m2m2.vo.pair.LongPair;
@@ -27,7 +29,7 @@ import com.serotonin.m2m2.vo.pair.LongPair;
  * @author Terry Packer
  *
  */
-public class PointValueDaoMetrics implements PointValueDao{
+public class PointValueDaoMetrics implements BulkPointValueDao{
 
 	private PointValueDao dao;
 	
@@ -119,6 +121,18 @@ public class PointValueDaoMetrics implements PointValueDao{
     	return value;
 	}
 
+	/* (non-Javadoc)
+	 * @see com.serotonin.m2m2.db.dao.BulkPointValueDao#getLatestPointValues(java.util.List)
+	 */
+	@Override
+	public Map<Integer, PointValueTime> getLatestPointValues(List<Integer> pointIds) {
+		StopWatch stopWatch = new Log4JStopWatch();
+		stopWatch.start();
+		Map<Integer, PointValueTime> values = BulkPointValues.getLatestPointValues(dao, pointIds);
+		stopWatch.stop("getLatestPointValues(pointIds) (" + pointIds.size() + " points){" + values.size() +"}");
+		return values;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.serotonin.m2m2.db.dao.PointValueDao#getPointValueBefore(int, long)
 	 */
@@ -187,6 +201,30 @@ public class PointValueDaoMetrics implements PointValueDao{
 		
 	}
 
+	/* (non-Javadoc)
+	 * @see com.serotonin.m2m2.db.dao.BulkPointValueDao#getNumericPointValuesBetween(int, long, long, com.serotonin.m2m2.db.dao.NumericPointValueCallback)
+	 */
+	@Override
+	public void getNumericPointValuesBetween(int pointId, long from, long to,
+			NumericPointValueCallback callback) {
+		StopWatch stopWatch = new Log4JStopWatch();
+		stopWatch.start();
+		BulkPointValues.getNumericPointValuesBetween(dao,pointId,from,to,callback);
+		stopWatch.stop("getNumericPointValuesBetween(pointId,from,to,callback) (" + pointId + ", " + from + ", " + to + ", " + callback.toString() + ")");
+	}
+
+	/* (non-Javadoc)
+	 * @see com.serotonin.m2m2.db.dao.BulkPointValueDao#getNumericPointValuesBetween(int, long, long)
+	 */
+	@Override
+	public NumericPointValueBatch getNumericPointValuesBetween(int pointId, long from, long to) {
+		StopWatch stopWatch = new Log4JStopWatch();
+		stopWatch.start();
+		NumericPointValueBatch values = BulkPointValues.getNumericPointValuesBetween(dao,pointId,from,to);
+		stopWatch.stop("getNumericPointValuesBetween(pointId, from, to) (" + pointId + ", " + from + ", " + to + "){" + values.size() + "}");
+		return values;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.serotonin.m2m2.db.dao.PointValueDao#deletePointValuesBefore(int, long)
 	 */
@@ -200,6 +238,25 @@ public class PointValueDaoMetrics implements PointValueDao{
 
 	}
 
+	/* (non-Javadoc)
+	 * @see com.serotonin.m2m2.db.dao.BulkPointValueDao#deletePointValuesBefore(java.util.List, long)
+	 */
+	@Override
+	public long deletePointValuesBefore(List<Integer> pointIds, long time) {
+		StopWatch stopWatch = new Log4JStopWatch();
+		stopWatch.start();
+		long value = BulkPointValues.deletePointValuesBefore(dao, pointIds, time);
+		String sqlIn = "[";
+		for(int i=0; i<pointIds.size(); i++){
+			sqlIn += pointIds.get(i);
+			if(i < pointIds.size())
+				sqlIn += ",";
+		}
+		sqlIn += "]";
+		stopWatch.stop("deletePointValuesBefore(pointIds,time) (" + sqlIn + ", " + time + ")");
+		return value;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.serotonin.m2m2.db.dao.PointValueDao#deletePointValues(int)
 	 */
@@ -13,10 +13,17 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -27,6 +34,7 @@ import org.springframework.dao.TransientDataAccessException;
 import org.springframework.dao.TransientDataAccessResourceException;
 import org.springframework.jdbc.CannotGetJdbcConnectionException;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 
 import com.serotonin.ShouldNeverHappenException;
@@ -37,9 +45,11 @@ import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.DataTypes;
 import com.serotonin.m2m2.ImageSaveException;
 import com.serotonin.m2m2.db.DatabaseProxy.DatabaseType;
+import com.serotonin.m2m2.db.dao.PointValueSpillJournal.SpilledPointValue;
 import com.serotonin.m2m2.i18n.TranslatableMessage;
 import com.serotonin.m2m2.rt.dataImage.AnnotatedPointValueTime;
 import com.serotonin.m2m2.rt.dataImage.IdPointValueTime;
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueBatch;
 import com.serotonin.m2m2.rt.dataImage.PointValueTime;
 import com.serotonin.m2m2.rt.dataImage.SetPointSource;
 import com.serotonin.m2m2.rt.dataImage.types.AlphanumericValue;
@@ -49,14 +59,13 @@ import com.serotonin.m2m2.rt.dataImage.types.ImageValue;
 import com.serotonin.m2m2.rt.dataImage.types.MultistateValue;
 import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
 import com.serotonin.m2m2.rt.maint.work.WorkItem;
+import com.serotonin.m2m2.util.MpscRingBuffer;
 import com.serotonin.m2m2.vo.pair.LongPair;
 import com.serotonin.monitor.IntegerMonitor;
 import com.serotonin.util.CollectionUtils;
 import com.serotonin.util.queue.ObjectQueue;
 
-public class PointValueDaoSQL extends BaseDao implements PointValueDao {
-    private static List<UnsavedPointValue> UNSAVED_POINT_VALUES = new ArrayList<UnsavedPointValue>();
-
+public class PointValueDaoSQL extends BaseDao implements BulkPointValueDao {
     private static final String POINT_VALUE_INSERT_START = "insert into pointValues (dataPointId, dataType, pointValue, ts) values ";
     private static final String POINT_VALUE_INSERT_VALUES = "(?,?,?,?)";
     private static final int POINT_VALUE_INSERT_VALUES_COUNT = 4;
@@ -98,6 +107,29 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
 
     long savePointValueImpl(final int pointId, final PointValueTime pointValue, final SetPointSource source,
             boolean async) {
+        long id;
+        try {
+            id = insertPointValue(pointId, pointValue, source, async);
+        }
+        catch (ConcurrencyFailureException e) {
+            // Still failed to insert after all of the retries. Store the data
+            spill(PointValueSpillJournal.INSERT, pointId, pointValue, source);
+            return -1;
+        }
+
+        replayUnsavedPointValues();
+
+        return id;
+    }
+
+    /**
+     * Insert a point value and save its image if necessary
+     * 
+     * @throws ConcurrencyFailureException
+     *             if the value could not be saved after all retries
+     */
+    long insertPointValue(final int pointId, final PointValueTime pointValue, final SetPointSource source,
+            boolean async) {
         DataValue value = pointValue.getValue();
         final int dataType = DataTypes.getDataType(value);
         double dvalue = 0;
@@ -115,19 +147,9 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
             svalue = value.getStringValue();
 
         // Check if we need to create an annotation.
-        long id;
-        try {
-            if (svalue != null || source != null || dataType == DataTypes.IMAGE)
-                async = false;
-            id = savePointValue(pointId, dataType, dvalue, pointValue.getTime(), svalue, source, async);
-        }
-        catch (ConcurrencyFailureException e) {
-            // Still failed to insert after all of the retries. Store the data
-            synchronized (UNSAVED_POINT_VALUES) {
-                UNSAVED_POINT_VALUES.add(new UnsavedPointValue(pointId, pointValue, source));
-            }
-            return -1;
-        }
+        if (svalue != null || source != null || dataType == DataTypes.IMAGE)
+            async = false;
+        long id = savePointValue(pointId, dataType, dvalue, pointValue.getTime(), svalue, source, async);
 
         // Check if we need to save an image
         if (dataType == DataTypes.IMAGE) {
@@ -162,20 +184,29 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
             }
         }
 
-        clearUnsavedPointValues();
-        clearUnsavedPointUpdates();
-
         return id;
     }
 
-    private void clearUnsavedPointValues() {
-        if (!UNSAVED_POINT_VALUES.isEmpty()) {
-            synchronized (UNSAVED_POINT_VALUES) {
-                while (!UNSAVED_POINT_VALUES.isEmpty()) {
-                    UnsavedPointValue data = UNSAVED_POINT_VALUES.remove(0);
-                    savePointValueImpl(data.getPointId(), data.getPointValue(), data.getSource(), false);
-                }
-            }
+    /**
+     * Store a value that could not be saved in the spill journal, on disk
+     */
+    static void spill(byte operation, int pointId, PointValueTime pvt, SetPointSource source) {
+        PointValueSpillJournal journal = PointValueSpillJournal.instance();
+        if (journal.append(operation, pointId, pvt, source))
+            journal.force();
+    }
+
+    /**
+     * Start replaying the spill journal if there are values waiting and the replay is not already running
+     */
+    static void replayUnsavedPointValues() {
+        if (PointValueSpillJournal.instance().isEmpty() || !SpillReplay.RUNNING.compareAndSet(false, true))
+            return;
+        try {
+            Common.backgroundProcessing.addWorkItem(new SpillReplay());
+        }
+        catch (RejectedExecutionException e) {
+            SpillReplay.RUNNING.set(false);
         }
     }
 
@@ -232,12 +263,20 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
                     new int[] { Types.INTEGER, Types.VARCHAR, Types.CLOB, Types.CLOB });
         }
 
+        pointValueChanged(pointId, dataType, time);
         return id;
     }
 
-    //Update Point Values
-    private static List<UnsavedPointUpdate> UNSAVED_POINT_UPDATES = new ArrayList<UnsavedPointUpdate>();
+    /**
+     * A value is in the database, drop the cached queries it changes and roll it up if it is numeric
+     */
+    private static void pointValueChanged(int pointId, int dataType, long time) {
+        PointValueQueryCache.instance().pointValueChanged(pointId, time);
+        if (dataType == DataTypes.NUMERIC)
+            PointValueRollups.instance().pointValueChanged(pointId, time);
+    }
 
+    //Update Point Values
     private static final String POINT_VALUE_UPDATE = "UPDATE pointValues SET dataType=?, pointValue=? ";
     private static final String POINT_VALUE_ANNOTATION_UPDATE = "UPDATE pointValueAnnotations SET"
             + "textPointValueShort=?, textPointValueLong=?, sourceMessage=?  ";
@@ -275,6 +314,29 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
     }
 
     long updatePointValueImpl(final int pointId, final PointValueTime pvt, final SetPointSource source, boolean async) {
+        long id;
+        try {
+            id = updatePointValueInternal(pointId, pvt, source, async);
+        }
+        catch (ConcurrencyFailureException e) {
+            // Still failed to insert after all of the retries. Store the data
+            spill(PointValueSpillJournal.UPDATE, pointId, pvt, source);
+            return -1;
+        }
+
+        replayUnsavedPointValues();
+
+        return id;
+    }
+
+    /**
+     * Update a point value and save its image if necessary
+     * 
+     * @throws ConcurrencyFailureException
+     *             if the value could not be saved after all retries
+     */
+    long updatePointValueInternal(final int pointId, final PointValueTime pvt, final SetPointSource source,
+            boolean async) {
         DataValue value = pvt.getValue();
         final int dataType = DataTypes.getDataType(value);
         double dvalue = 0;
@@ -292,19 +354,9 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
             svalue = value.getStringValue();
 
         // Check if we need to create an annotation.
-        long id;
-        try {
-            if (svalue != null || source != null || dataType == DataTypes.IMAGE)
-                async = false;
-            id = updatePointValue(pointId, dataType, dvalue, pvt.getTime(), svalue, source, async);
-        }
-        catch (ConcurrencyFailureException e) {
-            // Still failed to insert after all of the retries. Store the data
-            synchronized (UNSAVED_POINT_UPDATES) {
-                UNSAVED_POINT_UPDATES.add(new UnsavedPointUpdate(pointId, pvt, source));
-            }
-            return -1;
-        }
+        if (svalue != null || source != null || dataType == DataTypes.IMAGE)
+            async = false;
+        long id = updatePointValue(pointId, dataType, dvalue, pvt.getTime(), svalue, source, async);
 
         // Check if we need to save an image
         if (dataType == DataTypes.IMAGE) {
@@ -339,22 +391,9 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
             }
         }
 
-        clearUnsavedPointUpdates();
-
         return id;
     }
 
-    private void clearUnsavedPointUpdates() {
-        if (!UNSAVED_POINT_UPDATES.isEmpty()) {
-            synchronized (UNSAVED_POINT_UPDATES) {
-                while (!UNSAVED_POINT_UPDATES.isEmpty()) {
-                    UnsavedPointUpdate data = UNSAVED_POINT_UPDATES.remove(0);
-                    updatePointValueImpl(data.getPointId(), data.getPointValue(), data.getSource(), false);
-                }
-            }
-        }
-    }
-
     long updatePointValue(final int dataPointId, final int dataType, double dvalue, final long time,
             final String svalue, final SetPointSource source, boolean async) {
         // Apply database specific bounds on double values.
@@ -388,6 +427,7 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
 
         this.updatePointValueAnnotation(id, dataType, svalue, source);
 
+        pointValueChanged(dataPointId, dataType, time);
         return id;
     }
 
@@ -422,6 +462,9 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
     //
     // Queries
     //
+    // Points per latest values query, keeps the in list well below the database limits
+    private static final int LATEST_VALUES_CHUNK_SIZE = 1000;
+
     private static final String POINT_VALUE_SELECT = //
     "select pv.dataType, pv.pointValue, pva.textPointValueShort, pva.textPointValueLong, pv.ts, pva.sourceMessage " //
             + "from pointValues pv " //
@@ -509,6 +552,37 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
                 new Object[] { dataPointId, before }, limit);
     }
 
+    @Override
+    public Map<Integer, PointValueTime> getLatestPointValues(List<Integer> dataPointIds) {
+        final Map<Integer, PointValueTime> result = new HashMap<>(dataPointIds.size() * 2);
+        for (int i = 0; i < dataPointIds.size(); i += LATEST_VALUES_CHUNK_SIZE) {
+            List<Integer> chunk = dataPointIds.subList(i, Math.min(i + LATEST_VALUES_CHUNK_SIZE, dataPointIds.size()));
+            // Join the values to the max ts of each point so the whole chunk is one query
+            ejt.query("select pv.dataPointId, pv.dataType, pv.pointValue, pva.textPointValueShort, " //
+                    + "pva.textPointValueLong, pv.ts, pva.sourceMessage from pointValues pv " //
+                    + "  join (select dataPointId, max(ts) as maxTs from pointValues where dataPointId in (" //
+                    + createDelimitedList(chunk, ",", null) + ") group by dataPointId) lv " //
+                    + "    on pv.dataPointId = lv.dataPointId and pv.ts = lv.maxTs " //
+                    + "  left join pointValueAnnotations pva on pv.id = pva.pointValueId", new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    int dataPointId = rs.getInt(1);
+                    // Keep the first of values saved with the same time, like getLatestPointValue
+                    if (result.containsKey(dataPointId))
+                        return;
+                    DataValue value = createDataValue(rs, 2);
+                    long time = rs.getLong(6);
+                    TranslatableMessage sourceMessage = BaseDao.readTranslatableMessage(rs, 7);
+                    if (sourceMessage == null)
+                        result.put(dataPointId, new PointValueTime(value, time));
+                    else
+                        result.put(dataPointId, new AnnotatedPointValueTime(value, time, sourceMessage));
+                }
+            });
+        }
+        return result;
+    }
+
     private List<PointValueTime> pointValuesQuery(String sql, Object[] params, int limit) {
         return Common.databaseProxy.doLimitQuery(this, sql, params, new PointValueRowMapper(), limit);
     }
@@ -637,11 +711,28 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
     @Override
     public void getPointValuesBetween(List<Integer> dataPointIds, long from, long to,
             MappedRowCallback<IdPointValueTime> callback) {
+        if (dataPointIds.size() > 1) {
+            // Merge per point index scans instead of having the database sort the combined result
+            new MultiPointValueQuery(this, to).execute(dataPointIds, from, callback);
+            return;
+        }
         String ids = createDelimitedList(dataPointIds, ",", null);
         query(POINT_ID_VALUE_SELECT + " where pv.dataPointId in (" + ids + ") and pv.ts >= ? and pv.ts<? order by ts",
                 new Object[] { from, to }, new IdPointValueRowMapper(), callback);
     }
 
+    /**
+     * Values of one point in time order
+     * 
+     * @param limit
+     *            0 for no limit
+     */
+    List<IdPointValueTime> getIdPointValues(int dataPointId, long from, long to, int limit) {
+        return Common.databaseProxy.doLimitQuery(this, POINT_ID_VALUE_SELECT
+                + " where pv.dataPointId=? and pv.ts >= ? and pv.ts<? order by pv.ts", new Object[] { dataPointId,
+                from, to }, new IdPointValueRowMapper(), limit);
+    }
+
     /**
      * Note: this does not extract source information from the annotation.
      */
@@ -655,47 +746,131 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
         }
     }
 
+    //
+    //
+    // Primitive numeric queries
+    //
+    private static final String NUMERIC_POINT_VALUE_SELECT = "select pv.dataType, pv.pointValue, pv.ts from pointValues pv";
+
+    @Override
+    public void getNumericPointValuesBetween(int dataPointId, long from, long to,
+            final NumericPointValueCallback callback) {
+        ejt.query(NUMERIC_POINT_VALUE_SELECT + " where pv.dataPointId=? and pv.ts >= ? and pv.ts<? order by ts",
+                new Object[] { dataPointId, from, to }, new RowCallbackHandler() {
+                    private int rowNum;
+
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        // Alphanumeric and image values have no numeric value
+                        int dataType = rs.getInt(1);
+                        if (dataType == DataTypes.ALPHANUMERIC || dataType == DataTypes.IMAGE)
+                            return;
+                        callback.row(rs.getLong(3), rs.getDouble(2), rowNum++);
+                    }
+                });
+    }
+
+    @Override
+    public NumericPointValueBatch getNumericPointValuesBetween(int dataPointId, long from, long to) {
+        final NumericPointValueBatch batch = new NumericPointValueBatch();
+        getNumericPointValuesBetween(dataPointId, from, to, new NumericPointValueCallback() {
+            @Override
+            public void row(long time, double value, int rowNum) {
+                batch.add(time, value);
+            }
+        });
+        return batch;
+    }
+
     //
     //
     // Point value deletions
     //
 
     public long deletePointValue(int pointValueId) {
-        return deletePointValues("delete from pointValues where id = ?", new Object[] { pointValueId }, 0, 0);
+        // Find the point and time of the value so the caches and rollups only drop what they have to
+        List<IdPointValueTime> values = query("select dataPointId, ts from pointValues where id=?",
+                new Object[] { pointValueId }, new RowMapper<IdPointValueTime>() {
+                    @Override
+                    public IdPointValueTime mapRow(ResultSet rs, int rowNum) throws SQLException {
+                        return new IdPointValueTime(rs.getInt(1), null, rs.getLong(2));
+                    }
+                });
+        long cnt = deletePointValues("delete from pointValues where id = ?", new Object[] { pointValueId }, 0, 0);
+        for (IdPointValueTime value : values) {
+            PointValueQueryCache.instance().pointValueChanged(value.getDataPointId(), value.getTime());
+            PointValueRollups.instance().pointValueDeleted(value.getDataPointId(), value.getTime());
+        }
+        return cnt;
     }
 
     @Override
     public long deletePointValue(int dataPointId, long ts) {
-        return deletePointValues("delete from pointValues where dataPointId = ? AND ts = ?", new Object[] {
+        long cnt = deletePointValues("delete from pointValues where dataPointId = ? AND ts = ?", new Object[] {
                 dataPointId, ts }, 0, 0);
+        PointValueQueryCache.instance().pointValueChanged(dataPointId, ts);
+        PointValueRollups.instance().pointValueDeleted(dataPointId, ts);
+        return cnt;
     }
 
     @Override
     public long deletePointValuesBefore(int dataPointId, long time) {
-        return deletePointValues("delete from pointValues where dataPointId=? and ts<?", new Object[] { dataPointId,
-                time }, 0, 0);
+        long cnt = deletePointValues("delete from pointValues where dataPointId=? and ts<?", new Object[] {
+                dataPointId, time }, 0, 0);
+        PointValueQueryCache.instance().pointValuesChanged(dataPointId);
+        PointValueRollups.instance().pointValuesDeletedBefore(dataPointId, time);
+        return cnt;
+    }
+
+    @Override
+    public long deletePointValuesBefore(List<Integer> dataPointIds, long time) {
+        if (dataPointIds.isEmpty())
+            return 0;
+        long cnt = Common.databaseProxy.doLimitDelete(ejt, "delete from pointValues where dataPointId in ("
+                + createDelimitedList(dataPointIds, ",", null) + ") and ts<?", new Object[] { time },
+                Common.envProps.getInt("db.purge.chunkSize", 1000), Common.envProps.getInt("db.purge.chunkWait", 0), 0);
+        replayUnsavedPointValues();
+        for (Integer dataPointId : dataPointIds)
+            PointValueQueryCache.instance().pointValuesChanged(dataPointId);
+        PointValueRollups.instance().pointValuesDeletedBefore(dataPointIds, time);
+        return cnt;
     }
 
     @Override
     public long deletePointValues(int dataPointId) {
-        return deletePointValues("delete from pointValues where dataPointId=?", new Object[] { dataPointId }, 0, 0);
+        long cnt = deletePointValues("delete from pointValues where dataPointId=?", new Object[] { dataPointId }, 0,
+                0);
+        PointValueQueryCache.instance().pointValuesChanged(dataPointId);
+        PointValueRollups.instance().pointValuesChanged(dataPointId);
+        return cnt;
     }
 
     @Override
     public long deleteAllPointData() {
-        return deletePointValues("delete from pointValues", null, 0, 0);
+        long cnt = deletePointValues("delete from pointValues", null, 0, 0);
+        PointValueQueryCache.instance().clear();
+        PointValueRollups.instance().clear();
+        return cnt;
     }
 
     @Override
     public long deletePointValuesWithMismatchedType(int dataPointId, int dataType) {
-        return deletePointValues("delete from pointValues where dataPointId=? and dataType<>?", new Object[] {
+        long cnt = deletePointValues("delete from pointValues where dataPointId=? and dataType<>?", new Object[] {
                 dataPointId, dataType }, 0, 0);
+        PointValueQueryCache.instance().pointValuesChanged(dataPointId);
+        PointValueRollups.instance().pointValuesChanged(dataPointId);
+        return cnt;
     }
 
     @Override
     public long deleteOrphanedPointValues() {
-        return deletePointValues("DELETE FROM pointValues WHERE dataPointId NOT IN (SELECT ID FROM dataPoints)", null,
-                5000, 100000);
+        long cnt = deletePointValues(
+                "DELETE FROM pointValues WHERE dataPointId NOT IN (SELECT ID FROM dataPoints)", null, 5000, 100000);
+        if (cnt > 0)
+            PointValueQueryCache.instance().clear();
+        if (PointValueRollups.instance().isEnabled())
+            new PointValueRollupDao().deleteOrphanedRollups();
+        return cnt;
     }
 
     @Override
@@ -724,7 +899,7 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
 
     private long deletePointValues(String sql, Object[] params, int chunkWait, int limit) {
         long cnt = Common.databaseProxy.doLimitDelete(ejt, sql, params, 1000, chunkWait, limit);
-        clearUnsavedPointValues();
+        replayUnsavedPointValues();
         return cnt;
     }
 
@@ -791,83 +966,182 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
                 dataPointId, DataTypes.IMAGE }, Long.class);
     }
 
-    /**
-     * Class that stored point value data when it could not be saved to the database due to concurrency errors.
-     * 
-     * @author Matthew Lohbihler
-     */
-    class UnsavedPointValue {
+    class BatchWriteBehindEntry {
         private final int pointId;
-        private final PointValueTime pointValue;
-        private final SetPointSource source;
+        private final int dataType;
+        private final double dvalue;
+        private final long time;
 
-        public UnsavedPointValue(int pointId, PointValueTime pointValue, SetPointSource source) {
+        public BatchWriteBehindEntry(int pointId, int dataType, double dvalue, long time) {
             this.pointId = pointId;
-            this.pointValue = pointValue;
-            this.source = source;
-        }
-
-        public int getPointId() {
-            return pointId;
+            this.dataType = dataType;
+            this.dvalue = dvalue;
+            this.time = time;
         }
 
-        public PointValueTime getPointValue() {
-            return pointValue;
+        public void writeInto(Object[] params, int index) {
+            index *= POINT_VALUE_INSERT_VALUES_COUNT;
+            params[index++] = pointId;
+            params[index++] = dataType;
+            params[index++] = dvalue;
+            params[index++] = time;
         }
 
-        public SetPointSource getSource() {
-            return source;
+        /**
+         * Only numeric, binary and multistate values are written behind
+         */
+        public PointValueTime toPointValueTime() {
+            DataValue value;
+            if (dataType == DataTypes.BINARY)
+                value = new BinaryValue(dvalue == 1);
+            else if (dataType == DataTypes.MULTISTATE)
+                value = new MultistateValue((int) dvalue);
+            else
+                value = new NumericValue(dvalue);
+            return new PointValueTime(value, time);
         }
     }
 
     /**
-     * Class that stored point value data when it could not be saved to the database due to concurrency errors.
-     * 
-     * @author Matthew Lohbihler
+     * Replays point values from the spill journal once the database is accepting writes again. Runs of values that
+     * the write behind would have taken are inserted in batches with its insert statement, the others are written
+     * one at a time. Values are removed from the journal only once they are committed, so they are neither lost nor
+     * reordered if the server stops during the replay. Stops at the first failure, leaving the rest of the journal in
+     * place for the next attempt.
      */
-    class UnsavedPointUpdate {
-        private final int pointId;
-        private final PointValueTime pointValue;
-        private final SetPointSource source;
+    static class SpillReplay implements WorkItem {
+        static final AtomicBoolean RUNNING = new AtomicBoolean(false);
+        private static Log LOG = LogFactory.getLog(SpillReplay.class);
+        private static final int READ_SIZE = 1000;
 
-        public UnsavedPointUpdate(int pointId, PointValueTime pointValue, SetPointSource source) {
-            this.pointId = pointId;
-            this.pointValue = pointValue;
-            this.source = source;
+        private final PointValueSpillJournal journal;
+
+        SpillReplay() {
+            this(PointValueSpillJournal.instance());
         }
 
-        public int getPointId() {
-            return pointId;
+        SpillReplay(PointValueSpillJournal journal) {
+            this.journal = journal;
         }
 
-        public PointValueTime getPointValue() {
-            return pointValue;
+        @Override
+        public void execute() {
+            PointValueDaoSQL dao = new PointValueDaoSQL();
+            long replayed = 0;
+            try {
+                while (true) {
+                    List<SpilledPointValue> values = journal.read(READ_SIZE);
+                    if (values.isEmpty())
+                        break;
+
+                    int done = 0;
+                    try {
+                        while (done < values.size()) {
+                            List<BatchWriteBehindEntry> batch = batch(dao, values, done);
+                            if (batch.size() > 1 && replayBatch(dao, batch)) {
+                                done += batch.size();
+                            }
+                            else {
+                                // One value, or a batch with a bad value in it, is written on its own
+                                int end = done + Math.max(1, batch.size());
+                                for (; done < end; done++)
+                                    replay(dao, values.get(done));
+                            }
+                            journal.acknowledge(done);
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        // Database is still unavailable, the values not written stay at the head of the journal
+                        LOG.warn("Database unavailable while replaying unsaved point values: " + e.getMessage());
+                        break;
+                    }
+                    finally {
+                        replayed += done;
+                        journal.force();
+                    }
+                }
+            }
+            finally {
+                RUNNING.set(false);
+                if (replayed > 0)
+                    LOG.info("Replayed " + replayed + " unsaved point values, " + journal.getBacklogBytes()
+                            + " bytes remaining.");
+            }
         }
 
-        public SetPointSource getSource() {
-            return source;
+        /**
+         * The run of values from the index that the write behind would have taken, at most a batch
+         */
+        private static List<BatchWriteBehindEntry> batch(PointValueDaoSQL dao, List<SpilledPointValue> values,
+                int from) {
+            List<BatchWriteBehindEntry> batch = new ArrayList<BatchWriteBehindEntry>();
+            for (int i = from; i < values.size() && batch.size() < BatchWriteBehind.BATCH_SIZE; i++) {
+                SpilledPointValue value = values.get(i);
+                if (value.getOperation() != PointValueSpillJournal.INSERT || value.getSource() != null)
+                    break;
+                DataValue dataValue = value.getPointValue().getValue();
+                int dataType = DataTypes.getDataType(dataValue);
+                if (dataType == DataTypes.IMAGE || !dataValue.hasDoubleRepresentation())
+                    break;
+                batch.add(dao.new BatchWriteBehindEntry(value.getPointId(), dataType,
+                        Common.databaseProxy.applyBounds(dataValue.getDoubleValue()), value.getPointValue().getTime()));
+            }
+            return batch;
         }
-    }
 
-    class BatchWriteBehindEntry {
-        private final int pointId;
-        private final int dataType;
-        private final double dvalue;
-        private final long time;
+        /**
+         * @return false if a value of the batch was refused, the database being unavailable is thrown
+         */
+        private static boolean replayBatch(PointValueDaoSQL dao, List<BatchWriteBehindEntry> batch) {
+            BatchWriteBehindEntry[] inserts = batch.toArray(new BatchWriteBehindEntry[batch.size()]);
+            try {
+                BatchWriteBehind.insert(dao.ejt, inserts);
+            }
+            catch (RuntimeException e) {
+                if (isUnavailable(e))
+                    throw e;
+                return false;
+            }
+            BatchWriteBehind.inserted(inserts);
+            return true;
+        }
 
-        public BatchWriteBehindEntry(int pointId, int dataType, double dvalue, long time) {
-            this.pointId = pointId;
-            this.dataType = dataType;
-            this.dvalue = dvalue;
-            this.time = time;
+        private static void replay(PointValueDaoSQL dao, SpilledPointValue value) {
+            try {
+                if (value.getOperation() == PointValueSpillJournal.UPDATE)
+                    dao.updatePointValueInternal(value.getPointId(), value.getPointValue(), value.getSource(), false);
+                else
+                    dao.insertPointValue(value.getPointId(), value.getPointValue(), value.getSource(), false);
+            }
+            catch (RuntimeException e) {
+                if (isUnavailable(e))
+                    throw e;
+                // Don't let one bad value block the journal
+                LOG.error("Error replaying unsaved value for data point " + value.getPointId() + ". Data lost.", e);
+            }
         }
 
-        public void writeInto(Object[] params, int index) {
-            index *= POINT_VALUE_INSERT_VALUES_COUNT;
-            params[index++] = pointId;
-            params[index++] = dataType;
-            params[index++] = dvalue;
-            params[index++] = time;
+        /**
+         * Is this a failure of the database rather than of the value
+         */
+        private static boolean isUnavailable(Throwable e) {
+            while (e != null) {
+                if (e instanceof TransientDataAccessException || e instanceof RecoverableDataAccessException
+                        || e instanceof CannotGetJdbcConnectionException)
+                    return true;
+                e = e.getCause();
+            }
+            return false;
+        }
+
+        @Override
+        public int getPriority() {
+            return WorkItem.PRIORITY_MEDIUM;
+        }
+
+        @Override
+        public String getDescription() {
+            return "Replaying unsaved point values: " + journal.getBacklogBytes() + " bytes";
         }
     }
 
@@ -875,12 +1149,18 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
     public static final String INSTANCES_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueDao$BatchWriteBehind.INSTANCES_MONITOR";
     public static final String BATCH_WRITE_SPEED_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueDao$BatchWriteBehind.BATCH_WRITE_SPEED_MONITOR";
 
+    /**
+     * Write behind for async point value inserts.
+     * 
+     * Entries are sharded by data point id into lock-free bounded MPSC ring buffers, each shard has at most one
+     * writer (the single consumer) running at any time. Producers never take a lock, if a shard is full the producer
+     * backs off until its writer catches up, or spills the value to disk if it doesn't catch up in time.
+     * 
+     * Tunable via env.properties: db.writeBehind.shards, db.writeBehind.shardCapacity, db.writeBehind.batchSize,
+     * db.writeBehind.fullShardTimeout
+     */
     static class BatchWriteBehind implements WorkItem {
-        private static final ObjectQueue<BatchWriteBehindEntry> ENTRIES = new ObjectQueue<PointValueDaoSQL.BatchWriteBehindEntry>();
-        private static final CopyOnWriteArrayList<BatchWriteBehind> instances = new CopyOnWriteArrayList<BatchWriteBehind>();
         private static Log LOG = LogFactory.getLog(BatchWriteBehind.class);
-        private static final int SPAWN_THRESHOLD = 10000;
-        private static final int MAX_INSTANCES = 5;
         private static int MAX_ROWS = 1000;
         private static final IntegerMonitor ENTRIES_MONITOR = new IntegerMonitor(ENTRIES_MONITOR_ID,
                 "internal.monitor.BATCH_ENTRIES");
@@ -890,6 +1170,16 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
         private static final IntegerMonitor BATCH_WRITE_SPEED_MONITOR = new IntegerMonitor(
                 BATCH_WRITE_SPEED_MONITOR_ID, "internal.monitor.BATCH_WRITE_SPEED_MONITOR");
 
+        private static final AtomicInteger ENTRIES_COUNT = new AtomicInteger();
+        private static final AtomicInteger INSTANCES_COUNT = new AtomicInteger();
+        //Time to back off when a shard is full
+        private static final long FULL_SHARD_PARK_NANOS = 100000L;
+        //Most time to back off before spilling the value
+        private static final long FULL_SHARD_TIMEOUT_NANOS;
+
+        private static final BatchWriteBehind[] SHARDS;
+        static final int BATCH_SIZE;
+
         private static List<Class<? extends RuntimeException>> retriedExceptions = new ArrayList<Class<? extends RuntimeException>>();
 
         static {
@@ -911,6 +1201,26 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
             else
                 throw new ShouldNeverHappenException("Unknown database type: " + Common.databaseProxy.getType());
 
+            int batchSize = Common.envProps.getInt("db.writeBehind.batchSize", MAX_ROWS);
+            if (batchSize < 1)
+                batchSize = MAX_ROWS;
+            // Never exceed the MSSQL parameter limit
+            if (Common.databaseProxy.getType() == DatabaseType.MSSQL && batchSize > MAX_ROWS)
+                batchSize = MAX_ROWS;
+            BATCH_SIZE = batchSize;
+
+            int shardCount = Common.envProps.getInt("db.writeBehind.shards", 5);
+            if (shardCount < 1)
+                shardCount = 1;
+            int shardCapacity = Common.envProps.getInt("db.writeBehind.shardCapacity", 65536);
+            if (shardCapacity < BATCH_SIZE)
+                shardCapacity = BATCH_SIZE;
+            FULL_SHARD_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(0,
+                    Common.envProps.getLong("db.writeBehind.fullShardTimeout", 1000)));
+            SHARDS = new BatchWriteBehind[shardCount];
+            for (int i = 0; i < shardCount; i++)
+                SHARDS[i] = new BatchWriteBehind(i, shardCapacity);
+
             Common.MONITORED_VALUES.addIfMissingStatMonitor(ENTRIES_MONITOR);
             Common.MONITORED_VALUES.addIfMissingStatMonitor(INSTANCES_MONITOR);
             Common.MONITORED_VALUES.addIfMissingStatMonitor(BATCH_WRITE_SPEED_MONITOR);
@@ -922,116 +1232,205 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
         }
 
         static void add(BatchWriteBehindEntry e, ExtendedJdbcTemplate ejt) {
-            synchronized (ENTRIES) {
-                ENTRIES.push(e);
-                ENTRIES_MONITOR.setValue(ENTRIES.size());
-                if (ENTRIES.size() > instances.size() * SPAWN_THRESHOLD) {
-                    if (instances.size() < MAX_INSTANCES) {
-                        BatchWriteBehind bwb = new BatchWriteBehind(ejt);
-                        instances.add(bwb);
-                        INSTANCES_MONITOR.setValue(instances.size());
-                        try {
-                            Common.backgroundProcessing.addWorkItem(bwb);
-                        }
-                        catch (RejectedExecutionException ree) {
-                            instances.remove(bwb);
-                            INSTANCES_MONITOR.setValue(instances.size());
-                            throw ree;
-                        }
-                    }
+            BatchWriteBehind shard = SHARDS[(e.pointId & Integer.MAX_VALUE) % SHARDS.length];
+            // Counted before the offer so the writer never takes the count below zero
+            ENTRIES_MONITOR.setValue(ENTRIES_COUNT.incrementAndGet());
+            long deadline = 0;
+            while (!shard.entries.offer(e)) {
+                // Full, make sure the writer is draining and back off
+                shard.schedule(ejt);
+                long now = System.nanoTime();
+                if (deadline == 0)
+                    deadline = now + FULL_SHARD_TIMEOUT_NANOS;
+                else if (now - deadline >= 0) {
+                    // The writer is not catching up, likely the database is down. Don't hold up the caller.
+                    ENTRIES_MONITOR.setValue(ENTRIES_COUNT.decrementAndGet());
+                    PointValueSpillJournal journal = PointValueSpillJournal.instance();
+                    if (journal.append(PointValueSpillJournal.INSERT, e.pointId, e.toPointValueTime(), null))
+                        journal.force();
+                    else
+                        LOG.error("Write behind shard " + shard.shardId + " is full and the value for data point "
+                                + e.pointId + " could not be spilled. Data lost.");
+                    return;
                 }
+                LockSupport.parkNanos(FULL_SHARD_PARK_NANOS);
             }
+            shard.schedule(ejt);
         }
 
-        private final ExtendedJdbcTemplate ejt;
+        private final int shardId;
+        private final MpscRingBuffer<BatchWriteBehindEntry> entries;
+        //Guarantees a single consumer per shard
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile ExtendedJdbcTemplate ejt;
 
-        public BatchWriteBehind(ExtendedJdbcTemplate ejt) {
+        private BatchWriteBehind(int shardId, int capacity) {
+            this.shardId = shardId;
+            this.entries = new MpscRingBuffer<BatchWriteBehindEntry>(capacity);
+        }
+
+        /**
+         * Submit this shard's writer if it is not already running
+         */
+        private void schedule(ExtendedJdbcTemplate ejt) {
+            if (scheduled.get() || !scheduled.compareAndSet(false, true))
+                return;
             this.ejt = ejt;
+            INSTANCES_MONITOR.setValue(INSTANCES_COUNT.incrementAndGet());
+            try {
+                Common.backgroundProcessing.addWorkItem(this);
+            }
+            catch (RejectedExecutionException ree) {
+                INSTANCES_MONITOR.setValue(INSTANCES_COUNT.decrementAndGet());
+                scheduled.set(false);
+                throw ree;
+            }
         }
 
         @Override
         public void execute() {
+            BatchWriteBehindEntry[] buffer = new BatchWriteBehindEntry[BATCH_SIZE];
+            boolean released = false;
             try {
-                BatchWriteBehindEntry[] inserts;
                 while (true) {
-                    synchronized (ENTRIES) {
-                        if (ENTRIES.size() == 0)
+                    int count = entries.drainTo(buffer, BATCH_SIZE);
+                    if (count == 0) {
+                        // Release the shard, then re-check for an entry that raced with the release
+                        scheduled.set(false);
+                        if (entries.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                            released = true;
                             break;
-
-                        inserts = new BatchWriteBehindEntry[ENTRIES.size() < MAX_ROWS ? ENTRIES.size() : MAX_ROWS];
-                        ENTRIES.pop(inserts);
-                        ENTRIES_MONITOR.setValue(ENTRIES.size());
+                        }
+                        continue;
                     }
+                    ENTRIES_MONITOR.setValue(ENTRIES_COUNT.addAndGet(-count));
 
-                    // Create the sql and parameters
-                    Object[] params = new Object[inserts.length * POINT_VALUE_INSERT_VALUES_COUNT];
-                    StringBuilder sb = new StringBuilder();
-                    sb.append(POINT_VALUE_INSERT_START);
-                    for (int i = 0; i < inserts.length; i++) {
-                        if (i > 0)
-                            sb.append(',');
-                        sb.append(POINT_VALUE_INSERT_VALUES);
-                        inserts[i].writeInto(params, i);
+                    BatchWriteBehindEntry[] inserts;
+                    if (count == buffer.length) {
+                        inserts = buffer;
                     }
+                    else {
+                        inserts = new BatchWriteBehindEntry[count];
+                        System.arraycopy(buffer, 0, inserts, 0, count);
+                    }
+                    write(inserts);
+                    Arrays.fill(buffer, 0, count, null);
+                }
+            }
+            finally {
+                // Anything thrown out of the loop must not leave the shard looking busy, the next add schedules it
+                if (!released)
+                    scheduled.set(false);
+                INSTANCES_MONITOR.setValue(INSTANCES_COUNT.decrementAndGet());
+            }
+        }
 
-                    // Insert the data
-                    int retries = 10;
-                    while (true) {
-                        try {
+        /**
+         * Insert the values in one statement
+         */
+        static void insert(ExtendedJdbcTemplate ejt, BatchWriteBehindEntry[] inserts) {
+            // Create the sql and parameters
+            Object[] params = new Object[inserts.length * POINT_VALUE_INSERT_VALUES_COUNT];
+            StringBuilder sb = new StringBuilder();
+            sb.append(POINT_VALUE_INSERT_START);
+            for (int i = 0; i < inserts.length; i++) {
+                if (i > 0)
+                    sb.append(',');
+                sb.append(POINT_VALUE_INSERT_VALUES);
+                inserts[i].writeInto(params, i);
+            }
+            ejt.update(sb.toString(), params);
+        }
 
-                            Long time = null;
-                            if (inserts.length > 10) {
-                            	time = System.currentTimeMillis();
-                            }
+        /**
+         * Tell the caches and rollups about committed values
+         */
+        static void inserted(BatchWriteBehindEntry[] inserts) {
+            for (BatchWriteBehindEntry insert : inserts)
+                pointValueChanged(insert.pointId, insert.dataType, insert.time);
+        }
+
+        private void write(BatchWriteBehindEntry[] inserts) {
+            // Insert the data
+            int retries = 10;
+            while (true) {
+                try {
 
-                            ejt.update(sb.toString(), params);
+                    Long time = null;
+                    if (inserts.length > 10) {
+                        time = System.currentTimeMillis();
+                    }
 
-                            if (time != null) {
-                                long elapsed = System.currentTimeMillis() - time;
-                                if (elapsed > 0) {
-                                    double writesPerSecond = ((double) inserts.length / (double) elapsed) * 1000d;
-                                    BATCH_WRITE_SPEED_MONITOR.setValue((int) writesPerSecond);
-                                }
-                            }
+                    insert(ejt, inserts);
 
-                            break;
+                    if (time != null) {
+                        long elapsed = System.currentTimeMillis() - time;
+                        if (elapsed > 0) {
+                            double writesPerSecond = ((double) inserts.length / (double) elapsed) * 1000d;
+                            BATCH_WRITE_SPEED_MONITOR.setValue((int) writesPerSecond);
+                        }
+                    }
+                    break;
+                }
+                catch (RuntimeException e) {
+                    if (retriedExceptions.contains(e.getClass())) {
+                        if (retries <= 0) {
+                            spill(inserts);
+                            return;
                         }
-                        catch (RuntimeException e) {
-                            if (retriedExceptions.contains(e.getClass())) {
-                                if (retries <= 0) {
-                                    LOG.error("Concurrency failure saving " + inserts.length
-                                            + " batch inserts after 10 tries. Data lost.");
-                                    break;
-                                }
 
-                                int wait = (10 - retries) * 100;
-                                try {
-                                    if (wait > 0) {
-                                        synchronized (this) {
-                                            wait(wait);
-                                        }
-                                    }
-                                }
-                                catch (InterruptedException ie) {
-                                    // no op
+                        int wait = (10 - retries) * 100;
+                        try {
+                            if (wait > 0) {
+                                synchronized (this) {
+                                    wait(wait);
                                 }
-
-                                retries--;
-                            }
-                            else {
-                                LOG.error("Error saving " + inserts.length + " batch inserts. Data lost.", e);
-                                break;
                             }
                         }
+                        catch (InterruptedException ie) {
+                            // no op
+                        }
+
+                        retries--;
+                    }
+                    else {
+                        LOG.error("Error saving " + inserts.length + " batch inserts. Data lost.", e);
+                        return;
                     }
                 }
             }
-            finally {
-                instances.remove(this);
-                INSTANCES_MONITOR.setValue(instances.size());
+
+            // The values are saved, a failure from here on doesn't lose them
+            try {
+                inserted(inserts);
+
+                // The database is accepting writes, catch up on anything that was spilled
+                replayUnsavedPointValues();
+            }
+            catch (RuntimeException e) {
+                LOG.error("Saved " + inserts.length + " batch inserts but failed to process them afterwards", e);
             }
         }
 
+        /**
+         * Move the batch to the spill journal to be replayed when the database recovers
+         */
+        private void spill(BatchWriteBehindEntry[] inserts) {
+            PointValueSpillJournal journal = PointValueSpillJournal.instance();
+            int lost = 0;
+            for (BatchWriteBehindEntry entry : inserts) {
+                if (!journal.append(PointValueSpillJournal.INSERT, entry.pointId, entry.toPointValueTime(), null))
+                    lost++;
+            }
+            journal.force();
+            if (lost > 0)
+                LOG.error("Concurrency failure saving " + inserts.length + " batch inserts after 10 tries. " + lost
+                        + " values could not be spilled and are lost.");
+            else
+                LOG.warn("Concurrency failure saving " + inserts.length
+                        + " batch inserts after 10 tries. Values spilled to disk.");
+        }
+
         @Override
         public int getPriority() {
             return WorkItem.PRIORITY_HIGH;
@@ -1042,7 +1441,7 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
 		 */
 		@Override
 		public String getDescription() {
-			return "Batch Writing from batch of size: " + ENTRIES.size(); 
+			return "Batch Writing shard " + shardId + " from batch of size: " + entries.size(); 
 		}
     }
 
@@ -1194,6 +1593,9 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
                                         }
                                     });
 
+                            for (int i = 0; i < params.length; i++)
+                                pointValueChanged((Integer) params[i][3], (Integer) params[i][0], (Long) params[i][2]);
+
                             //Now if we have Annotation updates we need to apply those
                             if (updatedIds.length != params.length) {
                                 LOG.fatal("Updated rows doesn't match necessary rows to update annotations!");
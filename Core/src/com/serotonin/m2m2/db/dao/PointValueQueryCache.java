@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.monitor.IntegerMonitor;
+
+/**
+ * Shared LRU of point value time window query results, used by the PointValueDaoCache.
+ *
+ * The cache is bounded by the total number of point values it holds. PointValueDaoSQL notifies it
+ * of every insert, update and delete once the change is in the database, any cached window that could
+ * contain the changed time is dropped. A query result is only cached if no change to its point
+ * arrived while the query was running, so a result read before a write can't be cached after it.
+ *
+ * Configurable via env.properties: db.pointValueQueryCache.enabled, db.pointValueQueryCache.maxValues
+ */
+public class PointValueQueryCache {
+
+    public static final String HITS_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueQueryCache.HITS_MONITOR";
+    public static final String MISSES_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueQueryCache.MISSES_MONITOR";
+    public static final String VALUES_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueQueryCache.VALUES_MONITOR";
+
+    private static final IntegerMonitor HITS_MONITOR = new IntegerMonitor(HITS_MONITOR_ID,
+            "internal.monitor.POINT_VALUE_QUERY_CACHE_HITS");
+    private static final IntegerMonitor MISSES_MONITOR = new IntegerMonitor(MISSES_MONITOR_ID,
+            "internal.monitor.POINT_VALUE_QUERY_CACHE_MISSES");
+    private static final IntegerMonitor VALUES_MONITOR = new IntegerMonitor(VALUES_MONITOR_ID,
+            "internal.monitor.POINT_VALUE_QUERY_CACHE_VALUES");
+
+    private static volatile PointValueQueryCache instance;
+
+    /**
+     * Window types
+     */
+    static final int BETWEEN = 1;
+    static final int BEFORE = 2;
+    static final int AT = 3;
+    static final int AFTER = 4;
+
+    private final int maxValues;
+    //Largest single result worth caching, bigger results would flush most of the cache
+    private final int maxWindowValues;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    //Guarded by this
+    private final LinkedHashMap<Key, Window> windows = new LinkedHashMap<Key, Window>(256, 0.75f, true);
+    private int values;
+    //Points with cached windows or queries in flight, written under the lock but read without it
+    private final Map<Integer, PointState> points = new ConcurrentHashMap<Integer, PointState>();
+
+    public static PointValueQueryCache instance(){
+        if(instance == null){
+            synchronized(PointValueQueryCache.class){
+                if(instance == null){
+                    instance = new PointValueQueryCache(Common.envProps.getInt("db.pointValueQueryCache.maxValues", 100000));
+                    Common.MONITORED_VALUES.addIfMissingStatMonitor(HITS_MONITOR);
+                    Common.MONITORED_VALUES.addIfMissingStatMonitor(MISSES_MONITOR);
+                    Common.MONITORED_VALUES.addIfMissingStatMonitor(VALUES_MONITOR);
+                }
+            }
+        }
+        return instance;
+    }
+
+    PointValueQueryCache(int maxValues){
+        this.maxValues = maxValues;
+        this.maxWindowValues = Math.max(1, maxValues / 4);
+    }
+
+    /**
+     * @return the cached window or null
+     */
+    synchronized Window get(Key key){
+        Window window = windows.get(key);
+        if(window != null)
+            HITS_MONITOR.setValue(hits.incrementAndGet());
+        else
+            MISSES_MONITOR.setValue(misses.incrementAndGet());
+        return window;
+    }
+
+    /**
+     * Start a query of a window that is not cached, the ticket must be handed back to put() with
+     * the result or to done() if the query failed
+     */
+    synchronized Ticket begin(Key key){
+        PointState state = points.get(key.pointId);
+        if(state == null){
+            state = new PointState();
+            points.put(key.pointId, state);
+        }
+        state.pending++;
+        return new Ticket(key, state.version);
+    }
+
+    /**
+     * Cache the result of a query unless its point changed while it ran
+     * @param ticket
+     * @param result
+     * @param weight number of values in the result
+     */
+    synchronized void put(Ticket ticket, Object result, int weight){
+        PointState state = points.get(ticket.key.pointId);
+        state.pending--;
+        if((state.version == ticket.version)&&(weight <= maxWindowValues)&&(!windows.containsKey(ticket.key))){
+            Window window = new Window(ticket.key, result, Math.max(1, weight));
+            windows.put(ticket.key, window);
+            state.windows.add(window);
+            values += window.weight;
+            evict();
+        }
+        release(ticket.key.pointId, state);
+    }
+
+    /**
+     * Finish a query without caching a result, when it failed
+     * @param ticket
+     */
+    synchronized void done(Ticket ticket){
+        PointState state = points.get(ticket.key.pointId);
+        state.pending--;
+        release(ticket.key.pointId, state);
+    }
+
+    /**
+     * A value of the point at this time was inserted, updated or deleted
+     * @param pointId
+     * @param time
+     */
+    public void pointValueChanged(int pointId, long time){
+        //Most writes are to points that nobody is querying, don't lock for those
+        if(!points.containsKey(pointId))
+            return;
+        synchronized(this){
+            PointState state = points.get(pointId);
+            if(state == null)
+                return;
+            state.version++;
+            Iterator<Window> it = state.windows.iterator();
+            while(it.hasNext()){
+                Window window = it.next();
+                if(window.key.contains(time)){
+                    it.remove();
+                    remove(window);
+                }
+            }
+            release(pointId, state);
+        }
+    }
+
+    /**
+     * Any number of values of the point changed
+     * @param pointId
+     */
+    public void pointValuesChanged(int pointId){
+        if(!points.containsKey(pointId))
+            return;
+        synchronized(this){
+            PointState state = points.get(pointId);
+            if(state == null)
+                return;
+            state.version++;
+            for(Window window : state.windows)
+                remove(window);
+            state.windows.clear();
+            release(pointId, state);
+        }
+    }
+
+    /**
+     * Values of any point changed
+     */
+    public synchronized void clear(){
+        for(PointState state : points.values()){
+            state.version++;
+            state.windows.clear();
+        }
+        windows.clear();
+        values = 0;
+        VALUES_MONITOR.setValue(0);
+        Iterator<PointState> it = points.values().iterator();
+        while(it.hasNext()){
+            if(it.next().pending == 0)
+                it.remove();
+        }
+    }
+
+    synchronized int getValueCount(){
+        return values;
+    }
+
+    private void evict(){
+        Iterator<Window> it = windows.values().iterator();
+        while((values > maxValues)&&it.hasNext()){
+            Window window = it.next();
+            it.remove();
+            values -= window.weight;
+            PointState state = points.get(window.key.pointId);
+            state.windows.remove(window);
+            release(window.key.pointId, state);
+        }
+        VALUES_MONITOR.setValue(values);
+    }
+
+    private void remove(Window window){
+        windows.remove(window.key);
+        values -= window.weight;
+        VALUES_MONITOR.setValue(values);
+    }
+
+    /**
+     * Stop tracking a point that has nothing cached and nothing in flight
+     */
+    private void release(int pointId, PointState state){
+        if((state.pending == 0)&&state.windows.isEmpty())
+            points.remove(pointId);
+    }
+
+    /**
+     * Copy a result list for the cache
+     */
+    static List<PointValueTime> copy(List<PointValueTime> values){
+        return Collections.unmodifiableList(new ArrayList<PointValueTime>(values));
+    }
+
+    static class PointState {
+        long version;
+        int pending;
+        final List<Window> windows = new ArrayList<Window>(4);
+    }
+
+    static class Ticket {
+        final Key key;
+        final long version;
+
+        Ticket(Key key, long version){
+            this.key = key;
+            this.version = version;
+        }
+    }
+
+    static class Window {
+        final Key key;
+        final Object result;
+        final int weight;
+
+        Window(Key key, Object result, int weight){
+            this.key = key;
+            this.result = result;
+            this.weight = weight;
+        }
+    }
+
+    static class Key {
+        final int type;
+        final int pointId;
+        final long from;
+        final long to;
+
+        Key(int type, int pointId, long from, long to){
+            this.type = type;
+            this.pointId = pointId;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Could a change at this time alter the result of the query
+         */
+        boolean contains(long time){
+            switch(type){
+            case BETWEEN:
+                return (time >= from)&&(time < to);
+            case BEFORE:
+                return time < from;
+            case AT:
+                return time == from;
+            case AFTER:
+                return time >= from;
+            default:
+                return true;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 31 * type + pointId;
+            result = 31 * result + (int)(from ^ (from >>> 32));
+            return 31 * result + (int)(to ^ (to >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key))
+                return false;
+            Key other = (Key)obj;
+            return (type == other.type)&&(pointId == other.pointId)&&(from == other.from)&&(to == other.to);
+        }
+    }
+}
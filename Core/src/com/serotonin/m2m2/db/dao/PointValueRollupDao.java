@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+
+import com.serotonin.db.MappedRowCallback;
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueRollup;
+
+/**
+ * Access to the pointValueRollups table, only rollups with at least one value are stored.
+ */
+public class PointValueRollupDao extends BaseDao {
+
+    private static final String ROLLUP_SELECT = "select ts, valueCount, total, integral, firstValue, firstTime, "
+            + "lastValue, lastTime, minimumValue, minimumTime, maximumValue, maximumTime from pointValueRollups";
+    private static final String ROLLUP_INSERT = "insert into pointValueRollups (dataPointId, rollupPeriod, ts, "
+            + "valueCount, total, integral, firstValue, firstTime, lastValue, lastTime, minimumValue, minimumTime, "
+            + "maximumValue, maximumTime) values (?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+
+    /**
+     * Rollups of a period length starting in the time range, in time order
+     */
+    public void getRollups(int dataPointId, final long period, long from, long to,
+            final MappedRowCallback<NumericPointValueRollup> callback) {
+        ejt.query(ROLLUP_SELECT + " where dataPointId=? and rollupPeriod=? and ts>=? and ts<? order by ts",
+                new Object[] { dataPointId, period, from, to }, new RowCallbackHandler() {
+                    private int rowNum;
+
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        callback.row(new NumericPointValueRollup(period, rs.getLong(1), rs.getInt(2), rs
+                                .getDouble(3), rs.getDouble(4), rs.getDouble(5), rs.getLong(6), rs.getDouble(7), rs
+                                .getLong(8), rs.getDouble(9), rs.getLong(10), rs.getDouble(11), rs.getLong(12)),
+                                rowNum++);
+                    }
+                });
+    }
+
+    public List<NumericPointValueRollup> getRollups(int dataPointId, long period, long from, long to) {
+        final List<NumericPointValueRollup> rollups = new ArrayList<>();
+        getRollups(dataPointId, period, from, to, new MappedRowCallback<NumericPointValueRollup>() {
+            @Override
+            public void row(NumericPointValueRollup rollup, int rowNum) {
+                rollups.add(rollup);
+            }
+        });
+        return rollups;
+    }
+
+    /**
+     * @return start time of the latest stored rollup of the period length or Long.MIN_VALUE if there are none
+     */
+    public long getLatestRollupTime(int dataPointId, long period) {
+        return ejt.queryForLong("select max(ts) from pointValueRollups where dataPointId=? and rollupPeriod=?",
+                new Object[] { dataPointId, period }, Long.MIN_VALUE);
+    }
+
+    public long getEarliestRollupTime(int dataPointId, long period) {
+        return ejt.queryForLong("select min(ts) from pointValueRollups where dataPointId=? and rollupPeriod=?",
+                new Object[] { dataPointId, period }, Long.MIN_VALUE);
+    }
+
+    /**
+     * Replace the rollups of the period length starting in the time range
+     */
+    public void replaceRollups(final int dataPointId, final long period, final long from, final long to,
+            final List<NumericPointValueRollup> rollups) {
+        getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                ejt.update("delete from pointValueRollups where dataPointId=? and rollupPeriod=? and ts>=? and ts<?",
+                        new Object[] { dataPointId, period, from, to });
+                if (rollups.isEmpty())
+                    return;
+                ejt.batchUpdate(ROLLUP_INSERT, new BatchPreparedStatementSetter() {
+                    @Override
+                    public int getBatchSize() {
+                        return rollups.size();
+                    }
+
+                    @Override
+                    public void setValues(PreparedStatement ps, int i) throws SQLException {
+                        NumericPointValueRollup rollup = rollups.get(i);
+                        ps.setInt(1, dataPointId);
+                        ps.setInt(2, (int) period);
+                        ps.setLong(3, rollup.getStartTime());
+                        ps.setInt(4, rollup.getCount());
+                        ps.setDouble(5, rollup.getSum());
+                        ps.setDouble(6, rollup.getIntegral());
+                        ps.setDouble(7, rollup.getFirstValue());
+                        ps.setLong(8, rollup.getFirstTime());
+                        ps.setDouble(9, rollup.getLastValue());
+                        ps.setLong(10, rollup.getLastTime());
+                        ps.setDouble(11, rollup.getMinimumValue());
+                        ps.setLong(12, rollup.getMinimumTime());
+                        ps.setDouble(13, rollup.getMaximumValue());
+                        ps.setLong(14, rollup.getMaximumTime());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Delete the rollups of the period length starting before the time
+     */
+    public void deleteRollupsBefore(int dataPointId, long period, long time) {
+        ejt.update("delete from pointValueRollups where dataPointId=? and rollupPeriod=? and ts<?", new Object[] {
+                dataPointId, period, time });
+    }
+
+    public void deleteRollups(int dataPointId) {
+        ejt.update("delete from pointValueRollups where dataPointId=?", new Object[] { dataPointId });
+    }
+
+    public void deleteAllRollups() {
+        ejt.update("delete from pointValueRollups");
+    }
+
+    public void deleteOrphanedRollups() {
+        ejt.update("delete from pointValueRollups where dataPointId not in (select id from dataPoints)");
+    }
+}
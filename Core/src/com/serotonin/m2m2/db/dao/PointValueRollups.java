@@ -0,0 +1,825 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static com.serotonin.m2m2.rt.dataImage.NumericPointValueRollup.ceil;
+import static com.serotonin.m2m2.rt.dataImage.NumericPointValueRollup.floor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.serotonin.db.MappedRowCallback;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueRollup;
+import com.serotonin.m2m2.rt.maint.work.WorkItem;
+import com.serotonin.timer.FixedRateTrigger;
+import com.serotonin.timer.TimerTask;
+
+/**
+ * Maintains minute, hour and day rollups of the numeric values of every point in the pointValueRollups table
+ * and reads them back for long range statistics.
+ *
+ * PointValueDaoSQL reports every write and delete here once it is in the database, which only marks the minute
+ * of the value. A low priority job then rolls up the minutes that have closed since the last run from the raw
+ * values, the hours from the minutes and the days from the hours. A value written behind the rollups only causes
+ * the minute, hour and day containing it to be rebuilt, at most db.pointValueRollups.rebuildDays of raw values
+ * per point per run, queries read the raw values for them meanwhile. Only points with numeric values are rolled up.
+ *
+ * Values written before the rollups of a point started aren't rolled up, the rollups start at the minute the job
+ * first sees a numeric value of the point and everything before that is read from the raw values. For each point
+ * and period length the rollups are complete from that time up to a time, everything outside is read from the raw
+ * values. No rollups are stored outside that range so it can be recovered after a restart from the earliest and
+ * latest rollup.
+ *
+ * Disabling the rollups leaves the stored ones alone, the first change while disabled is recorded in the system
+ * settings and they are dropped when the rollups are enabled again.
+ *
+ * Configurable via env.properties: db.pointValueRollups.enabled, db.pointValueRollups.interval,
+ * db.pointValueRollups.rebuildDays
+ */
+public class PointValueRollups {
+
+    private static final Log LOG = LogFactory.getLog(PointValueRollups.class);
+
+    public static final long MINUTE = 60000L;
+    public static final long HOUR = 60L * MINUTE;
+    public static final long DAY = 24L * HOUR;
+
+    //Finest first, each period is rolled up from the one before it
+    static final long[] PERIODS = {MINUTE, HOUR, DAY};
+
+    //Most separate ranges of changed minutes kept per point, beyond that they are merged into one
+    static final int MAX_RANGES = 1000;
+
+    private static volatile PointValueRollups instance;
+
+    private final boolean enabled;
+    private final long interval;
+    private final long rebuildPeriod;
+    private final Map<Integer, PointState> points = new ConcurrentHashMap<Integer, PointState>();
+    //Points with values written since they were last rolled up
+    private final Set<Integer> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile boolean scheduled;
+    //Enabled: the stored rollups were checked for changes made while disabled. Disabled: those changes were recorded
+    private volatile boolean settingChecked;
+    private PointValueRollupDao dao;
+
+    public static PointValueRollups instance(){
+        if(instance == null){
+            synchronized(PointValueRollups.class){
+                if(instance == null){
+                    instance = new PointValueRollups(
+                            Common.envProps.getBoolean("db.pointValueRollups.enabled", false),
+                            Common.envProps.getInt("db.pointValueRollups.interval", 60) * 1000L,
+                            Common.envProps.getInt("db.pointValueRollups.rebuildDays", 7) * DAY);
+                }
+            }
+        }
+        return instance;
+    }
+
+    PointValueRollups(boolean enabled, long interval, long rebuildPeriod){
+        this.enabled = enabled;
+        this.interval = Math.max(1000L, interval);
+        this.rebuildPeriod = Math.max(DAY, rebuildPeriod);
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * A numeric value of the point at this time was inserted or updated
+     * @param pointId
+     * @param time
+     */
+    public void pointValueChanged(int pointId, long time){
+        changed(pointId, time, true);
+    }
+
+    /**
+     * A value of the point at this time was deleted or replaced by one that isn't numeric, the rollups are only
+     * rebuilt if the point has any
+     * @param pointId
+     * @param time
+     */
+    public void pointValueDeleted(int pointId, long time){
+        changed(pointId, time, false);
+    }
+
+    /**
+     * Only the minute of the value is marked, the job rebuilds the minute, hour and day containing it if they are
+     * already rolled up and queries read the raw values for them until then
+     */
+    private void changed(int pointId, long time, boolean numeric){
+        if(!enabled){
+            recordDisabledChange();
+            return;
+        }
+        PointState state = getState(pointId);
+        synchronized(state){
+            if(numeric)
+                state.numeric = true;
+            long minute = floor(time, MINUTE);
+            addRange(state.changed, minute, minute + MINUTE);
+        }
+        dirty.add(pointId);
+        schedule();
+    }
+
+    /**
+     * Any number of values of the point changed, its rollups are dropped. They start again from the first value
+     * once a numeric value is written.
+     * @param pointId
+     */
+    public void pointValuesChanged(int pointId){
+        if(!enabled){
+            recordDisabledChange();
+            return;
+        }
+        PointState state = getState(pointId);
+        synchronized(state){
+            deleteRollups(pointId);
+            state.reset();
+        }
+    }
+
+    /**
+     * The values of the point before the time were deleted. The job drops the rollups of periods that are entirely
+     * before the time and rebuilds those part way through it, queries read the raw values before it until then.
+     * @param pointId
+     * @param time
+     */
+    public void pointValuesDeletedBefore(int pointId, long time){
+        pointValuesDeletedBefore(Collections.singletonList(pointId), time);
+    }
+
+    /**
+     * The values of the points before the time were deleted
+     * @param pointIds
+     * @param time
+     */
+    public void pointValuesDeletedBefore(List<Integer> pointIds, long time){
+        if(!enabled){
+            recordDisabledChange();
+            return;
+        }
+        for(Integer pointId : pointIds){
+            PointState state = getState(pointId);
+            synchronized(state){
+                state.deletedBefore = Math.max(state.deletedBefore, time);
+            }
+        }
+        dirty.addAll(pointIds);
+        schedule();
+    }
+
+    /**
+     * Values of any point changed, all rollups are dropped. They come back as points are written.
+     */
+    public synchronized void clear(){
+        if(!enabled){
+            recordDisabledChange();
+            return;
+        }
+        for(PointState state : points.values()){
+            synchronized(state){
+                state.reset();
+            }
+        }
+        deleteAllRollups();
+    }
+
+    /**
+     * Stream the numeric values of a point between bucket boundaries in time order. Whole minutes, hours and days
+     * that are covered by the rollups are handed over as rollups and the raw values everywhere else. A rollup never
+     * spans a bucket boundary.
+     *
+     * @param pointId
+     * @param boundaries start time of each bucket followed by the end time, ascending
+     * @param callback
+     */
+    public void query(int pointId, long[] boundaries, final NumericPointValueRollupCallback callback){
+        long[] validFrom = new long[PERIODS.length];
+        long[] validTo = new long[PERIODS.length];
+        TreeMap<Long, Long> stale = new TreeMap<Long, Long>();
+        getValid(pointId, validFrom, validTo, stale);
+
+        List<Segment> segments = new ArrayList<Segment>();
+        for(int i=0; i<boundaries.length - 1; i++)
+            split(boundaries[i], boundaries[i + 1], PERIODS.length - 1, validFrom, validTo, stale, segments);
+
+        MappedRowCallback<NumericPointValueRollup> rollupCallback = new MappedRowCallback<NumericPointValueRollup>(){
+            @Override
+            public void row(NumericPointValueRollup rollup, int rowNum) {
+                callback.rollup(rollup);
+            }
+        };
+        for(Segment segment : segments){
+            if(segment.level < 0)
+                queryValues(pointId, segment.from, segment.to, callback);
+            else
+                queryRollups(pointId, PERIODS[segment.level], segment.from, segment.to, rollupCallback);
+        }
+    }
+
+    /**
+     * Split a bucket into the coarsest whole periods that have rollups, with finer periods or raw values either side.
+     * Periods with values written since they were rolled up are split like a bucket of their own.
+     */
+    private void split(long from, long to, int level, long[] validFrom, long[] validTo, TreeMap<Long, Long> stale,
+            List<Segment> segments){
+        if(from >= to)
+            return;
+        for(int i=level; i>=0; i--){
+            long period = PERIODS[i];
+            long start = Math.max(ceil(from, period), validFrom[i]);
+            long end = floor(Math.min(to, validTo[i]), period);
+            if(start < end){
+                Map.Entry<Long, Long> range = stale.floorEntry(start);
+                if((range == null)||(range.getValue() <= start))
+                    range = stale.higherEntry(start);
+                if((range != null)&&(range.getKey() < end)){
+                    long staleFrom = Math.max(start, floor(range.getKey(), period));
+                    long staleTo = Math.min(end, ceil(range.getValue(), period));
+                    split(from, staleFrom, i, validFrom, validTo, stale, segments);
+                    split(staleFrom, staleTo, i - 1, validFrom, validTo, stale, segments);
+                    split(staleTo, to, i, validFrom, validTo, stale, segments);
+                    return;
+                }
+                split(from, start, i - 1, validFrom, validTo, stale, segments);
+                add(segments, i, start, end);
+                split(end, to, i - 1, validFrom, validTo, stale, segments);
+                return;
+            }
+        }
+        add(segments, -1, from, to);
+    }
+
+    private void add(List<Segment> segments, int level, long from, long to){
+        //Carry on the previous query where possible
+        if(!segments.isEmpty()){
+            Segment last = segments.get(segments.size() - 1);
+            if((last.level == level)&&(last.to == from)){
+                last.to = to;
+                return;
+            }
+        }
+        segments.add(new Segment(level, from, to));
+    }
+
+    /**
+     * Roll up the points that were written since the last run
+     * @param now
+     */
+    void process(long now){
+        if(!settingChecked)
+            checkStoredRollups();
+        for(Integer pointId : new ArrayList<Integer>(dirty)){
+            dirty.remove(pointId);
+            try{
+                if(!process(pointId, now))
+                    dirty.add(pointId);
+            }catch(RuntimeException e){
+                LOG.error("Failed to roll up the values of point " + pointId, e);
+                dirty.add(pointId);
+            }
+        }
+    }
+
+    /**
+     * @return true if the rollups of the point are up to date
+     */
+    boolean process(int pointId, long now){
+        PointState state = getState(pointId);
+        long version;
+        long[] completeFrom;
+        long[] completeTo;
+        TreeMap<Long, Long> changed;
+        long deletedBefore;
+        synchronized(state){
+            load(pointId, state);
+            version = state.version;
+            changed = state.changed;
+            state.changed = new TreeMap<Long, Long>();
+            deletedBefore = state.deletedBefore;
+            state.deletedBefore = Long.MIN_VALUE;
+            //No numeric values written and nothing rolled up, e.g. a value of a binary point was deleted
+            if(!state.numeric && (state.completeTo[0] == Long.MIN_VALUE))
+                return true;
+            //The rollups start now, the values before are read raw
+            if(state.completeTo[0] == Long.MIN_VALUE)
+                state.start(floor(now, MINUTE));
+            completeFrom = state.completeFrom.clone();
+            completeTo = state.completeTo.clone();
+            state.processing = changed;
+            state.purging = deletedBefore;
+        }
+
+        boolean purged = false;
+        try{
+            if(deletedBefore != Long.MIN_VALUE)
+                purge(pointId, state, version, completeFrom, completeTo, deletedBefore);
+            purged = true;
+
+            //Periods written behind the rollups first, then the periods that closed since the last run
+            boolean upToDate = rebuild(pointId, state, version, completeFrom, completeTo, changed);
+            //Minutes are rolled up to now and each coarser period to where the finer one is complete
+            long limit = now;
+            for(int i=0; i<PERIODS.length; i++){
+                long period = PERIODS[i];
+                long start = completeTo[i];
+                long end = floor(limit, period);
+                if((i == 0)&&(end - start > rebuildPeriod)){
+                    end = start + rebuildPeriod;
+                    upToDate = false;
+                }
+
+                if(start >= end){
+                    //Nothing new to roll up
+                    limit = completeTo[i];
+                    continue;
+                }
+                limit = commit(pointId, state, version, i, start, end, rollup(pointId, i, start, end));
+            }
+            return upToDate;
+        }finally{
+            synchronized(state){
+                //Whatever wasn't rebuilt is done by the next run
+                for(Map.Entry<Long, Long> range : changed.entrySet())
+                    addRange(state.changed, range.getKey(), range.getValue());
+                state.processing = new TreeMap<Long, Long>();
+                if(!purged)
+                    state.deletedBefore = Math.max(state.deletedBefore, deletedBefore);
+                state.purging = Long.MIN_VALUE;
+                //Reset while rolling up, start again from where it is complete now
+                if(state.version != version)
+                    dirty.add(pointId);
+            }
+        }
+    }
+
+    /**
+     * Drop the rollups of periods that are entirely before the values deleted from the start of the point and
+     * rebuild those part way through the deleted values
+     */
+    private void purge(int pointId, PointState state, long version, long[] completeFrom, long[] completeTo,
+            long time){
+        for(int i=0; i<PERIODS.length; i++){
+            long period = PERIODS[i];
+            long start = floor(time, period);
+            //Nothing rolled up after the time, or the rollups start after it
+            if((completeTo[i] <= start)||(completeFrom[i] > start))
+                continue;
+            synchronized(state){
+                if(state.version != version)
+                    return;
+                deleteRollupsBefore(pointId, period, start);
+            }
+            if(start < time)
+                replace(pointId, state, version, i, start, start + period);
+        }
+    }
+
+    /**
+     * Roll up again the minutes, hours and days with values written since they were rolled up, at most
+     * rebuildPeriod of minutes per run. A range is only dropped once every period length is rebuilt.
+     * @return true if there are none left
+     */
+    private boolean rebuild(int pointId, PointState state, long version, long[] completeFrom, long[] completeTo,
+            TreeMap<Long, Long> ranges){
+        long remaining = rebuildPeriod;
+        while(true){
+            Map.Entry<Long, Long> range;
+            synchronized(state){
+                range = ranges.firstEntry();
+            }
+            if(range == null)
+                return true;
+            if(remaining <= 0)
+                return false;
+
+            long from = range.getKey();
+            long to = Math.min(range.getValue(), from + remaining);
+            //Anything after the minute rollups is rolled up for the first time
+            long rebuildTo = Math.min(to, completeTo[0]);
+            if(from < rebuildTo){
+                for(int i=0; i<PERIODS.length; i++){
+                    long period = PERIODS[i];
+                    long start = Math.max(floor(from, period), completeFrom[i]);
+                    long end = Math.min(ceil(rebuildTo, period), completeTo[i]);
+                    if(start < end)
+                        replace(pointId, state, version, i, start, end);
+                }
+                remaining -= rebuildTo - from;
+            }
+
+            synchronized(state){
+                ranges.remove(from);
+                if(to < range.getValue())
+                    ranges.put(to, range.getValue());
+            }
+        }
+    }
+
+    /**
+     * Replace the rollups of a range unless they were reset while computing
+     */
+    private void replace(int pointId, PointState state, long version, int level, long from, long to){
+        List<NumericPointValueRollup> rollups = rollup(pointId, level, from, to);
+        synchronized(state){
+            if(state.version == version)
+                replaceRollups(pointId, PERIODS[level], from, to, rollups);
+        }
+    }
+
+    /**
+     * Store the rollups computed for the range unless the values they came from changed meanwhile
+     * @return the time the rollups of the period are now complete to
+     */
+    private long commit(int pointId, PointState state, long version, int level, long start, long end,
+            List<NumericPointValueRollup> rollups){
+        long period = PERIODS[level];
+        synchronized(state){
+            //Reset while computing, it will be redone
+            if(state.version != version)
+                return state.completeTo[level];
+
+            //Only keep the rollups before any value written while computing and within the finer period's rollups
+            long validTo = Math.min(end, floor(state.firstChange(start), period));
+            if(level > 0)
+                validTo = Math.min(validTo, floor(state.completeTo[level - 1], period));
+            validTo = Math.max(start, validTo);
+            int size = rollups.size();
+            while((size > 0)&&(rollups.get(size - 1).getStartTime() >= validTo))
+                size--;
+
+            if(size > 0)
+                replaceRollups(pointId, period, start, Long.MAX_VALUE, rollups.subList(0, size));
+            state.completeTo[level] = validTo;
+            return validTo;
+        }
+    }
+
+    /**
+     * Roll up a range from the raw values or from the stored rollups of the next finer period
+     */
+    private List<NumericPointValueRollup> rollup(int pointId, int level, long from, long to){
+        final long period = PERIODS[level];
+        final List<NumericPointValueRollup> rollups = new ArrayList<NumericPointValueRollup>();
+        if(level == 0){
+            queryValues(pointId, from, to, new NumericPointValueCallback(){
+                private NumericPointValueRollup current;
+
+                @Override
+                public void row(long time, double value, int rowNum) {
+                    if((current == null)||(time >= current.getEndTime())){
+                        current = new NumericPointValueRollup(period, floor(time, period));
+                        rollups.add(current);
+                    }
+                    current.add(value, time);
+                }
+            });
+        }else{
+            queryRollups(pointId, PERIODS[level - 1], from, to, new MappedRowCallback<NumericPointValueRollup>(){
+                private NumericPointValueRollup current;
+
+                @Override
+                public void row(NumericPointValueRollup rollup, int rowNum) {
+                    if((current == null)||(rollup.getStartTime() >= current.getEndTime())){
+                        current = new NumericPointValueRollup(period, floor(rollup.getStartTime(), period));
+                        rollups.add(current);
+                    }
+                    current.add(rollup);
+                }
+            });
+        }
+        return rollups;
+    }
+
+    /**
+     * Read the time before which the stored rollups of each period can be used and the ranges of minutes written
+     * since they were rolled up
+     */
+    void getValid(int pointId, long[] validFrom, long[] validTo, TreeMap<Long, Long> stale){
+        Arrays.fill(validFrom, Long.MIN_VALUE);
+        Arrays.fill(validTo, Long.MIN_VALUE);
+        //Until the first run has checked for changes made while disabled the raw values are read
+        if(!enabled || !settingChecked)
+            return;
+        PointState state = getState(pointId);
+        synchronized(state){
+            load(pointId, state);
+            System.arraycopy(state.completeFrom, 0, validFrom, 0, validFrom.length);
+            System.arraycopy(state.completeTo, 0, validTo, 0, validTo.length);
+            stale.putAll(state.changed);
+            for(Map.Entry<Long, Long> range : state.processing.entrySet())
+                addRange(stale, range.getKey(), range.getValue());
+            long deletedBefore = Math.max(state.deletedBefore, state.purging);
+            if(deletedBefore != Long.MIN_VALUE)
+                addRange(stale, Long.MIN_VALUE, deletedBefore);
+        }
+    }
+
+    /**
+     * Add a range to ranges that don't overlap, merging it with those it overlaps or touches. When there are too
+     * many they are merged into one.
+     */
+    static void addRange(TreeMap<Long, Long> ranges, long from, long to){
+        Map.Entry<Long, Long> before = ranges.floorEntry(from);
+        if((before != null)&&(before.getValue() >= from)){
+            if(before.getValue() >= to)
+                return;
+            from = before.getKey();
+        }
+        Map.Entry<Long, Long> after = ranges.ceilingEntry(from);
+        while((after != null)&&(after.getKey() <= to)){
+            to = Math.max(to, after.getValue());
+            ranges.remove(after.getKey());
+            after = ranges.higherEntry(after.getKey());
+        }
+        ranges.put(from, to);
+
+        if(ranges.size() > MAX_RANGES){
+            long first = ranges.firstKey();
+            long last = ranges.lastEntry().getValue();
+            ranges.clear();
+            ranges.put(first, last);
+        }
+    }
+
+    /**
+     * Rollups left from when they were disabled would not have seen the changes made since, drop them
+     */
+    private void checkStoredRollups(){
+        if(!isRollupsCurrent()){
+            LOG.info("Point values changed while the rollups were disabled, dropping the stored rollups");
+            deleteAllRollups();
+            for(PointState state : points.values()){
+                synchronized(state){
+                    state.loaded = false;
+                    state.version++;
+                }
+            }
+            setRollupsCurrent(true);
+        }
+        settingChecked = true;
+    }
+
+    /**
+     * Values changed while disabled, record once that the stored rollups are out of date. Done in the background
+     * so the write path doesn't wait on it.
+     */
+    private void recordDisabledChange(){
+        if(settingChecked)
+            return;
+        synchronized(this){
+            if(settingChecked)
+                return;
+            settingChecked = true;
+        }
+        WorkItem item = new WorkItem(){
+            @Override
+            public void execute() {
+                setRollupsCurrent(false);
+            }
+
+            @Override
+            public int getPriority() {
+                return WorkItem.PRIORITY_LOW;
+            }
+
+            @Override
+            public String getDescription() {
+                return "Point value rollups out of date";
+            }
+        };
+        if(Common.backgroundProcessing == null)
+            item.execute();
+        else
+            Common.backgroundProcessing.addWorkItem(item);
+    }
+
+    private PointState getState(int pointId){
+        PointState state = points.get(pointId);
+        if(state == null){
+            synchronized(this){
+                state = points.get(pointId);
+                if(state == null){
+                    state = new PointState();
+                    points.put(pointId, state);
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Recover the range the rollups of a point are complete over from the earliest and latest stored ones, hold the
+     * state lock
+     */
+    private void load(int pointId, PointState state){
+        if(state.loaded)
+            return;
+        state.loaded = true;
+        long earliest = getEarliestRollupTime(pointId, MINUTE);
+        if(earliest == Long.MIN_VALUE){
+            //Coarser rollups without the minutes they came from, start again when the next value is written
+            if(getLatestRollupTime(pointId, PERIODS[PERIODS.length - 1]) != Long.MIN_VALUE)
+                deleteRollups(pointId);
+            return;
+        }
+        state.start(earliest);
+        for(int i=0; i<PERIODS.length; i++){
+            long latest = getLatestRollupTime(pointId, PERIODS[i]);
+            if(latest == Long.MIN_VALUE)
+                continue;
+            //The first hour or day can start before the first minute with values
+            state.completeFrom[i] = Math.min(state.completeFrom[i], getEarliestRollupTime(pointId, PERIODS[i]));
+            state.completeTo[i] = latest + PERIODS[i];
+        }
+    }
+
+    private void schedule(){
+        if(scheduled || (Common.timer == null) || !Common.timer.isInitialized())
+            return;
+        synchronized(this){
+            if(!scheduled){
+                Common.timer.schedule(new RollupTask());
+                scheduled = true;
+            }
+        }
+    }
+
+    //
+    // Data access, overridden in tests
+    //
+    protected void queryValues(int pointId, long from, long to, NumericPointValueCallback callback){
+        BulkPointValues.getNumericPointValuesBetween(Common.databaseProxy.newPointValueDao(), pointId, from, to, callback);
+    }
+
+    protected void queryRollups(int pointId, long period, long from, long to,
+            MappedRowCallback<NumericPointValueRollup> callback){
+        getDao().getRollups(pointId, period, from, to, callback);
+    }
+
+    protected long getEarliestRollupTime(int pointId, long period){
+        return getDao().getEarliestRollupTime(pointId, period);
+    }
+
+    protected long getLatestRollupTime(int pointId, long period){
+        return getDao().getLatestRollupTime(pointId, period);
+    }
+
+    protected void replaceRollups(int pointId, long period, long from, long to, List<NumericPointValueRollup> rollups){
+        getDao().replaceRollups(pointId, period, from, to, rollups);
+    }
+
+    protected void deleteRollups(int pointId){
+        getDao().deleteRollups(pointId);
+    }
+
+    protected void deleteRollupsBefore(int pointId, long period, long time){
+        getDao().deleteRollupsBefore(pointId, period, time);
+    }
+
+    protected void deleteAllRollups(){
+        getDao().deleteAllRollups();
+    }
+
+    /**
+     * @return false if values changed while the rollups were disabled
+     */
+    protected boolean isRollupsCurrent(){
+        return SystemSettingsDao.getBooleanValue(SystemSettingsDao.POINT_VALUE_ROLLUPS_CURRENT, true);
+    }
+
+    protected void setRollupsCurrent(boolean current){
+        new SystemSettingsDao().setBooleanValue(SystemSettingsDao.POINT_VALUE_ROLLUPS_CURRENT, current);
+    }
+
+    private synchronized PointValueRollupDao getDao(){
+        if(dao == null)
+            dao = new PointValueRollupDao();
+        return dao;
+    }
+
+    static class PointState {
+        boolean loaded;
+        //Start of the first period of each length that is rolled up, Long.MIN_VALUE until the rollups start
+        final long[] completeFrom = new long[PERIODS.length];
+        //Start of the first period of each length without a stored rollup
+        final long[] completeTo = new long[PERIODS.length];
+        //Ranges of whole minutes with values written since the last run, by start time
+        TreeMap<Long, Long> changed = new TreeMap<Long, Long>();
+        //Ranges being rebuilt by the current run
+        TreeMap<Long, Long> processing = new TreeMap<Long, Long>();
+        //Values before the time were deleted since the last run, Long.MIN_VALUE if none
+        long deletedBefore = Long.MIN_VALUE;
+        //Values before the time are being purged from the rollups by the current run
+        long purging = Long.MIN_VALUE;
+        //A numeric value was written, so the values are rolled up even if nothing is stored yet
+        boolean numeric;
+        //Changes when the stored rollups are reset underneath a run
+        long version;
+
+        PointState(){
+            Arrays.fill(completeFrom, Long.MIN_VALUE);
+            Arrays.fill(completeTo, Long.MIN_VALUE);
+        }
+
+        /**
+         * Start the rollups of each period length with the first whole period from the time
+         */
+        void start(long time){
+            for(int i=0; i<PERIODS.length; i++)
+                completeFrom[i] = completeTo[i] = ceil(time, PERIODS[i]);
+        }
+
+        /**
+         * @return the first time at or after the time in a range written since the run started, Long.MAX_VALUE if
+         *         there is none
+         */
+        long firstChange(long time){
+            Map.Entry<Long, Long> range = changed.floorEntry(time);
+            if((range != null)&&(range.getValue() > time))
+                return time;
+            Long next = changed.higherKey(time);
+            return next == null ? Long.MAX_VALUE : next;
+        }
+
+        void reset(){
+            loaded = true;
+            Arrays.fill(completeFrom, Long.MIN_VALUE);
+            Arrays.fill(completeTo, Long.MIN_VALUE);
+            changed.clear();
+            deletedBefore = Long.MIN_VALUE;
+            numeric = false;
+            version++;
+        }
+    }
+
+    static class Segment {
+        //Index into PERIODS, -1 for raw values
+        final int level;
+        final long from;
+        long to;
+
+        Segment(int level, long from, long to){
+            this.level = level;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    class RollupTask extends TimerTask {
+
+        RollupTask(){
+            super(new FixedRateTrigger(interval, interval));
+        }
+
+        @Override
+        public void run(long fireTime) {
+            //Don't queue up runs behind a long one
+            if(!running.compareAndSet(false, true))
+                return;
+            try{
+                Common.backgroundProcessing.addWorkItem(new WorkItem(){
+                    @Override
+                    public void execute() {
+                        try{
+                            process(System.currentTimeMillis());
+                        }finally{
+                            running.set(false);
+                        }
+                    }
+
+                    @Override
+                    public int getPriority() {
+                        return WorkItem.PRIORITY_LOW;
+                    }
+
+                    @Override
+                    public String getDescription() {
+                        return "Point value rollups";
+                    }
+                });
+            }catch(RuntimeException e){
+                running.set(false);
+                throw e;
+            }
+        }
+    }
+}
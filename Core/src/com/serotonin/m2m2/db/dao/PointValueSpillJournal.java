@@ -0,0 +1,386 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.i18n.TranslatableMessageParseException;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.SetPointSource;
+import com.serotonin.m2m2.rt.dataImage.types.AlphanumericValue;
+import com.serotonin.m2m2.rt.dataImage.types.BinaryValue;
+import com.serotonin.m2m2.rt.dataImage.types.DataValue;
+import com.serotonin.m2m2.rt.dataImage.types.ImageValue;
+import com.serotonin.m2m2.rt.dataImage.types.MultistateValue;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+import com.serotonin.m2m2.util.MappedSegmentJournal;
+import com.serotonin.monitor.IntegerMonitor;
+import com.serotonin.util.StringUtils;
+
+/**
+ * Append only, memory mapped journal of point values that could not be written to the
+ * SQL database. Values are held on disk so heap use stays flat no matter how long the
+ * database is unavailable and they survive a restart.
+ *
+ * Records are kept in a MappedSegmentJournal, fully read segments are deleted.
+ *
+ * Appending is safe from any thread, reading and acknowledging must be done by one
+ * thread at a time.
+ */
+public class PointValueSpillJournal {
+
+    private static final Log LOG = LogFactory.getLog(PointValueSpillJournal.class);
+
+    public static final String BACKLOG_BYTES_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueSpillJournal.BACKLOG_BYTES_MONITOR";
+    private static final IntegerMonitor BACKLOG_BYTES_MONITOR = new IntegerMonitor(BACKLOG_BYTES_MONITOR_ID,
+            "internal.monitor.POINT_VALUE_SPILL_BYTES");
+
+    public static final byte INSERT = 1;
+    public static final byte UPDATE = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_PREFIX = "spill-";
+
+    private static volatile PointValueSpillJournal instance;
+
+    /**
+     * Get the journal, opening it and any existing segments on first use
+     * @return
+     */
+    public static PointValueSpillJournal instance(){
+        if(instance == null){
+            synchronized(PointValueSpillJournal.class){
+                if(instance == null){
+                    String location = Common.envProps.getString("db.spill.location", Common.MA_HOME + "/work/pointValueSpill");
+                    instance = new PointValueSpillJournal(new File(StringUtils.replaceMacros(location, System.getProperties())),
+                            Common.envProps.getInt("db.spill.segmentSize", 8 * 1024 * 1024),
+                            Common.envProps.getLong("db.spill.maxBytes", 1024L * 1024L * 1024L));
+                    Common.MONITORED_VALUES.addIfMissingStatMonitor(BACKLOG_BYTES_MONITOR);
+                }
+            }
+        }
+        return instance;
+    }
+
+    private final MappedSegmentJournal journal;
+    private boolean full;
+    //Mirror of the journal size so the write path can check it without locking
+    private volatile long backlogBytes;
+
+    //Positions of the records returned by the last read() and not yet acknowledged
+    private long[] pendingPositions = new long[0];
+    private int acknowledged;
+
+    PointValueSpillJournal(File directory, int segmentSize, long maxBytes){
+        this.journal = new MappedSegmentJournal(directory, SEGMENT_PREFIX, segmentSize, maxBytes);
+        long backlog = journal.getBytes();
+        setBacklog(backlog);
+        if(backlog > 0)
+            LOG.info("Found " + backlog + " bytes of unsaved point values in " + directory.getAbsolutePath());
+    }
+
+    /**
+     * Append a point value to the journal, call force() for it to survive a crash
+     * @return false if the journal could not accept the value
+     */
+    public boolean append(byte operation, int pointId, PointValueTime pvt, SetPointSource source){
+        byte[] record = encode(operation, pointId, pvt, source);
+        synchronized(this){
+            if(!journal.append(record)){
+                if(!full)
+                    LOG.error("Point value spill journal is full at " + journal.getBytes() + " bytes, unsaved point values will be lost.");
+                full = true;
+                return false;
+            }
+            full = false;
+            setBacklog(journal.getBytes());
+            return true;
+        }
+    }
+
+    /**
+     * Read up to max records starting at the oldest unacknowledged record.
+     * The records remain in the journal until acknowledge() is called.
+     * @param max
+     * @return
+     */
+    public synchronized List<SpilledPointValue> read(int max){
+        List<MappedSegmentJournal.Record> records = journal.read(max);
+        List<SpilledPointValue> values = new ArrayList<SpilledPointValue>(records.size());
+        pendingPositions = new long[records.size()];
+        acknowledged = 0;
+        for(int i=0; i<records.size(); i++){
+            values.add(decode(records.get(i).getData()));
+            pendingPositions[i] = records.get(i).getPosition();
+        }
+        return values;
+    }
+
+    /**
+     * Remove the records returned by the last read() from the journal
+     */
+    public synchronized void acknowledge(){
+        acknowledge(pendingPositions.length);
+    }
+
+    /**
+     * Remove the first count records returned by the last read() from the journal, the rest stay in place
+     * to be read again
+     * @param count
+     */
+    public synchronized void acknowledge(int count){
+        count = Math.min(count, pendingPositions.length);
+        if(count <= acknowledged)
+            return;
+        journal.acknowledge(pendingPositions[count - 1]);
+        acknowledged = count;
+        setBacklog(journal.getBytes());
+    }
+
+    /**
+     * Write appended values and acknowledgements through to disk so they survive a crash
+     */
+    public void force(){
+        journal.force();
+    }
+
+    /**
+     * Flush and release the journal if it was opened, values appended afterwards are refused
+     */
+    public static void close(){
+        PointValueSpillJournal journal = instance;
+        if(journal != null)
+            journal.journal.close();
+    }
+
+    public boolean isEmpty(){
+        return backlogBytes == 0;
+    }
+
+    public long getBacklogBytes(){
+        return backlogBytes;
+    }
+
+    private void setBacklog(long bytes){
+        backlogBytes = bytes;
+        BACKLOG_BYTES_MONITOR.setValue(bytes > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)bytes);
+    }
+
+    /*
+     * Record format:
+     *  byte operation, int pointId, long time, int dataType, double dvalue, string svalue,
+     *  bytes imageData, string sourceType, int sourceId, string sourceMessage
+     */
+    static byte[] encode(byte operation, int pointId, PointValueTime pvt, SetPointSource source){
+        DataValue value = pvt.getValue();
+        int dataType = DataTypes.getDataType(value);
+        double dvalue = 0;
+        String svalue = null;
+        byte[] data = null;
+        if (dataType == DataTypes.IMAGE) {
+            ImageValue imageValue = (ImageValue) value;
+            dvalue = imageValue.getType();
+            if (imageValue.isSaved())
+                svalue = Long.toString(imageValue.getId());
+            else
+                data = imageValue.getData();
+        }
+        else if (value.hasDoubleRepresentation())
+            dvalue = value.getDoubleValue();
+        else
+            svalue = value.getStringValue();
+
+        byte[] svalueBytes = toBytes(svalue);
+        byte[] sourceTypeBytes = null;
+        byte[] sourceMessageBytes = null;
+        int sourceId = 0;
+        if(source != null){
+            sourceTypeBytes = toBytes(source.getSetPointSourceType());
+            sourceId = source.getSetPointSourceId();
+            sourceMessageBytes = toBytes(BaseDao.writeTranslatableMessage(source.getSetPointSourceMessage()));
+        }
+
+        int length = 1 + 4 + 8 + 4 + 8 + 4 + 4 + 1 + 4 + 4 + 4
+                + length(svalueBytes) + length(data) + length(sourceTypeBytes) + length(sourceMessageBytes);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(operation);
+        buffer.putInt(pointId);
+        buffer.putLong(pvt.getTime());
+        buffer.putInt(dataType);
+        buffer.putDouble(dvalue);
+        putBytes(buffer, svalueBytes);
+        putBytes(buffer, data);
+        buffer.put(source == null ? (byte)0 : (byte)1);
+        putBytes(buffer, sourceTypeBytes);
+        buffer.putInt(sourceId);
+        putBytes(buffer, sourceMessageBytes);
+        return buffer.array();
+    }
+
+    static SpilledPointValue decode(byte[] record){
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        byte operation = buffer.get();
+        int pointId = buffer.getInt();
+        long time = buffer.getLong();
+        int dataType = buffer.getInt();
+        double dvalue = buffer.getDouble();
+        String svalue = fromBytes(getBytes(buffer));
+        byte[] data = getBytes(buffer);
+        boolean hasSource = buffer.get() == 1;
+        String sourceType = fromBytes(getBytes(buffer));
+        int sourceId = buffer.getInt();
+        String sourceMessage = fromBytes(getBytes(buffer));
+
+        DataValue value;
+        switch(dataType){
+        case DataTypes.NUMERIC:
+            value = new NumericValue(dvalue);
+            break;
+        case DataTypes.BINARY:
+            value = new BinaryValue(dvalue == 1);
+            break;
+        case DataTypes.MULTISTATE:
+            value = new MultistateValue((int)dvalue);
+            break;
+        case DataTypes.ALPHANUMERIC:
+            value = new AlphanumericValue(svalue);
+            break;
+        case DataTypes.IMAGE:
+            if(data != null)
+                value = new ImageValue(data, (int)dvalue);
+            else
+                value = new ImageValue(Long.parseLong(svalue), (int)dvalue);
+            break;
+        default:
+            value = null;
+        }
+
+        SetPointSource source = null;
+        if(hasSource){
+            TranslatableMessage message = null;
+            if(sourceMessage != null){
+                try{
+                    message = TranslatableMessage.deserialize(sourceMessage);
+                }catch(TranslatableMessageParseException e){
+                    message = new TranslatableMessage("common.default", sourceMessage);
+                }
+            }
+            source = new SpilledSetPointSource(sourceType, sourceId, message);
+        }
+
+        return new SpilledPointValue(operation, pointId, new PointValueTime(value, time), source);
+    }
+
+    private static byte[] toBytes(String s){
+        if(s == null)
+            return null;
+        return s.getBytes(UTF8);
+    }
+
+    private static String fromBytes(byte[] b){
+        if(b == null)
+            return null;
+        return new String(b, UTF8);
+    }
+
+    private static int length(byte[] b){
+        return b == null ? 0 : b.length;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] b){
+        if(b == null){
+            buffer.putInt(-1);
+        }else{
+            buffer.putInt(b.length);
+            buffer.put(b);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer){
+        int length = buffer.getInt();
+        if(length < 0)
+            return null;
+        byte[] b = new byte[length];
+        buffer.get(b);
+        return b;
+    }
+
+    /**
+     * A point value insert or update read back from the journal
+     */
+    public static class SpilledPointValue {
+        private final byte operation;
+        private final int pointId;
+        private final PointValueTime pointValue;
+        private final SetPointSource source;
+
+        SpilledPointValue(byte operation, int pointId, PointValueTime pointValue, SetPointSource source){
+            this.operation = operation;
+            this.pointId = pointId;
+            this.pointValue = pointValue;
+            this.source = source;
+        }
+
+        public byte getOperation() {
+            return operation;
+        }
+
+        public int getPointId() {
+            return pointId;
+        }
+
+        public PointValueTime getPointValue() {
+            return pointValue;
+        }
+
+        public SetPointSource getSource() {
+            return source;
+        }
+    }
+
+    /**
+     * Holds the information of the original set point source that the annotation needs
+     */
+    static class SpilledSetPointSource implements SetPointSource {
+        private final String type;
+        private final int id;
+        private final TranslatableMessage message;
+
+        SpilledSetPointSource(String type, int id, TranslatableMessage message){
+            this.type = type;
+            this.id = id;
+            this.message = message;
+        }
+
+        @Override
+        public String getSetPointSourceType() {
+            return type;
+        }
+
+        @Override
+        public int getSetPointSourceId() {
+            return id;
+        }
+
+        @Override
+        public TranslatableMessage getSetPointSourceMessage() {
+            return message;
+        }
+
+        @Override
+        public void raiseRecursionFailureEvent() {
+            //No op, the set already happened
+        }
+    }
+}
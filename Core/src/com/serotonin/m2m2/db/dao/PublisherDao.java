@@ -139,6 +139,7 @@ public class PublisherDao extends BaseDao {
                 ejt2.update("delete from publishers where id=?", new Object[] { publisherId });
             }
         });
+        EventDao.clearEventHandlerCache();
     }
 
     public void deletePublisherType(final String publisherType) {
@@ -35,6 +35,10 @@ public class SystemSettingsDao extends BaseDao {
     // Database schema version
     public static final String DATABASE_SCHEMA_VERSION = "databaseSchemaVersion";
     public static final String NEW_INSTANCE = "newInstance";
+    // False once point values changed while the rollups were disabled, the stored rollups missed those changes
+    public static final String POINT_VALUE_ROLLUPS_CURRENT = "pointValueRollupsCurrent";
+    // Highest event id that may have been handed out, ids are never reused below it
+    public static final String EVENT_ID_HIGH_WATER = "eventIdHighWater";
 
     // Email settings
     public static final String EMAIL_SMTP_HOST = "emailSmtpHost";
@@ -7,9 +7,11 @@ package com.serotonin.m2m2.db.dao;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -86,6 +88,36 @@ public class UserDao extends AbstractBasicDao<User> {
                 new UserRowMapper());
     }
 
+    //Active users for the event raise path, dropped whenever a user is changed
+    private static volatile List<User> activeUsersCache;
+    private static final AtomicInteger activeUsersCacheVersion = new AtomicInteger();
+
+    /**
+     * The active users from memory, the same as getActiveUsers(). The list and the users are
+     * shared by all callers and must not be modified.
+     * 
+     * @return
+     */
+    public List<User> getCachedActiveUsers() {
+        List<User> users = activeUsersCache;
+        if (users == null) {
+            int version = activeUsersCacheVersion.get();
+            users = Collections.unmodifiableList(getActiveUsers());
+            //Only keep it if no user changed while it was loaded
+            if (activeUsersCacheVersion.get() == version)
+                activeUsersCache = users;
+        }
+        return users;
+    }
+
+    /**
+     * Drop the active users held in memory
+     */
+    public static void clearActiveUsersCache() {
+        activeUsersCacheVersion.incrementAndGet();
+        activeUsersCache = null;
+    }
+
     public void saveUser(final User user) {
         getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
             @Override
@@ -96,6 +128,7 @@ public class UserDao extends AbstractBasicDao<User> {
                     updateUser(user);
             }
         });
+        clearActiveUsersCache();
     }
 
     private static final String USER_INSERT = "INSERT INTO users (username, password, email, phone, " //
@@ -150,6 +183,8 @@ public class UserDao extends AbstractBasicDao<User> {
     }
 
     public void deleteUser(final int userId) {
+        //Queued events of the user would be written after its events are cleaned up
+        EventDao.flushEventWrites();
         getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
             @SuppressWarnings("synthetic-access")
             @Override
@@ -164,6 +199,7 @@ public class UserDao extends AbstractBasicDao<User> {
                 //TODO Make User Change Comparable... AuditEventType.raiseDeletedEvent(AuditEventType.TYPE_USER, user);
             }
         });
+        clearActiveUsersCache();
     }
 
     public void recordLogin(int userId) {
@@ -176,6 +212,7 @@ public class UserDao extends AbstractBasicDao<User> {
 
     public void saveMuted(int userId, boolean muted) {
         ejt.update("UPDATE users SET muted=? WHERE id=?", new Object[] { boolToChar(muted), userId });
+        clearActiveUsersCache();
     }
 
     //
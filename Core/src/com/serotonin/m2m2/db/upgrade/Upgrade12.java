@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.upgrade;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.serotonin.m2m2.db.DatabaseProxy;
+/**
+ * Upgrade to add the point value rollups table
+ */
+public class Upgrade12 extends DBUpgrade {
+
+    @Override
+    public void upgrade() throws Exception {
+        // Run the script.
+        Map<String, String[]> scripts = new HashMap<>();
+        scripts.put(DatabaseProxy.DatabaseType.DERBY.name(), derbyScript);
+        scripts.put(DatabaseProxy.DatabaseType.MYSQL.name(), mysqlScript);
+        scripts.put(DatabaseProxy.DatabaseType.MSSQL.name(), mssqlScript);
+        scripts.put(DatabaseProxy.DatabaseType.H2.name(), h2Script);
+        scripts.put(DatabaseProxy.DatabaseType.POSTGRES.name(), postgresScript);
+        runScript(scripts);
+    }
+
+    @Override
+    protected String getNewSchemaVersion() {
+        return "13";
+    }
+
+    private final String[] mssqlScript = { //
+    	"CREATE TABLE pointValueRollups (dataPointId int not null, rollupPeriod int not null, ts bigint not null, valueCount int not null, total float not null, integral float not null, firstValue float not null, firstTime bigint not null, lastValue float not null, lastTime bigint not null, minimumValue float not null, minimumTime bigint not null, maximumValue float not null, maximumTime bigint not null, primary key (dataPointId, rollupPeriod, ts));"
+    };
+    private final String[] derbyScript = { //
+    	"CREATE TABLE pointValueRollups (dataPointId int not null, rollupPeriod int not null, ts bigint not null, valueCount int not null, total double not null, integral double not null, firstValue double not null, firstTime bigint not null, lastValue double not null, lastTime bigint not null, minimumValue double not null, minimumTime bigint not null, maximumValue double not null, maximumTime bigint not null);",
+    	"ALTER TABLE pointValueRollups ADD CONSTRAINT pointValueRollupsPk PRIMARY KEY (dataPointId, rollupPeriod, ts);"
+    };    
+    private final String[] mysqlScript = { //
+    	"CREATE TABLE pointValueRollups (dataPointId int not null, rollupPeriod int not null, ts bigint not null, valueCount int not null, total double not null, integral double not null, firstValue double not null, firstTime bigint not null, lastValue double not null, lastTime bigint not null, minimumValue double not null, minimumTime bigint not null, maximumValue double not null, maximumTime bigint not null, primary key (dataPointId, rollupPeriod, ts))engine=InnoDB;"
+    };    
+
+    private final String[] h2Script = { //
+    	"CREATE TABLE pointValueRollups (dataPointId int not null, rollupPeriod int not null, ts bigint not null, valueCount int not null, total double not null, integral double not null, firstValue double not null, firstTime bigint not null, lastValue double not null, lastTime bigint not null, minimumValue double not null, minimumTime bigint not null, maximumValue double not null, maximumTime bigint not null, primary key (dataPointId, rollupPeriod, ts));"
+    };
+
+    private final String[] postgresScript = { //
+    	"CREATE TABLE pointValueRollups (dataPointId integer not null, rollupPeriod integer not null, ts bigint not null, valueCount integer not null, total double precision not null, integral double precision not null, firstValue double precision not null, firstTime bigint not null, lastValue double precision not null, lastTime bigint not null, minimumValue double precision not null, minimumTime bigint not null, maximumValue double precision not null, maximumTime bigint not null, primary key (dataPointId, rollupPeriod, ts));"
+    };
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.upgrade;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.serotonin.ShouldNeverHappenException;
+import com.serotonin.db.spring.ConnectionCallbackVoid;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.DatabaseProxy;
+/**
+ * Upgrade to add the indexes used by the chunked event purge, on the event comments
+ * and on the event active time where it was missing. Derby databases upgraded through
+ * Upgrade8 already have performance1 on the event active time so it is only added when
+ * no index starts with it.
+ */
+public class Upgrade13 extends DBUpgrade {
+
+    @Override
+    public void upgrade() throws Exception {
+        // Run the script.
+        boolean activeTsIndexed = isIndexed("events", "activeTs");
+        Map<String, String[]> scripts = new HashMap<>();
+        scripts.put(DatabaseProxy.DatabaseType.DERBY.name(), activeTsIndexed ? commentsScript : derbyScript);
+        scripts.put(DatabaseProxy.DatabaseType.MYSQL.name(), mysqlScript);
+        scripts.put(DatabaseProxy.DatabaseType.MSSQL.name(), activeTsIndexed ? commentsScript : mssqlScript);
+        scripts.put(DatabaseProxy.DatabaseType.H2.name(), commentsScript);
+        scripts.put(DatabaseProxy.DatabaseType.POSTGRES.name(), activeTsIndexed ? commentsScript : postgresScript);
+        runScript(scripts);
+    }
+
+    /**
+     * @return true if an index of the table starts with the column
+     */
+    boolean isIndexed(final String table, final String column) {
+        final boolean[] indexed = new boolean[1];
+        Common.databaseProxy.doInConnection(new ConnectionCallbackVoid() {
+            @Override
+            public void doInConnection(Connection conn) {
+                try {
+                    DatabaseMetaData meta = conn.getMetaData();
+                    // Names are kept upper case by Derby and lower case by Postgres
+                    for (String name : new String[] { table, table.toUpperCase(), table.toLowerCase() }) {
+                        try (ResultSet rs = meta.getIndexInfo(null, null, name, false, true)) {
+                            while (rs.next()) {
+                                if (rs.getShort("ORDINAL_POSITION") == 1
+                                        && column.equalsIgnoreCase(rs.getString("COLUMN_NAME")))
+                                    indexed[0] = true;
+                            }
+                        }
+                    }
+                }
+                catch (SQLException e) {
+                    throw new ShouldNeverHappenException(e);
+                }
+            }
+        });
+        return indexed[0];
+    }
+
+    @Override
+    protected String getNewSchemaVersion() {
+        return "14";
+    }
+
+    private final String[] mssqlScript = { //
+    	"CREATE INDEX userCommentsIdx1 ON userComments (commentType, typeKey);",
+    	"CREATE INDEX events_performance1 ON events (activeTs);"
+    };
+    private final String[] derbyScript = { //
+    	"CREATE INDEX userCommentsIdx1 ON userComments (commentType, typeKey);",
+    	"CREATE INDEX events_performance1 ON events (activeTs);"
+    };    
+    private final String[] mysqlScript = { //
+    	"ALTER TABLE userComments ADD INDEX userCommentsIdx1 (commentType, typeKey);"
+    };    
+
+    // H2 already has the active time index, the others only need this once they do
+    private final String[] commentsScript = { //
+    	"CREATE INDEX userCommentsIdx1 ON userComments (commentType, typeKey);"
+    };
+
+    private final String[] postgresScript = { //
+    	"CREATE INDEX userCommentsIdx1 ON userComments (commentType, typeKey);",
+    	"CREATE INDEX events_performance1 ON events (activeTs);"
+    };
+
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.upgrade;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.serotonin.m2m2.db.DatabaseProxy;
+/**
+ * Upgrade to add the version of the data column of the data points, so the decoded point cache
+ * can tell a changed point without reading its data.
+ */
+public class Upgrade14 extends DBUpgrade {
+
+    @Override
+    public void upgrade() throws Exception {
+        // Run the script.
+        Map<String, String[]> scripts = new HashMap<>();
+        scripts.put(DatabaseProxy.DatabaseType.DERBY.name(), script);
+        scripts.put(DatabaseProxy.DatabaseType.MYSQL.name(), script);
+        scripts.put(DatabaseProxy.DatabaseType.MSSQL.name(), mssqlScript);
+        scripts.put(DatabaseProxy.DatabaseType.H2.name(), script);
+        scripts.put(DatabaseProxy.DatabaseType.POSTGRES.name(), script);
+        runScript(scripts);
+    }
+
+    @Override
+    protected String getNewSchemaVersion() {
+        return "15";
+    }
+
+    private final String[] mssqlScript = { //
+    	"ALTER TABLE dataPoints ADD dataVersion INT DEFAULT 0 NOT NULL;"
+    };
+
+    private final String[] script = { //
+    	"ALTER TABLE dataPoints ADD COLUMN dataVersion INT DEFAULT 0 NOT NULL;"
+    };
+
+}
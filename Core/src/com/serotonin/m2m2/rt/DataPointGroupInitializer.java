@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.serotonin.m2m2.rt.dataImage.DataPointRT;
+import com.serotonin.m2m2.vo.DataPointVO;
+
+/**
+ * This class is used at startup to create and initialize the points of a data source in parallel.
+ *
+ * The points are split in halves on a fork/join pool until a part is no larger than the batch size,
+ * each part is started on one thread. Only the work of a point that doesn't depend on the other
+ * points is done here. Telling the listeners of the points they are initialized and adding the points
+ * to their data source, where meta and scripted points look up the points they depend on, is left to
+ * the caller so it happens on one thread in the order of the points like before. Data sources still
+ * start by start priority, so the points of the data sources they depend on are all running by then.
+ */
+public class DataPointGroupInitializer {
+
+	/**
+	 * Starts one point
+	 */
+	public interface PointStarter {
+		/**
+		 * @param vo
+		 * @return the running point, null if it couldn't be started
+		 */
+		DataPointRT start(DataPointVO vo);
+	}
+
+	private final List<DataPointVO> group;
+	private final PointStarter starter;
+	private final int batchSize;
+	private final DataPointRT[] started;
+
+	/**
+	 *
+	 * @param group - the enabled points of the data source
+	 * @param starter
+	 * @param batchSize - most points started by one task
+	 */
+	public DataPointGroupInitializer(List<DataPointVO> group, PointStarter starter, int batchSize) {
+		this.group = group;
+		this.starter = starter;
+		this.batchSize = Math.max(1, batchSize);
+		this.started = new DataPointRT[group.size()];
+	}
+
+	/**
+	 * Blocking method that starts all of the points. An exception thrown by the starter is thrown from
+	 * here and the points of other tasks may or may not have been started, so a starter should handle
+	 * the failure of a point itself.
+	 *
+	 * @param pool - null to start them in this thread
+	 * @return the running points in the order of the group, null where the starter returned null
+	 */
+	public List<DataPointRT> initialize(ForkJoinPool pool) {
+		//Outside of a pool invokeAll would fork the halves to the common pool
+		if(pool == null || group.size() <= batchSize)
+			start(0, group.size());
+		else
+			pool.invoke(new StartTask(0, group.size()));
+		//Joining the tasks publishes the array to this thread
+		return Arrays.asList(started);
+	}
+
+	private void start(int from, int to) {
+		for(int i=from; i<to; i++)
+			started[i] = starter.start(group.get(i));
+	}
+
+	class StartTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+
+		StartTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= batchSize){
+				start(from, to);
+			}else{
+				int middle = (from + to) >>> 1;
+				invokeAll(new StartTask(from, middle), new StartTask(middle, to));
+			}
+		}
+	}
+}
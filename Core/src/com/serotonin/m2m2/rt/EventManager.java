@@ -10,7 +10,10 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -22,8 +25,10 @@ import com.serotonin.m2m2.db.dao.EventDao;
 import com.serotonin.m2m2.db.dao.UserDao;
 import com.serotonin.m2m2.i18n.TranslatableMessage;
 import com.serotonin.m2m2.module.EventManagerListenerDefinition;
+import com.serotonin.m2m2.rt.event.ActiveEventStore;
 import com.serotonin.m2m2.rt.event.AlarmLevels;
 import com.serotonin.m2m2.rt.event.EventInstance;
+import com.serotonin.m2m2.rt.event.EventTypePermission;
 import com.serotonin.m2m2.rt.event.UserEventCache;
 import com.serotonin.m2m2.rt.event.UserEventListener;
 import com.serotonin.m2m2.rt.event.handlers.EmailHandlerRT;
@@ -33,7 +38,6 @@ import com.serotonin.m2m2.rt.event.type.SystemEventType;
 import com.serotonin.m2m2.rt.maint.work.WorkItem;
 import com.serotonin.m2m2.vo.User;
 import com.serotonin.m2m2.vo.event.EventHandlerVO;
-import com.serotonin.m2m2.vo.permission.Permissions;
 import com.serotonin.util.ILifecycle;
 
 /**
@@ -45,9 +49,8 @@ public class EventManager implements ILifecycle {
 																	// minutes.
 
 	private final List<EventManagerListenerDefinition> listeners = new CopyOnWriteArrayList<EventManagerListenerDefinition>();
-	private final List<UserEventListener> userEventListeners = new CopyOnWriteArrayList<UserEventListener>();
-	private final ReadWriteLock activeEventsLock = new ReentrantReadWriteLock();
-	private final List<EventInstance> activeEvents = new ArrayList<EventInstance>();
+	private final List<UserEventNotifier> userEventNotifiers = new CopyOnWriteArrayList<UserEventNotifier>();
+	private final ActiveEventStore activeEvents = new ActiveEventStore();
 	private final ReadWriteLock recentEventsLock = new ReentrantReadWriteLock();
 	private final List<EventInstance> recentEvents = new ArrayList<EventInstance>();
 	private EventDao eventDao;
@@ -56,7 +59,18 @@ public class EventManager implements ILifecycle {
 	private int highestActiveAlarmLevel = 0;
 
 	//Cache for all active events for a logged in user, allow entries to remain un-accessed for 15 minutes and cleanup cache every minute
-	private final UserEventCache userEventCache = new UserEventCache(15 * 60000,  60000);
+	private final UserEventCache userEventCache;
+
+	public EventManager(){
+		this(new UserEventCache(15 * 60000,  60000));
+	}
+
+	/**
+	 * @param userEventCache - cache of the events of the users, e.g. on a simulation timer in tests
+	 */
+	protected EventManager(UserEventCache userEventCache){
+		this.userEventCache = userEventCache;
+	}
 	
 	//
 	//
@@ -105,7 +119,7 @@ public class EventManager implements ILifecycle {
 		if (autoAckMessage == null)
 			setHandlers(evt);
 
-		// Get id from database by inserting event immediately.
+		// Get the id of the event, it is saved now or queued to be written behind.
 		//Check to see if we are Not Logging these
 		if(alarmLevel != AlarmLevels.DO_NOT_LOG){
 			eventDao.saveEvent(evt);
@@ -117,30 +131,26 @@ public class EventManager implements ILifecycle {
 
 		//So none level events don't make it into the cache as they are already acknowledged
 		if(evt.isAlarm()){
-			for (User user : userDao.getActiveUsers()) {
+			EventTypePermission permission = new EventTypePermission(type);
+			for (User user : userDao.getCachedActiveUsers()) {
 				// Do not create an event for this user if the event type says the
 				// user should be skipped.
 				if (type.excludeUser(user))
 					continue;
 	
-				if (Permissions.hasEventTypePermission(user, type)) {
+				if (permission.hasPermission(user)) {
 					eventUserIds.add(user.getId());
 					if (evt.isAlarm() && user.getReceiveAlarmEmails() > 0
 							&& alarmLevel >= user.getReceiveAlarmEmails())
 						emailUsers.add(user.getEmail());
 				
 					//Notify All User Event Listeners of the new event
-					for(UserEventListener l : this.userEventListeners){
-						if(l.getUserId() == user.getId()){
-							Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(user, l, evt, true, false, false, false));
-						}
-					}
-				
-					//Add to the UserEventCache if the user has recently accessed their events
-					this.userEventCache.addEvent(user.getId(), evt);
+					notifyUserEventListeners(user, evt, EventNotification.RAISED);
 				}
 				
 			}
+			//Add to the UserEventCache for the users that have recently accessed their events
+			this.userEventCache.addEvent(evt, eventUserIds);
 		}
 
 		if ((eventUserIds.size() > 0)&&(alarmLevel != AlarmLevels.DO_NOT_LOG)) {
@@ -150,12 +160,7 @@ public class EventManager implements ILifecycle {
 		}
 
 		if (evt.isRtnApplicable()){
-			activeEventsLock.writeLock().lock();
-			try{
-				activeEvents.add(evt);
-			}finally{
-				activeEventsLock.writeLock().unlock();
-			}
+			activeEvents.add(evt);
 		}else if (evt.getEventType().isRateLimited()) {
 			recentEventsLock.writeLock().lock();
 			try{
@@ -250,7 +255,8 @@ public class EventManager implements ILifecycle {
 		EventInstance evt = remove(type);
 		if(evt == null)
 			return;
-		List<User> activeUsers = userDao.getActiveUsers();
+		List<User> activeUsers = userDao.getCachedActiveUsers();
+		EventTypePermission permission = new EventTypePermission(type);
 		// Loop in case of multiples
 		while (evt != null) {
 			for (User user : activeUsers) {
@@ -259,18 +265,13 @@ public class EventManager implements ILifecycle {
 				if (type.excludeUser(user))
 					continue;
 	
-				if (Permissions.hasEventTypePermission(user, type)) {
+				if (permission.hasPermission(user)) {
 					//Notify All User Event Listeners of the new event
-					for(UserEventListener l : this.userEventListeners){
-						if(l.getUserId() == user.getId()){
-							Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(user, l, evt, false, true, false, false));
-	
-						}
-					}
-					this.userEventCache.updateEvent(user.getId(), evt);
+					notifyUserEventListeners(user, evt, EventNotification.RETURN_TO_NORMAL);
 				}
 				
 			}
+			this.userEventCache.updateEvent(evt);
 			
 			resetHighestAlarmLevel(time);
 
@@ -297,26 +298,23 @@ public class EventManager implements ILifecycle {
 	 * @param inactiveCause
 	 */
 	private void deactivateEvents(List<EventInstance> evts, long time, int inactiveCause) {
-		List<User> activeUsers = userDao.getActiveUsers();
+		List<User> activeUsers = userDao.getCachedActiveUsers();
 
 		List<Integer> eventIds = new ArrayList<Integer>();
 		for(EventInstance evt : evts){
 			if(evt.isActive())
 				eventIds.add(evt.getId());
 			evt.returnToNormal(time, inactiveCause);	
+			EventTypePermission permission = new EventTypePermission(evt.getEventType());
 			for (User user : activeUsers) {
 				// Do not create an event for this user if the event type says the
 				// user should be skipped.
 				if (evt.getEventType().excludeUser(user))
 					continue;
 
-				if (Permissions.hasEventTypePermission(user, evt.getEventType())) {
+				if (permission.hasPermission(user)) {
 					//Notify All User Event Listeners of the new event
-					for(UserEventListener l : this.userEventListeners){
-						if(l.getUserId() == user.getId()){
-							Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(user, l, evt, false, false, true, false));
-						}
-					}
+					notifyUserEventListeners(user, evt, EventNotification.DEACTIVATED);
 				
 				}
 			}
@@ -344,23 +342,21 @@ public class EventManager implements ILifecycle {
 		evt.setAcknowledgedTimestamp(time);
 		evt.setAlternateAckSource(alternateAckSource);
 		
-		for (User user : userDao.getActiveUsers()) {
+		EventTypePermission permission = new EventTypePermission(evt.getEventType());
+		for (User user : userDao.getCachedActiveUsers()) {
 			// Do not create an event for this user if the event type says the
 			// user should be skipped.
 			if (evt.getEventType().excludeUser(user))
 				continue;
 
 
-			if (Permissions.hasEventTypePermission(user, evt.getEventType())) {
+			if (permission.hasPermission(user)) {
 				//Notify All User Event Listeners of the new event
-				for(UserEventListener l : this.userEventListeners){
-					if(l.getUserId() == user.getId()){
-						Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(user, l, evt, false, false, false, true));
-					}
-				}
-				this.userEventCache.removeEvent(user.getId(), evt);
+				notifyUserEventListeners(user, evt, EventNotification.ACKNOWLEDGED);
 			}
 		}
+		//Acknowledged for everyone
+		this.userEventCache.removeEvent(evt);
 	}
 
 	public long getLastAlarmTimestamp() {
@@ -373,12 +369,7 @@ public class EventManager implements ILifecycle {
 	 */
 	public int purgeAllEvents(){
 		
-		activeEventsLock.writeLock().lock();
-		try{
-			activeEvents.clear();
-		}finally{
-			activeEventsLock.writeLock().unlock();
-		}
+		activeEvents.clear();
 			
 		recentEventsLock.writeLock().lock();
 		try{
@@ -399,16 +390,9 @@ public class EventManager implements ILifecycle {
 	 */
 	public int purgeEventsBefore(final long time){
 		
-		activeEventsLock.writeLock().lock();
-		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if(e.getActiveTimestamp() < time)
-					it.remove();
-			}
-		}finally{
-			activeEventsLock.writeLock().unlock();
+		for(EventInstance e : activeEvents.getAll()){
+			if(e.getActiveTimestamp() < time)
+				activeEvents.remove(e);
 		}
 		
 		recentEventsLock.writeLock().lock();
@@ -436,16 +420,9 @@ public class EventManager implements ILifecycle {
 	 */
 	public int purgeEventsBefore(final long time, final String typeName){
 		
-		activeEventsLock.writeLock().lock();
-		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if((e.getActiveTimestamp() < time)&&(e.getEventType().getEventType().equals(typeName)))
-					it.remove();
-			}
-		}finally{
-			activeEventsLock.writeLock().unlock();
+		for(EventInstance e : activeEvents.getAll()){
+			if((e.getActiveTimestamp() < time)&&(e.getEventType().getEventType().equals(typeName)))
+				activeEvents.remove(e);
 		}
 		
 		recentEventsLock.writeLock().lock();
@@ -473,16 +450,9 @@ public class EventManager implements ILifecycle {
 	 */
 	public int purgeEventsBefore(final long time, final int alarmLevel){
 		
-		activeEventsLock.writeLock().lock();
-		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if((e.getActiveTimestamp() < time)&&(e.getAlarmLevel() == alarmLevel))
-					it.remove();
-			}
-		}finally{
-			activeEventsLock.writeLock().unlock();
+		for(EventInstance e : activeEvents.getAll()){
+			if((e.getActiveTimestamp() < time)&&(e.getAlarmLevel() == alarmLevel))
+				activeEvents.remove(e);
 		}
 		
 		recentEventsLock.writeLock().lock();
@@ -508,20 +478,7 @@ public class EventManager implements ILifecycle {
 	//
 	public void cancelEventsForDataPoint(int dataPointId) {
 		
-		List<EventInstance> dataPointEvents = new ArrayList<EventInstance>();
-		activeEventsLock.writeLock().lock();
-		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if (e.getEventType().getDataPointId() == dataPointId){
-					it.remove();
-					dataPointEvents.add(e);
-				}
-			}
-		}finally{
-			activeEventsLock.writeLock().unlock();
-		}
+		List<EventInstance> dataPointEvents = activeEvents.removeForDataPoint(dataPointId);
 
 		deactivateEvents(dataPointEvents, System.currentTimeMillis(), EventInstance.RtnCauses.SOURCE_DISABLED);
 
@@ -544,20 +501,7 @@ public class EventManager implements ILifecycle {
 	 */
 	public void cancelEventsForDataSource(int dataSourceId) {
 		
-		List<EventInstance> dataSourceEvents = new ArrayList<EventInstance>();
-		activeEventsLock.writeLock().lock();
-		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if(e.getEventType().getDataSourceId() == dataSourceId){
-					it.remove();
-					dataSourceEvents.add(e);
-				}
-			}
-		}finally{
-			activeEventsLock.writeLock().unlock();
-		}
+		List<EventInstance> dataSourceEvents = activeEvents.removeForDataSource(dataSourceId);
 
 		deactivateEvents(dataSourceEvents, System.currentTimeMillis(), EventInstance.RtnCauses.SOURCE_DISABLED);
 
@@ -580,20 +524,7 @@ public class EventManager implements ILifecycle {
 	 */
 	public void cancelEventsForPublisher(int publisherId) {
 		
-		List<EventInstance> publisherEvents = new ArrayList<EventInstance>();
-		activeEventsLock.writeLock().lock();
-		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if(e.getEventType().getPublisherId() == publisherId){
-					it.remove();
-					publisherEvents.add(e);
-				}
-			}
-		}finally{
-			activeEventsLock.writeLock().unlock();
-		}
+		List<EventInstance> publisherEvents = activeEvents.removeForPublisher(publisherId);
 		
 		deactivateEvents(publisherEvents, System.currentTimeMillis(), EventInstance.RtnCauses.SOURCE_DISABLED);
 
@@ -613,19 +544,10 @@ public class EventManager implements ILifecycle {
 	private void resetHighestAlarmLevel(long time) {
 		
 		int max = 0;
-		activeEventsLock.readLock().lock();
-		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if (e.getAlarmLevel() > max)
-					max = e.getAlarmLevel();
-			}
-		}finally{
-			activeEventsLock.readLock().unlock();
+		for(EventInstance e : activeEvents.getAll()){
+			if (e.getAlarmLevel() > max)
+				max = e.getAlarmLevel();
 		}
-		
-		
 
 		if (max > highestActiveAlarmLevel) {
 			int oldValue = highestActiveAlarmLevel;
@@ -667,12 +589,8 @@ public class EventManager implements ILifecycle {
 		userDao = new UserDao();
 
 		// Get all active events from the database.
-		activeEventsLock.writeLock().lock();
-		try{
-			activeEvents.addAll(eventDao.getActiveEvents());
-		}finally{
-			activeEventsLock.writeLock().unlock();
-		}
+		for(EventInstance e : eventDao.getActiveEvents())
+			activeEvents.add(e);
 		
 		lastAlarmTimestamp = System.currentTimeMillis();
 		resetHighestAlarmLevel(lastAlarmTimestamp);
@@ -680,12 +598,14 @@ public class EventManager implements ILifecycle {
 
 	@Override
 	public void terminate() {
-		// no op
+		// Save the events that are still queued
+		EventDao.flushEventWrites();
 	}
 
 	@Override
 	public void joinTermination() {
-		// no op
+		// Anything raised while terminating
+		EventDao.flushEventWrites();
 	}
 
 	//
@@ -700,10 +620,18 @@ public class EventManager implements ILifecycle {
 		listeners.remove(l);
 	}
 	public void addUserEventListener(UserEventListener l){
-		userEventListeners.add(l);
+		userEventNotifiers.add(new UserEventNotifier(l));
 	}
 	public void removeUserEventListener(UserEventListener l){
-		userEventListeners.remove(l);
+		for(UserEventNotifier n : userEventNotifiers)
+			if(n.listener == l)
+				userEventNotifiers.remove(n);
+	}
+
+	private void notifyUserEventListeners(User user, EventInstance evt, int type){
+		for(UserEventNotifier n : userEventNotifiers)
+			if(n.listener.getUserId() == user.getId())
+				n.add(user, new EventNotification(evt, type));
 	}
 
 	//
@@ -723,53 +651,20 @@ public class EventManager implements ILifecycle {
 	 * none.
 	 */
 	private EventInstance get(EventType type) {
-		
-		activeEventsLock.readLock().lock();
-		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if (e.getEventType().equals(type))
-					return e;
-			}
-		}finally{
-			activeEventsLock.readLock().unlock();
-		}
-		
-		return null;
+		return activeEvents.get(type);
 	}
 
 	private List<EventInstance> getAll(EventType type) {
-		List<EventInstance> result = new ArrayList<EventInstance>();
-		activeEventsLock.readLock().lock();
-		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				result.add(it.next());
-			}
-		}finally{
-			activeEventsLock.readLock().unlock();
-		}
-		return result;
+		return activeEvents.getAll(type);
 	}
 
 	/**
-	 * To access all active events quickly
-	 * @param type
+	 * To access all active events quickly, the list is a snapshot shared until
+	 * the active events change so it can't be modified
 	 * @return
 	 */
 	public List<EventInstance> getAllActive() {
-		List<EventInstance> result = new ArrayList<EventInstance>();
-		activeEventsLock.readLock().lock();
-		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				result.add(it.next());
-			}
-		}finally{
-			activeEventsLock.readLock().unlock();
-		}
-		return result;
+		return activeEvents.getAll();
 	}
 	
 	/**
@@ -780,26 +675,12 @@ public class EventManager implements ILifecycle {
 	 * @return
 	 */
 	private EventInstance remove(EventType type) {
-		activeEventsLock.writeLock().lock();
-		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if (e.getEventType().equals(type)) {
-					it.remove();
-					return e;
-				}
-			}
-		}finally{
-			activeEventsLock.writeLock().unlock();
-		}
-
-		return null;
+		return activeEvents.remove(type);
 	}
 
 	private void setHandlers(EventInstance evt) {
 		List<EventHandlerVO> vos = eventDao
-				.getEventHandlers(evt.getEventType());
+				.getCachedEventHandlers(evt.getEventType());
 		List<EventHandlerRT> rts = null;
 		for (EventHandlerVO vo : vos) {
 			if (!vo.isDisabled()) {
@@ -845,39 +726,79 @@ public class EventManager implements ILifecycle {
 	}
 	
 	
-    class EventNotifyWorkItem implements WorkItem {
-
-    	private final User user;
-    	private final UserEventListener listener;
-    	private final EventInstance event;
-    	private final boolean raised;
-    	private final boolean returnToNormal;
-    	private final boolean deactivated;
-    	private final boolean acknowledged;
-
-        EventNotifyWorkItem(User user, UserEventListener listener, EventInstance event, boolean raised, 
-        		boolean returnToNormal, boolean deactivated, boolean acknowledged) {
-        	this.user = user;
+    static class EventNotification {
+    	static final int RAISED = 1;
+    	static final int RETURN_TO_NORMAL = 2;
+    	static final int DEACTIVATED = 3;
+    	static final int ACKNOWLEDGED = 4;
+
+    	final EventInstance event;
+    	final int type;
+
+    	EventNotification(EventInstance event, int type) {
+    		this.event = event;
+    		this.type = type;
+    	}
+    }
+
+    /**
+     * Delivers the notifications of one listener in order. A burst of events is delivered by one work
+     * item instead of one work item per event, it is only scheduled when the queue goes from empty
+     * to not empty.
+     */
+    static class UserEventNotifier implements WorkItem {
+    	private static final Log LOG = LogFactory.getLog(UserEventNotifier.class);
+    	//Notifications delivered before giving the thread back to the other low priority work
+    	private static final int MAX_BATCH = 1000;
+
+    	final UserEventListener listener;
+    	private final ConcurrentLinkedQueue<EventNotification> queue = new ConcurrentLinkedQueue<EventNotification>();
+    	private final AtomicInteger size = new AtomicInteger();
+    	private volatile String username;
+
+        UserEventNotifier(UserEventListener listener) {
             this.listener = listener;
-            this.event = event;
-            this.raised = raised;
-            this.returnToNormal = returnToNormal;
-            this.deactivated = deactivated;
-            this.acknowledged = acknowledged;
-            
+        }
+
+        void add(User user, EventNotification notification) {
+        	username = user.getUsername();
+        	queue.offer(notification);
+        	if(size.getAndIncrement() == 0)
+        		schedule();
+        }
+
+        private void schedule() {
+        	try{
+        		Common.backgroundProcessing.addWorkItem(this);
+        	}catch(RejectedExecutionException e){
+        		//Shutting down, nothing will deliver the notifications
+        		queue.clear();
+        		size.set(0);
+        		throw e;
+        	}
         }
 
         @Override
         public void execute() {
-        	
-        	if(raised)
-        		listener.raised(event);
-        	else if(returnToNormal)
-        		listener.returnToNormal(event);
-        	else if(deactivated)
-        		listener.deactivated(event);
-        	else if(acknowledged)
-        		listener.acknowledged(event);
+        	for(int i=0; i<MAX_BATCH; i++){
+        		EventNotification n = queue.poll();
+        		try{
+	        		if(n.type == EventNotification.RAISED)
+	        			listener.raised(n.event);
+	        		else if(n.type == EventNotification.RETURN_TO_NORMAL)
+	        			listener.returnToNormal(n.event);
+	        		else if(n.type == EventNotification.DEACTIVATED)
+	        			listener.deactivated(n.event);
+	        		else if(n.type == EventNotification.ACKNOWLEDGED)
+	        			listener.acknowledged(n.event);
+        		}catch(Exception e){
+        			LOG.error("Error notifying user event listener", e);
+        		}
+        		if(size.decrementAndGet() == 0)
+        			return;
+        	}
+        	//Still not empty, so this listener is still ours to schedule
+        	schedule();
         }
 
         @Override
@@ -890,14 +811,7 @@ public class EventManager implements ILifecycle {
 		 */
 		@Override
 		public String getDescription() {
-			String type = "";
-			if(raised)
-				type = "raised";
-			else if(deactivated)
-				type = "deactivated";
-			else if(returnToNormal)
-				type = "return to normal";
-			return "Event " + type + " Notification for user: " + user.getUsername() ;
+			return "Event Notification for user: " + username + ", " + size.get() + " waiting";
 		}
     }
 }
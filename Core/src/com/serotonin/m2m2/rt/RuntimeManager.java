@@ -13,13 +13,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.util.Assert;
 
 import com.serotonin.ShouldNeverHappenException;
 import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.dao.BulkPointValues;
 import com.serotonin.m2m2.db.dao.DaoRegistry;
 import com.serotonin.m2m2.db.dao.DataPointDao;
 import com.serotonin.m2m2.db.dao.DataSourceDao;
@@ -29,6 +32,7 @@ import com.serotonin.m2m2.db.dao.SystemSettingsDao;
 import com.serotonin.m2m2.module.DataSourceDefinition;
 import com.serotonin.m2m2.module.ModuleRegistry;
 import com.serotonin.m2m2.module.RuntimeManagerDefinition;
+import com.serotonin.m2m2.rt.DataPointGroupInitializer.PointStarter;
 import com.serotonin.m2m2.rt.dataImage.DataPointEventMulticaster;
 import com.serotonin.m2m2.rt.dataImage.DataPointListener;
 import com.serotonin.m2m2.rt.dataImage.DataPointRT;
@@ -39,8 +43,10 @@ import com.serotonin.m2m2.rt.dataSource.DataSourceRT;
 import com.serotonin.m2m2.rt.dataSource.PollingDataSource;
 import com.serotonin.m2m2.rt.maint.work.BackupWorkItem;
 import com.serotonin.m2m2.rt.maint.work.DatabaseBackupWorkItem;
+import com.serotonin.m2m2.rt.publish.PersistentPublishQueue;
 import com.serotonin.m2m2.rt.publish.PublisherRT;
 import com.serotonin.m2m2.util.DateUtils;
+import com.serotonin.m2m2.util.timeout.TimerWheel;
 import com.serotonin.m2m2.vo.DataPointVO;
 import com.serotonin.m2m2.vo.dataSource.DataSourceVO;
 import com.serotonin.m2m2.vo.event.PointEventDetectorVO;
@@ -62,6 +68,8 @@ public class RuntimeManager {
      * listener can register itself before the point is enabled).
      */
     private final Map<Integer, DataPointListener> dataPointListeners = new ConcurrentHashMap<Integer, DataPointListener>();
+    //Starts the points of each data source in parallel during startup, null otherwise
+    private volatile ForkJoinPool pointStartupPool;
 
     /**
      * Store of enabled publishers
@@ -116,11 +124,23 @@ public class RuntimeManager {
         List<DataSourceVO<?>> pollingRound = new ArrayList<DataSourceVO<?>>();
         int dataSourceStartupThreads = Common.envProps.getInt("runtime.datasource.startupThreads", 8);
         boolean useMetrics = Common.envProps.getBoolean("runtime.datasource.logStartupMetrics", false);
-        for (DataSourceDefinition.StartPriority startPriority : DataSourceDefinition.StartPriority.values()) {
-            List<DataSourceVO<?>> priorityList = priorityMap.get(startPriority);
-            if (priorityList != null) {
-            	DataSourceGroupInitializer initializer = new DataSourceGroupInitializer(startPriority, priorityList, useMetrics, dataSourceStartupThreads);
-            	pollingRound.addAll(initializer.initialize());
+        int dataPointStartupThreads = Common.envProps.getInt("runtime.datapoint.startupThreads", Runtime.getRuntime()
+                .availableProcessors());
+        if (dataPointStartupThreads > 1)
+            pointStartupPool = new ForkJoinPool(dataPointStartupThreads);
+        try {
+            for (DataSourceDefinition.StartPriority startPriority : DataSourceDefinition.StartPriority.values()) {
+                List<DataSourceVO<?>> priorityList = priorityMap.get(startPriority);
+                if (priorityList != null) {
+                	DataSourceGroupInitializer initializer = new DataSourceGroupInitializer(startPriority, priorityList, useMetrics, dataSourceStartupThreads);
+                	pollingRound.addAll(initializer.initialize());
+                }
+            }
+        }
+        finally {
+            if (pointStartupPool != null) {
+                pointStartupPool.shutdown();
+                pointStartupPool = null;
             }
         }
 
@@ -205,6 +225,9 @@ public class RuntimeManager {
 
         // Run everything else.
         rtmdIndex = stopRTMDefs(defs, rtmdIndex, Integer.MIN_VALUE);
+
+        // The detector timeouts are done with
+        TimerWheel.terminateInstance();
     }
 
     public void joinTermination() {
@@ -293,7 +316,9 @@ public class RuntimeManager {
             runningDataSources.add(dataSource);
             
             // Add the enabled points to the data source.
+            long loadStart = System.nanoTime();
             List<DataPointVO> dataSourcePoints = DaoRegistry.dataPointDao.getDataPoints(vo.getId(), null);
+            long loadDuration = System.nanoTime() - loadStart;
             for (DataPointVO dataPoint : dataSourcePoints) {
                 if (dataPoint.isEnabled())
                     startDataPoint(dataPoint);
@@ -304,7 +329,8 @@ public class RuntimeManager {
         	long endTime = System.nanoTime();
 
         	long duration = endTime - startTime;
-        	LOG.info("Data source '" + vo.getName() + "' took " + (double)duration/(double)1000000 + "ms to start");
+        	LOG.info("Data source '" + vo.getName() + "' took " + (double)duration/(double)1000000 + "ms to start, "
+    			+ (double)loadDuration/(double)1000000 + "ms of it loading " + dataSourcePoints.size() + " points");
             return true;
         }
     }
@@ -334,10 +360,42 @@ public class RuntimeManager {
         }
         
         // Add the enabled points to the data source.
+        long loadStart = System.nanoTime();
         List<DataPointVO> dataSourcePoints = DaoRegistry.dataPointDao.getDataPoints(vo.getId(), null);
+        List<DataPointVO> enabledPoints = new ArrayList<DataPointVO>(dataSourcePoints.size());
         for (DataPointVO dataPoint : dataSourcePoints) {
             if (dataPoint.isEnabled())
-                startDataPointStartup(dataPoint);
+                enabledPoints.add(dataPoint);
+        }
+
+        long preloadStart = System.nanoTime();
+        final Map<Integer, PointValueTime> latestValues = preloadLatestValues(enabledPoints);
+
+        // Create and initialize the points in parallel, then add them to the data source in order on this thread
+        long initializeStart = System.nanoTime();
+        //If we are a polling data source then we need to wait to start our interval logging
+        // until the first poll due to quantization
+        final boolean isPolling = dataSource instanceof PollingDataSource;
+        List<DataPointRT> started = new DataPointGroupInitializer(enabledPoints, new PointStarter() {
+            @Override
+            public DataPointRT start(DataPointVO dataPoint) {
+                List<PointValueTime> initialCache = null;
+                if (latestValues != null && dataPoint.getDefaultCacheSize() == 1) {
+                    PointValueTime latest = latestValues.get(dataPoint.getId());
+                    initialCache = latest == null ? Collections.<PointValueTime> emptyList() : Collections
+                            .singletonList(latest);
+                }
+                return createDataPointStartup(dataPoint, initialCache, isPolling);
+            }
+        }, Common.envProps.getInt("runtime.datapoint.startupBatchSize", 100)).initialize(pointStartupPool);
+
+        long addStart = System.nanoTime();
+        for (int i = 0; i < started.size(); i++) {
+            DataPointRT dataPoint = started.get(i);
+            if (dataPoint == null)
+                disableDataPointStartup(enabledPoints.get(i));
+            else
+                addDataPointStartup(dataSource, dataPoint);
         }
 
         LOG.info("Data source '" + vo.getName() + "' initialized");
@@ -345,7 +403,11 @@ public class RuntimeManager {
     	long endTime = System.nanoTime();
 
     	long duration = endTime - startTime;
-    	LOG.info("Data source '" + vo.getName() + "' took " + (double)duration/(double)1000000 + "ms to start");
+    	LOG.info("Data source '" + vo.getName() + "' took " + (double)duration/(double)1000000 + "ms to start: "
+    			+ (double)(preloadStart - loadStart)/(double)1000000 + "ms loading " + dataSourcePoints.size() + " points, "
+    			+ (double)(initializeStart - preloadStart)/(double)1000000 + "ms loading their latest values, "
+    			+ (double)(addStart - initializeStart)/(double)1000000 + "ms initializing " + started.size() + " enabled points, "
+    			+ (double)(endTime - addStart)/(double)1000000 + "ms adding them to the data source");
         return true;
     }
     
@@ -496,17 +558,47 @@ public class RuntimeManager {
     }
 
     /**
-     * Only to be used at startup as synchronization has been reduced for performance
+     * Load the latest value of the enabled points that cache one value, which is most of them, in a few queries
+     * instead of two per point. Points with a larger cache load their own values.
+     * 
+     * @param dataSourcePoints
+     * @return the latest values by point id, null if they couldn't be loaded
+     */
+    private Map<Integer, PointValueTime> preloadLatestValues(List<DataPointVO> dataSourcePoints) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (DataPointVO dataPoint : dataSourcePoints) {
+            if (dataPoint.isEnabled() && dataPoint.getDefaultCacheSize() == 1)
+                ids.add(dataPoint.getId());
+        }
+        if (ids.isEmpty())
+            return null;
+
+        try {
+            // Daos of modules that don't have the set based query load the values one point at a time
+            return BulkPointValues.getLatestPointValues(DaoRegistry.pointValueDao, ids);
+        }
+        catch (Exception e) {
+            LOG.warn("Failed to preload the latest point values, loading them with the point caches", e);
+            return null;
+        }
+    }
+
+    /**
+     * Create and initialize a point of a data source that is starting, the points of a data source are started in
+     * parallel so this must not depend on the other points. Only to be used at startup.
+     * 
      * @param vo
+     * @param initialCache - the latest values of the point if they were preloaded, otherwise null
+     * @param isPolling - if the data source will start the interval logging
+     * @return the point, not yet added to its data source, null if it failed to start
      */
-    private void startDataPointStartup(DataPointVO vo) {
+    private DataPointRT createDataPointStartup(DataPointVO vo, List<PointValueTime> initialCache, boolean isPolling) {
         Assert.isTrue(vo.isEnabled());
 
-        // Only add the data point if its data source is enabled.
-        DataSourceRT ds = getRunningDataSource(vo.getDataSourceId());
-        if (ds != null) {
+        DataPointRT dataPoint = null;
+        try {
             // Change the VO into a data point implementation.
-            DataPointRT dataPoint = new DataPointRT(vo, vo.getPointLocator().createRuntime());
+            dataPoint = new DataPointRT(vo, vo.getPointLocator().createRuntime(), initialCache);
 
             // Add/update it in the data image.
             synchronized (dataPoints) {
@@ -515,33 +607,65 @@ public class RuntimeManager {
 
             // Initialize it.
             dataPoint.initialize();
-            
-            //If we are a polling data source then we need to wait to start our interval logging
-            // until the first poll due to quantization
-            boolean isPolling = ds instanceof PollingDataSource;
-            
-            //If we are not polling go ahead and start the interval logging, otherwise we will let the data source do it on the first poll
-            if(!isPolling)
-            	dataPoint.initializeIntervalLogging(0l, false);
-            
-            DataPointListener l = getDataPointListeners(vo.getId());
-            if (l != null)
-                l.pointInitialized();
-
-            // Add/update it in the data source.
-            try{
-            	ds.addDataPoint(dataPoint);
-            }catch(Exception e){
-            	//This can happen if there is a corrupt DB with a point for a different 
-            	// data source type linked to this data source...
-            	LOG.error("Failed to start point with xid: " + dataPoint.getVO().getXid()
-            			+ " disabling point."
-            			, e);
-            	//TODO Fire Alarm to warn user.
-            	//Common.eventManager.raiseEvent(type, time, rtnApplicable, alarmLevel, message, context);
-            	dataPoint.getVO().setEnabled(false);
-            	saveDataPoint(dataPoint.getVO()); //Stop it
+        }
+        catch (Exception e) {
+            // The other points of the data source still start, this one is disabled by the caller
+            LOG.error("Failed to start point with xid: " + vo.getXid() + " disabling point.", e);
+            if (dataPoint != null) {
+                synchronized (dataPoints) {
+                    dataPoints.remove(dataPoint.getId());
+                }
             }
+            return null;
+        }
+
+        //If we are not polling go ahead and start the interval logging, otherwise we will let the data source do it on the first poll
+        if(!isPolling)
+        	dataPoint.initializeIntervalLogging(0l, false);
+
+        return dataPoint;
+    }
+
+    /**
+     * Disable a point that failed to start so the other points of its data source still start, only to be
+     * used at startup
+     * @param vo
+     */
+    private void disableDataPointStartup(DataPointVO vo) {
+        vo.setEnabled(false);
+        try {
+            saveDataPoint(vo);
+        }
+        catch (Exception e) {
+            LOG.error("Failed to disable point with xid: " + vo.getXid(), e);
+        }
+    }
+
+    /**
+     * Add a started point to its data source, only to be used at startup. The listeners of the point are told it
+     * is initialized here rather than on the pool, so points that depend on others, like meta and scripted points,
+     * see the points initialized one at a time in the order of the data source like before.
+     * @param ds
+     * @param dataPoint
+     */
+    private void addDataPointStartup(DataSourceRT ds, DataPointRT dataPoint) {
+        DataPointListener l = getDataPointListeners(dataPoint.getId());
+        if (l != null)
+            l.pointInitialized();
+
+        // Add/update it in the data source.
+        try{
+        	ds.addDataPoint(dataPoint);
+        }catch(Exception e){
+        	//This can happen if there is a corrupt DB with a point for a different 
+        	// data source type linked to this data source...
+        	LOG.error("Failed to start point with xid: " + dataPoint.getVO().getXid()
+        			+ " disabling point."
+        			, e);
+        	//TODO Fire Alarm to warn user.
+        	//Common.eventManager.raiseEvent(type, time, rtnApplicable, alarmLevel, message, context);
+        	dataPoint.getVO().setEnabled(false);
+        	saveDataPoint(dataPoint.getVO()); //Stop it
         }
     }
     
@@ -721,6 +845,22 @@ public class RuntimeManager {
         return count;
     }
 
+    /**
+     * Purge the values of several points before the same time in bulk
+     * @param dataPointIds
+     * @param before
+     * @return
+     */
+    public long purgeDataPointValues(List<Integer> dataPointIds, long before) {
+        long count = BulkPointValues.deletePointValuesBefore(Common.databaseProxy.newPointValueDao(), dataPointIds,
+                before);
+        if (count > 0) {
+            for (Integer id : dataPointIds)
+                updateDataPointValuesRT(id);
+        }
+        return count;
+    }
+
     private void updateDataPointValuesRT(int dataPointId) {
         DataPointRT dataPoint = dataPoints.get(dataPointId);
         if (dataPoint != null)
@@ -752,6 +892,7 @@ public class RuntimeManager {
         stopPublisher(publisherId);
         new PublisherDao().deletePublisher(publisherId);
         Common.eventManager.cancelEventsForPublisher(publisherId);
+        FileUtils.deleteQuietly(PersistentPublishQueue.getQueueDirectory(publisherId));
     }
 
     public void savePublisher(PublisherVO<? extends PublishedPointVO> vo) {
@@ -22,7 +22,6 @@ import com.serotonin.m2m2.rt.dataImage.types.DataValue;
 import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
 import com.serotonin.m2m2.rt.dataSource.PointLocatorRT;
 import com.serotonin.m2m2.rt.event.detectors.PointEventDetectorRT;
-import com.serotonin.m2m2.rt.maint.work.WorkItem;
 import com.serotonin.m2m2.util.timeout.TimeoutClient;
 import com.serotonin.m2m2.util.timeout.TimeoutTask;
 import com.serotonin.m2m2.view.stats.AnalogStatistics;
@@ -65,9 +64,18 @@ public class DataPointRT implements IDataPointValueSource, ILifecycle, TimeoutCl
     private double toleranceOrigin;
 
     public DataPointRT(DataPointVO vo, PointLocatorRT pointLocator) {
+        this(vo, pointLocator, (List<PointValueTime>) null);
+    }
+
+    /**
+     * @param vo
+     * @param pointLocator
+     * @param initialCache - the latest values of the point, loaded with those of the other points of its data source
+     */
+    public DataPointRT(DataPointVO vo, PointLocatorRT pointLocator, List<PointValueTime> initialCache) {
         this.vo = vo;
         this.pointLocator = pointLocator;
-        valueCache = new PointValueCache(vo.getId(), vo.getDefaultCacheSize());
+        valueCache = new PointValueCache(vo.getId(), vo.getDefaultCacheSize(), initialCache);
     }
 
     /**
@@ -542,57 +550,7 @@ public class DataPointRT implements IDataPointValueSource, ILifecycle, TimeoutCl
     private void fireEvents(PointValueTime oldValue, PointValueTime newValue, boolean set, boolean backdate) {
         DataPointListener l = Common.runtimeManager.getDataPointListeners(vo.getId());
         if (l != null)
-            Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(vo.getXid(), l, oldValue, newValue, set, backdate));
-    }
-
-    class EventNotifyWorkItem implements WorkItem {
-    	private final String sourceXid;
-        private final DataPointListener listener;
-        private final PointValueTime oldValue;
-        private final PointValueTime newValue;
-        private final boolean set;
-        private final boolean backdate;
-
-        EventNotifyWorkItem(String xid, DataPointListener listener, PointValueTime oldValue, PointValueTime newValue, boolean set,
-                boolean backdate) {
-        	this.sourceXid = xid;
-            this.listener = listener;
-            this.oldValue = oldValue;
-            this.newValue = newValue;
-            this.set = set;
-            this.backdate = backdate;
-        }
-
-        @Override
-        public void execute() {
-            if (backdate)
-                listener.pointBackdated(newValue);
-            else {
-                // Always fire this.
-                listener.pointUpdated(newValue);
-
-                // Fire if the point has changed.
-                if (!PointValueTime.equalValues(oldValue, newValue))
-                    listener.pointChanged(oldValue, newValue);
-
-                // Fire if the point was set.
-                if (set)
-                    listener.pointSet(oldValue, newValue);
-            }
-        }
-
-        @Override
-        public int getPriority() {
-            return WorkItem.PRIORITY_MEDIUM;
-        }
-
-		/* (non-Javadoc)
-		 * @see com.serotonin.m2m2.rt.maint.work.WorkItem#getDescription()
-		 */
-		@Override
-		public String getDescription() {
-			return "Point with xid: " + sourceXid + " changed, telling: " + listener.getClass().getCanonicalName();
-		}
+            Common.backgroundProcessing.addPointUpdate(vo.getId(), vo.getXid(), l, oldValue, newValue, set, backdate);
     }
 
     //
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+import java.util.Arrays;
+
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+
+/**
+ * Columnar batch of numeric values of a single point, in parallel long[] times and double[] values arrays.
+ *
+ * Large reads of numeric history can be processed from the batch without a PointValueTime and
+ * NumericValue per sample. The arrays grow as needed, clear() lets a batch be reused.
+ */
+public class NumericPointValueBatch {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private long[] times;
+    private double[] values;
+    private int size;
+
+    public NumericPointValueBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public NumericPointValueBatch(int capacity) {
+        this.times = new long[capacity];
+        this.values = new double[capacity];
+    }
+
+    public void add(long time, double value) {
+        if (size == times.length) {
+            int capacity = Math.max(DEFAULT_CAPACITY, times.length * 2);
+            times = Arrays.copyOf(times, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        times[size] = time;
+        values[size] = value;
+        size++;
+    }
+
+    public long getTime(int index) {
+        checkIndex(index);
+        return times[index];
+    }
+
+    public double getValue(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    /**
+     * Create a point value for one entry, for handing a value to code that needs the object
+     * @param index
+     * @return
+     */
+    public PointValueTime getPointValueTime(int index) {
+        return new PointValueTime(new NumericValue(getValue(index)), getTime(index));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Empty the batch keeping the arrays for reuse
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * The backing times array, only the first size() entries are valid
+     * @return
+     */
+    public long[] getTimes() {
+        return times;
+    }
+
+    /**
+     * The backing values array, only the first size() entries are valid
+     * @return
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    private void checkIndex(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+}
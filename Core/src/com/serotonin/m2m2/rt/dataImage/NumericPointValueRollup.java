@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+/**
+ * Pre-aggregated numeric values of a point over one fixed period [startTime, startTime + period).
+ *
+ * The integral only covers the time from the first to the last value of the period, in value
+ * milliseconds, so that rollups of neighbouring periods can be combined exactly without knowing
+ * the value in force at the start of either period.
+ */
+public class NumericPointValueRollup {
+
+	private final long period;
+	private final long startTime;
+
+	private int count;
+	private double sum;
+	private double integral;
+	private double firstValue;
+	private long firstTime;
+	private double lastValue;
+	private long lastTime;
+	private double minimumValue;
+	private long minimumTime;
+	private double maximumValue;
+	private long maximumTime;
+
+	public NumericPointValueRollup(long period, long startTime){
+		this.period = period;
+		this.startTime = startTime;
+	}
+
+	public NumericPointValueRollup(long period, long startTime, int count, double sum, double integral,
+			double firstValue, long firstTime, double lastValue, long lastTime,
+			double minimumValue, long minimumTime, double maximumValue, long maximumTime){
+		this(period, startTime);
+		this.count = count;
+		this.sum = sum;
+		this.integral = integral;
+		this.firstValue = firstValue;
+		this.firstTime = firstTime;
+		this.lastValue = lastValue;
+		this.lastTime = lastTime;
+		this.minimumValue = minimumValue;
+		this.minimumTime = minimumTime;
+		this.maximumValue = maximumValue;
+		this.maximumTime = maximumTime;
+	}
+
+	/**
+	 * Add a value, values must be added in time order
+	 * @param value
+	 * @param time
+	 */
+	public void add(double value, long time){
+		if(count == 0){
+			firstValue = minimumValue = maximumValue = value;
+			firstTime = minimumTime = maximumTime = time;
+		}else{
+			integral += lastValue * (time - lastTime);
+			if(value < minimumValue){
+				minimumValue = value;
+				minimumTime = time;
+			}
+			if(value > maximumValue){
+				maximumValue = value;
+				maximumTime = time;
+			}
+		}
+		count++;
+		sum += value;
+		lastValue = value;
+		lastTime = time;
+	}
+
+	/**
+	 * Add the values of a later rollup, i.e. build an hour from its minutes
+	 * @param rollup
+	 */
+	public void add(NumericPointValueRollup rollup){
+		if(rollup.count == 0)
+			return;
+		if(count == 0){
+			firstValue = rollup.firstValue;
+			firstTime = rollup.firstTime;
+			minimumValue = rollup.minimumValue;
+			minimumTime = rollup.minimumTime;
+			maximumValue = rollup.maximumValue;
+			maximumTime = rollup.maximumTime;
+		}else{
+			//The last value here holds until the first value of the next rollup
+			integral += lastValue * (rollup.firstTime - lastTime);
+			if(rollup.minimumValue < minimumValue){
+				minimumValue = rollup.minimumValue;
+				minimumTime = rollup.minimumTime;
+			}
+			if(rollup.maximumValue > maximumValue){
+				maximumValue = rollup.maximumValue;
+				maximumTime = rollup.maximumTime;
+			}
+		}
+		integral += rollup.integral;
+		count += rollup.count;
+		sum += rollup.sum;
+		lastValue = rollup.lastValue;
+		lastTime = rollup.lastTime;
+	}
+
+	public long getPeriod() {
+		return period;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getEndTime() {
+		return startTime + period;
+	}
+
+	public boolean isEmpty(){
+		return count == 0;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	/**
+	 * @return time integral from the first to the last value in value milliseconds
+	 */
+	public double getIntegral() {
+		return integral;
+	}
+
+	public double getFirstValue() {
+		return firstValue;
+	}
+
+	public long getFirstTime() {
+		return firstTime;
+	}
+
+	public double getLastValue() {
+		return lastValue;
+	}
+
+	public long getLastTime() {
+		return lastTime;
+	}
+
+	public double getMinimumValue() {
+		return minimumValue;
+	}
+
+	public long getMinimumTime() {
+		return minimumTime;
+	}
+
+	public double getMaximumValue() {
+		return maximumValue;
+	}
+
+	public long getMaximumTime() {
+		return maximumTime;
+	}
+
+	/**
+	 * Start of the period containing the time, Long.MIN_VALUE if that is out of range
+	 */
+	public static long floor(long time, long period){
+		long remainder = time % period;
+		if(remainder >= 0)
+			return time - remainder;
+		return time - remainder < Long.MIN_VALUE + period ? Long.MIN_VALUE : time - remainder - period;
+	}
+
+	/**
+	 * Start of the first period that starts at or after the time, Long.MAX_VALUE if that is out of range
+	 */
+	public static long ceil(long time, long period){
+		long floor = floor(time, period);
+		if(floor == time)
+			return time;
+		return floor > Long.MAX_VALUE - period ? Long.MAX_VALUE : floor + period;
+	}
+}
@@ -4,7 +4,7 @@
  */
 package com.serotonin.m2m2.rt.dataImage;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import com.serotonin.m2m2.db.dao.DaoRegistry;
@@ -14,8 +14,8 @@ import com.serotonin.m2m2.db.dao.PointValueDao;
  * This class maintains an ordered list of the most recent values for a data point. It will mirror values in the
  * database, but provide a much faster lookup for a limited number of values.
  * 
- * Because there is not a significant performance problem for time-based lookups, they are not handled here, but rather
- * are still handled by the database.
+ * Time-based lookups are not handled here, they go to the database through the PointValueDao. Recently queried time
+ * windows are cached there by the PointValueDaoCache.
  * 
  * @author Matthew Lohbihler
  */
@@ -25,22 +25,34 @@ public class PointValueCache {
     private final PointValueDao dao;
 
     /**
-     * IMPORTANT: The list object should never be written to! The implementation here is for performance. Never call
-     * methods like add() or remove() on the cache object. Further, since the cache object can be replaced from time to
-     * time, always use a local copy of the variable for read purposes.
+     * Values newest first. Lists read out of the buffer are immutable snapshots so they can be used freely without
+     * copying, the buffer itself is never copied on write.
      */
-    private List<PointValueTime> cache = new ArrayList<PointValueTime>();
+    private final PointValueRingBuffer cache = new PointValueRingBuffer(0);
 
     public PointValueCache(int dataPointId, int defaultSize) {
+        this(dataPointId, defaultSize, null);
+    }
+
+    /**
+     * @param dataPointId
+     * @param defaultSize
+     * @param initialCache - the latest values of the point newest first, already loaded in bulk, or null to query them
+     */
+    public PointValueCache(int dataPointId, int defaultSize, List<PointValueTime> initialCache) {
         this.dataPointId = dataPointId;
         this.defaultSize = defaultSize;
         dao = DaoRegistry.pointValueDao;
 
-        if (defaultSize > 0)
+        if (initialCache != null) {
+            maxSize = defaultSize;
+            cache.reset(initialCache, defaultSize);
+        }
+        else if (defaultSize > 0)
             refreshCache(defaultSize);
     }
 
-    private int maxSize = 0;
+    private volatile int maxSize = 0;
 
     /**
      * Update a value in the system
@@ -48,7 +60,6 @@ public class PointValueCache {
      * @param source
      * @param logValue - Store in DB and Cache or Just Cache
      * @param async
-     * @return true if point value existed and was updated, false if value DNE in cache
      * 
      */
     public void updatePointValue(PointValueTime pvt, SetPointSource source, boolean logValue, boolean async){
@@ -60,26 +71,8 @@ public class PointValueCache {
                 pvt = dao.updatePointValueSync(dataPointId, pvt, source);
         }
     	
-        
         //Update our point in the cache if it exists
-        List<PointValueTime> c = cache;
-        List<PointValueTime> newCache = new ArrayList<PointValueTime>(c.size() + 1);
-        newCache.addAll(c);
-
-        // Insert the value in the cache.
-        if (newCache.size() == 0)
-            return; //Empty anyway
-        else {
-        	for(PointValueTime cachedValue : newCache){
-        		if(cachedValue.getTime() == pvt.getTime()){
-        			cachedValue = pvt; //Replace it and break out
-        			break;
-        		}
-        	}
-        }
-
-        cache = newCache;
-    	return;
+        cache.replace(pvt);
     }
     
     
@@ -92,28 +85,8 @@ public class PointValueCache {
                 pvt = dao.savePointValueSync(dataPointId, pvt, source);
         }
 
-        List<PointValueTime> c = cache;
-        List<PointValueTime> newCache = new ArrayList<PointValueTime>(c.size() + 1);
-        newCache.addAll(c);
-
-        // Insert the value in the cache.
-        int pos = 0;
-        if (newCache.size() == 0)
-            newCache.add(pvt);
-        else {
-            while (pos < newCache.size() && newCache.get(pos).getTime() > pvt.getTime())
-                pos++;
-            if (pos < maxSize)
-                newCache.add(pos, pvt);
-        }
-
-        // Check if we need to clean up the list
-        while (newCache.size() > maxSize)
-            newCache.remove(newCache.size() - 1);
-        // if (newCache.size() > maxSize - 1)
-        // newCache = new ArrayList<PointValueTime>(newCache.subList(0, maxSize));
-
-        cache = newCache;
+        // Insert the value in the cache, the oldest value falls off the end
+        cache.add(pvt);
     }
 
     /**
@@ -128,61 +101,45 @@ public class PointValueCache {
         if (maxSize == 0)
             refreshCache(1);
 
-        List<PointValueTime> c = cache;
-        if (c.size() > 0)
-            return c.get(0);
-
-        return null;
+        return cache.latest();
     }
 
     public List<PointValueTime> getLatestPointValues(int limit) {
         if (maxSize < limit)
             refreshCache(limit);
 
-        List<PointValueTime> c = cache;
-        if (limit == c.size())
-            return new ArrayList<PointValueTime>(c);
-
-        if (limit > c.size())
-            limit = c.size();
-        return new ArrayList<PointValueTime>(c.subList(0, limit));
+        return cache.copy(limit);
     }
 
-    private void refreshCache(int size) {
+    private synchronized void refreshCache(int size) {
         if (size > maxSize) {
             maxSize = size;
             if (size == 1) {
                 // Performance thingy
                 PointValueTime pvt = dao.getLatestPointValue(dataPointId);
-                if (pvt != null) {
-                    List<PointValueTime> c = new ArrayList<PointValueTime>();
-                    c.add(pvt);
-                    cache = c;
-                }
+                if (pvt != null)
+                    cache.reset(Collections.singletonList(pvt), size);
+                else
+                    cache.trim(size);
             }
             else
-                cache = dao.getLatestPointValues(dataPointId, size);
+                cache.reset(dao.getLatestPointValues(dataPointId, size), size);
         }
     }
 
     /**
-     * Never manipulate the contents of this list!
+     * Never manipulate the contents of this list! It is an immutable snapshot of the cache.
      */
     public List<PointValueTime> getCacheContents() {
-        return cache;
+        return cache.snapshot(Integer.MAX_VALUE);
     }
 
-    public void reset() {
-        List<PointValueTime> c = cache;
-
+    public synchronized void reset() {
         int size = defaultSize;
-        if (c.size() < size)
-            size = c.size();
-
-        List<PointValueTime> nc = new ArrayList<PointValueTime>(size);
-        nc.addAll(c.subList(0, size));
+        if (cache.size() < size)
+            size = cache.size();
 
         maxSize = size;
-        cache = nc;
+        cache.trim(size);
     }
 }
@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity ring of the most recent point values, ordered newest first.
+ *
+ * Writers take a lock but never copy the contents, appending a value that is newer than the
+ * latest one is O(1). Readers don't lock, they copy the values they need under a sequence
+ * lock and retry if a write happened while copying. Snapshots are immutable, copies belong
+ * to the caller.
+ */
+public class PointValueRingBuffer {
+
+    //Number of optimistic read attempts before a reader falls back to the write lock
+    private static final int READ_RETRIES = 10;
+
+    private final Object writeLock = new Object();
+
+    //Odd while a write is in progress
+    private volatile int sequence;
+    private volatile AtomicReferenceArray<PointValueTime> values;
+    //Slot of the newest value
+    private volatile int head;
+    private volatile int size;
+
+    public PointValueRingBuffer(int capacity) {
+        this.values = new AtomicReferenceArray<PointValueTime>(capacity);
+    }
+
+    public int getCapacity() {
+        return values.length();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Insert a value in time order, dropping the oldest value if full. A value older than
+     * everything in a full buffer is not inserted.
+     *
+     * @param pvt
+     */
+    public void add(PointValueTime pvt) {
+        synchronized (writeLock) {
+            AtomicReferenceArray<PointValueTime> v = values;
+            int capacity = v.length();
+            if (capacity == 0)
+                return;
+
+            int n = size;
+            int h = head;
+            //Find the position, 0 is newest. Usually the value is the newest so this doesn't loop.
+            int pos = 0;
+            while (pos < n && v.get(slot(h + pos, capacity)).getTime() > pvt.getTime())
+                pos++;
+            if (pos >= capacity)
+                return;
+
+            beginWrite();
+            try {
+                //Shift the newer values up one slot then put the value in the gap
+                int newHead = slot(h - 1 + capacity, capacity);
+                for (int i = 0; i < pos; i++)
+                    v.set(slot(newHead + i, capacity), v.get(slot(h + i, capacity)));
+                v.set(slot(newHead + pos, capacity), pvt);
+                head = newHead;
+                if (n < capacity)
+                    size = n + 1;
+            }
+            finally {
+                endWrite();
+            }
+        }
+    }
+
+    /**
+     * Replace the value with the same time as this one
+     *
+     * @param pvt
+     * @return true if a value was replaced
+     */
+    public boolean replace(PointValueTime pvt) {
+        synchronized (writeLock) {
+            AtomicReferenceArray<PointValueTime> v = values;
+            int capacity = v.length();
+            for (int i = 0; i < size; i++) {
+                int slot = slot(head + i, capacity);
+                if (v.get(slot).getTime() == pvt.getTime()) {
+                    beginWrite();
+                    try {
+                        v.set(slot, pvt);
+                    }
+                    finally {
+                        endWrite();
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Replace the contents and capacity
+     *
+     * @param latest
+     *            values ordered newest first, anything beyond the capacity is ignored
+     * @param capacity
+     */
+    public void reset(List<PointValueTime> latest, int capacity) {
+        AtomicReferenceArray<PointValueTime> v = new AtomicReferenceArray<PointValueTime>(capacity);
+        int n = Math.min(latest.size(), capacity);
+        for (int i = 0; i < n; i++)
+            v.set(i, latest.get(i));
+        synchronized (writeLock) {
+            beginWrite();
+            try {
+                values = v;
+                head = 0;
+                size = n;
+            }
+            finally {
+                endWrite();
+            }
+        }
+    }
+
+    /**
+     * Keep only the newest values, shrinking the capacity to match
+     *
+     * @param capacity
+     */
+    public void trim(int capacity) {
+        synchronized (writeLock) {
+            reset(snapshot(capacity), capacity);
+        }
+    }
+
+    /**
+     * @return the newest value or null if empty
+     */
+    public PointValueTime latest() {
+        for (int attempt = 0; attempt < READ_RETRIES; attempt++) {
+            int s = sequence;
+            if ((s & 1) == 0) {
+                PointValueTime pvt = newest();
+                if (s == sequence)
+                    return pvt;
+            }
+        }
+        synchronized (writeLock) {
+            return newest();
+        }
+    }
+
+    private PointValueTime newest() {
+        AtomicReferenceArray<PointValueTime> v = values;
+        if (size == 0 || v.length() == 0)
+            return null;
+        return v.get(slot(head, v.length()));
+    }
+
+    /**
+     * Immutable copy of up to limit of the newest values, newest first
+     *
+     * @param limit
+     * @return
+     */
+    public List<PointValueTime> snapshot(int limit) {
+        List<PointValueTime> copy = copy(limit);
+        if (copy.isEmpty())
+            return Collections.emptyList();
+        return Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * Copy of up to limit of the newest values, newest first, that the caller is free to change
+     *
+     * @param limit
+     * @return
+     */
+    public ArrayList<PointValueTime> copy(int limit) {
+        for (int attempt = 0; attempt < READ_RETRIES; attempt++) {
+            int s = sequence;
+            if ((s & 1) == 0) {
+                ArrayList<PointValueTime> copy = read(limit);
+                if (s == sequence)
+                    return copy;
+            }
+        }
+        synchronized (writeLock) {
+            return read(limit);
+        }
+    }
+
+    private ArrayList<PointValueTime> read(int limit) {
+        AtomicReferenceArray<PointValueTime> v = values;
+        int capacity = v.length();
+        int h = head;
+        int n = Math.min(Math.min(size, limit), capacity);
+        ArrayList<PointValueTime> copy = new ArrayList<PointValueTime>(n);
+        for (int i = 0; i < n; i++)
+            copy.add(v.get(slot(h + i, capacity)));
+        return copy;
+    }
+
+    private void beginWrite() {
+        sequence++;
+    }
+
+    private void endWrite() {
+        sequence++;
+    }
+
+    private static int slot(int index, int capacity) {
+        return index % capacity;
+    }
+}
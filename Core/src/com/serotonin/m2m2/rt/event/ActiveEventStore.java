@@ -0,0 +1,330 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.serotonin.m2m2.rt.event.type.EventType;
+
+/**
+ * The active events of the event manager, indexed by event type and by the data point, data source and
+ * publisher of the type so none of the lookups on the raise and return to normal paths scan all events.
+ * Data point events are indexed by the data source of their point too.
+ *
+ * Events are kept in buckets by a hash of the type name and reference ids, within a bucket they are matched
+ * with EventType.equals so types that do not implement hashCode still work. The buckets are spread over
+ * lock stripes so events of different types don't contend.
+ */
+public class ActiveEventStore {
+
+	private static final int STRIPES = 16;
+
+	private static final Comparator<EventInstance> ACTIVE_TIME = new Comparator<EventInstance>(){
+		@Override
+		public int compare(EventInstance e1, EventInstance e2) {
+			long t1 = e1.getActiveTimestamp();
+			long t2 = e2.getActiveTimestamp();
+			return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+		}
+	};
+
+	private final Stripe[] stripes;
+	//Secondary indexes, changed under the lock of the event's stripe
+	private final ConcurrentHashMap<Integer, Set<EventInstance>> byDataPoint = new ConcurrentHashMap<Integer, Set<EventInstance>>();
+	private final ConcurrentHashMap<Integer, Set<EventInstance>> byDataSource = new ConcurrentHashMap<Integer, Set<EventInstance>>();
+	private final ConcurrentHashMap<Integer, Set<EventInstance>> byPublisher = new ConcurrentHashMap<Integer, Set<EventInstance>>();
+
+	//Incremented on every change, a snapshot is current while its version matches
+	private final AtomicLong version = new AtomicLong();
+	private volatile Snapshot snapshot = new Snapshot(0, Collections.<EventInstance>emptyList());
+
+	public ActiveEventStore(){
+		stripes = new Stripe[STRIPES];
+		for(int i=0; i<STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	public void add(EventInstance evt){
+		int key = key(evt.getEventType());
+		Stripe stripe = stripe(key);
+		stripe.lock.lock();
+		try{
+			List<EventInstance> bucket = stripe.buckets.get(key);
+			if(bucket == null){
+				bucket = new ArrayList<EventInstance>(1);
+				stripe.buckets.put(key, bucket);
+			}
+			bucket.add(evt);
+			index(evt);
+			version.incrementAndGet();
+		}finally{
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the first active event of the type or null if there is none
+	 */
+	public EventInstance get(EventType type){
+		int key = key(type);
+		Stripe stripe = stripe(key);
+		stripe.lock.lock();
+		try{
+			List<EventInstance> bucket = stripe.buckets.get(key);
+			if(bucket != null)
+				for(EventInstance e : bucket)
+					if(e.getEventType().equals(type))
+						return e;
+		}finally{
+			stripe.lock.unlock();
+		}
+		return null;
+	}
+
+	/**
+	 * @return all active events of the type, in the order they were raised
+	 */
+	public List<EventInstance> getAll(EventType type){
+		List<EventInstance> result = new ArrayList<EventInstance>();
+		int key = key(type);
+		Stripe stripe = stripe(key);
+		stripe.lock.lock();
+		try{
+			List<EventInstance> bucket = stripe.buckets.get(key);
+			if(bucket != null)
+				for(EventInstance e : bucket)
+					if(e.getEventType().equals(type))
+						result.add(e);
+		}finally{
+			stripe.lock.unlock();
+		}
+		return result;
+	}
+
+	/**
+	 * Remove the first active event of the type
+	 * @return the event or null if there is none
+	 */
+	public EventInstance remove(EventType type){
+		EventInstance removed = null;
+		int key = key(type);
+		Stripe stripe = stripe(key);
+		stripe.lock.lock();
+		try{
+			List<EventInstance> bucket = stripe.buckets.get(key);
+			if(bucket != null){
+				Iterator<EventInstance> it = bucket.iterator();
+				while(it.hasNext()){
+					EventInstance e = it.next();
+					if(e.getEventType().equals(type)){
+						it.remove();
+						removed = e;
+						break;
+					}
+				}
+				if(bucket.isEmpty())
+					stripe.buckets.remove(key);
+			}
+			if(removed != null){
+				unindex(removed);
+				version.incrementAndGet();
+			}
+		}finally{
+			stripe.lock.unlock();
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove this instance
+	 * @return true if it was active
+	 */
+	public boolean remove(EventInstance evt){
+		boolean removed = false;
+		int key = key(evt.getEventType());
+		Stripe stripe = stripe(key);
+		stripe.lock.lock();
+		try{
+			List<EventInstance> bucket = stripe.buckets.get(key);
+			if(bucket != null){
+				Iterator<EventInstance> it = bucket.iterator();
+				while(it.hasNext()){
+					if(it.next() == evt){
+						it.remove();
+						removed = true;
+						break;
+					}
+				}
+				if(bucket.isEmpty())
+					stripe.buckets.remove(key);
+			}
+			if(removed){
+				unindex(evt);
+				version.incrementAndGet();
+			}
+		}finally{
+			stripe.lock.unlock();
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove the active events of a data point
+	 * @return the removed events
+	 */
+	public List<EventInstance> removeForDataPoint(int dataPointId){
+		return removeAll(byDataPoint.get(dataPointId));
+	}
+
+	/**
+	 * Remove the active events of a data source and of the data points of the data source
+	 * @return the removed events
+	 */
+	public List<EventInstance> removeForDataSource(int dataSourceId){
+		return removeAll(byDataSource.get(dataSourceId));
+	}
+
+	/**
+	 * Remove the active events of a publisher
+	 * @return the removed events
+	 */
+	public List<EventInstance> removeForPublisher(int publisherId){
+		return removeAll(byPublisher.get(publisherId));
+	}
+
+	public void clear(){
+		for(Stripe stripe : stripes){
+			stripe.lock.lock();
+			try{
+				stripe.buckets.clear();
+				version.incrementAndGet();
+			}finally{
+				stripe.lock.unlock();
+			}
+		}
+		byDataPoint.clear();
+		byDataSource.clear();
+		byPublisher.clear();
+	}
+
+	/**
+	 * All active events ordered by the time they went active, the list is shared by callers until the next
+	 * change and can't be modified
+	 * @return
+	 */
+	public List<EventInstance> getAll(){
+		Snapshot current = snapshot;
+		long v = version.get();
+		if(current.version == v)
+			return current.events;
+
+		List<EventInstance> events = new ArrayList<EventInstance>();
+		for(Stripe stripe : stripes){
+			stripe.lock.lock();
+			try{
+				for(List<EventInstance> bucket : stripe.buckets.values())
+					events.addAll(bucket);
+			}finally{
+				stripe.lock.unlock();
+			}
+		}
+		Collections.sort(events, ACTIVE_TIME);
+		current = new Snapshot(v, Collections.unmodifiableList(events));
+		//Only keep it if nothing changed while it was built
+		if(version.get() == v)
+			snapshot = current;
+		return current.events;
+	}
+
+	public int size(){
+		return getAll().size();
+	}
+
+	private List<EventInstance> removeAll(Set<EventInstance> events){
+		List<EventInstance> removed = new ArrayList<EventInstance>();
+		if(events != null)
+			for(EventInstance e : events)
+				if(remove(e))
+					removed.add(e);
+		return removed;
+	}
+
+	private void index(EventInstance evt){
+		EventType type = evt.getEventType();
+		if(type.getDataPointId() != -1)
+			indexSet(byDataPoint, type.getDataPointId()).add(evt);
+		//Point types raised by detectors know their data source, others look it up once
+		if(type.getDataSourceId() != -1)
+			indexSet(byDataSource, type.getDataSourceId()).add(evt);
+		if(type.getPublisherId() != -1)
+			indexSet(byPublisher, type.getPublisherId()).add(evt);
+	}
+
+	private void unindex(EventInstance evt){
+		EventType type = evt.getEventType();
+		if(type.getDataPointId() != -1)
+			unindexSet(byDataPoint, type.getDataPointId(), evt);
+		if(type.getDataSourceId() != -1)
+			unindexSet(byDataSource, type.getDataSourceId(), evt);
+		if(type.getPublisherId() != -1)
+			unindexSet(byPublisher, type.getPublisherId(), evt);
+	}
+
+	private Set<EventInstance> indexSet(ConcurrentHashMap<Integer, Set<EventInstance>> index, int id){
+		Set<EventInstance> events = index.get(id);
+		if(events == null){
+			events = Collections.newSetFromMap(new ConcurrentHashMap<EventInstance, Boolean>());
+			Set<EventInstance> existing = index.putIfAbsent(id, events);
+			if(existing != null)
+				events = existing;
+		}
+		return events;
+	}
+
+	private void unindexSet(ConcurrentHashMap<Integer, Set<EventInstance>> index, int id, EventInstance evt){
+		//Empty sets are left in place, there is at most one per source
+		Set<EventInstance> events = index.get(id);
+		if(events != null)
+			events.remove(evt);
+	}
+
+	private Stripe stripe(int key){
+		return stripes[(key & Integer.MAX_VALUE) % STRIPES];
+	}
+
+	/**
+	 * Equal types have the same name and reference ids, so they hash the same
+	 */
+	private static int key(EventType type){
+		int result = type.getEventType() == null ? 0 : type.getEventType().hashCode();
+		result = 31 * result + type.getReferenceId1();
+		result = 31 * result + type.getReferenceId2();
+		return result;
+	}
+
+	private static class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		final Map<Integer, List<EventInstance>> buckets = new HashMap<Integer, List<EventInstance>>();
+	}
+
+	private static class Snapshot {
+		final long version;
+		final List<EventInstance> events;
+
+		Snapshot(long version, List<EventInstance> events){
+			this.version = version;
+			this.events = events;
+		}
+	}
+}
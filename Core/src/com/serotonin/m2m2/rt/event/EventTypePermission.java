@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.event;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.dao.DataPointDao;
+import com.serotonin.m2m2.db.dao.DataSourceDao;
+import com.serotonin.m2m2.rt.dataImage.DataPointRT;
+import com.serotonin.m2m2.rt.dataSource.DataSourceRT;
+import com.serotonin.m2m2.rt.event.type.EventType;
+import com.serotonin.m2m2.vo.DataPointVO;
+import com.serotonin.m2m2.vo.User;
+import com.serotonin.m2m2.vo.dataSource.DataSourceVO;
+import com.serotonin.m2m2.vo.permission.Permissions;
+
+/**
+ * The same checks as Permissions.hasEventTypePermission for all users of one event. The data point or
+ * data source of the type is looked up once, from the runtime if it is running, instead of from the
+ * database for every user.
+ */
+public class EventTypePermission {
+
+	private final EventType type;
+	private boolean resolved;
+	private DataPointVO point;
+	private DataSourceVO<?> dataSource;
+
+	public EventTypePermission(EventType type){
+		this.type = type;
+	}
+
+	public boolean hasPermission(User user){
+		if(Permissions.hasAdmin(user))
+			return true;
+
+		if(!resolved){
+			resolve();
+			resolved = true;
+		}
+		if(point != null)
+			return Permissions.hasDataPointReadPermission(user, point);
+		if(dataSource != null)
+			return Permissions.hasDataSourcePermission(user, dataSource);
+		return false;
+	}
+
+	private void resolve(){
+		if(type.getEventType().equals(EventType.EventTypeNames.DATA_POINT)){
+			DataPointRT rt = Common.runtimeManager == null ? null : Common.runtimeManager.getDataPoint(type.getDataPointId());
+			if(rt != null)
+				point = rt.getVO();
+			else
+				point = new DataPointDao().get(type.getDataPointId());
+		}else if(type.getEventType().equals(EventType.EventTypeNames.DATA_SOURCE)){
+			DataSourceRT rt = Common.runtimeManager == null ? null : Common.runtimeManager.getRunningDataSource(type.getDataSourceId());
+			if(rt != null)
+				dataSource = rt.getVo();
+			else
+				dataSource = DataSourceDao.instance.get(type.getDataSourceId());
+		}
+	}
+}
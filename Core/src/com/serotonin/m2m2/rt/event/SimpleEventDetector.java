@@ -37,8 +37,12 @@ abstract public class SimpleEventDetector implements EventDetector, ILifecycle {
     }
 
     protected void fireEventDetectorStateChanged(long time) {
-        for (EventDetectorListener l : listeners)
-            l.eventDetectorStateChanged(time);
+        for (EventDetectorListener l : listeners) {
+            if (l instanceof SourceEventDetectorListener)
+                ((SourceEventDetectorListener) l).eventDetectorStateChanged(this, time);
+            else
+                l.eventDetectorStateChanged(time);
+        }
     }
 
     protected void fireEventDetectorTerminated() {
@@ -0,0 +1,12 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.event;
+
+/**
+ * Listener that is told which detector changed, detectors call this instead of
+ * eventDetectorStateChanged(long) so the listener only has to look at that detector
+ */
+public interface SourceEventDetectorListener extends EventDetectorListener {
+    void eventDetectorStateChanged(SimpleEventDetector source, long time);
+}
@@ -5,12 +5,14 @@
 package com.serotonin.m2m2.rt.event;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -21,69 +23,141 @@ import com.serotonin.m2m2.db.dao.EventDao;
 import com.serotonin.m2m2.util.timeout.TimeoutClient;
 import com.serotonin.m2m2.util.timeout.TimeoutTask;
 import com.serotonin.m2m2.web.taglib.Functions;
+import com.serotonin.timer.AbstractTimer;
 import com.serotonin.timer.FixedRateTrigger;
 import com.serotonin.timer.TimerTask;
 
 /**
- * Cache for events for each user, used to improve event access performance for logged in users at 
+ * Cache for events for each user, used to improve event access performance for logged in users at
  * the expense of memory use.
- * 
+ *
+ * The events of all users are kept once, in one index by id, or by instance for the events that are
+ * not saved and keep Common.NEW_ID, e.g. those with the DO_NOT_LOG alarm level. Each user with a cache entry has a slot
+ * and each event has a bitmap of the slots of the users that can see it, so an event is added, updated
+ * or removed once and not once per user. A user's list is built from the index when it is asked for
+ * and kept until the index changes.
+ *
  * If a user has not accessed their cache in timeToLive ms then the entry is cleaned up.
  * Stale entries are discarded every timeInterval.
- * 
+ *
  * @author Terry Packer
  *
  */
 public class UserEventCache implements TimeoutClient{
 	private final Log LOG = LogFactory.getLog(UserEventCache.class);
-	
+
     private long timeToLive;
-    private Map<Integer, UserEventCacheEntry> cacheMap;
     private final EventDao dao;
     private TimerTask timerTask;
     private volatile Thread jobThread; //So we don't run multiple cleanups at once
-    
+
+    //Guards everything below
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    //Events seen by at least one cached user, in the order they were added, see key(EventInstance)
+    private final Map<Object, CachedEvent> events = new LinkedHashMap<Object, CachedEvent>();
+    private final Map<Integer, UserEntry> users = new HashMap<Integer, UserEntry>();
+    private final BitSet usedSlots = new BitSet();
+    //Changed on every change to the index so the users know to rebuild their lists
+    private long version;
+
     /**
-     * 
+     *
      * @param timeToLive
      * @param timeInterval
      */
     public UserEventCache(long timeToLive, final long timeInterval) {
-        this.timeToLive = timeToLive;
-        this. cacheMap = new ConcurrentHashMap<Integer, UserEventCacheEntry>();
-        this.dao = new EventDao();
-        this.timerTask = new TimeoutTask(new FixedRateTrigger(500, timeInterval), this);
+        this(timeToLive, timeInterval, new EventDao());
     }
 
     public UserEventCache(long timeToLive, final long timeInterval, EventDao dao) {
         this.timeToLive = timeToLive;
-        this. cacheMap = new ConcurrentHashMap<Integer, UserEventCacheEntry>();
         this.dao = dao;
         this.timerTask = new TimeoutTask(new FixedRateTrigger(500, timeInterval), this);
     }
-    
-    
+
+    /**
+     * Cache that expires its entries on the given timer, for tests and simulations
+     * @param timeToLive
+     * @param timeInterval
+     * @param dao
+     * @param timer
+     */
+    public UserEventCache(long timeToLive, final long timeInterval, EventDao dao, AbstractTimer timer) {
+        this.timeToLive = timeToLive;
+        this.dao = dao;
+        this.timerTask = new TimeoutTask(new FixedRateTrigger(500, timeInterval), this, timer);
+    }
+
+    /**
+     * Add an event for the users that can see it, only users with a cache entry are kept
+     * @param value
+     * @param userIds
+     */
+    public void addEvent(EventInstance value, Collection<Integer> userIds) {
+    	lock.writeLock().lock();
+    	try{
+    		CachedEvent cached = null;
+    		for(Integer userId : userIds){
+    			UserEntry user = users.get(userId);
+    			if(user == null)
+    				continue;
+    			if(cached == null)
+    				cached = getOrAdd(value);
+    			cached.users.set(user.slot);
+    		}
+    		if(cached != null)
+    			version++;
+    	}finally{
+    		lock.writeLock().unlock();
+    	}
+    }
+
     /**
      * Add event for a user
      * @param userId
      * @param value
      */
     public void addEvent(Integer userId, EventInstance value) {
-        UserEventCacheEntry entry = cacheMap.get(userId);
-        if(entry != null){
-        	entry.addEvent(value);
-        }
+    	addEvent(value, Collections.singletonList(userId));
     }
-    
+
+	/**
+	 * Replace the cached copy of an event for all users
+	 * @param evt
+	 */
+	public void updateEvent(EventInstance evt) {
+		lock.writeLock().lock();
+		try{
+			CachedEvent cached = events.get(key(evt));
+			if(cached != null && cached.event != evt){
+				cached.event = evt;
+				version++;
+			}
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
 	/**
 	 * @param id
 	 * @param evt
 	 */
 	public void updateEvent(int userId, EventInstance evt) {
-        UserEventCacheEntry entry = cacheMap.get(userId);
-        if(entry != null){
-        	entry.replace(evt);
-        }
+		updateEvent(evt);
+	}
+
+	/**
+	 * Remove an event for all users
+	 * @param evt
+	 */
+	public void removeEvent(EventInstance evt) {
+		lock.writeLock().lock();
+		try{
+			if(events.remove(key(evt)) != null)
+				version++;
+		}finally{
+			lock.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -92,10 +166,19 @@ public class UserEventCache implements TimeoutClient{
 	 * @param evt
 	 */
     public void removeEvent(Integer userId, EventInstance evt) {
-        UserEventCacheEntry entry = cacheMap.get(userId);
-        if(entry != null){
-        	entry.remove(evt);
-        }
+    	lock.writeLock().lock();
+    	try{
+    		UserEntry user = users.get(userId);
+    		CachedEvent cached = events.get(key(evt));
+    		if(user != null && cached != null && cached.users.get(user.slot)){
+    			cached.users.clear(user.slot);
+    			if(cached.users.isEmpty())
+    				events.remove(key(evt));
+    			version++;
+    		}
+    	}finally{
+    		lock.writeLock().unlock();
+    	}
     }
 
     /**
@@ -104,76 +187,129 @@ public class UserEventCache implements TimeoutClient{
      * @return
      */
     public List<EventInstance> getAllEvents(Integer userId) {
-        UserEventCacheEntry c = cacheMap.get(userId);
-        if (c == null){
-            List<EventInstance> userEvents = dao.getAllUnsilencedEvents(userId);
-        	cacheMap.put(userId, new UserEventCacheEntry(userEvents));
-        	return userEvents;
-        }else {
-            return c.getEvents();
-        }
+    	lock.readLock().lock();
+    	try{
+    		UserEntry user = users.get(userId);
+    		if(user != null){
+    			user.lastAccessed = System.currentTimeMillis();
+    			List<EventInstance> view = user.view;
+    			if(view != null && user.viewVersion == version)
+    				return new ArrayList<>(view);
+    		}
+    	}finally{
+    		lock.readLock().unlock();
+    	}
+
+    	//Load a new user without holding the lock
+    	boolean known;
+    	lock.readLock().lock();
+    	try{
+    		known = users.containsKey(userId);
+    	}finally{
+    		lock.readLock().unlock();
+    	}
+    	List<EventInstance> userEvents = known ? null : dao.getAllUnsilencedEvents(userId);
+
+    	lock.writeLock().lock();
+    	try{
+    		UserEntry user = users.get(userId);
+    		if(user == null){
+    			user = new UserEntry(usedSlots.nextClearBit(0));
+    			usedSlots.set(user.slot);
+    			users.put(userId, user);
+    			if(userEvents == null)
+    				userEvents = dao.getAllUnsilencedEvents(userId);
+    			for(EventInstance evt : userEvents)
+    				getOrAdd(evt).users.set(user.slot);
+    			version++;
+    		}
+    		user.lastAccessed = System.currentTimeMillis();
+    		if(user.view == null || user.viewVersion != version){
+    			List<EventInstance> view = new ArrayList<EventInstance>();
+    			for(CachedEvent cached : events.values())
+    				if(cached.users.get(user.slot))
+    					view.add(cached.event);
+    			user.view = view;
+    			user.viewVersion = version;
+    		}
+    		return new ArrayList<>(user.view);
+    	}finally{
+    		lock.writeLock().unlock();
+    	}
     }
-    
+
     /**
-     * 
+     *
      * @param time
      */
     public void purgeEventsBefore(long time){
-		Iterator<Integer> it = cacheMap.keySet().iterator();
-		while(it.hasNext()){
-			cacheMap.get(it.next()).purgeBefore(time);
-		}
+    	purge(time, null, null);
     }
-    
+
     public void purgeEventsBefore(long time, int alarmLevel){
-			Iterator<Integer> it = cacheMap.keySet().iterator();
-			while(it.hasNext()){
-				cacheMap.get(it.next()).purgeBefore(time, alarmLevel);
-			}
+    	purge(time, alarmLevel, null);
     }
-    
+
     public void purgeEventsBefore(long time, String typeName){
-		Iterator<Integer> it = cacheMap.keySet().iterator();
-		while(it.hasNext()){
-			cacheMap.get(it.next()).purgeBefore(time, typeName);
-		}
+    	purge(time, null, typeName);
     }
-    
+
 	/**
 	 * Clear Events for all users
 	 */
 	public void purgeAllEvents() {
-		Iterator<Integer> it = cacheMap.keySet().iterator();
-		while(it.hasNext()){
-			cacheMap.get(it.next()).purge();
+		lock.writeLock().lock();
+		try{
+			events.clear();
+			version++;
+		}finally{
+			lock.writeLock().unlock();
 		}
 	}
-    
+
     // CLEANUP method
     public void cleanup() {
-        
         long now = System.currentTimeMillis();
-        ArrayList<Integer> deleteKey = null;
-        
-
-        Iterator<Entry<Integer, UserEventCacheEntry>> itr = cacheMap.entrySet().iterator();
-        
-        deleteKey = new ArrayList<Integer>((cacheMap.size() / 2) + 1);
-        Entry<Integer, UserEventCacheEntry> entry = null;
-        UserEventCacheEntry cacheEntry = null;
-        while (itr.hasNext()) {
-            entry = itr.next();
-            cacheEntry = entry.getValue();
-            if (cacheEntry != null && (now > (timeToLive + cacheEntry.lastAccessed))) {
-                deleteKey.add(entry.getKey());
-            }
-        }
-        
-        for (Integer key : deleteKey) {
-        	cacheMap.remove(key);
+        lock.writeLock().lock();
+        try{
+        	BitSet expired = new BitSet();
+        	Iterator<UserEntry> it = users.values().iterator();
+        	while(it.hasNext()){
+        		UserEntry user = it.next();
+        		if(now > (timeToLive + user.lastAccessed)){
+        			expired.set(user.slot);
+        			it.remove();
+        		}
+        	}
+        	if(expired.isEmpty())
+        		return;
+
+        	//Free the slots and drop the events nobody sees anymore
+        	Iterator<CachedEvent> events = this.events.values().iterator();
+        	while(events.hasNext()){
+        		BitSet eventUsers = events.next().users;
+        		eventUsers.andNot(expired);
+        		if(eventUsers.isEmpty())
+        			events.remove();
+        	}
+        	usedSlots.andNot(expired);
+        	version++;
+        }finally{
+        	lock.writeLock().unlock();
         }
     }
 
+    /**
+     * @return the number of events in the index
+     */
+    public int size(){
+    	lock.readLock().lock();
+    	try{
+    		return events.size();
+    	}finally{
+    		lock.readLock().unlock();
+    	}
+    }
 
 	/* (non-Javadoc)
 	 * @see com.serotonin.m2m2.util.timeout.TimeoutClient#scheduleTimeout(long)
@@ -196,148 +332,75 @@ public class UserEventCache implements TimeoutClient{
 		}
         Thread.yield();
 	}
-	
+
 	public void terminate(){
         if (timerTask != null)
-            timerTask.cancel();  
+            timerTask.cancel();
 	}
-	
-    private class UserEventCacheEntry {
-    	
-        private volatile long lastAccessed = System.currentTimeMillis();
-        private List<EventInstance> events;
-        private ReadWriteLock lock;
-        
-        protected UserEventCacheEntry(List<EventInstance> events) {
-        	//Make a local copy, we don't know what will go on with the list outside our little world.
-            this.events = new ArrayList<>(events);
-            this.lock = new ReentrantReadWriteLock();
-        }
-        
-        /**
-		 * @return
-		 */
-		public List<EventInstance> getEvents() {
-			this.lock.readLock().lock();
-        	try{
-        		//Make a copy
-        		return new ArrayList<>(this.events);
-        	}finally{
-        		this.lock.readLock().unlock();
-        		this.lastAccessed = System.currentTimeMillis();
-        	}
-		}
-
-		public void addEvent(EventInstance event){
-        	this.lock.writeLock().lock();
-        	try{
-        		this.events.add(event);
-        	}finally{
-        		this.lock.writeLock().unlock();
-        		this.lastAccessed = System.currentTimeMillis();
-        	}
-        }
 
-		/**
-		 * @param evt
-		 */
-		public void replace(EventInstance evt) {
-			this.lock.writeLock().lock();
-			try{
-				ListIterator<EventInstance> it = this.events.listIterator();
-	        	while(it.hasNext()){
-	        		EventInstance ue  = it.next();
-	        		if(ue.getId() == evt.getId()){
-	        			it.set(evt);
-	        			break;
-	        		}
-	        	}
-			}finally{
-				this.lock.writeLock().unlock();
-				this.lastAccessed = System.currentTimeMillis();
+	/**
+	 * Remove the events active before the time that match the level or type if given
+	 */
+	private void purge(long time, Integer alarmLevel, String typeName){
+		lock.writeLock().lock();
+		try{
+			Iterator<CachedEvent> it = events.values().iterator();
+			while(it.hasNext()){
+				EventInstance ue = it.next().event;
+				if(ue.getActiveTimestamp() < time
+						&& (alarmLevel == null || ue.getAlarmLevel() == alarmLevel)
+						&& (typeName == null || ue.getEventType().getEventType().equals(typeName))){
+					it.remove();
+					version++;
+				}
 			}
-        	
+		}finally{
+			lock.writeLock().unlock();
 		}
+	}
 
-		/**
-		 * @param evt
-		 */
-		public void remove(EventInstance evt) {
-			this.lock.writeLock().lock();
-			try{
-				ListIterator<EventInstance> it = this.events.listIterator();
-	        	while(it.hasNext()){
-	        		EventInstance ue  = it.next();
-	        		if(ue.getId() == evt.getId()){
-	        			it.remove();
-	        			break;
-	        		}
-	        	}
-			}finally{
-				this.lock.writeLock().unlock();
-				this.lastAccessed = System.currentTimeMillis();
-			}
-        }
-
-		public void purgeBefore(long time){
-			this.lock.writeLock().lock();
-			try{
-				ListIterator<EventInstance> it = this.events.listIterator();
-	        	while(it.hasNext()){
-	        		EventInstance ue  = it.next();
-	        		if(ue.getActiveTimestamp() < time){
-	        			it.remove();
-	        		}
-	        	}
-			}finally{
-				this.lock.writeLock().unlock();
-				this.lastAccessed = System.currentTimeMillis();
-			}
-			
-		}
-		public void purgeBefore(long time, int alarmLevel){
-			this.lock.writeLock().lock();
-			try{
-				ListIterator<EventInstance> it = this.events.listIterator();
-	        	while(it.hasNext()){
-	        		EventInstance ue  = it.next();
-	        		if((ue.getActiveTimestamp() < time)&&(ue.getAlarmLevel() == alarmLevel)){
-	        			it.remove();
-	        		}
-	        	}
-			}finally{
-        		this.lock.writeLock().unlock();
-        		this.lastAccessed = System.currentTimeMillis();
-        	}
-		}
-		public void purgeBefore(long time, String typeName){
-			
-			this.lock.writeLock().lock();
-			try{
-				ListIterator<EventInstance> it = this.events.listIterator();
-	        	while(it.hasNext()){
-	        		EventInstance ue  = it.next();
-	        		if((ue.getActiveTimestamp() < time)&&(ue.getEventType().getEventType().equals(typeName))){
-	        			it.remove();
-	        		}
-	        	}
-			}finally{
-        		this.lock.writeLock().unlock();
-        		this.lastAccessed = System.currentTimeMillis();
-        	}
+	/**
+	 * Must hold the write lock
+	 */
+	private CachedEvent getOrAdd(EventInstance evt){
+		Object key = key(evt);
+		CachedEvent cached = events.get(key);
+		if(cached == null){
+			cached = new CachedEvent(evt);
+			events.put(key, cached);
 		}
-		/**
-		 * Dump our entire cache
-		 */
-		public void purge() {
-			this.lock.writeLock().lock();
-			try{
-				this.events.clear();
-			}finally{
-        		this.lock.writeLock().unlock();
-        		this.lastAccessed = System.currentTimeMillis();
-        	}
+		return cached;
+	}
+
+	/**
+	 * @return the id of a saved event, the instance itself for an unsaved one so they aren't all kept
+	 * 	under Common.NEW_ID. EventInstance doesn't override equals.
+	 */
+	private static Object key(EventInstance evt){
+		if(evt.getId() < 0)
+			return evt;
+		return evt.getId();
+	}
+
+	private static class CachedEvent {
+		private EventInstance event;
+		//Slots of the users that see the event
+		private final BitSet users = new BitSet();
+
+		CachedEvent(EventInstance event){
+			this.event = event;
 		}
+	}
+
+    private static class UserEntry {
+    	private final int slot;
+        private volatile long lastAccessed = System.currentTimeMillis();
+        //The user's events as of viewVersion, built when asked for
+        private List<EventInstance> view;
+        private long viewVersion;
+
+        UserEntry(int slot){
+        	this.slot = slot;
+        }
     }
-	
 }
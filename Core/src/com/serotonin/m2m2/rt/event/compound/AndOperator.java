@@ -31,6 +31,11 @@ public class AndOperator extends BinaryOperator {
         return operand1.evaluate() && operand2.evaluate();
     }
 
+    @Override
+    protected byte getNodeType() {
+        return CompiledCondition.AND;
+    }
+
     @Override
     public String toString() {
         return "AND(" + operand1 + "," + operand2 + ")";
@@ -40,6 +40,13 @@ abstract public class BinaryOperator extends LogicalOperator {
         operand2.appendDetectorKeys(keys);
     }
 
+    @Override
+    protected int appendNodes(CompiledCondition.Builder builder) {
+        return builder.operator(getNodeType(), operand1.appendNodes(builder), operand2.appendNodes(builder));
+    }
+
+    abstract protected byte getNodeType();
+
     @Override
     public void initialize() throws LocalizableException {
         operand1.initialize();
@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.event.compound;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A condition statement flattened into arrays of nodes so it can be evaluated incrementally. Each
+ * distinct detector key of the statement is a child with a state. When a child changes only the
+ * nodes above its references are updated, and only until a node's value doesn't change, so the
+ * cost of a change depends on the depth of the statement and not on its size.
+ *
+ * And and or nodes keep the count of their operands that are true. Parentheses are dropped.
+ *
+ * Not thread safe, the owner must synchronize.
+ */
+public class CompiledCondition {
+
+	static final byte LEAF = 0;
+	static final byte NOT = 1;
+	static final byte AND = 2;
+	static final byte OR = 3;
+
+	private final byte[] types;
+	//Parent node of each node, -1 for the root
+	private final int[] parents;
+	//Leaf nodes: the child, not, and, or nodes: the operands
+	private final int[][] operands;
+	//And and or nodes: operands that are true
+	private final int[] trueCounts;
+	private final boolean[] values;
+	private final int root;
+
+	private final String[] keys;
+	private final boolean[] states;
+	//Leaf nodes of each child, a key can be used more than once
+	private final int[][] childLeaves;
+
+	/**
+	 * Compile a parsed condition statement, all children start inactive
+	 * @param condition
+	 */
+	public CompiledCondition(LogicalOperator condition){
+		Builder builder = new Builder();
+		this.root = condition.appendNodes(builder);
+
+		int count = builder.types.size();
+		this.types = new byte[count];
+		this.parents = new int[count];
+		this.operands = builder.operands.toArray(new int[count][]);
+		this.trueCounts = new int[count];
+		this.values = new boolean[count];
+		Arrays.fill(parents, -1);
+		for(int node=0; node<count; node++){
+			types[node] = builder.types.get(node);
+			if(types[node] != LEAF)
+				for(int operand : operands[node])
+					parents[operand] = node;
+		}
+
+		this.keys = builder.children.keySet().toArray(new String[builder.children.size()]);
+		this.states = new boolean[keys.length];
+		this.childLeaves = new int[keys.length][];
+		for(int child=0; child<keys.length; child++){
+			List<Integer> leaves = builder.children.get(keys[child]);
+			childLeaves[child] = new int[leaves.size()];
+			for(int i=0; i<leaves.size(); i++)
+				childLeaves[child][i] = leaves.get(i);
+		}
+
+		evaluate();
+	}
+
+	/**
+	 * @return the detector keys, the index of a key is its child index
+	 */
+	public String[] getKeys(){
+		return keys;
+	}
+
+	/**
+	 * @param key
+	 * @return the index of the child, -1 if the key isn't used
+	 */
+	public int indexOf(String key){
+		for(int i=0; i<keys.length; i++)
+			if(keys[i].equals(key))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @return the value of the statement
+	 */
+	public boolean getValue(){
+		return values[root];
+	}
+
+	public boolean getState(int child){
+		return states[child];
+	}
+
+	/**
+	 * Change the state of a child, updating only the nodes that depend on it
+	 * @param child
+	 * @param state
+	 * @return the value of the statement
+	 */
+	public boolean setState(int child, boolean state){
+		if(states[child] == state)
+			return values[root];
+		states[child] = state;
+
+		for(int leaf : childLeaves[child]){
+			values[leaf] = state;
+			int node = leaf;
+			int parent = parents[node];
+			while(parent != -1){
+				boolean value = values[parent];
+				switch(types[parent]){
+				case NOT:
+					value = !values[node];
+					break;
+				case AND:
+					trueCounts[parent] += values[node] ? 1 : -1;
+					value = trueCounts[parent] == operands[parent].length;
+					break;
+				case OR:
+					trueCounts[parent] += values[node] ? 1 : -1;
+					value = trueCounts[parent] > 0;
+					break;
+				}
+				if(value == values[parent])
+					break;
+				values[parent] = value;
+				node = parent;
+				parent = parents[node];
+			}
+		}
+		return values[root];
+	}
+
+	/**
+	 * Evaluate every node from the child states, the way the operator tree does
+	 * @return the value of the statement
+	 */
+	public boolean evaluate(){
+		//Operands are always added before their operators
+		for(int node=0; node<types.length; node++){
+			switch(types[node]){
+			case LEAF:
+				values[node] = states[operands[node][0]];
+				break;
+			case NOT:
+				values[node] = !values[operands[node][0]];
+				break;
+			default:
+				int trueCount = 0;
+				for(int operand : operands[node])
+					if(values[operand])
+						trueCount++;
+				trueCounts[node] = trueCount;
+				values[node] = types[node] == AND ? trueCount == operands[node].length : trueCount > 0;
+			}
+		}
+		return values[root];
+	}
+
+	/**
+	 * Collects the nodes of a statement, operands before their operators
+	 */
+	static class Builder {
+		final List<Byte> types = new ArrayList<Byte>();
+		final List<int[]> operands = new ArrayList<int[]>();
+		final Map<String, List<Integer>> children = new LinkedHashMap<String, List<Integer>>();
+
+		int leaf(String key){
+			List<Integer> leaves = children.get(key);
+			int child;
+			if(leaves == null){
+				child = children.size();
+				leaves = new ArrayList<Integer>();
+				children.put(key, leaves);
+			}else
+				child = operands.get(leaves.get(0))[0];
+			int node = add(LEAF, new int[] { child });
+			leaves.add(node);
+			return node;
+		}
+
+		int operator(byte type, int... nodes){
+			return add(type, nodes);
+		}
+
+		private int add(byte type, int[] nodeOperands){
+			types.add(type);
+			operands.add(nodeOperands);
+			return types.size() - 1;
+		}
+	}
+}
@@ -19,14 +19,16 @@
 package com.serotonin.m2m2.rt.event.compound;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 
 import com.serotonin.ShouldNeverHappenException;
 import com.serotonin.m2m2.Common;
-import com.serotonin.m2m2.rt.event.EventDetectorListener;
 import com.serotonin.m2m2.rt.event.SimpleEventDetector;
+import com.serotonin.m2m2.rt.event.SourceEventDetectorListener;
 import com.serotonin.m2m2.rt.event.type.CompoundDetectorEventType;
 import com.serotonin.m2m2.rt.event.type.EventType;
 import com.serotonin.m2m2.vo.event.CompoundEventDetectorVO;
@@ -38,13 +40,16 @@ import com.serotonin.web.i18n.LocalizableMessage;
 /**
  * @author Matthew Lohbihler
  */
-public class CompoundEventDetectorRT implements EventDetectorListener, ILifecycle {
+public class CompoundEventDetectorRT implements SourceEventDetectorListener, ILifecycle {
     private static final char[] TOKEN_OR = { '|', '|' };
     private static final char[] TOKEN_AND = { '&', '&' };
 
     private final CompoundEventDetectorVO vo;
     private CompoundDetectorEventType eventType;
     private LogicalOperator condition;
+    private CompiledCondition compiled;
+    // The child index of each detector in the compiled condition
+    private final Map<SimpleEventDetector, Integer> sources = new IdentityHashMap<SimpleEventDetector, Integer>();
     private boolean currentState;
 
     public CompoundEventDetectorRT(CompoundEventDetectorVO vo) {
@@ -203,9 +208,29 @@ public class CompoundEventDetectorRT implements EventDetectorListener, ILifecycl
     //
     // / EventDetectorListener
     //
-    public void eventDetectorStateChanged(long time) {
-        // Evaluate the condition.
-        boolean newState = condition.evaluate();
+    public synchronized void eventDetectorStateChanged(SimpleEventDetector source, long time) {
+        // Update the condition for the detector that changed, only the parts of it that use the detector are
+        // evaluated again.
+        Integer child = sources.get(source);
+        if (child == null)
+            updateStates();
+        else
+            compiled.setState(child, source.isEventActive());
+        stateChanged(time);
+    }
+
+    public synchronized void eventDetectorStateChanged(long time) {
+        updateStates();
+        stateChanged(time);
+    }
+
+    private void updateStates() {
+        for (Map.Entry<SimpleEventDetector, Integer> source : sources.entrySet())
+            compiled.setState(source.getValue(), source.getKey().isEventActive());
+    }
+
+    private void stateChanged(long time) {
+        boolean newState = compiled.getValue();
 
         // If it has changed, take appropriate action.
         if (newState != currentState) {
@@ -233,7 +258,7 @@ public class CompoundEventDetectorRT implements EventDetectorListener, ILifecycl
     // /
     //
     //
-    public void initialize() throws LifecycleException {
+    public synchronized void initialize() throws LifecycleException {
         // Validate the condition statement.
         try {
             condition = parseConditionStatement(vo.getCondition());
@@ -249,24 +274,40 @@ public class CompoundEventDetectorRT implements EventDetectorListener, ILifecycl
             throw new LifecycleException(e);
         }
 
+        // Seed the state of each detector before listening to them. Their changes wait for this lock so
+        // none is seen before the states are all set.
+        compiled = new CompiledCondition(condition);
         condition.initSource(this);
+        for (SimpleEventDetector source : sources.keySet())
+            source.addListener(this);
 
         // Create a convenience reference to the event type.
         eventType = new CompoundDetectorEventType(vo.getId());
         if (!vo.isReturnToNormal())
             eventType.setDuplicateHandling(EventType.DuplicateHandling.ALLOW);
 
-        // Evaluate the current state.
-        currentState = condition.evaluate();
+        // Evaluate the current state, with any change made before a listener was added
+        updateStates();
+        currentState = compiled.getValue();
         if (currentState)
             raiseEvent(System.currentTimeMillis());
         else
             returnToNormal(System.currentTimeMillis());
     }
 
-    public void terminate() {
+    /**
+     * Called by the condition for each detector it uses, before the listeners are added
+     */
+    void addSource(String detectorKey, SimpleEventDetector source) {
+        int child = compiled.indexOf(detectorKey);
+        sources.put(source, child);
+        compiled.setState(child, source.isEventActive());
+    }
+
+    public synchronized void terminate() {
         if (condition != null)
             condition.terminate(this);
+        sources.clear();
         returnToNormal(System.currentTimeMillis());
     }
 
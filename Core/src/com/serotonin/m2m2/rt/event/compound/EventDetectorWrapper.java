@@ -48,6 +48,11 @@ public class EventDetectorWrapper extends LogicalOperator {
         return detectorKey;
     }
 
+    @Override
+    protected int appendNodes(CompiledCondition.Builder builder) {
+        return builder.leaf(detectorKey);
+    }
+
     @Override
     public void initialize() throws LocalizableException {
         //TODO this needs to be added, check
@@ -59,7 +64,7 @@ public class EventDetectorWrapper extends LogicalOperator {
 
     @Override
     public void initSource(CompoundEventDetectorRT parent) {
-        source.addListener(parent);
+        parent.addSource(detectorKey, source);
     }
 
     @Override
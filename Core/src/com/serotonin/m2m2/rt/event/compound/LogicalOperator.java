@@ -42,4 +42,10 @@ abstract public class LogicalOperator {
     }
 
     abstract protected void appendDetectorKeys(List<String> keys);
+
+    /**
+     * Add the nodes of this operator to a compiled condition, operands first
+     * @return the index of this operator's node
+     */
+    abstract protected int appendNodes(CompiledCondition.Builder builder);
 }
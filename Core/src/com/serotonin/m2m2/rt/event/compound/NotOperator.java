@@ -47,6 +47,11 @@ public class NotOperator extends LogicalOperator {
         operand.appendDetectorKeys(keys);
     }
 
+    @Override
+    protected int appendNodes(CompiledCondition.Builder builder) {
+        return builder.operator(CompiledCondition.NOT, operand.appendNodes(builder));
+    }
+
     @Override
     public void initialize() throws LocalizableException {
         operand.initialize();
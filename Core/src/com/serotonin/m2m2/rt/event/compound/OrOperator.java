@@ -31,6 +31,11 @@ public class OrOperator extends BinaryOperator {
         return operand1.evaluate() || operand2.evaluate();
     }
 
+    @Override
+    protected byte getNodeType() {
+        return CompiledCondition.OR;
+    }
+
     @Override
     public String toString() {
         return "OR(" + operand1 + "," + operand2 + ")";
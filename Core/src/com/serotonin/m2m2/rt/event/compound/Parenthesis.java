@@ -47,6 +47,11 @@ public class Parenthesis extends LogicalOperator {
         operand.appendDetectorKeys(keys);
     }
 
+    @Override
+    protected int appendNodes(CompiledCondition.Builder builder) {
+        return operand.appendNodes(builder);
+    }
+
     @Override
     public void initialize() throws LocalizableException {
         operand.initialize();
@@ -21,7 +21,8 @@ abstract public class PointEventDetectorRT implements DataPointListener {
     protected PointEventDetectorVO vo;
 
     protected EventType getEventType() {
-        DataPointEventType et = new DataPointEventType(vo.njbGetDataPoint().getId(), vo.getId());
+        DataPointEventType et = new DataPointEventType(vo.njbGetDataPoint().getDataSourceId(),
+                vo.njbGetDataPoint().getId(), vo.getId());
         if (!vo.isRtnApplicable())
             et.setDuplicateHandling(EventType.DuplicateHandling.ALLOW);
         return et;
@@ -6,9 +6,9 @@ package com.serotonin.m2m2.rt.event.detectors;
 
 import com.serotonin.m2m2.i18n.TranslatableMessage;
 import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.util.TimeValueWindow;
 import com.serotonin.m2m2.view.text.TextRenderer;
 import com.serotonin.m2m2.vo.event.PointEventDetectorVO;
-import com.serotonin.util.queue.ObjectQueue;
 
 /**
  * The SmoothnessDetectorRT is used to detect erratic input from what should otherwise be a stable sensor. This
@@ -21,7 +21,7 @@ public class SmoothnessDetectorRT extends TimeDelayedEventDetectorRT {
     /**
      * State field. The current boxcar.
      */
-    private final ObjectQueue<Double> boxcar = new ObjectQueue<>();
+    private final TimeValueWindow boxcar = new TimeValueWindow();
 
     /**
      * State field. Whether the smoothness is currently below the limit or not. This field is used to prevent multiple
@@ -75,11 +75,10 @@ public class SmoothnessDetectorRT extends TimeDelayedEventDetectorRT {
         double newDouble = newValue.getDoubleValue();
 
         // Add the value to the boxcar.
-        boxcar.push(newDouble);
+        boxcar.add(newValue.getTime(), newDouble);
 
         // Trim the boxcar to the max size
-        while (boxcar.size() > vo.getChangeCount())
-            boxcar.pop();
+        boxcar.trimTo(vo.getChangeCount());
 
         // Calculate the smoothness
         double smoothness = calc();
@@ -136,7 +135,8 @@ public class SmoothnessDetectorRT extends TimeDelayedEventDetectorRT {
         double sumErr = 0;
         int count = 0;
 
-        for (Double value : boxcar) {
+        for (int i = 0; i < boxcar.size(); i++) {
+            double value = boxcar.getValue(i);
             if (!Double.isNaN(prev)) {
                 double opp = value - prev;
                 double hyp = StrictMath.sqrt(0.1 + opp * opp);
@@ -4,24 +4,22 @@
  */
 package com.serotonin.m2m2.rt.event.detectors;
 
-import java.util.LinkedList;
-import java.util.List;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.serotonin.m2m2.i18n.TranslatableMessage;
 import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.util.TimeValueWindow;
 import com.serotonin.m2m2.vo.event.PointEventDetectorVO;
 
 public class StateChangeCountDetectorRT extends TimeoutDetectorRT {
     private final Log log = LogFactory.getLog(StateChangeCountDetectorRT.class);
 
     /**
-     * State field. The point values that have accumulated so far. Each call to pointChanged will drop off the values
-     * beyond the duration.
+     * State field. The times of the changes that have accumulated so far. Each call to pointChanged will drop off the
+     * changes beyond the duration.
      */
-    private final List<PointValueTime> pointValues = new LinkedList<PointValueTime>();
+    private final TimeValueWindow changes = new TimeValueWindow(false);
 
     /**
      * State field. Whether the state has been detected or not. This field is used to prevent multiple events being
@@ -75,22 +73,22 @@ public class StateChangeCountDetectorRT extends TimeoutDetectorRT {
 
     @Override
     public void pointChanged(PointValueTime oldValue, PointValueTime newValue) {
-        pointChanged(newValue.getTime(), newValue);
+        pointChanged(newValue.getTime());
     }
 
-    private void pointChanged(long time, PointValueTime value) {
-        synchronized (pointValues) {
+    private void pointChanged(long time) {
+        synchronized (changes) {
             // Add the new change
-            pointValues.add(value);
+            changes.add(time);
 
-            // Drop off point values beyond the given time frame.
-            removeOldPointValues(time);
+            // Drop off changes beyond the given time frame.
+            removeOldChanges(time);
 
             // Check if we're past the change limit.
-            if (pointValues.size() >= vo.getChangeCount()) {
+            if (changes.size() >= vo.getChangeCount()) {
                 if (!eventActive) {
                     eventActive = true;
-                    eventActiveTime = value.getTime();
+                    eventActiveTime = time;
 
                     // Raise the event.
                     raiseEvent(eventActiveTime, createEventContext());
@@ -100,8 +98,7 @@ public class StateChangeCountDetectorRT extends TimeoutDetectorRT {
                     unscheduleJob();
 
                 // Schedule a job for the deactivation of this detector.
-                long eventInactiveTime = pointValues.get(pointValues.size() - vo.getChangeCount()).getTime()
-                        + getDurationMS();
+                long eventInactiveTime = changes.getTime(changes.size() - vo.getChangeCount()) + getDurationMS();
                 scheduleJob(eventInactiveTime + 1);
             }
         }
@@ -109,20 +106,20 @@ public class StateChangeCountDetectorRT extends TimeoutDetectorRT {
 
     @Override
     public void scheduleTimeoutImpl(long fireTime) {
-        synchronized (pointValues) {
+        synchronized (changes) {
             // This call was scheduled to occur at the eventInactiveTime.
             // Strictly speaking, the fact this method was called implies that the detector is going from active to
             // inactive. However, it really doesn't hurt to do a bit of cleanup and checking, so what the heck...
-            removeOldPointValues(fireTime);
+            removeOldChanges(fireTime);
 
-            if (pointValues.size() >= vo.getChangeCount()) {
+            if (changes.size() >= vo.getChangeCount()) {
                 // Something has gone wrong.
                 StringBuilder sb = new StringBuilder();
                 sb.append("I was supposed to go inactive, but there are still too many state changes in my list: ");
                 sb.append("fireTime=").append(fireTime);
                 sb.append(", list=[");
-                for (PointValueTime pvt : pointValues)
-                    sb.append(pvt.getTime()).append(", ");
+                for (int i = 0; i < changes.size(); i++)
+                    sb.append(changes.getTime(i)).append(", ");
                 sb.append("], durationMS=").append(getDurationMS());
                 sb.append(", changeCount=").append(vo.getChangeCount());
                 log.error(sb.toString(), new Exception());
@@ -134,12 +131,7 @@ public class StateChangeCountDetectorRT extends TimeoutDetectorRT {
         returnToNormal(fireTime);
     }
 
-    private void removeOldPointValues(long time) {
-        while (pointValues.size() > 0) {
-            if (pointValues.get(0).getTime() < time - getDurationMS())
-                pointValues.remove(0);
-            else
-                break;
-        }
+    private void removeOldChanges(long time) {
+        changes.expireBefore(time - getDurationMS());
     }
 }
@@ -4,13 +4,10 @@
  */
 package com.serotonin.m2m2.rt.event.detectors;
 
-import java.util.Date;
-
 import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.i18n.TranslatableMessage;
 import com.serotonin.m2m2.util.timeout.TimeoutClient;
-import com.serotonin.m2m2.util.timeout.TimeoutTask;
-import com.serotonin.timer.TimerTask;
+import com.serotonin.m2m2.util.timeout.TimerWheel;
 
 /**
  * This class is a base class for detectors that need to schedule timeouts for their operation. Subclasses may use
@@ -32,7 +29,7 @@ abstract public class TimeoutDetectorRT extends PointEventDetectorRT implements
     /**
      * Internal configuration field. The unique name for this event producer to be used in the scheduler (if required).
      */
-    private TimerTask task;
+    private TimerWheel.Timeout task;
 
     @Override
     public void initialize() {
@@ -63,7 +60,7 @@ abstract public class TimeoutDetectorRT extends PointEventDetectorRT implements
     protected void scheduleJob(long timeout) {
         if (task != null)
             cancelTask();
-        task = new TimeoutTask(new Date(timeout), this);
+        task = TimerWheel.instance().schedule(timeout, this);
     }
 
     protected void unscheduleJob() {
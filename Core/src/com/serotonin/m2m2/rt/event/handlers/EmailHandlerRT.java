@@ -13,9 +13,11 @@ import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -38,17 +40,17 @@ import com.serotonin.m2m2.rt.dataImage.DataPointRT;
 import com.serotonin.m2m2.rt.dataImage.PointValueTime;
 import com.serotonin.m2m2.rt.event.AlarmLevels;
 import com.serotonin.m2m2.rt.event.EventInstance;
+import com.serotonin.m2m2.rt.event.handlers.EventHandlerThrottle.DigestClient;
 import com.serotonin.m2m2.rt.event.type.DataPointEventType;
 import com.serotonin.m2m2.rt.event.type.SystemEventType;
 import com.serotonin.m2m2.rt.maint.work.EmailWorkItem;
 import com.serotonin.m2m2.util.timeout.ModelTimeoutClient;
-import com.serotonin.m2m2.util.timeout.ModelTimeoutTask;
+import com.serotonin.m2m2.util.timeout.TimerWheel;
 import com.serotonin.m2m2.vo.DataPointVO;
 import com.serotonin.m2m2.vo.event.EventHandlerVO;
 import com.serotonin.m2m2.web.dwr.beans.RenderedPointValueTime;
 import com.serotonin.m2m2.web.mvc.rest.v1.model.WorkItemModel;
 import com.serotonin.m2m2.web.taglib.Functions;
-import com.serotonin.timer.TimerTask;
 import com.serotonin.web.mail.EmailAttachment;
 import com.serotonin.web.mail.EmailContent;
 import com.serotonin.web.mail.EmailInline;
@@ -56,7 +58,7 @@ import com.serotonin.web.mail.EmailInline;
 public class EmailHandlerRT extends EventHandlerRT implements ModelTimeoutClient<EventInstance> {
     private static final Log LOG = LogFactory.getLog(EmailHandlerRT.class);
 
-    private TimerTask escalationTask;
+    private TimerWheel.Timeout escalationTask;
 
     private Set<String> activeRecipients;
 
@@ -116,7 +118,7 @@ public class EmailHandlerRT extends EventHandlerRT implements ModelTimeoutClient
         // If an escalation is to be sent, set up timeout to trigger it.
         if (vo.isSendEscalation()) {
             long delayMS = Common.getMillis(vo.getEscalationDelayType(), vo.getEscalationDelay());
-            escalationTask = new ModelTimeoutTask<EventInstance>(delayMS, this, evt);
+            escalationTask = TimerWheel.instance().schedule(System.currentTimeMillis() + delayMS, this, evt);
         }
     }
 
@@ -148,14 +150,92 @@ public class EmailHandlerRT extends EventHandlerRT implements ModelTimeoutClient
             sendEmail(evt, NotificationType.INACTIVE, inactiveRecipients);
     }
 
-    public static void sendActiveEmail(EventInstance evt, Set<String> addresses) {
+    public static void sendActiveEmail(EventInstance evt, final Set<String> addresses) {
+        // Limited per set of default recipients
+        String key = "email.default." + new TreeSet<String>(addresses);
+        if (!EventHandlerThrottle.instance().tryAcquire(key, evt, new DigestClient() {
+            @Override
+            public void sendDigest(List<List<EventInstance>> sources) {
+                sendDigestEmail(sources, NotificationType.ACTIVE, addresses, null);
+            }
+        }))
+            return;
         sendEmail(evt, NotificationType.ACTIVE, addresses, null, false, 0, false);
     }
 
-    private void sendEmail(EventInstance evt, NotificationType notificationType, Set<String> addresses) {
+    private void sendEmail(EventInstance evt, final NotificationType notificationType, final Set<String> addresses) {
+        String key = "email." + vo.getId() + "." + notificationType.getFile();
+        if (!EventHandlerThrottle.instance().tryAcquire(key, evt, new DigestClient() {
+            @Override
+            public void sendDigest(List<List<EventInstance>> sources) {
+                sendDigestEmail(sources, notificationType, addresses, vo.getAlias());
+            }
+        }))
+            return;
         sendEmail(evt, notificationType, addresses, vo.getAlias(), vo.isIncludeSystemInfo(), vo.getIncludePointValueCount(), vo.isIncludeLogfile());
     }
 
+    /**
+     * One email for the events a handler held back while it was limited
+     */
+    private static void sendDigestEmail(List<List<EventInstance>> sources, NotificationType notificationType,
+            Set<String> addresses, String alias) {
+        int count = 0;
+        int alarmLevel = AlarmLevels.NONE;
+        for (List<EventInstance> source : sources) {
+            Iterator<EventInstance> it = source.iterator();
+            while (it.hasNext()) {
+                EventInstance evt = it.next();
+                // Don't send email notifications about email send failures.
+                if (evt.getEventType().isSystemMessage()
+                        && ((SystemEventType) evt.getEventType()).getSystemEventType().equals(
+                                SystemEventType.TYPE_EMAIL_SEND_FAILURE)) {
+                    it.remove();
+                    continue;
+                }
+                count++;
+                if (evt.getAlarmLevel() > alarmLevel)
+                    alarmLevel = evt.getAlarmLevel();
+            }
+        }
+        if (count == 0)
+            return;
+
+        Translations translations = Common.getTranslations();
+        TranslatableMessage notifTypeMsg = new TranslatableMessage(notificationType.getKey());
+        TranslatableMessage subjectMsg;
+        if (StringUtils.isBlank(alias))
+            subjectMsg = new TranslatableMessage("ftl.subject.digest", count, notifTypeMsg);
+        else
+            subjectMsg = new TranslatableMessage("ftl.subject.digest.alias", alias, count, notifTypeMsg);
+        String subject = AlarmLevels.getAlarmLevelMessage(alarmLevel).translate(translations) + " - "
+                + subjectMsg.translate(translations);
+
+        //Trim the subject if its too long
+        if(subject.length() > 200)
+        	subject = subject.substring(0,200);
+
+        try {
+            String[] toAddrs = addresses.toArray(new String[0]);
+            UsedImagesDirective inlineImages = new UsedImagesDirective();
+
+            Map<String, Object> model = new HashMap<String, Object>();
+            model.put("sources", sources);
+            model.put("digestMessage", new TranslatableMessage("ftl.digest", count, notifTypeMsg));
+            model.put("img", inlineImages);
+            model.put("instanceDescription", SystemSettingsDao.getValue(SystemSettingsDao.INSTANCE_DESCRIPTION));
+
+            MangoEmailContent content = new MangoEmailContent("digest", model, translations, subject, Common.UTF8);
+            for (String s : inlineImages.getImageList())
+                content.addInline(new EmailInline.FileInline(s, Common.getWebPath(s)));
+
+            EmailWorkItem.queueEmail(toAddrs, content, null);
+        }
+        catch (Exception e) {
+            LOG.error("", e);
+        }
+    }
+
     private static void sendEmail(EventInstance evt, NotificationType notificationType, Set<String> addresses,
             String alias, boolean includeSystemInfo, int pointValueCount, boolean includeLogs) {
         if (evt.getEventType().isSystemMessage()) {
@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.event.handlers;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.rt.event.EventInstance;
+import com.serotonin.m2m2.rt.event.type.EventType;
+import com.serotonin.m2m2.util.timeout.RejectedTaskHandler;
+import com.serotonin.m2m2.util.timeout.TimeoutClient;
+import com.serotonin.m2m2.util.timeout.TimeoutTask;
+import com.serotonin.timer.OneTimeTrigger;
+import com.serotonin.timer.RejectedTaskReason;
+
+/**
+ * Limits how often the handlers act on events so an event storm, like all the points of a data source
+ * going into alarm at once, doesn't send an email or start a process for every event.
+ *
+ * Each handler action has a token bucket, an action that finds the bucket empty is not run. Its event
+ * is added to a digest instead and when the digest window ends the handler acts once for all the events
+ * of the digest, grouped by their source. While a digest is open all events for the action go into it.
+ */
+public class EventHandlerThrottle {
+
+	private static final Log LOG = LogFactory.getLog(EventHandlerThrottle.class);
+
+	private static EventHandlerThrottle instance;
+
+	public static synchronized EventHandlerThrottle instance(){
+		if(instance == null){
+			if(Common.envProps.getBoolean("runtime.eventHandlers.limit", false))
+				instance = new EventHandlerThrottle(
+						Common.envProps.getInt("runtime.eventHandlers.limit.burst", 10),
+						Common.envProps.getInt("runtime.eventHandlers.limit.perMinute", 6),
+						Common.envProps.getInt("runtime.eventHandlers.limit.digestWindow", 60) * 1000L);
+			else
+				instance = new EventHandlerThrottle(0, 0, 0);
+		}
+		return instance;
+	}
+
+	private final int burst;
+	private final double tokensPerMs;
+	private final long digestWindow;
+	private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+	//Buckets that are full again with no digest open are dropped this often (ms), a new one is the same
+	private static final long PRUNE_INTERVAL = 60000;
+	private final AtomicLong lastPrune = new AtomicLong();
+
+	/**
+	 * @param burst - actions that can run back to back, 0 for no limit
+	 * @param perMinute - actions that can run per minute once the burst is used up
+	 * @param digestWindow - ms to collect events for a digest
+	 */
+	EventHandlerThrottle(int burst, int perMinute, long digestWindow){
+		this.burst = burst;
+		this.tokensPerMs = perMinute / 60000d;
+		this.digestWindow = digestWindow;
+	}
+
+	/**
+	 * Take a token for an action
+	 *
+	 * @param key - identifies the action, i.e. the handler and what it does
+	 * @param evt - the event being acted on
+	 * @param digest - sent the events of the key that were held back, once the digest window ends
+	 * @return true if the action can run now, false if the event was added to the digest
+	 */
+	public boolean tryAcquire(String key, EventInstance evt, DigestClient digest){
+		if(burst <= 0)
+			return true;
+
+		long now = now();
+		long pruned = lastPrune.get();
+		if(now - pruned >= PRUNE_INTERVAL && lastPrune.compareAndSet(pruned, now))
+			prune(now);
+
+		while(true){
+			Bucket bucket = buckets.get(key);
+			if(bucket == null){
+				bucket = new Bucket(key, now);
+				Bucket existing = buckets.putIfAbsent(key, bucket);
+				if(existing != null)
+					bucket = existing;
+			}
+			synchronized(bucket){
+				//Dropped since it was looked up, use the new one
+				if(!bucket.removed)
+					return bucket.tryAcquire(evt, digest);
+			}
+		}
+	}
+
+	/**
+	 * Drop the idle buckets so actions that stopped, e.g. of deleted handlers, aren't kept forever
+	 */
+	void prune(long now){
+		Iterator<Bucket> it = buckets.values().iterator();
+		while(it.hasNext()){
+			Bucket bucket = it.next();
+			synchronized(bucket){
+				if(bucket.isIdle(now)){
+					bucket.removed = true;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	int getBucketCount(){
+		return buckets.size();
+	}
+
+	/**
+	 * Run the bucket's digest after the delay
+	 */
+	protected void schedule(long delay, final Bucket bucket){
+		new TimeoutTask(new OneTimeTrigger(delay), new TimeoutClient(){
+			@Override
+			public void scheduleTimeout(long fireTime) {
+				bucket.sendDigest();
+			}
+		}, new RejectedTaskHandler(){
+			@Override
+			public void rejected(RejectedTaskReason reason) {
+				//Handlers only queue their work so it's fine to send it from here
+				bucket.sendDigest();
+			}
+		});
+	}
+
+	protected long now(){
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Order the events so those of the same source are together, sources in the order they were first seen
+	 */
+	static List<List<EventInstance>> groupBySource(List<EventInstance> events){
+		Map<String, List<EventInstance>> sources = new LinkedHashMap<String, List<EventInstance>>();
+		for(EventInstance evt : events){
+			String source = getSource(evt.getEventType());
+			List<EventInstance> sourceEvents = sources.get(source);
+			if(sourceEvents == null){
+				sourceEvents = new ArrayList<EventInstance>();
+				sources.put(source, sourceEvents);
+			}
+			sourceEvents.add(evt);
+		}
+		return new ArrayList<List<EventInstance>>(sources.values());
+	}
+
+	private static String getSource(EventType type){
+		if(type.getDataSourceId() != -1)
+			return EventType.EventTypeNames.DATA_SOURCE + "." + type.getDataSourceId();
+		if(type.getPublisherId() != -1)
+			return EventType.EventTypeNames.PUBLISHER + "." + type.getPublisherId();
+		return type.getEventType() + "." + type.getEventSubtype();
+	}
+
+	public interface DigestClient {
+		/**
+		 * @param sources - the held back events, grouped by source
+		 */
+		void sendDigest(List<List<EventInstance>> sources);
+	}
+
+	class Bucket {
+		private final String key;
+		private double tokens;
+		private long lastRefill;
+		//Events held back, not null while a digest is open
+		private List<EventInstance> pending;
+		private DigestClient digest;
+		//Out of the map, a new bucket is used for the key
+		private boolean removed;
+
+		Bucket(String key, long now){
+			this.key = key;
+			this.tokens = burst;
+			this.lastRefill = now;
+		}
+
+		synchronized boolean tryAcquire(EventInstance evt, DigestClient digest){
+			long now = now();
+			tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerMs);
+			lastRefill = now;
+
+			if(pending == null){
+				if(tokens >= 1){
+					tokens--;
+					return true;
+				}
+				pending = new ArrayList<EventInstance>();
+				try{
+					schedule(digestWindow, this);
+				}catch(RuntimeException e){
+					//Nothing would send the digest
+					pending = null;
+					LOG.warn("Unable to schedule digest for " + key, e);
+					return true;
+				}
+			}
+			pending.add(evt);
+			this.digest = digest;
+			return false;
+		}
+
+		/**
+		 * @return true if the bucket is full again and has no digest open
+		 */
+		synchronized boolean isIdle(long now){
+			return pending == null && tokens + (now - lastRefill) * tokensPerMs >= burst;
+		}
+
+		void sendDigest(){
+			List<EventInstance> events;
+			DigestClient digest;
+			synchronized(this){
+				events = pending;
+				digest = this.digest;
+				pending = null;
+				this.digest = null;
+			}
+			if(events == null || events.isEmpty())
+				return;
+
+			try{
+				digest.sendDigest(groupBySource(events));
+			}catch(Exception e){
+				LOG.error("Error sending digest of " + events.size() + " events for " + key, e);
+			}
+		}
+	}
+}
@@ -4,9 +4,12 @@
  */
 package com.serotonin.m2m2.rt.event.handlers;
 
+import java.util.List;
+
 import org.apache.commons.lang3.StringUtils;
 
 import com.serotonin.m2m2.rt.event.EventInstance;
+import com.serotonin.m2m2.rt.event.handlers.EventHandlerThrottle.DigestClient;
 import com.serotonin.m2m2.rt.maint.work.ProcessWorkItem;
 import com.serotonin.m2m2.vo.event.EventHandlerVO;
 
@@ -20,17 +23,27 @@ public class ProcessHandlerRT extends EventHandlerRT {
 
     @Override
     public void eventRaised(EventInstance evt) {
-        executeCommand(vo.getActiveProcessCommand(), vo.getActiveProcessTimeout());
+        executeCommand(evt, "active", vo.getActiveProcessCommand(), vo.getActiveProcessTimeout());
     }
 
     @Override
     public void eventInactive(EventInstance evt) {
-        executeCommand(vo.getInactiveProcessCommand(), vo.getInactiveProcessTimeout());
+        executeCommand(evt, "inactive", vo.getInactiveProcessCommand(), vo.getInactiveProcessTimeout());
     }
 
-    private void executeCommand(String command, int timeout) {
+    private void executeCommand(EventInstance evt, String action, final String command, final int timeout) {
         if (StringUtils.isBlank(command))
             return;
+
+        // While limited the command is run once for all the events held back
+        if (!EventHandlerThrottle.instance().tryAcquire("process." + vo.getId() + "." + action, evt,
+                new DigestClient() {
+                    @Override
+                    public void sendDigest(List<List<EventInstance>> sources) {
+                        ProcessWorkItem.queueProcess(command, timeout);
+                    }
+                }))
+            return;
         ProcessWorkItem.queueProcess(command, timeout);
     }
 }
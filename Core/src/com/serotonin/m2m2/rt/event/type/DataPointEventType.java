@@ -28,6 +28,14 @@ public class DataPointEventType extends EventType {
         this.pointEventDetectorId = pointEventDetectorId;
     }
 
+    /**
+     * For when the data source of the point is known, so it doesn't have to be looked up
+     */
+    public DataPointEventType(int dataSourceId, int dataPointId, int pointEventDetectorId) {
+        this(dataPointId, pointEventDetectorId);
+        this.dataSourceId = dataSourceId;
+    }
+
     @Override
     public String getEventType() {
         return EventType.EventTypeNames.DATA_POINT;
@@ -8,10 +8,13 @@ import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -23,6 +26,8 @@ import org.apache.commons.logging.LogFactory;
 import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.db.dao.SystemSettingsDao;
 import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.dataImage.DataPointListener;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
 import com.serotonin.m2m2.rt.event.type.SystemEventType;
 import com.serotonin.m2m2.rt.maint.work.WorkItem;
 import com.serotonin.m2m2.web.mvc.rest.v1.model.WorkItemModel;
@@ -45,17 +50,25 @@ public class BackgroundProcessing implements ILifecycle {
     
     private ThreadPoolExecutor mediumPriorityService;
     private ThreadPoolExecutor lowPriorityService;
+    //Point value updates for the point listeners, delivered in order by the medium priority service
+    private PointListenerDispatcher pointListenerDispatcher;
+    //Items that are executing now, so long running ones can report their progress
+    private final Set<WorkItemRunnable> runningItems = Collections.newSetFromMap(new ConcurrentHashMap<WorkItemRunnable, Boolean>());
 
     public void addWorkItem(final WorkItem item) {
         Runnable runnable = new WorkItemRunnable() {
             @Override
             public void run() {
+                runningItems.add(this);
                 try {
                     item.execute();
                 }
                 catch (Throwable t) {
                 	log.error("Error in work item", t);
                 }
+                finally {
+                    runningItems.remove(this);
+                }
             }
 
             @Override
@@ -72,6 +85,11 @@ public class BackgroundProcessing implements ILifecycle {
 			public String getDescription() {
 				return item.getDescription();
 			}
+
+			@Override
+			public int getPriority() {
+				return item.getPriority();
+			}
         };
         try{
 	        if (item.getPriority() == WorkItem.PRIORITY_HIGH)
@@ -88,10 +106,48 @@ public class BackgroundProcessing implements ILifecycle {
         }
     }
 
+    /**
+     * Queue a point value update for the listener of the point, the listener gets the updates of a point
+     * in the order they were added.
+     * 
+     * @param dataPointId
+     * @param xid
+     * @param listener
+     * @param oldValue
+     * @param newValue
+     * @param set - was the value set
+     * @param backdate - is the value older than the current value of the point
+     */
+    public void addPointUpdate(int dataPointId, String xid, DataPointListener listener, PointValueTime oldValue,
+            PointValueTime newValue, boolean set, boolean backdate) {
+        pointListenerDispatcher.dispatch(dataPointId, xid, listener, oldValue, newValue, set, backdate);
+    }
+
     public int getMediumPriorityServiceQueueSize() {
         return mediumPriorityService.getQueue().size();
     }
 
+    /**
+     * @return the number of point updates waiting for their listeners in each stripe
+     */
+    public int[] getPointListenerQueueSizes() {
+        return pointListenerDispatcher.getQueueSizes();
+    }
+
+    /**
+     * @return the number of point updates waiting for their listeners
+     */
+    public int getPointListenerQueueSize() {
+        return pointListenerDispatcher.getQueueSize();
+    }
+
+    /**
+     * @return the number of point updates delivered to their listeners by each stripe
+     */
+    public long[] getPointListenerDeliveredCounts() {
+        return pointListenerDispatcher.getDeliveredCounts();
+    }
+
     public Map<String, Integer> getHighPriorityServiceQueueClassCounts() {
     	Iterator<TimerTask> iter = Common.timer.getTasks().iterator();
     	Map<String, Integer> classCounts = new HashMap<>();
@@ -225,6 +281,25 @@ public class BackgroundProcessing implements ILifecycle {
     	return this.lowPriorityService.getLargestPoolSize();
     }  
     
+    /**
+     * Get the work items that are executing now, their descriptions are read at the time of the call
+     * @return
+     */
+    public List<WorkItemModel> getRunningItems(){
+    	List<WorkItemModel> list = new ArrayList<WorkItemModel>();
+    	for(WorkItemRunnable wir : runningItems){
+    		String priority;
+    		if(wir.getPriority() == WorkItem.PRIORITY_HIGH)
+    			priority = "HIGH";
+    		else if(wir.getPriority() == WorkItem.PRIORITY_MEDIUM)
+    			priority = "MEDIUM";
+    		else
+    			priority = "LOW";
+    		list.add(new WorkItemModel(wir.getWorkItemClass().getCanonicalName(), wir.getDescription(), priority));
+    	}
+    	return list;
+    }
+
     private List<WorkItemModel> getQueueItems(ThreadPoolExecutor e, String priority){
     	List<WorkItemModel> list = new ArrayList<WorkItemModel>();
     	Iterator<Runnable> iter = e.getQueue().iterator();
@@ -263,6 +338,11 @@ public class BackgroundProcessing implements ILifecycle {
         mediumPriorityService = new ThreadPoolExecutor(corePoolSize, maxPoolSize, 60L, TimeUnit.SECONDS,
                 new LinkedBlockingQueue<Runnable>(), new MangoThreadFactory("medium", Thread.NORM_PRIORITY));
         
+        int stripes = Common.envProps.getInt("runtime.pointListener.stripes", 16);
+        if(stripes < 1)
+        	stripes = 1;
+        pointListenerDispatcher = new PointListenerDispatcher(this, stripes);
+
     	corePoolSize = SystemSettingsDao.getIntValue(SystemSettingsDao.LOW_PRI_CORE_POOL_SIZE);
     	maxPoolSize = SystemSettingsDao.getIntValue(SystemSettingsDao.LOW_PRI_MAX_POOL_SIZE);
     	//Sanity check to ensure the pool sizes are appropriate
@@ -357,6 +437,13 @@ public class BackgroundProcessing implements ILifecycle {
     	
     	public abstract String getDescription();
     	
+    	/**
+    	 * @return the priority of the work item, low unless overridden
+    	 */
+    	public int getPriority() {
+    		return WorkItem.PRIORITY_LOW;
+    	}
+    	
     }
     
 
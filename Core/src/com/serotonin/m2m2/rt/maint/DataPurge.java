@@ -8,7 +8,18 @@ import java.io.File;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -19,6 +30,7 @@ import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.DataTypes;
 import com.serotonin.m2m2.db.dao.DataPointDao;
 import com.serotonin.m2m2.db.dao.DataSourceDao;
+import com.serotonin.m2m2.db.dao.EventDao;
 import com.serotonin.m2m2.db.dao.PointValueDao;
 import com.serotonin.m2m2.db.dao.SystemSettingsDao;
 import com.serotonin.m2m2.module.FiledataDefinition;
@@ -27,24 +39,46 @@ import com.serotonin.m2m2.module.PurgeDefinition;
 import com.serotonin.m2m2.rt.dataImage.types.ImageValue;
 import com.serotonin.m2m2.rt.event.AlarmLevels;
 import com.serotonin.m2m2.rt.event.type.EventType;
+import com.serotonin.m2m2.rt.maint.work.WorkItem;
 import com.serotonin.m2m2.util.DateUtils;
 import com.serotonin.m2m2.vo.DataPointVO;
 import com.serotonin.m2m2.vo.dataSource.DataSourceVO;
 import com.serotonin.timer.CronTimerTrigger;
 import com.serotonin.timer.TimerTask;
 
+/**
+ * Purges point values, files and events that are older than their purge periods.
+ * 
+ * Points are grouped by their purge cutoff and each group is deleted in bulk, a few hundred points per delete, on
+ * db.purge.threads threads, the purge's own and helpers on the low priority pool. Deletes are chunked to
+ * db.purge.chunkSize rows with db.purge.chunkWait ms between chunks so the purge doesn't starve the point value
+ * writers. The scheduled purge runs as a low priority work item that reports its progress, only one purge runs at
+ * a time.
+ */
 public class DataPurge {
 	
 	public static final String ENABLE_POINT_DATA_PURGE = "enablePurgePointValues";
 	
+	//Points per bulk delete
+	private static final int POINTS_PER_DELETE = 200;
+	//Held by the purge that is running
+	private static final ReentrantLock RUNNING = new ReentrantLock();
+	
     private final Log log = LogFactory.getLog(DataPurge.class);
     private long runtime;
     private final DataPointDao dataPointDao = new DataPointDao();
     private final DataSourceDao dataSourceDao = new DataSourceDao();
     private final PointValueDao pointValueDao = Common.databaseProxy.newPointValueDao();
-    private long deletedSamples;
+    private final AtomicLong deletedSamples = new AtomicLong();
     private long deletedFiles;
     private final List<Long> fileIds = new ArrayList<Long>();
+    
+    //Progress
+    private volatile long startTime;
+    private volatile int pointCount;
+    private final AtomicInteger purgedPoints = new AtomicInteger();
+    private volatile long eventPurgeStart;
+    private volatile int deletedEvents;
 
     public static void schedule() {
         try {
@@ -55,9 +89,19 @@ public class DataPurge {
         }
     }
 
-    synchronized public void execute(long runtime) {
-        this.runtime = runtime;
-        executeImpl();
+    public void execute(long runtime) {
+        // The scheduled purge and one started from the settings page each have their own instance
+        if (!RUNNING.tryLock()) {
+            log.info("Data purge already running, skipping");
+            return;
+        }
+        try {
+            this.runtime = runtime;
+            executeImpl();
+        }
+        finally {
+            RUNNING.unlock();
+        }
     }
 
     private void executeImpl() {
@@ -66,15 +110,16 @@ public class DataPurge {
         boolean purgePoints = SystemSettingsDao.getBooleanValue(ENABLE_POINT_DATA_PURGE, true);
         
         if(purgePoints){
+        	startTime = System.currentTimeMillis();
 	        // Get the data point information.
 	        List<DataPointVO> dataPoints = dataPointDao.getDataPoints(null, false);
-	        for (DataPointVO dataPoint : dataPoints)
-	            purgePoint(dataPoint);
+	        purgePoints(dataPoints);
 	
-	        deletedSamples += pointValueDao.deleteOrphanedPointValues();
+	        deletedSamples.addAndGet(pointValueDao.deleteOrphanedPointValues());
 	        pointValueDao.deleteOrphanedPointValueAnnotations();
 	
-	        log.info("Data purge ended, " + deletedSamples + " point samples deleted");
+	        log.info("Data purge ended, " + deletedSamples.get() + " point samples deleted in "
+	        		+ (System.currentTimeMillis() - startTime) + "ms");
         }else{
         	log.info("Purge for data points no enabled, skipping.");
         }
@@ -92,14 +137,35 @@ public class DataPurge {
             def.execute(runtime);
     }
 
-    private void purgePoint(DataPointVO dataPoint) {
-        if (dataPoint.getLoggingType() == DataPointVO.LoggingTypes.NONE){
-            // If there is no logging, then there should be no data, unless logging was just changed to none. In either
-            // case, it's ok to delete everything.
-        	log.info("Purging all data for data point with id " + dataPoint.getId() + " because it is set to logging type NONE.");
-            deletedSamples += Common.runtimeManager.purgeDataPointValues(dataPoint.getId());
-        }
-        else {
+    private void purgePoints(List<DataPointVO> dataPoints) {
+        // Read the data sources and the system settings once rather than per point
+        Map<Integer, DataSourceVO<?>> dataSources = new HashMap<Integer, DataSourceVO<?>>();
+        for (DataSourceVO<?> ds : dataSourceDao.getDataSources())
+            dataSources.put(ds.getId(), ds);
+        int systemPurgeType = SystemSettingsDao.getIntValue(SystemSettingsDao.POINT_DATA_PURGE_PERIOD_TYPE);
+        int systemPurgePeriod = SystemSettingsDao.getIntValue(SystemSettingsDao.POINT_DATA_PURGE_PERIODS);
+
+        // No matter when this purge actually runs, we want it to act like it's midnight.
+        DateTime midnight = DateUtils.truncateDateTime(new DateTime(runtime), Common.TimePeriods.DAYS);
+
+        List<ProgressTask> tasks = new ArrayList<ProgressTask>();
+        Map<Long, List<Integer>> pointsByCutoff = new TreeMap<Long, List<Integer>>();
+        List<Integer> imagePoints = new ArrayList<Integer>();
+        for (final DataPointVO dataPoint : dataPoints) {
+            if (dataPoint.getLoggingType() == DataPointVO.LoggingTypes.NONE) {
+                // If there is no logging, then there should be no data, unless logging was just changed to none. In
+                // either case, it's ok to delete everything.
+                tasks.add(new ProgressTask(1, new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        log.info("Purging all data for data point with id " + dataPoint.getId()
+                                + " because it is set to logging type NONE.");
+                        return Common.runtimeManager.purgeDataPointValues(dataPoint.getId());
+                    }
+                }));
+                continue;
+            }
+
             // Determine the purging properties to use.
             int purgeType;
             int purgePeriod;
@@ -110,27 +176,157 @@ public class DataPurge {
             }
             else {
                 // Check the data source level.
-                DataSourceVO<?> ds = dataSourceDao.getDataSource(dataPoint.getDataSourceId());
-                if (ds.isPurgeOverride()) {
+                DataSourceVO<?> ds = dataSources.get(dataPoint.getDataSourceId());
+                if (ds != null && ds.isPurgeOverride()) {
                     purgeType = ds.getPurgeType();
                     purgePeriod = ds.getPurgePeriod();
                 }
                 else {
                     // Use the system settings.
-                    purgeType = SystemSettingsDao.getIntValue(SystemSettingsDao.POINT_DATA_PURGE_PERIOD_TYPE);
-                    purgePeriod = SystemSettingsDao.getIntValue(SystemSettingsDao.POINT_DATA_PURGE_PERIODS);
+                    purgeType = systemPurgeType;
+                    purgePeriod = systemPurgePeriod;
                 }
             }
 
-            // No matter when this purge actually runs, we want it to act like it's midnight.
-            DateTime cutoff = new DateTime(runtime);
-            cutoff = DateUtils.truncateDateTime(cutoff, Common.TimePeriods.DAYS);
-            cutoff = DateUtils.minus(cutoff, purgeType, purgePeriod);
-            deletedSamples += Common.runtimeManager.purgeDataPointValues(dataPoint.getId(), cutoff.getMillis());
+            long cutoff = DateUtils.minus(midnight, purgeType, purgePeriod).getMillis();
+            List<Integer> ids = pointsByCutoff.get(cutoff);
+            if (ids == null) {
+                ids = new ArrayList<Integer>();
+                pointsByCutoff.put(cutoff, ids);
+            }
+            ids.add(dataPoint.getId());
 
             // If this is an image data type, get the point value ids.
             if (dataPoint.getPointLocator().getDataTypeId() == DataTypes.IMAGE)
-                fileIds.addAll(pointValueDao.getFiledataIds(dataPoint.getId()));
+                imagePoints.add(dataPoint.getId());
+        }
+
+        // One bulk delete per group of points with the same cutoff
+        for (Map.Entry<Long, List<Integer>> entry : pointsByCutoff.entrySet()) {
+            final long cutoff = entry.getKey();
+            List<Integer> ids = entry.getValue();
+            for (int i = 0; i < ids.size(); i += POINTS_PER_DELETE) {
+                final List<Integer> batch = ids.subList(i, Math.min(ids.size(), i + POINTS_PER_DELETE));
+                tasks.add(new ProgressTask(batch.size(), new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return Common.runtimeManager.purgeDataPointValues(batch, cutoff);
+                    }
+                }));
+            }
+        }
+
+        pointCount = dataPoints.size();
+        Queue<ProgressTask> queue = new ConcurrentLinkedQueue<ProgressTask>(tasks);
+        CountDownLatch done = new CountDownLatch(tasks.size());
+        // Helpers work through the deletes on the low priority threads alongside this one. This thread doesn't
+        // wait for them to start, so the purge finishes even if the pool is busy.
+        int threads = Math.max(1, Common.envProps.getInt("db.purge.threads", 2));
+        for (int i = 1; i < threads; i++) {
+            try {
+                Common.backgroundProcessing.addWorkItem(new PurgeHelper(queue, done));
+            }
+            catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        purge(queue, done);
+        try {
+            // Deletes the helpers took are still running
+            done.await();
+        }
+        catch (InterruptedException e) {
+            log.warn("Data purge interrupted");
+            Thread.currentThread().interrupt();
+        }
+
+        for (Integer id : imagePoints)
+            fileIds.addAll(pointValueDao.getFiledataIds(id));
+    }
+
+    /**
+     * Run the tasks until there are none left
+     */
+    private void purge(Queue<ProgressTask> queue, CountDownLatch done) {
+        ProgressTask task;
+        while ((task = queue.poll()) != null) {
+            try {
+                deletedSamples.addAndGet(task.call());
+            }
+            catch (Exception e) {
+                // Carry on with the other points, they will be tried again on the next purge
+                log.error("Failed to purge point values", e);
+            }
+            finally {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Takes tasks of the purge on a low priority thread
+     */
+    class PurgeHelper implements WorkItem {
+        private final Queue<ProgressTask> queue;
+        private final CountDownLatch done;
+
+        PurgeHelper(Queue<ProgressTask> queue, CountDownLatch done) {
+            this.queue = queue;
+            this.done = done;
+        }
+
+        @Override
+        public void execute() {
+            purge(queue, done);
+        }
+
+        @Override
+        public int getPriority() {
+            return WorkItem.PRIORITY_LOW;
+        }
+
+        @Override
+        public String getDescription() {
+            return "Data purge helper";
+        }
+    }
+
+    /**
+     * @return a one line description of how far the purge has got
+     */
+    public String getProgress() {
+        if (eventPurgeStart != 0) {
+            long elapsed = Math.max(1, System.currentTimeMillis() - eventPurgeStart);
+            return "Event purge, " + deletedEvents + " events deleted (" + (deletedEvents * 1000L / elapsed) + "/s)";
+        }
+        if (startTime == 0)
+            return "Data purge";
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        long deleted = deletedSamples.get();
+        return "Data purge, " + purgedPoints.get() + " of " + pointCount + " points, " + deleted
+                + " values deleted (" + (deleted * 1000 / elapsed) + "/s)";
+    }
+
+    /**
+     * Counts the points a task has purged once it finishes
+     */
+    class ProgressTask implements Callable<Long> {
+        private final int points;
+        private final Callable<Long> task;
+
+        ProgressTask(int points, Callable<Long> task) {
+            this.points = points;
+            this.task = task;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            try {
+                return task.call();
+            }
+            finally {
+                purgedPoints.addAndGet(points);
+            }
         }
     }
 
@@ -180,60 +376,78 @@ public class DataPurge {
         //Purge All Events at this rate
         DateTime cutoff = DateUtils.minus(cutoffTruncated, SystemSettingsDao.getIntValue(SystemSettingsDao.EVENT_PURGE_PERIOD_TYPE),
                 SystemSettingsDao.getIntValue(SystemSettingsDao.EVENT_PURGE_PERIODS));
+        eventPurgeStart = System.currentTimeMillis();
         int deleteCount = Common.eventManager.purgeEventsBefore(cutoff.getMillis());
+        deletedEvents = deleteCount;
         
         //Purge Data Point Events
         cutoff = DateUtils.minus(cutoffTruncated, SystemSettingsDao.getIntValue(SystemSettingsDao.DATA_POINT_EVENT_PURGE_PERIOD_TYPE),
                 SystemSettingsDao.getIntValue(SystemSettingsDao.DATA_POINT_EVENT_PURGE_PERIODS));
         deleteCount += Common.eventManager.purgeEventsBefore(cutoff.getMillis(), EventType.EventTypeNames.DATA_POINT);
+        deletedEvents = deleteCount;
 
         //Purge the Data Source Events
         cutoff = DateUtils.minus(cutoffTruncated, SystemSettingsDao.getIntValue(SystemSettingsDao.DATA_SOURCE_EVENT_PURGE_PERIOD_TYPE),
                 SystemSettingsDao.getIntValue(SystemSettingsDao.DATA_SOURCE_EVENT_PURGE_PERIODS));
         deleteCount += Common.eventManager.purgeEventsBefore(cutoff.getMillis(),EventType.EventTypeNames.DATA_SOURCE);
+        deletedEvents = deleteCount;
         
         //Purge the Data Source Events
         cutoff = DateUtils.minus(cutoffTruncated, SystemSettingsDao.getIntValue(SystemSettingsDao.SYSTEM_EVENT_PURGE_PERIOD_TYPE),
                 SystemSettingsDao.getIntValue(SystemSettingsDao.SYSTEM_EVENT_PURGE_PERIODS));
         deleteCount += Common.eventManager.purgeEventsBefore(cutoff.getMillis(),EventType.EventTypeNames.SYSTEM);
+        deletedEvents = deleteCount;
         
         //Purge the Data Source Events
         cutoff = DateUtils.minus(cutoffTruncated, SystemSettingsDao.getIntValue(SystemSettingsDao.PUBLISHER_EVENT_PURGE_PERIOD_TYPE),
                 SystemSettingsDao.getIntValue(SystemSettingsDao.PUBLISHER_EVENT_PURGE_PERIODS));
         deleteCount += Common.eventManager.purgeEventsBefore(cutoff.getMillis(),EventType.EventTypeNames.PUBLISHER);
+        deletedEvents = deleteCount;
         
         //Purge the Data Source Events
         cutoff = DateUtils.minus(cutoffTruncated, SystemSettingsDao.getIntValue(SystemSettingsDao.AUDIT_EVENT_PURGE_PERIOD_TYPE),
                 SystemSettingsDao.getIntValue(SystemSettingsDao.AUDIT_EVENT_PURGE_PERIODS));
         deleteCount += Common.eventManager.purgeEventsBefore(cutoff.getMillis(),EventType.EventTypeNames.AUDIT);
+        deletedEvents = deleteCount;
 
         //Purge Alarm Level NONE
         cutoff = DateUtils.minus(cutoffTruncated, SystemSettingsDao.getIntValue(SystemSettingsDao.NONE_ALARM_PURGE_PERIOD_TYPE),
                 SystemSettingsDao.getIntValue(SystemSettingsDao.NONE_ALARM_PURGE_PERIODS));
         deleteCount += Common.eventManager.purgeEventsBefore(cutoff.getMillis(),AlarmLevels.NONE);
+        deletedEvents = deleteCount;
         
         //Purge Alarm Level INFORMATION
         cutoff = DateUtils.minus(cutoffTruncated, SystemSettingsDao.getIntValue(SystemSettingsDao.INFORMATION_ALARM_PURGE_PERIOD_TYPE),
                 SystemSettingsDao.getIntValue(SystemSettingsDao.INFORMATION_ALARM_PURGE_PERIODS));
         deleteCount += Common.eventManager.purgeEventsBefore(cutoff.getMillis(),AlarmLevels.INFORMATION);
+        deletedEvents = deleteCount;
         
         //Purge Alarm Level URGENT
         cutoff = DateUtils.minus(cutoffTruncated, SystemSettingsDao.getIntValue(SystemSettingsDao.URGENT_ALARM_PURGE_PERIOD_TYPE),
                 SystemSettingsDao.getIntValue(SystemSettingsDao.URGENT_ALARM_PURGE_PERIODS));
         deleteCount += Common.eventManager.purgeEventsBefore(cutoff.getMillis(),AlarmLevels.URGENT);
+        deletedEvents = deleteCount;
         
         //Purge Alarm Level CRITICAL
         cutoff = DateUtils.minus(cutoffTruncated, SystemSettingsDao.getIntValue(SystemSettingsDao.CRITICAL_ALARM_PURGE_PERIOD_TYPE),
                 SystemSettingsDao.getIntValue(SystemSettingsDao.CRITICAL_ALARM_PURGE_PERIODS));
         deleteCount += Common.eventManager.purgeEventsBefore(cutoff.getMillis(),AlarmLevels.CRITICAL);
+        deletedEvents = deleteCount;
         
         //Purge Alarm Level LIFE_SAFETY
         cutoff = DateUtils.minus(cutoffTruncated, SystemSettingsDao.getIntValue(SystemSettingsDao.LIFE_SAFETY_ALARM_PURGE_PERIOD_TYPE),
                 SystemSettingsDao.getIntValue(SystemSettingsDao.LIFE_SAFETY_ALARM_PURGE_PERIODS));
         deleteCount += Common.eventManager.purgeEventsBefore(cutoff.getMillis(),AlarmLevels.LIFE_SAFETY);
+        deletedEvents = deleteCount;
         
-        if (deleteCount > 0)
-            log.info("Event purge ended, " + deleteCount + " events deleted");
+        // Comments of events deleted some other way
+        new EventDao().deleteOrphanedEventComments();
+
+        if (deleteCount > 0) {
+            long elapsed = Math.max(1, System.currentTimeMillis() - eventPurgeStart);
+            log.info("Event purge ended, " + deleteCount + " events deleted in " + elapsed + "ms ("
+                    + (deleteCount * 1000L / elapsed) + "/s)");
+        }
         
     }
 
@@ -247,7 +461,35 @@ public class DataPurge {
 
         @Override
         public void run(long runtime) {
-            new DataPurge().execute(runtime);
+            // Purging can take a long time, so hand it off rather than holding a timer thread
+            Common.backgroundProcessing.addWorkItem(new DataPurgeWorkItem(runtime));
+        }
+    }
+
+    /**
+     * Runs the purge in the background, its description is the progress of the purge
+     */
+    static class DataPurgeWorkItem implements WorkItem {
+        private final long runtime;
+        private final DataPurge dataPurge = new DataPurge();
+
+        DataPurgeWorkItem(long runtime) {
+            this.runtime = runtime;
+        }
+
+        @Override
+        public void execute() {
+            dataPurge.execute(runtime);
+        }
+
+        @Override
+        public int getPriority() {
+            return WorkItem.PRIORITY_LOW;
+        }
+
+        @Override
+        public String getDescription() {
+            return dataPurge.getProgress();
         }
     }
 }
@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.maint;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.serotonin.m2m2.rt.dataImage.DataPointListener;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.maint.work.WorkItem;
+
+/**
+ * Delivers point value updates to the listeners of the points in the order the values arrived.
+ *
+ * Points are striped by id over a fixed number of queues and each stripe is drained by one medium
+ * priority work item at a time, so the listeners of a point never see its values out of order. A burst
+ * of updates is delivered by one work item instead of one work item per value.
+ */
+public class PointListenerDispatcher {
+
+	private static final Log LOG = LogFactory.getLog(PointListenerDispatcher.class);
+
+	//Values a stripe delivers before giving its thread back to the other medium priority work
+	static final int MAX_BATCH = 1000;
+
+	private final BackgroundProcessing backgroundProcessing;
+	private final Stripe[] stripes;
+
+	public PointListenerDispatcher(BackgroundProcessing backgroundProcessing, int stripeCount){
+		this.backgroundProcessing = backgroundProcessing;
+		this.stripes = new Stripe[stripeCount];
+		for(int i=0; i<stripeCount; i++)
+			stripes[i] = new Stripe(i);
+	}
+
+	/**
+	 * Queue the update for the listener of a point
+	 *
+	 * @param dataPointId
+	 * @param xid
+	 * @param listener
+	 * @param oldValue
+	 * @param newValue
+	 * @param set - was the value set
+	 * @param backdate - is the value older than the current value of the point
+	 */
+	public void dispatch(int dataPointId, String xid, DataPointListener listener, PointValueTime oldValue,
+			PointValueTime newValue, boolean set, boolean backdate){
+		Stripe stripe = stripes[(dataPointId & Integer.MAX_VALUE) % stripes.length];
+		stripe.add(new PointUpdate(xid, listener, oldValue, newValue, set, backdate));
+	}
+
+	/**
+	 * @return the number of updates waiting in each stripe
+	 */
+	public int[] getQueueSizes(){
+		int[] sizes = new int[stripes.length];
+		for(int i=0; i<stripes.length; i++)
+			sizes[i] = stripes[i].size.get();
+		return sizes;
+	}
+
+	/**
+	 * @return the number of updates waiting in all stripes
+	 */
+	public int getQueueSize(){
+		int size = 0;
+		for(Stripe stripe : stripes)
+			size += stripe.size.get();
+		return size;
+	}
+
+	/**
+	 * @return the number of updates delivered by each stripe
+	 */
+	public long[] getDeliveredCounts(){
+		long[] counts = new long[stripes.length];
+		for(int i=0; i<stripes.length; i++)
+			counts[i] = stripes[i].delivered;
+		return counts;
+	}
+
+	/**
+	 * The updates of the points of one stripe. The work item that delivers them is only scheduled
+	 * when the stripe goes from empty to not empty and keeps going until it is empty again,
+	 * so there is never more than one.
+	 */
+	class Stripe implements WorkItem {
+
+		private final int index;
+		private final ConcurrentLinkedQueue<PointUpdate> queue = new ConcurrentLinkedQueue<PointUpdate>();
+		//Updates in the queue, counted after they are added and before they are removed
+		private final AtomicInteger size = new AtomicInteger();
+		//Only written by the work item
+		private volatile long delivered;
+
+		Stripe(int index){
+			this.index = index;
+		}
+
+		void add(PointUpdate update){
+			queue.offer(update);
+			if(size.getAndIncrement() == 0)
+				schedule();
+		}
+
+		private void schedule(){
+			try{
+				backgroundProcessing.addWorkItem(this);
+			}catch(RejectedExecutionException e){
+				//Shutting down, nothing will deliver the updates
+				queue.clear();
+				size.set(0);
+				throw e;
+			}
+		}
+
+		@Override
+		public void execute() {
+			for(int i=0; i<MAX_BATCH; i++){
+				PointUpdate update = queue.poll();
+				try{
+					update.deliver();
+				}catch(Throwable t){
+					LOG.error("Error in listener for point with xid: " + update.xid, t);
+				}
+				delivered++;
+				if(size.decrementAndGet() == 0)
+					return;
+			}
+			//Still not empty, so this stripe is still ours to schedule
+			schedule();
+		}
+
+		@Override
+		public int getPriority() {
+			return WorkItem.PRIORITY_MEDIUM;
+		}
+
+		/* (non-Javadoc)
+		 * @see com.serotonin.m2m2.rt.maint.work.WorkItem#getDescription()
+		 */
+		@Override
+		public String getDescription() {
+			return "Point listener stripe " + index + " delivering " + size.get() + " updates";
+		}
+	}
+
+	/**
+	 * One value of a point for its listener
+	 */
+	static class PointUpdate {
+		final String xid;
+		private final DataPointListener listener;
+		private final PointValueTime oldValue;
+		private final PointValueTime newValue;
+		private final boolean set;
+		private final boolean backdate;
+
+		PointUpdate(String xid, DataPointListener listener, PointValueTime oldValue, PointValueTime newValue,
+				boolean set, boolean backdate){
+			this.xid = xid;
+			this.listener = listener;
+			this.oldValue = oldValue;
+			this.newValue = newValue;
+			this.set = set;
+			this.backdate = backdate;
+		}
+
+		void deliver(){
+			if (backdate)
+				listener.pointBackdated(newValue);
+			else {
+				// Always fire this.
+				listener.pointUpdated(newValue);
+
+				// Fire if the point has changed.
+				if (!PointValueTime.equalValues(oldValue, newValue))
+					listener.pointChanged(oldValue, newValue);
+
+				// Fire if the point was set.
+				if (set)
+					listener.pointSet(oldValue, newValue);
+			}
+		}
+	}
+}
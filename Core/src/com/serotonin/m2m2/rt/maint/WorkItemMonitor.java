@@ -8,6 +8,9 @@ import java.util.Collection;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.dao.EventDao;
+import com.serotonin.m2m2.rt.script.CompiledScriptCache;
+import com.serotonin.m2m2.util.timeout.TimerWheel;
 import com.serotonin.monitor.IntegerMonitor;
 import com.serotonin.timer.FixedRateTrigger;
 import com.serotonin.timer.TimerTask;
@@ -28,6 +31,14 @@ public class WorkItemMonitor extends TimerTask {
             + ".mediumPriorityServiceQueueSize";
     public static final String HIGH_PROIRITY_MONITOR_ID = WorkItemMonitor.class.getName()
             + ".highPriorityServiceQueueSize";
+    public static final String POINT_LISTENER_MONITOR_ID = WorkItemMonitor.class.getName()
+            + ".pointListenerQueueSize";
+    public static final String POINT_LISTENER_STRIPE_MONITOR_ID = WorkItemMonitor.class.getName()
+            + ".pointListenerMaxStripeQueueSize";
+    public static final String EVENT_WRITE_MONITOR_ID = WorkItemMonitor.class.getName() + ".eventWriteQueueSize";
+    public static final String TIMER_WHEEL_MONITOR_ID = WorkItemMonitor.class.getName() + ".timerWheelTimeoutCount";
+    public static final String SCRIPT_COMPILE_MONITOR_ID = WorkItemMonitor.class.getName() + ".scriptCompileCount";
+    public static final String SCRIPT_CACHE_HIT_MONITOR_ID = WorkItemMonitor.class.getName() + ".scriptCacheHitCount";
     public static final String MAX_STACK_HEIGHT_MONITOR_ID = WorkItemMonitor.class.getName() + ".maxStackHeight";
     public static final String THREAD_COUNT_MONITOR_ID = WorkItemMonitor.class.getName() + ".threadCount";
     public static final String DB_ACTIVE_CONNECTIONS_MONITOR_ID = WorkItemMonitor.class.getName()
@@ -38,8 +49,20 @@ public class WorkItemMonitor extends TimerTask {
             "internal.monitor.MONITOR_HIGH");
     private final IntegerMonitor mediumPriorityServiceQueueSize = new IntegerMonitor(MEDIUM_PROIRITY_MONITOR_ID,
             "internal.monitor.MONITOR_MEDIUM");
+    private final IntegerMonitor pointListenerQueueSize = new IntegerMonitor(POINT_LISTENER_MONITOR_ID,
+            "internal.monitor.POINT_LISTENER_QUEUE");
+    private final IntegerMonitor pointListenerMaxStripeQueueSize = new IntegerMonitor(POINT_LISTENER_STRIPE_MONITOR_ID,
+            "internal.monitor.POINT_LISTENER_STRIPE_QUEUE");
+    private final IntegerMonitor eventWriteQueueSize = new IntegerMonitor(EVENT_WRITE_MONITOR_ID,
+            "internal.monitor.EVENT_WRITE_QUEUE");
     private final IntegerMonitor scheduledTimerTaskCount = new IntegerMonitor(SCHEDULED_TASK_MONITOR_ID,
             "internal.monitor.MONITOR_SCHEDULED");
+    private final IntegerMonitor timerWheelTimeoutCount = new IntegerMonitor(TIMER_WHEEL_MONITOR_ID,
+            "internal.monitor.TIMER_WHEEL_TIMEOUTS");
+    private final IntegerMonitor scriptCompileCount = new IntegerMonitor(SCRIPT_COMPILE_MONITOR_ID,
+            "internal.monitor.SCRIPT_COMPILES");
+    private final IntegerMonitor scriptCacheHitCount = new IntegerMonitor(SCRIPT_CACHE_HIT_MONITOR_ID,
+            "internal.monitor.SCRIPT_CACHE_HITS");
     private final IntegerMonitor maxStackHeight = new IntegerMonitor(MAX_STACK_HEIGHT_MONITOR_ID,
             "internal.monitor.MONITOR_STACK_HEIGHT");
     private final IntegerMonitor threadCount = new IntegerMonitor(THREAD_COUNT_MONITOR_ID,
@@ -68,7 +91,13 @@ public class WorkItemMonitor extends TimerTask {
         this.running = true;
         Common.MONITORED_VALUES.addIfMissingStatMonitor(highPriorityServiceQueueSize);
         Common.MONITORED_VALUES.addIfMissingStatMonitor(mediumPriorityServiceQueueSize);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(pointListenerQueueSize);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(pointListenerMaxStripeQueueSize);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(eventWriteQueueSize);
         Common.MONITORED_VALUES.addIfMissingStatMonitor(scheduledTimerTaskCount);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(timerWheelTimeoutCount);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(scriptCompileCount);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(scriptCacheHitCount);
         Common.MONITORED_VALUES.addIfMissingStatMonitor(maxStackHeight);
         Common.MONITORED_VALUES.addIfMissingStatMonitor(threadCount);
         Common.MONITORED_VALUES.addIfMissingStatMonitor(dbActiveConnections);
@@ -96,8 +125,24 @@ public class WorkItemMonitor extends TimerTask {
     		highPriorityServiceQueueSize.setValue(((ThreadPoolExecutor) Common.timer.getExecutorService()).getActiveCount());
     		scheduledTimerTaskCount.setValue(Common.timer.size());
     	}
-    	if(Common.backgroundProcessing != null)
+    	if(Common.backgroundProcessing != null){
     		mediumPriorityServiceQueueSize.setValue(Common.backgroundProcessing.getMediumPriorityServiceQueueSize());
+
+    		//A stripe much fuller than the others has a slow listener or a busy point
+    		int total = 0;
+    		int max = 0;
+    		for(int size : Common.backgroundProcessing.getPointListenerQueueSizes()){
+    			total += size;
+    			if(size > max)
+    				max = size;
+    		}
+    		pointListenerQueueSize.setValue(total);
+    		pointListenerMaxStripeQueueSize.setValue(max);
+    	}
+    	eventWriteQueueSize.setValue(EventDao.getQueuedEventWrites());
+    	timerWheelTimeoutCount.setValue(TimerWheel.getPendingCount());
+    	scriptCompileCount.setValue(CompiledScriptCache.getCompileCount());
+    	scriptCacheHitCount.setValue(CompiledScriptCache.getHitCount());
        
 
         // Check the stack heights
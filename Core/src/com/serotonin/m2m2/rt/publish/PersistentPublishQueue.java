@@ -0,0 +1,322 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.publish;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.i18n.TranslatableMessageParseException;
+import com.serotonin.m2m2.rt.dataImage.AnnotatedPointValueTime;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.AlphanumericValue;
+import com.serotonin.m2m2.rt.dataImage.types.BinaryValue;
+import com.serotonin.m2m2.rt.dataImage.types.DataValue;
+import com.serotonin.m2m2.rt.dataImage.types.ImageValue;
+import com.serotonin.m2m2.rt.dataImage.types.MultistateValue;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+import com.serotonin.m2m2.util.MappedSegmentJournal;
+import com.serotonin.m2m2.util.MappedSegmentJournal.Record;
+import com.serotonin.m2m2.vo.publish.PublishedPointVO;
+import com.serotonin.util.StringUtils;
+
+/**
+ * A publish queue that keeps its entries on disk in memory mapped segment files instead of
+ * on the heap. The read position is persisted so a restarted publisher resumes sending
+ * where it left off.
+ *
+ * Entries are consumed in order, removing an entry also removes every entry queued before it.
+ */
+public class PersistentPublishQueue<T extends PublishedPointVO> extends PublishQueue<T> {
+    private static final Log LOG = LogFactory.getLog(PersistentPublishQueue.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_PREFIX = "queue-";
+
+    private final MappedSegmentJournal journal;
+    private final Map<Integer, T> points = new HashMap<Integer, T>();
+
+    public PersistentPublishQueue(PublisherRT<T> owner, int warningSize, int discardSize) {
+        this(owner, warningSize, discardSize, getQueueDirectory(owner.getId()),
+                Common.envProps.getInt("publisher.persistentQueue.segmentSize", 8 * 1024 * 1024),
+                Common.envProps.getLong("publisher.persistentQueue.maxBytes", 1024L * 1024L * 1024L));
+    }
+
+    PersistentPublishQueue(PublisherRT<T> owner, int warningSize, int discardSize, File directory, int segmentSize,
+            long maxBytes) {
+        super(owner, warningSize, discardSize);
+        for (T point : owner.getVo().getPoints())
+            points.put(point.getDataPointId(), point);
+
+        journal = new MappedSegmentJournal(directory, SEGMENT_PREFIX, segmentSize, maxBytes);
+        if (!journal.isEmpty())
+            LOG.info("Publisher " + owner.getVo().getName() + " resuming with " + journal.getCount()
+                    + " queued entries");
+    }
+
+    /**
+     * The directory holding the queue of a publisher
+     *
+     * @param publisherId
+     * @return
+     */
+    public static File getQueueDirectory(int publisherId) {
+        String location = Common.envProps.getString("publisher.persistentQueue.location", Common.MA_HOME
+                + "/work/publishers");
+        return new File(StringUtils.replaceMacros(location, System.getProperties()), Integer.toString(publisherId));
+    }
+
+    @Override
+    public void add(T vo, PointValueTime pvt) {
+        append(vo, pvt);
+        sizeCheck();
+    }
+
+    @Override
+    public void add(T vo, List<PointValueTime> pvts) {
+        for (PointValueTime pvt : pvts)
+            append(vo, pvt);
+        sizeCheck();
+    }
+
+    private void append(T vo, PointValueTime pvt) {
+        if (!journal.append(encode(vo.getDataPointId(), pvt)))
+            LOG.warn("Publisher queue " + owner.getVo().getName() + " is full or closed, value discarded");
+    }
+
+    @Override
+    public PublishQueueEntry<T> next() {
+        List<PublishQueueEntry<T>> entries = get(1);
+        if (entries == null)
+            return null;
+        return entries.get(0);
+    }
+
+    @Override
+    public List<PublishQueueEntry<T>> get(int max) {
+        while (true) {
+            List<Record> records = journal.read(max);
+            if (records.isEmpty())
+                return null;
+
+            List<PublishQueueEntry<T>> result = new ArrayList<PublishQueueEntry<T>>(records.size());
+            for (Record record : records) {
+                ByteBuffer buffer = ByteBuffer.wrap(record.getData());
+                T vo = points.get(buffer.getInt());
+                // Points removed from the publisher since the value was queued are skipped
+                if (vo != null)
+                    result.add(new PersistentPublishQueueEntry<T>(vo, decode(buffer), record.getPosition()));
+            }
+
+            if (!result.isEmpty())
+                return result;
+            // Nothing publishable in this batch, drop it and look again
+            journal.acknowledge(records.get(records.size() - 1).getPosition());
+        }
+    }
+
+    @Override
+    public void remove(PublishQueueEntry<T> e) {
+        if (e instanceof PersistentPublishQueueEntry)
+            journal.acknowledge(((PersistentPublishQueueEntry<T>) e).getPosition());
+        sizeCheck();
+    }
+
+    @Override
+    public void removeAll(List<PublishQueueEntry<T>> list) {
+        long position = -1;
+        for (PublishQueueEntry<T> e : list) {
+            if (e instanceof PersistentPublishQueueEntry)
+                position = Math.max(position, ((PersistentPublishQueueEntry<T>) e).getPosition());
+        }
+        if (position >= 0)
+            journal.acknowledge(position);
+        sizeCheck();
+    }
+
+    @Override
+    public int getSize() {
+        long count = journal.getCount();
+        return count > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) count;
+    }
+
+    @Override
+    protected void discard(int count) {
+        List<Record> records = journal.read(count);
+        if (!records.isEmpty())
+            journal.acknowledge(records.get(records.size() - 1).getPosition());
+    }
+
+    @Override
+    public void close() {
+        journal.close();
+    }
+
+    //
+    // Compact encoding: int dataPointId, long time, byte dataType, value, annotation
+    //  alphanumeric values are a length prefixed string with -1 for null, image values are the id, the type and
+    //  the length prefixed image data if the image is not saved yet
+    //
+    static byte[] encode(int dataPointId, PointValueTime pvt) {
+        DataValue value = pvt.getValue();
+        int dataType = DataTypes.getDataType(value);
+
+        byte[] text = null;
+        if (dataType == DataTypes.ALPHANUMERIC)
+            text = toBytes(value.getStringValue());
+        else if (dataType == DataTypes.IMAGE && !((ImageValue) value).isSaved())
+            text = ((ImageValue) value).getData();
+        byte[] annotation = null;
+        if (pvt.isAnnotated())
+            annotation = toBytes(((AnnotatedPointValueTime) pvt).getSourceMessage().serialize());
+
+        int length = 4 + 8 + 1 + 4;
+        switch (dataType) {
+        case DataTypes.BINARY:
+            length += 1;
+            break;
+        case DataTypes.MULTISTATE:
+            length += 4;
+            break;
+        case DataTypes.NUMERIC:
+            length += 8;
+            break;
+        case DataTypes.ALPHANUMERIC:
+            length += 4 + length(text);
+            break;
+        case DataTypes.IMAGE:
+            length += 8 + 4 + 4 + length(text);
+            break;
+        }
+        if (annotation != null)
+            length += annotation.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(dataPointId);
+        buffer.putLong(pvt.getTime());
+        buffer.put((byte) dataType);
+        switch (dataType) {
+        case DataTypes.BINARY:
+            buffer.put(value.getBooleanValue() ? (byte) 1 : (byte) 0);
+            break;
+        case DataTypes.MULTISTATE:
+            buffer.putInt(value.getIntegerValue());
+            break;
+        case DataTypes.NUMERIC:
+            buffer.putDouble(value.getDoubleValue());
+            break;
+        case DataTypes.ALPHANUMERIC:
+            putBytes(buffer, text);
+            break;
+        case DataTypes.IMAGE:
+            ImageValue image = (ImageValue) value;
+            buffer.putLong(image.getId());
+            buffer.putInt(image.getType());
+            putBytes(buffer, text);
+            break;
+        }
+        putBytes(buffer, annotation);
+        return buffer.array();
+    }
+
+    /**
+     * Decode the value of a record, the data point id must already have been read
+     */
+    static PointValueTime decode(ByteBuffer buffer) {
+        long time = buffer.getLong();
+        int dataType = buffer.get();
+        DataValue value;
+        switch (dataType) {
+        case DataTypes.BINARY:
+            value = new BinaryValue(buffer.get() == 1);
+            break;
+        case DataTypes.MULTISTATE:
+            value = new MultistateValue(buffer.getInt());
+            break;
+        case DataTypes.NUMERIC:
+            value = new NumericValue(buffer.getDouble());
+            break;
+        case DataTypes.ALPHANUMERIC:
+            byte[] text = getBytes(buffer);
+            value = new AlphanumericValue(text == null ? null : new String(text, UTF8));
+            break;
+        case DataTypes.IMAGE:
+            long id = buffer.getLong();
+            int type = buffer.getInt();
+            byte[] data = getBytes(buffer);
+            if (data == null)
+                value = new ImageValue(id, type);
+            else
+                value = new ImageValue(data, type);
+            break;
+        default:
+            value = null;
+        }
+
+        byte[] annotation = getBytes(buffer);
+        if (annotation == null)
+            return new PointValueTime(value, time);
+
+        String serialized = new String(annotation, UTF8);
+        TranslatableMessage message;
+        try {
+            message = TranslatableMessage.deserialize(serialized);
+        }
+        catch (TranslatableMessageParseException e) {
+            message = new TranslatableMessage("common.default", serialized);
+        }
+        return new AnnotatedPointValueTime(value, time, message);
+    }
+
+    private static byte[] toBytes(String s) {
+        return s == null ? null : s.getBytes(UTF8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null)
+            buffer.putInt(-1);
+        else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Entry that knows its position in the journal
+     */
+    static class PersistentPublishQueueEntry<T extends PublishedPointVO> extends PublishQueueEntry<T> {
+        private final long position;
+
+        PersistentPublishQueueEntry(T vo, PointValueTime pvt, long position) {
+            super(vo, pvt);
+            this.position = position;
+        }
+
+        long getPosition() {
+            return position;
+        }
+    }
+}
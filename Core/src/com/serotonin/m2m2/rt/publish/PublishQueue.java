@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -23,7 +24,9 @@ public class PublishQueue<T extends PublishedPointVO> {
     private static final long SIZE_CHECK_DELAY = 5000;
 
     protected final ConcurrentLinkedQueue<PublishQueueEntry<T>> queue = new ConcurrentLinkedQueue<PublishQueueEntry<T>>();
-    private final PublisherRT<T> owner;
+    // ConcurrentLinkedQueue.size() is O(n) so track it here
+    private final AtomicInteger size = new AtomicInteger();
+    protected final PublisherRT<T> owner;
     private final int warningSize;
     private final int dewarningSize;
     private final int discardSize;
@@ -39,12 +42,15 @@ public class PublishQueue<T extends PublishedPointVO> {
 
     public void add(T vo, PointValueTime pvt) {
         queue.add(new PublishQueueEntry<T>(vo, pvt));
+        size.incrementAndGet();
         sizeCheck();
     }
 
     public void add(T vo, List<PointValueTime> pvts) {
-        for (PointValueTime pvt : pvts)
+        for (PointValueTime pvt : pvts) {
             queue.add(new PublishQueueEntry<T>(vo, pvt));
+            size.incrementAndGet();
+        }
         sizeCheck();
     }
 
@@ -65,29 +71,53 @@ public class PublishQueue<T extends PublishedPointVO> {
     }
 
     public void remove(PublishQueueEntry<T> e) {
-        queue.remove(e);
+        if (queue.remove(e))
+            size.decrementAndGet();
         sizeCheck();
     }
 
     public void removeAll(List<PublishQueueEntry<T>> list) {
-        queue.removeAll(list);
+        // Sent entries are at the head of the queue so removing them one at a time is cheap,
+        // where queue.removeAll(list) would scan the whole queue against the list.
+        for (PublishQueueEntry<T> e : list) {
+            if (queue.remove(e))
+                size.decrementAndGet();
+        }
         sizeCheck();
     }
 
     public int getSize() {
-        return queue.size();
+        return size.get();
+    }
+
+    /**
+     * Remove the oldest entries from the queue
+     * 
+     * @param count
+     */
+    protected void discard(int count) {
+        for (int i = 0; i < count; i++) {
+            if (queue.poll() != null)
+                size.decrementAndGet();
+        }
+    }
+
+    /**
+     * Release anything the queue holds, called once the publisher has stopped sending
+     */
+    public void close() {
+        // no op
     }
 
-    private void sizeCheck() {
+    protected void sizeCheck() {
         long now = System.currentTimeMillis();
         if (lastSizeCheck + SIZE_CHECK_DELAY < now) {
             lastSizeCheck = now;
-            int size = queue.size();
+            int size = getSize();
 
             synchronized (owner) {
                 if (size > discardSize) {
-                    for (int i = discardSize; i < size; i++)
-                        queue.remove();
+                    discard(size - discardSize);
                     LOG.warn("Publisher queue " + owner.getVo().getName() + " discarded " + (size - discardSize)
                             + " entries");
                 }
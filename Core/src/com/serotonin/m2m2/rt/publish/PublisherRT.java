@@ -60,6 +60,8 @@ abstract public class PublisherRT<T extends PublishedPointVO> implements Timeout
     }
 
     protected PublishQueue<T> createPublishQueue(PublisherVO<T> vo) {
+        if (vo.isPersistentQueue())
+            return new PersistentPublishQueue<T>(this, vo.getCacheWarningSize(), vo.getCacheDiscardSize());
         return new PublishQueue<T>(this, vo.getCacheWarningSize(), vo.getCacheDiscardSize());
     }
 
@@ -207,6 +209,8 @@ abstract public class PublisherRT<T extends PublishedPointVO> implements Timeout
 
         // Remove any outstanding events.
         Common.eventManager.cancelEventsForPublisher(getId());
+
+        queue.close();
     }
 
     public void joinTermination() {
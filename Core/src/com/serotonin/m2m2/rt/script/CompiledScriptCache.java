@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.script;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import com.serotonin.m2m2.Common;
+
+/**
+ * Least recently used cache of the scripts compiled by the CompiledScriptExecutor, by script text and
+ * version of the global functions they are compiled with. Points and handlers with the same script
+ * share one SharedCompiledScript instead of each creating and preparing an engine and compiling the
+ * same text. The shared script lends each run a copy with an engine of its own.
+ */
+public class CompiledScriptCache {
+
+	private static CompiledScriptCache instance;
+
+	/**
+	 * @return the cache, created on first use
+	 */
+	public static synchronized CompiledScriptCache instance(){
+		if(instance == null){
+			//Defaults when the environment isn't loaded, e.g. scripts validated in tests
+			if(Common.envProps == null)
+				instance = new CompiledScriptCache(1000, 4);
+			else
+				instance = new CompiledScriptCache(Common.envProps.getInt("runtime.script.compiledCacheSize", 1000),
+						Common.envProps.getInt("runtime.script.compiledCopies", 4));
+		}
+		return instance;
+	}
+
+	/**
+	 * @return scripts compiled since startup, 0 if the cache isn't used
+	 */
+	public static synchronized int getCompileCount(){
+		return instance == null ? 0 : instance.getCompiles();
+	}
+
+	/**
+	 * @return compiles saved by the cache since startup, 0 if the cache isn't used
+	 */
+	public static synchronized int getHitCount(){
+		return instance == null ? 0 : instance.getHits();
+	}
+
+	private final int maxSize;
+	private final int maxIdleCopies;
+	//Access ordered so the least recently used are dropped first
+	private final Map<Key, SharedCompiledScript> scripts;
+	private int compiles;
+	private int hits;
+
+	/**
+	 * @param maxSize - scripts to keep, 0 to compile every time
+	 * @param maxIdleCopies - idle copies kept of each script
+	 */
+	CompiledScriptCache(final int maxSize, int maxIdleCopies){
+		this.maxSize = maxSize;
+		this.maxIdleCopies = maxIdleCopies;
+		this.scripts = new LinkedHashMap<Key, SharedCompiledScript>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, SharedCompiledScript> eldest){
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the compiled script or compile it
+	 * @param script - the script without the global functions
+	 * @param globalFunctionsVersion
+	 * @return
+	 * @throws ScriptException
+	 */
+	public SharedCompiledScript get(String script, int globalFunctionsVersion) throws ScriptException {
+		Key key = new Key(script, globalFunctionsVersion);
+		synchronized(this){
+			SharedCompiledScript compiled = scripts.get(key);
+			if(compiled != null){
+				hits++;
+				return compiled;
+			}
+		}
+
+		//Compile outside of the lock, two threads may compile the same script, the last one is kept
+		SharedCompiledScript compiled = new SharedCompiledScript(this, script, compileCopy(script), maxIdleCopies);
+		if(maxSize > 0){
+			synchronized(this){
+				scripts.put(key, compiled);
+			}
+		}
+		return compiled;
+	}
+
+	public synchronized void clear(){
+		scripts.clear();
+	}
+
+	public synchronized int size(){
+		return scripts.size();
+	}
+
+	public synchronized int getCompiles(){
+		return compiles;
+	}
+
+	public synchronized int getHits(){
+		return hits;
+	}
+
+	/**
+	 * Compile a copy of a script for a SharedCompiledScript
+	 * @param script
+	 * @return
+	 * @throws ScriptException
+	 */
+	CompiledScript compileCopy(String script) throws ScriptException {
+		synchronized(this){
+			compiles++;
+		}
+		return compile(script);
+	}
+
+	/**
+	 * Compile the script on a new prepared engine
+	 * @param script
+	 * @return
+	 * @throws ScriptException
+	 */
+	protected CompiledScript compile(String script) throws ScriptException {
+		ScriptEngine engine = ScriptUtils.newEngine();
+		ScriptUtils.prepareEngine(engine);
+		return ((Compilable)engine).compile(CompiledScriptExecutor.wrap(script));
+	}
+
+	private static class Key {
+		private final String script;
+		private final int version;
+
+		Key(String script, int version){
+			this.script = script;
+			this.version = version;
+		}
+
+		@Override
+		public int hashCode(){
+			return script.hashCode() * 31 + version;
+		}
+
+		@Override
+		public boolean equals(Object obj){
+			if(!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return version == other.version && script.equals(other.script);
+		}
+	}
+}
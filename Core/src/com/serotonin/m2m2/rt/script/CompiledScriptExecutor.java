@@ -5,10 +5,10 @@
 package com.serotonin.m2m2.rt.script;
 
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.Map;
 
 import javax.script.Bindings;
-import javax.script.Compilable;
 import javax.script.CompiledScript;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
@@ -25,25 +25,22 @@ public class CompiledScriptExecutor extends ScriptExecutor{
     private static ScriptEngine ENGINE;
 
     /**
-     * Compile a script for the common Engine
+     * Compile a script, or get it from the cache if the same script was compiled before. The script is shared with
+     * the other callers that compiled the same text, each run is on a copy with its own engine.
      * @param script
      * @return
      * @throws ScriptException
      */
     public static CompiledScript compile(String script) throws ScriptException {
-//    	StopWatch stopWatch = new Log4JStopWatch();
-//		stopWatch.start();
-        script =  ScriptUtils.getGlobalFunctions() + SCRIPT_PREFIX + script + SCRIPT_SUFFIX ;
-        //TODO Review change 
-//        ensureInit();
-//        CompiledScript compiledScript = ((Compilable) ENGINE).compile(script);
-        
-    	ScriptEngine engine = ScriptUtils.newEngine();
-    	ScriptUtils.prepareEngine(engine);
-    	CompiledScript compiledScript = ((Compilable)engine).compile(script);
-        
-//        stopWatch.stop("compile(script)");
-        return compiledScript;
+        return CompiledScriptCache.instance().get(script, ScriptUtils.getGlobalFunctionsVersion());
+    }
+
+    /**
+     * @param script
+     * @return the script with the global functions, ready to compile
+     */
+    static String wrap(String script) {
+        return ScriptUtils.getGlobalFunctions() + SCRIPT_PREFIX + script + SCRIPT_SUFFIX;
     }
 
     /**
@@ -68,24 +65,36 @@ public class CompiledScriptExecutor extends ScriptExecutor{
 //		stopWatch.start();
     	ensureInit();
 
-        // Create the wrapper object context.
-        ScriptEngine engine = script.getEngine();
+        // The engine holds the state of the run, a shared script lends this run a copy with an engine of its own
+        SharedCompiledScript shared = script instanceof SharedCompiledScript ? (SharedCompiledScript) script : null;
+        CompiledScript run = shared == null ? script : shared.borrow();
 
-        //Prepare the Engine
-        Bindings engineScope = prepareEngine(engine, context, additionalContext, runtime, permissions, scriptWriter, log);
-        
-        // Execute.
-        Object result;
+        // Create the wrapper object context.
+        ScriptEngine engine = run.getEngine();
+        Writer writer = engine.getContext().getWriter();
         try {
-            result = script.eval(engineScope);
+            //Prepare the Engine
+            Bindings engineScope = prepareEngine(engine, context, additionalContext, runtime, permissions, scriptWriter, log);
+
+            // Execute.
+            Object result;
+            try {
+                result = run.eval(engineScope);
+            }
+            catch (ScriptException e) {
+                throw prettyScriptMessage(e);
+            }
+
+            PointValueTime value = getResult(engine, result, dataTypeId, timestamp);
+        	//stopWatch.stop("execute()");
+            return value;
         }
-        catch (ScriptException e) {
-            throw prettyScriptMessage(e);
+        finally {
+            // Don't leave this run's writer to the next user of the engine
+            engine.getContext().setWriter(writer);
+            if (shared != null)
+                shared.release(run);
         }
-
-        PointValueTime value = getResult(engine, result, dataTypeId, timestamp);
-    	//stopWatch.stop("execute()");
-        return value;
     }
     
     
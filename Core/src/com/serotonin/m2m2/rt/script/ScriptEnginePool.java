@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.script;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+
+import com.serotonin.m2m2.Common;
+
+/**
+ * Pool of idle engines for the scripts that are evaluated once, so they don't each create an engine.
+ * An engine is given back with empty engine bindings, anything a script defined is dropped.
+ */
+public class ScriptEnginePool {
+
+	private static ScriptEnginePool instance;
+
+	/**
+	 * @return the pool, created on first use
+	 */
+	public static synchronized ScriptEnginePool instance(){
+		if(instance == null){
+			//Defaults when the environment isn't loaded, e.g. scripts validated in tests
+			instance = new ScriptEnginePool(Common.envProps == null ? 8 : Common.envProps.getInt("runtime.script.enginePoolSize", 8));
+		}
+		return instance;
+	}
+
+	private final int maxIdle;
+	private final ConcurrentLinkedQueue<ScriptEngine> idle = new ConcurrentLinkedQueue<ScriptEngine>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/**
+	 * @param maxIdle - most engines kept while not in use
+	 */
+	ScriptEnginePool(int maxIdle){
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return an idle engine or a new one, null if there is no javascript engine
+	 */
+	public ScriptEngine borrow(){
+		ScriptEngine engine = idle.poll();
+		if(engine != null){
+			idleCount.decrementAndGet();
+			return engine;
+		}
+		return ScriptUtils.newEngine();
+	}
+
+	/**
+	 * Give an engine back once the script is done with it
+	 * @param engine
+	 */
+	public void release(ScriptEngine engine){
+		if(engine == null)
+			return;
+		if(idleCount.incrementAndGet() > maxIdle){
+			idleCount.decrementAndGet();
+			return;
+		}
+		engine.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		idle.offer(engine);
+	}
+}
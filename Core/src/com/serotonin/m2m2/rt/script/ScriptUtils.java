@@ -9,6 +9,7 @@ import javax.script.Compilable;
 import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 import javax.script.SimpleBindings;
@@ -32,17 +33,38 @@ public class ScriptUtils {
     public static final String POINTS_CONTEXT_KEY = "POINTS";
     public static final String TIMESTAMP_CONTEXT_KEY = "TIMESTAMP";
 
+    // Found once, looking up an engine by name scans the class path for engine factories
+    private static volatile ScriptEngineFactory ENGINE_FACTORY;
+
     public static ScriptEngine newEngine() {
-        ScriptEngineManager manager = new ScriptEngineManager();
-        return manager.getEngineByName("js");
+        ScriptEngineFactory factory = ENGINE_FACTORY;
+        if (factory == null) {
+            ScriptEngineManager manager = new ScriptEngineManager();
+            ScriptEngine engine = manager.getEngineByName("js");
+            if (engine != null)
+                ENGINE_FACTORY = engine.getFactory();
+            return engine;
+        }
+
+        // Like the manager, give the engine its own global bindings
+        ScriptEngine engine = factory.getScriptEngine();
+        engine.setBindings(new SimpleBindings(), ScriptContext.GLOBAL_SCOPE);
+        return engine;
     }
 
     public static Object execute(String script) throws ScriptError {
-        return execute(newEngine(), script, null);
+        return execute(script, null);
     }
 
     public static Object execute(String script, ScriptContext sctx) throws ScriptError {
-        return execute(newEngine(), script, sctx);
+        ScriptEnginePool pool = ScriptEnginePool.instance();
+        ScriptEngine engine = pool.borrow();
+        try {
+            return execute(engine, script, sctx);
+        }
+        finally {
+            pool.release(engine);
+        }
     }
 
     public static Object execute(ScriptEngine engine, String script, ScriptContext sctx) throws ScriptError {
@@ -254,6 +276,8 @@ public class ScriptUtils {
     //
     // Global functions
     private static String FUNCTIONS;
+    // Changed each time the global functions are cleared so scripts compiled with the old ones aren't reused
+    private static volatile int FUNCTIONS_VERSION;
 
     public static String getGlobalFunctions() {
         if (FUNCTIONS == null) {
@@ -268,7 +292,12 @@ public class ScriptUtils {
         return FUNCTIONS;
     }
 
+    public static int getGlobalFunctionsVersion() {
+        return FUNCTIONS_VERSION;
+    }
+
     public static void clearGlobalFunctions() {
         FUNCTIONS = null;
+        FUNCTIONS_VERSION++;
     }
 }
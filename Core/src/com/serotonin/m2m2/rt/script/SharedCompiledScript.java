@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.script;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.Bindings;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+/**
+ * A script from the CompiledScriptCache, shared by all the points and handlers with the same script.
+ * The engine of a compiled script holds the state of a run, so each run borrows a copy of the script
+ * compiled on an engine of its own. Runs at the same time compile more copies, the idle ones are kept
+ * up to a limit.
+ */
+public class SharedCompiledScript extends CompiledScript {
+
+	private final CompiledScriptCache cache;
+	private final String script;
+	private final int maxIdle;
+	private final ConcurrentLinkedQueue<CompiledScript> idle = new ConcurrentLinkedQueue<CompiledScript>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	//The engine of getEngine(), for its factory and the like
+	private final ScriptEngine engine;
+
+	/**
+	 * @param cache - compiles the copies
+	 * @param script - the script without the global functions
+	 * @param first - the first copy
+	 * @param maxIdle - most copies kept while not in use
+	 */
+	SharedCompiledScript(CompiledScriptCache cache, String script, CompiledScript first, int maxIdle){
+		this.cache = cache;
+		this.script = script;
+		this.maxIdle = Math.max(1, maxIdle);
+		this.engine = first.getEngine();
+		release(first);
+	}
+
+	/**
+	 * Borrow a copy to run, the caller has its engine to itself until it is released
+	 * @return
+	 * @throws ScriptException
+	 */
+	public CompiledScript borrow() throws ScriptException {
+		CompiledScript copy = idle.poll();
+		if(copy != null){
+			idleCount.decrementAndGet();
+			return copy;
+		}
+		return cache.compileCopy(script);
+	}
+
+	/**
+	 * Give a copy back once the run is done
+	 * @param copy
+	 */
+	public void release(CompiledScript copy){
+		if(idleCount.incrementAndGet() > maxIdle){
+			idleCount.decrementAndGet();
+			return;
+		}
+		idle.offer(copy);
+	}
+
+	/**
+	 * @return copies not in use
+	 */
+	public int getIdleCount(){
+		return idleCount.get();
+	}
+
+	@Override
+	public Object eval(ScriptContext context) throws ScriptException {
+		CompiledScript copy = borrow();
+		try{
+			return copy.eval(context);
+		}finally{
+			release(copy);
+		}
+	}
+
+	@Override
+	public Object eval(Bindings bindings) throws ScriptException {
+		CompiledScript copy = borrow();
+		try{
+			return copy.eval(bindings);
+		}finally{
+			release(copy);
+		}
+	}
+
+	@Override
+	public Object eval() throws ScriptException {
+		CompiledScript copy = borrow();
+		try{
+			return copy.eval();
+		}finally{
+			release(copy);
+		}
+	}
+
+	/**
+	 * The engine of one of the copies, it may be running a script. Run the script with the eval methods
+	 * or borrow a copy to use an engine.
+	 */
+	@Override
+	public ScriptEngine getEngine(){
+		return engine;
+	}
+}
@@ -0,0 +1,376 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.util;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append only journal of byte[] records kept in memory mapped segment files.
+ *
+ * Each segment starts with a 16 byte header of [long writePosition][long readPosition]
+ * followed by int length prefixed records. Reading does not remove records, they are
+ * removed in order by acknowledging the position of the last record consumed. Both
+ * positions live in the mapped header so the journal resumes where it left off after
+ * a restart. Fully consumed segments are deleted.
+ *
+ * Writes reach the file when the OS flushes the mapping, call force() for them to
+ * survive a crash of the machine. Close the journal to release the mappings.
+ */
+public class MappedSegmentJournal {
+
+    private static final Log LOG = LogFactory.getLog(MappedSegmentJournal.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_SIZE = 16;
+    private static final int WRITE_POSITION = 0;
+    private static final int READ_POSITION = 8;
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private long nextSegmentId;
+    private long bytes;
+    private long count;
+    private boolean closed;
+
+    /**
+     * Open the journal, loading any segments left in the directory
+     * @param directory
+     * @param prefix file name prefix of the segments
+     * @param segmentSize size of each mapped file
+     * @param maxBytes max unconsumed bytes before appends are refused
+     */
+    public MappedSegmentJournal(File directory, String prefix, int segmentSize, long maxBytes){
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        open();
+    }
+
+    /**
+     * @param record
+     * @return false if the journal is full or the record could not be written
+     */
+    public synchronized boolean append(byte[] record){
+        int size = record.length + 4;
+        if(closed || (bytes + size > maxBytes))
+            return false;
+        try{
+            Segment segment = segments.isEmpty() ? null : segments.getLast();
+            if((segment == null)||(segment.remaining() < size))
+                segment = createSegment(size);
+            segment.write(record);
+        }catch(IOException e){
+            LOG.error("Unable to write to journal in " + directory.getAbsolutePath(), e);
+            return false;
+        }
+        bytes += size;
+        count++;
+        return true;
+    }
+
+    /**
+     * Read up to max of the oldest records without removing them
+     * @param max
+     * @return
+     */
+    public synchronized List<Record> read(int max){
+        List<Record> records = new ArrayList<Record>();
+        for(Segment segment : segments){
+            int position = segment.getReadPosition();
+            int end = segment.getWritePosition();
+            ByteBuffer view = segment.buffer.duplicate();
+            while((records.size() < max)&&(position < end)){
+                int length = view.getInt(position);
+                byte[] data = new byte[length];
+                view.position(position + 4);
+                view.get(data);
+                position += length + 4;
+                records.add(new Record(data, (segment.id << 32) | position));
+            }
+            if(records.size() >= max)
+                break;
+        }
+        return records;
+    }
+
+    /**
+     * Remove every record up to and including the one at this position
+     * @param position from Record.getPosition()
+     */
+    public synchronized void acknowledge(long position){
+        long segmentId = position >>> 32;
+        int offset = (int)(position & 0xFFFFFFFFL);
+        Iterator<Segment> it = segments.iterator();
+        while(it.hasNext()){
+            Segment segment = it.next();
+            if(segment.id > segmentId)
+                break;
+            int consumedTo = segment.id < segmentId ? segment.getWritePosition() : offset;
+            if(consumedTo > segment.getReadPosition()){
+                consume(segment, consumedTo);
+                segment.setReadPosition(consumedTo);
+            }
+            //Keep the last segment to append to
+            if(segment.isDrained() && (segments.getLast() != segment)){
+                it.remove();
+                segment.delete();
+            }
+        }
+    }
+
+    /**
+     * Write the changes to the mapped segments through to their files
+     */
+    public synchronized void force(){
+        for(Segment segment : segments)
+            segment.buffer.force();
+    }
+
+    /**
+     * Force the segments to disk and release their mappings, the journal can't be used afterwards
+     */
+    public synchronized void close(){
+        if(closed)
+            return;
+        closed = true;
+        for(Segment segment : segments){
+            segment.buffer.force();
+            segment.unmap();
+        }
+        segments.clear();
+    }
+
+    /**
+     * Remove all records
+     */
+    public synchronized void clear(){
+        if(!segments.isEmpty()){
+            Segment last = segments.getLast();
+            acknowledge((last.id << 32) | last.getWritePosition());
+        }
+    }
+
+    public synchronized long getBytes(){
+        return bytes;
+    }
+
+    public synchronized long getCount(){
+        return count;
+    }
+
+    public synchronized boolean isEmpty(){
+        return count == 0;
+    }
+
+    /**
+     * Remove the journal and all of its files
+     */
+    public synchronized void delete(){
+        closed = true;
+        for(Segment segment : segments)
+            segment.delete();
+        segments.clear();
+        bytes = 0;
+        count = 0;
+        try{
+            FileUtils.deleteDirectory(directory);
+        }catch(IOException e){
+            LOG.warn("Unable to delete journal directory " + directory.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Update the counters for the records between the segment's read position and the new position
+     */
+    private void consume(Segment segment, int to){
+        int position = segment.getReadPosition();
+        while(position < to){
+            int size = segment.buffer.getInt(position) + 4;
+            bytes -= size;
+            count--;
+            position += size;
+        }
+    }
+
+    private void open(){
+        if(!directory.exists())
+            directory.mkdirs();
+
+        File[] files = directory.listFiles(new FilenameFilter(){
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if(files == null)
+            return;
+        Arrays.sort(files);
+
+        for(File file : files){
+            try{
+                long id = Long.parseLong(file.getName().substring(prefix.length(), file.getName().length() - SEGMENT_SUFFIX.length()));
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+                Segment segment = new Segment(id, file, (int)file.length());
+                if(segment.isDrained()){
+                    segment.delete();
+                    continue;
+                }
+                int position = segment.getReadPosition();
+                int end = segment.getWritePosition();
+                while(position < end){
+                    int size = segment.buffer.getInt(position) + 4;
+                    bytes += size;
+                    count++;
+                    position += size;
+                }
+                segments.add(segment);
+            }catch(IOException | NumberFormatException e){
+                LOG.error("Unable to open journal segment " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    private Segment createSegment(int minSize) throws IOException{
+        long id = nextSegmentId++;
+        File file = new File(directory, prefix + String.format("%016d", id) + SEGMENT_SUFFIX);
+        Segment segment = new Segment(id, file, Math.max(segmentSize, minSize + HEADER_SIZE));
+        segment.setReadPosition(HEADER_SIZE);
+        segment.setWritePosition(HEADER_SIZE);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * A record and the position to acknowledge to remove it
+     */
+    public static class Record {
+        private final byte[] data;
+        private final long position;
+
+        Record(byte[] data, long position){
+            this.data = data;
+            this.position = position;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+    }
+
+    /**
+     * A memory mapped segment file
+     */
+    static class Segment {
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Segment(long id, File file, int size) throws IOException{
+            this.id = id;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try{
+                FileChannel channel = raf.getChannel();
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }finally{
+                //Mapping remains valid after the channel is closed
+                raf.close();
+            }
+        }
+
+        int getWritePosition(){
+            return (int)buffer.getLong(WRITE_POSITION);
+        }
+
+        void setWritePosition(int position){
+            buffer.putLong(WRITE_POSITION, position);
+        }
+
+        int getReadPosition(){
+            return (int)buffer.getLong(READ_POSITION);
+        }
+
+        void setReadPosition(int position){
+            buffer.putLong(READ_POSITION, position);
+        }
+
+        int remaining(){
+            return buffer.capacity() - getWritePosition();
+        }
+
+        boolean isDrained(){
+            return getReadPosition() >= getWritePosition();
+        }
+
+        void write(byte[] record){
+            int position = getWritePosition();
+            buffer.position(position);
+            buffer.putInt(record.length);
+            buffer.put(record);
+            //Publish the record only once it is fully written
+            setWritePosition(position + 4 + record.length);
+        }
+
+        void delete(){
+            unmap();
+            if(!file.delete())
+                file.deleteOnExit();
+        }
+
+        /**
+         * Release the mapping now rather than when the buffer is collected, some platforms won't delete
+         * the file until then. The buffer must not be used afterwards.
+         */
+        void unmap(){
+            try{
+                //Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                invokeCleaner.invoke(field.get(null), buffer);
+                return;
+            }catch(NoSuchMethodException e){
+                //Java 8 and earlier
+            }catch(ReflectiveOperationException | RuntimeException e){
+                LOG.debug("Unable to unmap journal segment " + file.getAbsolutePath(), e);
+                return;
+            }
+            try{
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if(cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }catch(ReflectiveOperationException | RuntimeException e){
+                LOG.debug("Unable to unmap journal segment " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+}
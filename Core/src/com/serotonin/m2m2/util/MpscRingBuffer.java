@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free multi producer single consumer ring buffer.
+ *
+ * Each slot carries a sequence number that tells producers whether the slot is free
+ * and tells the consumer whether the slot has been published. Producers claim a slot
+ * by CAS on the tail, the consumer never contends with anyone.
+ *
+ * Only ONE thread may call poll()/drainTo() at a time, it is up to the caller to guarantee this.
+ */
+public class MpscRingBuffer<E> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+
+    //Next slot to be claimed by a producer
+    private final AtomicLong tail = new AtomicLong();
+    //Next slot to be read by the consumer, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param requestedCapacity will be rounded up to the next power of 2
+     */
+    public MpscRingBuffer(int requestedCapacity){
+        if(requestedCapacity < 2)
+            throw new IllegalArgumentException("Capacity must be at least 2");
+        int cap = Integer.highestOneBit(requestedCapacity - 1) << 1;
+        if(cap <= 0)
+            throw new IllegalArgumentException("Capacity too large: " + requestedCapacity);
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.buffer = new AtomicReferenceArray<E>(cap);
+        this.sequences = new AtomicLongArray(cap);
+        for(int i=0; i<cap; i++)
+            this.sequences.set(i, i);
+    }
+
+    /**
+     * Add an element, safe to call from any number of threads
+     * @param e
+     * @return false if the buffer is full
+     */
+    public boolean offer(E e){
+        if(e == null)
+            throw new NullPointerException();
+        while(true){
+            long t = tail.get();
+            int index = (int)(t & mask);
+            long diff = sequences.get(index) - t;
+            if(diff == 0){
+                if(tail.compareAndSet(t, t + 1)){
+                    buffer.lazySet(index, e);
+                    //Publish to consumer, volatile write orders the element write before it
+                    sequences.set(index, t + 1);
+                    return true;
+                }
+            }else if(diff < 0){
+                //Consumer has not yet freed this slot, we are full
+                return false;
+            }
+            //else another producer claimed the slot, retry
+        }
+    }
+
+    /**
+     * Remove the oldest element, consumer thread only
+     * @return the element or null if empty
+     */
+    public E poll(){
+        long h = head.get();
+        int index = (int)(h & mask);
+        if(sequences.get(index) != h + 1)
+            return null;
+        E e = buffer.get(index);
+        buffer.lazySet(index, null);
+        //Free the slot for the producer that wraps around to it
+        sequences.set(index, h + capacity);
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    /**
+     * Move up to max elements into the array starting at 0, consumer thread only
+     * @param into
+     * @param max
+     * @return number of elements drained
+     */
+    public int drainTo(E[] into, int max){
+        int count = 0;
+        int limit = Math.min(max, into.length);
+        while(count < limit){
+            E e = poll();
+            if(e == null)
+                break;
+            into[count++] = e;
+        }
+        return count;
+    }
+
+    /**
+     * Approximate number of elements, exact when producers and the consumer are quiet
+     * @return
+     */
+    public int size(){
+        long size = tail.get() - head.get();
+        if(size < 0)
+            return 0;
+        if(size > capacity)
+            return capacity;
+        return (int)size;
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.util;
+
+/**
+ * Window of timestamps and double values, oldest first, kept in primitive ring arrays so holding
+ * the recent history of a point doesn't need a list node, a PointValueTime and a DataValue per
+ * entry. Entries are added at the end and expired from the front in constant time, the arrays
+ * grow as needed and are never shrunk.
+ *
+ * Not thread safe, the owner must synchronize.
+ */
+public class TimeValueWindow {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private long[] times;
+    //Null if only times are kept
+    private double[] values;
+    //Index of the oldest entry
+    private int head;
+    private int size;
+
+    /**
+     * Window of times and values
+     */
+    public TimeValueWindow(){
+        this(true);
+    }
+
+    /**
+     * @param withValues - false to only keep times
+     */
+    public TimeValueWindow(boolean withValues){
+        this.times = new long[INITIAL_CAPACITY];
+        if(withValues)
+            this.values = new double[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Add a time to a window without values
+     * @param time
+     */
+    public void add(long time){
+        add(time, 0);
+    }
+
+    /**
+     * Add an entry after the newest one
+     * @param time
+     * @param value - ignored if the window doesn't keep values
+     */
+    public void add(long time, double value){
+        if(size == times.length)
+            grow();
+        int index = (head + size) & (times.length - 1);
+        times[index] = time;
+        if(values != null)
+            values[index] = value;
+        size++;
+    }
+
+    /**
+     * @param i - 0 for the oldest entry
+     * @return
+     */
+    public long getTime(int i){
+        return times[index(i)];
+    }
+
+    /**
+     * @param i - 0 for the oldest entry
+     * @return
+     */
+    public double getValue(int i){
+        if(values == null)
+            throw new IllegalStateException("Window doesn't keep values");
+        return values[index(i)];
+    }
+
+    /**
+     * Remove the entries older than the cutoff, assumes the entries were added in time order
+     * @param cutoff
+     * @return the number of entries removed
+     */
+    public int expireBefore(long cutoff){
+        int removed = 0;
+        while(size > 0 && times[head] < cutoff){
+            removeFirst();
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Remove the oldest entries until there are at most max
+     * @param max
+     */
+    public void trimTo(int max){
+        while(size > max)
+            removeFirst();
+    }
+
+    public void removeFirst(){
+        if(size == 0)
+            throw new IllegalStateException("Window is empty");
+        head = (head + 1) & (times.length - 1);
+        size--;
+    }
+
+    public void clear(){
+        head = 0;
+        size = 0;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    private int index(int i){
+        if(i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        return (head + i) & (times.length - 1);
+    }
+
+    /**
+     * Double the capacity, moving the entries to the start of the new arrays
+     */
+    private void grow(){
+        int capacity = times.length << 1;
+        if(capacity < 0)
+            throw new IllegalStateException("Window too large");
+
+        int tail = times.length - head;
+        long[] newTimes = new long[capacity];
+        System.arraycopy(times, head, newTimes, 0, tail);
+        System.arraycopy(times, 0, newTimes, tail, head);
+        times = newTimes;
+        if(values != null){
+            double[] newValues = new double[capacity];
+            System.arraycopy(values, head, newValues, 0, tail);
+            System.arraycopy(values, 0, newValues, tail, head);
+            values = newValues;
+        }
+        head = 0;
+    }
+}
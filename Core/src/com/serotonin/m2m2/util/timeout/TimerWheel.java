@@ -0,0 +1,359 @@
+/**
+ * Copyright (C) 2016 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.util.timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.serotonin.m2m2.Common;
+
+/**
+ * Hierarchical hashed timer wheel for the one time timeouts that are scheduled and cancelled all the time,
+ * like detector durations and handler escalations. Scheduling and cancelling are constant time, unlike the
+ * timer's task queue which is a heap of every pending task.
+ *
+ * There are 4 wheels of 256 slots, a slot of the first wheel is one tick, a slot of each next wheel is all
+ * the slots of the one before. A timeout goes in the lowest wheel that reaches its deadline and moves down
+ * a wheel each time the slot it is in comes around. Timeouts fire on the tick on or after their deadline,
+ * never before, and are run on the timer's executor like a TimeoutTask.
+ */
+public class TimerWheel {
+
+    private static final Log LOG = LogFactory.getLog(TimerWheel.class);
+
+    private static final int WHEELS = 4;
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private static TimerWheel instance;
+
+    /**
+     * @return the wheel, started on first use
+     */
+    public static synchronized TimerWheel instance(){
+        if(instance == null){
+            instance = new TimerWheel(Common.envProps.getLong("runtime.timerWheel.tick", 10), System.currentTimeMillis());
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * @return the timeouts waiting in the wheel, 0 if it isn't running
+     */
+    public static synchronized int getPendingCount(){
+        return instance == null ? 0 : instance.size();
+    }
+
+    private final long tickMs;
+    private final long startTime;
+    //Head of the list in each slot of each wheel
+    private final Timeout[][] slots = new Timeout[WHEELS][SLOTS];
+    //Timeouts in each wheel
+    private final int[] wheelSizes = new int[WHEELS];
+    //Last tick that was run
+    private long currentTick;
+    private int size;
+    private volatile Thread thread;
+
+    /**
+     * @param tickMs - ms per tick
+     * @param startTime - time of tick 0
+     */
+    TimerWheel(long tickMs, long startTime){
+        this.tickMs = Math.max(1, tickMs);
+        this.startTime = startTime;
+    }
+
+    /**
+     * Call the client at or shortly after the time
+     * @param fireTime - ms since epoch
+     * @param client
+     * @return the timeout, to cancel it
+     */
+    public Timeout schedule(long fireTime, TimeoutClient client){
+        return schedule(new Timeout(fireTime, client, null, null));
+    }
+
+    /**
+     * Call the client with the model at or shortly after the time
+     * @param fireTime - ms since epoch
+     * @param client
+     * @param model
+     * @return the timeout, to cancel it
+     */
+    public <T> Timeout schedule(long fireTime, ModelTimeoutClient<T> client, T model){
+        return schedule(new Timeout(fireTime, null, client, model));
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    /**
+     * Stop the wheel at shutdown, once the points and handlers that use it are stopped. The next use
+     * starts a new one.
+     */
+    public static synchronized void terminateInstance(){
+        if(instance != null){
+            instance.terminate();
+            instance = null;
+        }
+    }
+
+    /**
+     * Stop the ticking thread, the timeouts still in the wheel are dropped
+     */
+    public void terminate(){
+        Thread thread = this.thread;
+        this.thread = null;
+        if(thread != null)
+            thread.interrupt();
+    }
+
+    void start(){
+        Thread thread = new Thread("Timer wheel"){
+            @Override
+            public void run(){
+                while(TimerWheel.this.thread == this){
+                    try{
+                        advanceTo(System.currentTimeMillis());
+                        Thread.sleep(tickMs);
+                    }catch(InterruptedException e){
+                        //Terminated
+                    }catch(Exception e){
+                        LOG.error("Error running timer wheel", e);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+    }
+
+    /**
+     * Run every tick up to the time
+     * @param now
+     */
+    void advanceTo(long now){
+        long target = (now - startTime) / tickMs;
+        while(true){
+            List<Timeout> due = new ArrayList<Timeout>();
+            synchronized(this){
+                //Limit the work done while holding the lock
+                for(int i=0; i<SLOTS && currentTick < target; i++){
+                    skipEmpty(target);
+                    if(currentTick < target)
+                        tick(due);
+                }
+            }
+            for(Timeout timeout : due)
+                dispatch(timeout);
+            synchronized(this){
+                if(currentTick >= target)
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Run an expired timeout, never called while holding the wheel's lock since a rejected timeout is run
+     * by the calling thread
+     */
+    protected void dispatch(final Timeout timeout){
+        Runnable task = new Runnable(){
+            @Override
+            public void run() {
+                timeout.fire();
+            }
+        };
+        try{
+            Common.timer.execute(task);
+        }catch(RejectedExecutionException e){
+            //Don't lose it, a detector would never go inactive
+            LOG.warn("Timer rejected timeout, running it on the timer wheel thread");
+            task.run();
+        }
+    }
+
+    private Timeout schedule(Timeout timeout){
+        synchronized(this){
+            timeout.deadlineTick = (timeout.fireTime - startTime + tickMs - 1) / tickMs;
+            if(timeout.deadlineTick > currentTick){
+                add(timeout);
+                size++;
+                return timeout;
+            }
+            timeout.state = Timeout.EXPIRED;
+        }
+        //Already due
+        dispatch(timeout);
+        return timeout;
+    }
+
+    private synchronized boolean cancel(Timeout timeout){
+        if(timeout.state != Timeout.PENDING)
+            return false;
+        timeout.state = Timeout.CANCELLED;
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Jump over the ticks where nothing can happen, i.e. up to the next slot of the lowest wheel that
+     * isn't empty
+     */
+    private void skipEmpty(long target){
+        int wheel = 0;
+        while(wheel < WHEELS && wheelSizes[wheel] == 0)
+            wheel++;
+        if(wheel == 0)
+            return;
+
+        long next = target;
+        if(wheel < WHEELS){
+            long span = 1L << (SLOT_BITS * wheel);
+            next = Math.min(target, (currentTick / span + 1) * span - 1);
+        }
+        if(next > currentTick)
+            currentTick = next;
+    }
+
+    /**
+     * Move to the next tick, cascade the wheels that came around and collect the expired timeouts
+     */
+    private void tick(List<Timeout> due){
+        long tick = ++currentTick;
+        for(int wheel=WHEELS - 1; wheel>0; wheel--){
+            if((tick & ((1L << (SLOT_BITS * wheel)) - 1)) == 0){
+                Timeout timeout = detach(wheel, (int)((tick >>> (SLOT_BITS * wheel)) & SLOT_MASK));
+                while(timeout != null){
+                    Timeout next = timeout.next;
+                    wheelSizes[wheel]--;
+                    place(timeout, due);
+                    timeout = next;
+                }
+            }
+        }
+
+        Timeout timeout = detach(0, (int)(tick & SLOT_MASK));
+        while(timeout != null){
+            Timeout next = timeout.next;
+            wheelSizes[0]--;
+            place(timeout, due);
+            timeout = next;
+        }
+    }
+
+    /**
+     * Put a detached timeout back into the wheels, or in the due list if it has expired
+     */
+    private void place(Timeout timeout, List<Timeout> due){
+        timeout.prev = null;
+        timeout.next = null;
+        if(timeout.deadlineTick <= currentTick){
+            timeout.state = Timeout.EXPIRED;
+            size--;
+            due.add(timeout);
+        }else
+            add(timeout);
+    }
+
+    /**
+     * Add to the lowest wheel whose current rotation reaches the deadline
+     */
+    private void add(Timeout timeout){
+        int wheel = 0;
+        while(wheel < WHEELS - 1
+                && (timeout.deadlineTick >>> (SLOT_BITS * (wheel + 1))) != (currentTick >>> (SLOT_BITS * (wheel + 1))))
+            wheel++;
+        int slot = (int)((timeout.deadlineTick >>> (SLOT_BITS * wheel)) & SLOT_MASK);
+
+        timeout.wheel = wheel;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = slots[wheel][slot];
+        if(timeout.next != null)
+            timeout.next.prev = timeout;
+        slots[wheel][slot] = timeout;
+        wheelSizes[wheel]++;
+    }
+
+    private void unlink(Timeout timeout){
+        if(timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            slots[timeout.wheel][timeout.slot] = timeout.next;
+        if(timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        wheelSizes[timeout.wheel]--;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    private Timeout detach(int wheel, int slot){
+        Timeout head = slots[wheel][slot];
+        slots[wheel][slot] = null;
+        return head;
+    }
+
+    /**
+     * A scheduled call to a client
+     */
+    public class Timeout {
+        static final int PENDING = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+
+        private final long fireTime;
+        private final TimeoutClient client;
+        private final ModelTimeoutClient<Object> modelClient;
+        private final Object model;
+
+        //Guarded by the wheel
+        private int state = PENDING;
+        private long deadlineTick;
+        private int wheel;
+        private int slot;
+        private Timeout prev;
+        private Timeout next;
+
+        @SuppressWarnings("unchecked")
+        Timeout(long fireTime, TimeoutClient client, ModelTimeoutClient<?> modelClient, Object model){
+            this.fireTime = fireTime;
+            this.client = client;
+            this.modelClient = (ModelTimeoutClient<Object>)modelClient;
+            this.model = model;
+        }
+
+        /**
+         * @return true if it was cancelled, false if it had already fired or been cancelled
+         */
+        public boolean cancel(){
+            return TimerWheel.this.cancel(this);
+        }
+
+        public long getFireTime(){
+            return fireTime;
+        }
+
+        void fire(){
+            try{
+                if(client != null)
+                    client.scheduleTimeout(fireTime);
+                else
+                    modelClient.scheduleTimeout(model, fireTime);
+            }catch(Exception e){
+                LOG.error("Uncaught Task Exception", e);
+            }
+        }
+    }
+}
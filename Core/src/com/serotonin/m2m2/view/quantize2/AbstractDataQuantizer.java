@@ -41,6 +41,21 @@ abstract public class AbstractDataQuantizer {
     }
 
     public void data(DataValue value, long time) {
+        advanceTo(time, value);
+
+        dataInPeriod(value, time);
+
+        lastValue = value;
+    }
+
+    /**
+     * Close the periods before the one containing the time.
+     * 
+     * @param time
+     * @param value
+     *            the first value at or after the time
+     */
+    protected void advanceTo(long time, DataValue value) {
         if (time < startTime)
             throw new IllegalArgumentException("Data is before start time");
 
@@ -49,10 +64,14 @@ abstract public class AbstractDataQuantizer {
 
         while (time >= periodTo.getMillis())
             nextPeriod(value);
+    }
 
-        dataInPeriod(value, time);
+    protected DateTime getPeriodTo() {
+        return periodTo;
+    }
 
-        lastValue = value;
+    protected void setLastValue(DataValue lastValue) {
+        this.lastValue = lastValue;
     }
 
     public void done(DataValue endValue) {
@@ -8,7 +8,9 @@ import java.util.List;
 
 import org.joda.time.DateTime;
 
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueRollup;
 import com.serotonin.m2m2.rt.dataImage.types.DataValue;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
 import com.serotonin.m2m2.view.stats.AnalogStatistics;
 import com.serotonin.m2m2.view.stats.IValueTime;
 
@@ -28,6 +30,23 @@ public class AnalogStatisticsQuantizer extends AbstractDataQuantizer {
         this.callback = callback;
     }
 
+    /**
+     * Pre-aggregated data, given in chronological order with any other data. The rollup must lie entirely
+     * within one period.
+     * 
+     * @param rollup
+     */
+    public void data(NumericPointValueRollup rollup) {
+        advanceTo(rollup.getStartTime(), new NumericValue(rollup.getFirstValue()));
+
+        if (rollup.getEndTime() > getPeriodTo().getMillis())
+            throw new IllegalArgumentException("Rollup spans more than one period");
+
+        analogStatistics.addRollup(rollup);
+
+        setLastValue(new NumericValue(rollup.getLastValue()));
+    }
+
     @Override
     protected void openPeriod(DateTime start, DateTime end, DataValue startValue) {
         analogStatistics = new AnalogStatistics(start.getMillis(), end.getMillis(), startValue == null ? null
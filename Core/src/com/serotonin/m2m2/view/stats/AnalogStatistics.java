@@ -6,6 +6,8 @@ package com.serotonin.m2m2.view.stats;
 
 import java.util.List;
 
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueBatch;
+import com.serotonin.m2m2.rt.dataImage.NumericPointValueRollup;
 import com.serotonin.m2m2.rt.dataImage.types.DataValue;
 
 /**
@@ -16,24 +18,29 @@ public class AnalogStatistics implements StatisticsGenerator {
     private final long periodStart;
     private final long periodEnd;
 
-    // Calculated values.
-    private Double minimumValue;
-    private Long minimumTime;
-    private Double maximumValue;
-    private Long maximumTime;
+    // Calculated values. Kept as primitives so that adding values doesn't allocate, the getters return null
+    // for values that were never set.
+    private boolean hasExtremes;
+    private double minimumValue;
+    private long minimumTime;
+    private double maximumValue;
+    private long maximumTime;
     private Double average;
     private Double integral;
     private double sum;
-    private Double firstValue;
-    private Long firstTime;
-    private Double lastValue;
-    private Long lastTime;
+    private double firstValue;
+    private long firstTime;
+    private double lastValue;
+    private long lastTime;
     private int count;
     private double delta;
 
     // State values used for calculating weighted average.
-    private Double latestValue;
+    private boolean hasLatest;
+    private double latestValue;
     private long latestTime;
+    private boolean hasWeightedSum;
+    private double weightedSum;
     private long totalDuration;
 
     public AnalogStatistics(long periodStart, long periodEnd, IValueTime startVT, List<? extends IValueTime> values,
@@ -50,12 +57,24 @@ public class AnalogStatistics implements StatisticsGenerator {
         done(endValue);
     }
 
+    /**
+     * Generate the statistics from a primitive batch without creating an object per value
+     */
+    public AnalogStatistics(long periodStart, long periodEnd, Double startValue, NumericPointValueBatch values,
+            Double endValue) {
+        this(periodStart, periodEnd, startValue);
+        for (int i = 0; i < values.size(); i++)
+            addValueTime(values.getValue(i), values.getTime(i));
+        done(endValue);
+    }
+
     public AnalogStatistics(long periodStart, long periodEnd, Double startValue) {
         this.periodStart = periodStart;
         this.periodEnd = periodEnd;
         if (startValue != null) {
             minimumValue = maximumValue = latestValue = startValue;
             minimumTime = maximumTime = latestTime = periodStart;
+            hasExtremes = hasLatest = true;
         }
     }
    
@@ -68,40 +87,80 @@ public class AnalogStatistics implements StatisticsGenerator {
     public void addValueTime(DataValue value, long time) {
         if (value == null)
             return;
+        addValueTime(value.getDoubleValue(), time);
+    }
 
-        double doubleValue = value.getDoubleValue();
-
+    public void addValueTime(double value, long time) {
         count++;
 
-        if (firstValue == null) {
-            firstValue = doubleValue;
+        if (count == 1) {
+            firstValue = value;
             firstTime = time;
         }
 
-        if (minimumValue == null || minimumValue > doubleValue) {
-            minimumValue = doubleValue;
+        if (!hasExtremes || minimumValue > value) {
+            minimumValue = value;
             minimumTime = time;
         }
 
-        if (maximumValue == null || maximumValue < doubleValue) {
-            maximumValue = doubleValue;
+        if (!hasExtremes || maximumValue < value) {
+            maximumValue = value;
             maximumTime = time;
         }
+        hasExtremes = true;
         
-        if(latestValue != null){
-            delta += (doubleValue - latestValue);
+        if(hasLatest){
+            delta += (value - latestValue);
         }else{
-        	delta = doubleValue;
+        	delta = value;
         }
         
-        updateAverage(doubleValue, time);
+        updateAverage(value, time);
 
-        sum += value.getDoubleValue();
+        sum += value;
 
-        lastValue = value.getDoubleValue();
+        lastValue = value;
         lastTime = time;
     }
 
+    /**
+     * Add all of the values of a pre-aggregated rollup at once, gives the same result as adding the values the
+     * rollup was made from. The rollup must be after any values already added.
+     */
+    public void addRollup(NumericPointValueRollup rollup) {
+        if (rollup.isEmpty())
+            return;
+
+        addValueTime(rollup.getFirstValue(), rollup.getFirstTime());
+        if (rollup.getCount() == 1)
+            return;
+
+        count += rollup.getCount() - 1;
+        sum += rollup.getSum() - rollup.getFirstValue();
+
+        if (minimumValue > rollup.getMinimumValue()) {
+            minimumValue = rollup.getMinimumValue();
+            minimumTime = rollup.getMinimumTime();
+        }
+        if (maximumValue < rollup.getMaximumValue()) {
+            maximumValue = rollup.getMaximumValue();
+            maximumTime = rollup.getMaximumTime();
+        }
+
+        delta += rollup.getLastValue() - rollup.getFirstValue();
+
+        // The rollup integral is the weighted sum from its first to its last value
+        long duration = rollup.getLastTime() - rollup.getFirstTime();
+        if (duration > 0) {
+            hasWeightedSum = true;
+            weightedSum += rollup.getIntegral();
+            totalDuration += duration;
+        }
+
+        lastValue = latestValue = rollup.getLastValue();
+        lastTime = latestTime = rollup.getLastTime();
+    }
+
     @Override
     public void done(IValueTime endVT) {
         done(endVT == null ? null : endVT.getValue().getDoubleValue());
@@ -119,36 +178,35 @@ public class AnalogStatistics implements StatisticsGenerator {
             //Even without an end value we need to flush the latest value
         	// into the average for the rest of the period.
         	// We use latestValue so it doesn't effect the delta
-        	if(latestValue != null)
+        	if(hasLatest)
         		updateAverage(latestValue, periodEnd);
         }
         
         //Average will not be null when we have at least one value in period AND an end value
         // OR more than 1 value in the period
-        if (average != null) {
-            integral = average / 1000D; // integrate over seconds not msecs
-            average /= totalDuration;
+        if (hasWeightedSum) {
+            integral = weightedSum / 1000D; // integrate over seconds not msecs
+            average = weightedSum / totalDuration;
         }
         else {
             // Special case: if there was no start value and no end value, and only one value in the data set, we will
             // have a latest value, and a duration of zero. For this value we set the average equal to that value.
-            average = lastValue;
+            average = getLastValue();
             //Nothing to integrate
            integral = 0D;
         }
     }
 
     private void updateAverage(double value, long time) {
-        if (latestValue != null) {
+        if (hasLatest) {
             // The duration for which the last value was in force.
             long duration = time - latestTime;
 
             if (duration > 0) {
                 // Determine the weighted average of the latest value. The average value at this point still needs to
                 // be divided by the total duration of the period.
-                if (average == null)
-                    average = 0D;
-                average += latestValue * duration;
+                hasWeightedSum = true;
+                weightedSum += latestValue * duration;
                 totalDuration += duration;
             }
         }
@@ -156,6 +214,7 @@ public class AnalogStatistics implements StatisticsGenerator {
         // Reset the latest value.
         latestValue = value;
         latestTime = time;
+        hasLatest = true;
     }
 
     @Override
@@ -169,19 +228,19 @@ public class AnalogStatistics implements StatisticsGenerator {
     }
 
     public Double getMinimumValue() {
-        return minimumValue;
+        return hasExtremes ? minimumValue : null;
     }
 
     public Long getMinimumTime() {
-        return minimumTime;
+        return hasExtremes ? minimumTime : null;
     }
 
     public Double getMaximumValue() {
-        return maximumValue;
+        return hasExtremes ? maximumValue : null;
     }
 
     public Long getMaximumTime() {
-        return maximumTime;
+        return hasExtremes ? maximumTime : null;
     }
 
     public Double getAverage() {
@@ -197,19 +256,19 @@ public class AnalogStatistics implements StatisticsGenerator {
     }
 
     public Double getFirstValue() {
-        return firstValue;
+        return count > 0 ? firstValue : null;
     }
 
     public Long getFirstTime() {
-        return firstTime;
+        return count > 0 ? firstTime : null;
     }
 
     public Double getLastValue() {
-        return lastValue;
+        return count > 0 ? lastValue : null;
     }
 
     public Long getLastTime() {
-        return lastTime;
+        return count > 0 ? lastTime : null;
     }
 
     public int getCount() {
@@ -226,19 +285,19 @@ public class AnalogStatistics implements StatisticsGenerator {
 
     @Override
     public String toString() {
-        return "{minimumValue: " + minimumValue
-        		+ ", minimumTime: " + minimumTime 
-        		+ ", maximumValue: " + maximumValue
-                + ", maximumTime: " + maximumTime
+        return "{minimumValue: " + getMinimumValue()
+        		+ ", minimumTime: " + getMinimumTime() 
+        		+ ", maximumValue: " + getMaximumValue()
+                + ", maximumTime: " + getMaximumTime()
                 + ", average: " + average
                 + ", sum: " + sum
                 + ", count: " + count
                 + ", delta: " + delta
                 + ", integral: " + integral
-                + ", firstValue: " + firstValue
-                + ", firstTime: " + firstTime
-                + ", lastValue: " + lastValue
-                + ", lastTime: " + lastTime 
+                + ", firstValue: " + getFirstValue()
+                + ", firstTime: " + getFirstTime()
+                + ", lastValue: " + getLastValue()
+                + ", lastTime: " + getLastTime() 
                 + ", periodStartTime: " + periodStart
                 + ", periodEndTime: " + periodEnd + "}";
     }
@@ -105,6 +105,8 @@ abstract public class PublisherVO<T extends PublishedPointVO> implements Seriali
     private int snapshotSendPeriodType = Common.TimePeriods.MINUTES;
     @JsonProperty
     private int snapshotSendPeriods = 5;
+    @JsonProperty
+    private boolean persistentQueue;
 
     public final PublisherDefinition getDefinition() {
         return definition;
@@ -202,6 +204,14 @@ abstract public class PublisherVO<T extends PublishedPointVO> implements Seriali
         this.snapshotSendPeriods = snapshotSendPeriods;
     }
 
+    public boolean isPersistentQueue() {
+        return persistentQueue;
+    }
+
+    public void setPersistentQueue(boolean persistentQueue) {
+        this.persistentQueue = persistentQueue;
+    }
+
     public void validate(ProcessResult response) {
         if (StringUtils.isBlank(name))
             response.addContextualMessage("name", "validate.required");
@@ -255,7 +265,7 @@ abstract public class PublisherVO<T extends PublishedPointVO> implements Seriali
     // Serialization
     //
     private static final long serialVersionUID = -1;
-    private static final int version = 2;
+    private static final int version = 3;
 
     private void writeObject(ObjectOutputStream out) throws IOException {
         out.writeInt(version);
@@ -268,6 +278,7 @@ abstract public class PublisherVO<T extends PublishedPointVO> implements Seriali
         out.writeBoolean(sendSnapshot);
         out.writeInt(snapshotSendPeriodType);
         out.writeInt(snapshotSendPeriods);
+        out.writeBoolean(persistentQueue);
     }
 
     @SuppressWarnings("unchecked")
@@ -297,6 +308,18 @@ abstract public class PublisherVO<T extends PublishedPointVO> implements Seriali
             snapshotSendPeriodType = in.readInt();
             snapshotSendPeriods = in.readInt();
         }
+        else if (ver == 3) {
+            name = SerializationHelper.readSafeUTF(in);
+            enabled = in.readBoolean();
+            points = (List<T>) in.readObject();
+            changesOnly = in.readBoolean();
+            cacheWarningSize = in.readInt();
+            cacheDiscardSize = in.readInt();
+            sendSnapshot = in.readBoolean();
+            snapshotSendPeriodType = in.readInt();
+            snapshotSendPeriods = in.readInt();
+            persistentQueue = in.readBoolean();
+        }
     }
 
     @Override
@@ -547,11 +547,10 @@ public class DataPointDwr extends AbstractDwr<DataPointVO, DataPointDao> {
         //Filter list on User Permissions
         User user = Common.getUser();
         for (DataPointVO vo : filteredPoints) {
-            if (Permissions.hasDataPointReadPermission(user, vo)) {
-            	dao.setEventDetectors(vo);
+            if (Permissions.hasDataPointReadPermission(user, vo))
                 vos.add(vo);
-            }
         }
+        dao.setEventDetectors(vos);
 
         //Get the Full VO for the export
         data.put(keyName, vos);